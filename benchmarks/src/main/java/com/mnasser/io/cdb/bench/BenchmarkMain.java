@@ -0,0 +1,43 @@
+package com.mnasser.io.cdb.bench;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of benchmarks.jar.
+ * <p>
+ * With no <code>-t</code> given, runs the selected benchmarks once per
+ * thread count in <code>-Dcdb.bench.threads</code> (default
+ * <code>1,2,4,8,max</code>) so lookups can be compared as threads are
+ * added.  Every other argument is handed to JMH as usual, e.g.
+ * <pre>
+ * 	java -jar target/benchmarks.jar CdbFindBenchmark -p records=100000
+ * 	java -jar target/benchmarks.jar HDistBenchmark -t 1
+ * </pre>
+ * 
+ * @author mnasser
+ */
+public class BenchmarkMain {
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		CommandLineOptions cmd = new CommandLineOptions(args);
+		if (cmd.getThreads().hasValue()) {
+			new Runner(cmd).run();
+			return;
+		}
+
+		String threads = System.getProperty("cdb.bench.threads", "1,2,4,8,max");
+		for (String t : threads.split(",")) {
+			int n = "max".equals(t.trim())
+				? Runtime.getRuntime().availableProcessors()
+				: Integer.parseInt(t.trim());
+			new Runner(new OptionsBuilder()
+				.parent(cmd)
+				.threads(n)
+				.build()).run();
+		}
+	}
+}
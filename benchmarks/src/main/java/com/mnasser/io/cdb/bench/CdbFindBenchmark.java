@@ -0,0 +1,95 @@
+package com.mnasser.io.cdb.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.mnasser.io.cdb.Cdb;
+
+/**
+ * Point lookups against one Cdb shared by every benchmark thread.
+ * <p>
+ * Run with <code>-t</code> (or through {@link BenchmarkMain}) to vary the
+ * thread count.  <code>cache=cold</code> reopens the map and drops the
+ * page cache before every iteration; without root only the reopen
+ * happens and the numbers are effectively warm.
+ * 
+ * @author mnasser
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CdbFindBenchmark {
+
+	@Param({"100000", "10000000"})
+	public int records;
+
+	@Param({"16", "64"})
+	public int keyLength;
+
+	@Param({"32", "1024"})
+	public int valueLength;
+
+	@Param({"1.0", "0.5", "0.0"})
+	public double hitRatio;
+
+	@Param({"warm", "cold"})
+	public String cache;
+
+	private static final int QUERIES = 1 << 16;
+
+	private File file;
+	private Cdb cdb;
+	private byte[][] queries;
+	private final AtomicInteger next = new AtomicInteger();
+
+	@Setup(Level.Trial)
+	public void build() throws IOException {
+		file = CdbFixture.cdb(records, keyLength, valueLength);
+		queries = CdbFixture.queries(QUERIES, records, keyLength, hitRatio);
+	}
+
+	@Setup(Level.Iteration)
+	public void open() throws IOException {
+		if ("cold".equals(cache) && !CdbFixture.dropPageCache())
+			System.err.println("Could not drop the page cache; 'cold' runs are warm.");
+		cdb = new Cdb(file.getPath());
+	}
+
+	@TearDown(Level.Iteration)
+	public void close() {
+		cdb.close();
+	}
+
+	/** Each thread walks its own stretch of the query keys. */
+	@State(Scope.Thread)
+	public static class Cursor {
+		int i;
+
+		@Setup(Level.Trial)
+		public void start(CdbFindBenchmark b) {
+			i = b.next.getAndAdd(QUERIES / 16);
+		}
+
+		byte[] next(byte[][] q) {
+			return q[(i++) & (QUERIES - 1)];
+		}
+	}
+
+	@Benchmark
+	public byte[] find(Cursor c) {
+		return cdb.find(c.next(queries));
+	}
+
+	@Benchmark
+	public List<byte[]> findAll(Cursor c) {
+		return cdb.findAll(c.next(queries));
+	}
+}
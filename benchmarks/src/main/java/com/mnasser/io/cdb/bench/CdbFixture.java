@@ -0,0 +1,110 @@
+package com.mnasser.io.cdb.bench;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+
+import com.mnasser.io.cdb.CdbMake;
+
+/**
+ * Builds (once) and hands out synthetic CDB files for the benchmarks.
+ * <p>
+ * Files land in <code>${cdb.bench.dir}</code> (default
+ * <code>${java.io.tmpdir}/cdb-bench</code>) and are named after their
+ * shape, so repeated runs reuse them.  Record i's key is
+ * <code>keyFor(i, keyLength)</code>; keys built by
+ * <code>missFor</code> are never in the file.
+ * 
+ * @author mnasser
+ */
+public final class CdbFixture {
+
+	private CdbFixture() {}
+
+	public static File dir() {
+		File d = new File(System.getProperty("cdb.bench.dir",
+				System.getProperty("java.io.tmpdir") + "/cdb-bench"));
+		d.mkdirs();
+		return d;
+	}
+
+	/**
+	 * Returns a CDB of <code>records</code> records with keys of
+	 * <code>keyLength</code> bytes and values of <code>valueLength</code>
+	 * bytes, building it if it does not exist yet.
+	 */
+	public static synchronized File cdb(int records, int keyLength, int valueLength)
+			throws IOException {
+		File f = new File(dir(), "bench-" + records + "-" + keyLength + "-" + valueLength + ".cdb");
+		if (f.exists())
+			return f;
+
+		File tmp = new File(f.getPath() + ".tmp");
+		CdbMake cm = new CdbMake();
+		cm.start(tmp.getPath());
+		Random r = new Random(records);
+		byte[] value = new byte[valueLength];
+		for (int i = 0; i < records; i++) {
+			r.nextBytes(value);
+			cm.add(keyFor(i, keyLength), value);
+		}
+		cm.finish();
+		if (!tmp.renameTo(f))
+			throw new IOException("Could not rename " + tmp + " to " + f);
+		return f;
+	}
+
+	/** Key of record i. */
+	public static byte[] keyFor(int i, int keyLength) {
+		return pad("k" + i, keyLength);
+	}
+
+	/** A key of the same shape as keyFor() that is never in the file. */
+	public static byte[] missFor(int i, int keyLength) {
+		return pad("m" + i, keyLength);
+	}
+
+	private static byte[] pad(String s, int len) {
+		byte[] k = new byte[Math.max(len, s.length())];
+		byte[] b = s.getBytes();
+		System.arraycopy(b, 0, k, 0, b.length);
+		for (int i = b.length; i < k.length; i++)
+			k[i] = (byte)('a' + (i % 26));
+		return k;
+	}
+
+	/**
+	 * Builds <code>count</code> query keys against a file of
+	 * <code>records</code> records, of which a <code>hitRatio</code>
+	 * fraction are present.
+	 */
+	public static byte[][] queries(int count, int records, int keyLength, double hitRatio) {
+		Random r = new Random(42);
+		byte[][] q = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			int k = r.nextInt(records);
+			q[i] = (r.nextDouble() < hitRatio) ? keyFor(k, keyLength) : missFor(k, keyLength);
+		}
+		return q;
+	}
+
+	/**
+	 * Tries to push the file's pages out of the page cache so the next
+	 * reads fault them back in.  Needs root; returns false (and the cache
+	 * stays warm) otherwise.
+	 */
+	public static boolean dropPageCache() {
+		try {
+			FileWriter w = new FileWriter("/proc/sys/vm/drop_caches");
+			try {
+				w.write("1\n");
+			} finally {
+				w.close();
+			}
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+}
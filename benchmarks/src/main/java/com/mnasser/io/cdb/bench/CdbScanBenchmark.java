@@ -0,0 +1,88 @@
+package com.mnasser.io.cdb.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.mnasser.io.cdb.Cdb;
+import com.mnasser.io.cdb.CdbElement;
+import com.mnasser.io.cdb.CdbRecord;
+import com.mnasser.io.cdb.CdbScanner;
+
+/**
+ * Full scans of a CDB file with {@link Cdb#elements(String)} and the
+ * zero-copy {@link Cdb#scan(String)}.  One
+ * operation is one pass over the whole file; the <code>records</code>
+ * and <code>megabytes</code> counters give the scan rate.
+ * 
+ * @author mnasser
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CdbScanBenchmark {
+
+	@Param({"100000", "10000000"})
+	public int records;
+
+	@Param({"16"})
+	public int keyLength;
+
+	@Param({"32", "1024"})
+	public int valueLength;
+
+	@Param({"warm", "cold"})
+	public String cache;
+
+	private File file;
+
+	@Setup(Level.Trial)
+	public void build() throws IOException {
+		file = CdbFixture.cdb(records, keyLength, valueLength);
+	}
+
+	@Setup(Level.Iteration)
+	public void evict() {
+		if ("cold".equals(cache) && !CdbFixture.dropPageCache())
+			System.err.println("Could not drop the page cache; 'cold' runs are warm.");
+	}
+
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class Counters {
+		public long records;
+		public double megabytes;
+	}
+
+	@Benchmark
+	public void elements(Counters n, Blackhole bh) throws IOException {
+		Enumeration<CdbElement> e = Cdb.elements(file.getPath());
+		while (e.hasMoreElements()) {
+			bh.consume(e.nextElement());
+			n.records++;
+		}
+		n.megabytes += file.length() / (1024.0 * 1024.0);
+	}
+
+	@Benchmark
+	public void scan(Counters n, Blackhole bh) throws IOException {
+		CdbScanner s = Cdb.scan(file.getPath());
+		try {
+			while (s.hasNext()) {
+				CdbRecord r = s.next();
+				bh.consume(r.getKeyLength() + r.getDataLength());
+				n.records++;
+			}
+		} finally {
+			s.close();
+		}
+		n.megabytes += file.length() / (1024.0 * 1024.0);
+	}
+}
@@ -0,0 +1,113 @@
+package com.mnasser.io.cdb.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.mnasser.io.cdb.parse.HDist;
+import com.mnasser.io.cdb.parse.HDistable;
+
+/**
+ * Sharding throughput of {@link HDist#run()} for both of its input
+ * formats: 'key,value' lines and cdbmake's '+klen,dlen:key-&gt;value'
+ * records.  Input is generated in memory once and shared; every thread
+ * runs its own HDist and writes its own shards to the bench folder.  The <code>megabytes</code> counter, divided by the
+ * reported time, gives MB/s.
+ * 
+ * @author mnasser
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HDistBenchmark {
+
+	@Param({"unformatted", "formatted"})
+	public String format;
+
+	@Param({"1000000"})
+	public int lines;
+
+	@Param({"16"})
+	public int keyLength;
+
+	@Param({"64"})
+	public int valueLength;
+
+	private byte[] input;
+
+	@Setup(Level.Trial)
+	public void generate() {
+		boolean cdbFormatted = "formatted".equals(format);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Random r = new Random(7);
+		byte[] value = new byte[valueLength];
+		for (int i = 0; i < lines; i++) {
+			byte[] key = CdbFixture.keyFor(i, keyLength);
+			for (int j = 0; j < value.length; j++)
+				value[j] = (byte)('a' + r.nextInt(26));
+			if (cdbFormatted) {
+				out.write('+');
+				writeAscii(out, key.length + "," + value.length + ":");
+				out.write(key, 0, key.length);
+				writeAscii(out, "->");
+			} else {
+				out.write(key, 0, key.length);
+				out.write(',');
+			}
+			out.write(value, 0, value.length);
+			out.write('\n');
+		}
+		input = out.toByteArray();
+	}
+
+	private static void writeAscii(ByteArrayOutputStream out, String s) {
+		byte[] b = s.getBytes();
+		out.write(b, 0, b.length);
+	}
+
+	/** One HDist per thread, so threads never share its state or shard
+	 * files. */
+	@State(Scope.Thread)
+	public static class Sharder {
+		private static final AtomicInteger threads = new AtomicInteger();
+
+		private String prefix;
+		private HDist hd;
+
+		@Setup(Level.Trial)
+		public void name(HDistBenchmark b) {
+			prefix = new File(CdbFixture.dir(),
+					"hdist-" + b.format + "-" + threads.getAndIncrement()).getPath();
+		}
+
+		/* HDist closes its input when done, so every run gets a fresh one. */
+		@Setup(Level.Invocation)
+		public void prepare(HDistBenchmark b) {
+			hd = new HDist(prefix, HDistable.CDB_SHARD_COUNT);
+			hd.setDelim(',');
+			hd.setCdbFormatted("formatted".equals(b.format));
+			hd.setInputStream(new ByteArrayInputStream(b.input));
+		}
+	}
+
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class Counters {
+		public double megabytes;
+	}
+
+	@Benchmark
+	public void run(Sharder s, Counters n) throws IOException {
+		s.hd.run();
+		n.megabytes += input.length / (1024.0 * 1024.0);
+	}
+}
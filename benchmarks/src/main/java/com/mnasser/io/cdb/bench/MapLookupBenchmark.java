@@ -0,0 +1,71 @@
+package com.mnasser.io.cdb.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.mnasser.io.cdb.client.CdbMapLookup;
+import com.mnasser.io.cdb.client.FileMapType;
+import com.mnasser.io.cdb.client.MapInfo;
+
+/**
+ * Round trips through {@link CdbMapLookup} against a {@link StandInServer}
+ * on the loopback interface.  CdbMapLookup is not thread safe, so every
+ * benchmark thread has its own connection.
+ * 
+ * @author mnasser
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MapLookupBenchmark {
+
+	@Param({"32", "4096"})
+	public int valueLength;
+
+	@Param({"1.0", "0.5"})
+	public double hitRatio;
+
+	private static final int QUERIES = 1 << 12;
+
+	private StandInServer server;
+	private byte[][] queries;
+	private final MapInfo map = new MapInfo("BENCH", FileMapType.STRING_TO_STRING_CDB);
+
+	@Setup(Level.Trial)
+	public void start() throws IOException {
+		server = new StandInServer(valueLength);
+		queries = CdbFixture.queries(QUERIES, 1000000, 16, hitRatio);
+	}
+
+	@TearDown(Level.Trial)
+	public void stop() throws IOException {
+		server.close();
+	}
+
+	@State(Scope.Thread)
+	public static class Connection {
+		CdbMapLookup lookup;
+		int i;
+
+		@Setup(Level.Trial)
+		public void connect(MapLookupBenchmark b) {
+			lookup = new CdbMapLookup("127.0.0.1", b.server.getPort());
+			lookup.connect();
+		}
+
+		@TearDown(Level.Trial)
+		public void close() {
+			lookup.close();
+		}
+	}
+
+	@Benchmark
+	public byte[] lookup(Connection c) throws IOException {
+		return c.lookup.lookup(map, queries[(c.i++) & (QUERIES - 1)]);
+	}
+}
@@ -0,0 +1,120 @@
+package com.mnasser.io.cdb.bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import com.mnasser.io.cdb.client.CdbConstants;
+
+/**
+ * Bare-bones stand in for the lookup service so client round trips can be
+ * measured without a real deployment.  Answers every 'Q'/'M' request
+ * with a fixed value, or with a NAK when the key starts with 'm' (see
+ * {@link CdbFixture#missFor}).  Version requests are granted v1.  One
+ * thread per connection.
+ * 
+ * @author mnasser
+ */
+public class StandInServer implements CdbConstants {
+
+	private final ServerSocket ss;
+	private final byte[] value;
+	private volatile boolean running = true;
+
+	public StandInServer(int valueLength) throws IOException {
+		ss = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+		value = new byte[valueLength];
+		for (int i = 0; i < value.length; i++)
+			value[i] = (byte)('a' + (i % 26));
+
+		Thread t = new Thread("stand-in-accept") {
+			public void run() {
+				accept();
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	public int getPort() {
+		return ss.getLocalPort();
+	}
+
+	public void close() throws IOException {
+		running = false;
+		ss.close();
+	}
+
+	private void accept() {
+		while (running) {
+			try {
+				final Socket s = ss.accept();
+				s.setTcpNoDelay(true);
+				Thread t = new Thread("stand-in-conn") {
+					public void run() {
+						serve(s);
+					}
+				};
+				t.setDaemon(true);
+				t.start();
+			} catch (IOException e) {
+				if (running)
+					e.printStackTrace();
+			}
+		}
+	}
+
+	private void serve(Socket s) {
+		try {
+			InputStream in = new BufferedInputStream(s.getInputStream());
+			OutputStream out = new BufferedOutputStream(s.getOutputStream());
+			byte[] line = new byte[1024];
+			int c;
+			while ((c = in.read()) != -1) {
+				/* Read the request: action \t map|type \t key \n */
+				int len = 0;
+				while (c != '\n' && c != -1) {
+					if (len < line.length)
+						line[len++] = (byte)c;
+					c = in.read();
+				}
+				int tabs = 0;
+				int key = len;
+				for (int i = 0; i < len; i++) {
+					if (line[i] == DELIM_REQ && ++tabs == 2) {
+						key = i + 1;
+						break;
+					}
+				}
+				boolean miss = key < len && line[key] == 'm';
+				if (len > 0 && line[0] == ACT_VERSION) {
+					/* Speaks v1 only, and says so as a text line. */
+					out.write(rACK);
+					out.write('1');
+					out.write('\n');
+				} else if (miss) {
+					out.write(rNAK);
+					out.write('\n');
+				} else {
+					out.write(rACK);
+					int vlen = value.length;
+					out.write(vlen);
+					out.write(vlen >>> 8);
+					out.write(vlen >>> 16);
+					out.write(vlen >>> 24);
+					out.write(value);
+					out.write('\n');
+				}
+				out.flush();
+			}
+		} catch (IOException ignored) {
+		} finally {
+			try { s.close(); } catch (IOException ignored) {}
+		}
+	}
+}
@@ -0,0 +1,274 @@
+package com.mnasser.io.cdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reader for the bucketed CDB layout written by {@link BucketCdbMake}.
+ * <p>
+ * Same idea as a classic CDB (a constant map, records up front, 256 hash
+ * tables behind them) but laid out for the CPU cache rather than for
+ * 1990s disks:
+ * <ul>
+ * <li>keys are hashed with 64 bit MurmurHash64A instead of the 32 bit
+ *  djb hash, so hash collisions are practically gone;</li>
+ * <li>each hash table is an array of 64 byte, cache line aligned buckets
+ *  of 8 entries, probed a bucket at a time;</li>
+ * <li>each entry holds a 16 bit fingerprint of the key's hash next to
+ *  the record's 48 bit position, so a record is only read when it is
+ *  almost certainly the one asked for.</li>
+ * </ul>
+ * A lookup usually reads one bucket and one record; a miss usually reads
+ * one bucket and nothing else.  The writer bounds how many buckets any
+ * lookup can visit per table; see {@link #getMaxProbe()}.
+ * <p>
+ * Layout, all little-endian:
+ * <pre>
+ * 	header    int magic "CDBB", int version, long seed, long entries,
+ * 	          long index position, int tables (256), int bucket size (64),
+ * 	          24 bytes reserved
+ * 	tables    256 * (long bucket position, int buckets, int max probe)
+ * 	records   int klen, int dlen, key, data  -- as in a classic CDB
+ * 	buckets   per table, 64 byte aligned: 8 * long
+ * 	          (fingerprint &lt;&lt; 48 | record position), 0 when empty
+ * </pre>
+ * Thread safe.
+ * 
+ * @author mnasser
+ */
+public class BucketCdb {
+
+	static final int MAGIC = 0x42424443; // "CDBB"
+	static final int VERSION = 1;
+	static final int TABLES = 256;
+	static final int BUCKET_SIZE = 64;
+	static final int BUCKET_ENTRIES = BUCKET_SIZE / 8;
+	static final int TABLES_POS = 64;
+	static final int HEADER_SIZE = TABLES_POS + TABLES * 16;
+	static final long POS_MASK = (1L << 48) - 1;
+
+	private final String filepath_;
+	private final CdbBuffer mmfile_;
+	private final ReaderCount readers_;
+	private final long seed_;
+	private final long entries_;
+	private final long[] bucketPos_ = new long[TABLES];
+	private final int[] buckets_ = new int[TABLES];
+	private final int[] maxProbe_ = new int[TABLES];
+
+	/**
+	 * Opens and maps a bucketed CDB file.
+	 *
+	 * @exception java.io.IOException if the file could not be opened or
+	 *  is not a bucketed CDB of a version we can read.
+	 */
+	public BucketCdb(String filepath) throws IOException {
+		filepath_ = filepath;
+		FileChannel fc = new RandomAccessFile(filepath, "r").getChannel();
+		try {
+			if (fc.size() < HEADER_SIZE)
+				throw new IOException(filepath + " is not a bucketed CDB: too short");
+			mmfile_ = new CdbBuffer(fc, fc.size());
+		} finally {
+			fc.close();
+		}
+		readers_ = new ReaderCount(new Runnable() {
+			public void run() {
+				mmfile_.unmap();
+			}
+		});
+
+		if (mmfile_.getInt(0) != MAGIC) {
+			close();
+			throw new IOException(filepath + " is not a bucketed CDB");
+		}
+		if (mmfile_.getInt(4) != VERSION) {
+			close();
+			throw new IOException(filepath + " is bucketed CDB version "
+				+ mmfile_.getInt(4) + "; only version " + VERSION + " is supported");
+		}
+		seed_ = mmfile_.getLong(8);
+		entries_ = mmfile_.getLong(16);
+		for (int t = 0; t < TABLES; t++) {
+			long pos = TABLES_POS + t * 16L;
+			bucketPos_[t] = mmfile_.getLong(pos);
+			buckets_[t] = mmfile_.getInt(pos + 8);
+			maxProbe_[t] = mmfile_.getInt(pos + 12);
+		}
+	}
+
+	public String getName()  { return new File(filepath_).getName(); }
+	public String getPath()  { return filepath_; }
+
+	/** Number of records. */
+	public long getEntries() {
+		return entries_;
+	}
+
+	/** Most buckets any lookup visits, over all tables. */
+	public int getMaxProbe() {
+		int max = 0;
+		for (int p : maxProbe_)
+			max = Math.max(max, p);
+		return max;
+	}
+
+	@Override
+	public String toString() {
+		return "BCDB|" + mmfile_.size() + "|" + getName();
+	}
+
+	/**
+	 * Closes the file; it is unmapped once running lookups finish.  See
+	 * {@link Cdb#close()}.
+	 */
+	public final void close() {
+		readers_.close();
+	}
+
+	public final boolean isClosed() {
+		return readers_.isClosed();
+	}
+
+	private void retain() {
+		if (!readers_.enter())
+			throw new IllegalStateException(this + " is closed");
+	}
+
+	/**
+	 * Finds the first record stored under key.
+	 *
+	 * @return the record's data, or null if there is none.
+	 */
+	public final byte[] find(byte[] key) {
+		retain();
+		try {
+			long rpos = probe(key, null);
+			if (rpos < 0)
+				return null;
+			return data(rpos);
+		} finally {
+			readers_.leave();
+		}
+	}
+
+	/**
+	 * Finds all records stored under key, in the order they were added.
+	 */
+	public final List<byte[]> findAll(byte[] key) {
+		List<byte[]> found = new ArrayList<byte[]>(2);
+		retain();
+		try {
+			probe(key, found);
+		} finally {
+			readers_.leave();
+		}
+		return found;
+	}
+
+	/**
+	 * Walks key's buckets.
+	 *
+	 * @param all If null, stop at the first match; otherwise add the data
+	 * 		of every match to it.
+	 * @return position of the first matching record, or -1.
+	 */
+	private long probe(byte[] key, List<byte[]> all) {
+		long h = hash(key, 0, key.length, seed_);
+		int t = table(h);
+		int nb = buckets_[t];
+		if (nb == 0)
+			return -1;
+		final CdbBuffer mm = mmfile_;
+		final int fp = fingerprint(h);
+		final long base = bucketPos_[t];
+		long first = -1;
+		int b = home(h, nb);
+		for (int probe = 0; probe < maxProbe_[t]; probe++) {
+			long bpos = base + (long)b * BUCKET_SIZE;
+			for (int e = 0; e < BUCKET_ENTRIES; e++) {
+				long entry = mm.getLong(bpos + (e << 3));
+				if (entry == 0)
+					return first;
+				if ((int)(entry >>> 48) != fp)
+					continue;
+				long rpos = entry & POS_MASK;
+				if (mm.getInt(rpos) != key.length || !mm.equals(rpos + 8, key))
+					continue;
+				if (all == null)
+					return rpos;
+				if (first < 0)
+					first = rpos;
+				all.add(data(rpos));
+			}
+			if (++b == nb)
+				b = 0;
+		}
+		return first;
+	}
+
+	private byte[] data(long rpos) {
+		int klen = mmfile_.getInt(rpos);
+		int dlen = mmfile_.getInt(rpos + 4);
+		byte[] data = new byte[dlen];
+		mmfile_.get(rpos + 8 + klen, data, 0, dlen);
+		return data;
+	}
+
+	/** The table a key hash lives in. */
+	static int table(long h) {
+		return (int)h & (TABLES - 1);
+	}
+
+	/** The 16 bit fingerprint kept for a key hash. */
+	static int fingerprint(long h) {
+		return (int)(h >>> 8) & 0xffff;
+	}
+
+	/** The first bucket searched for a key hash, out of nb. */
+	static int home(long h, int nb) {
+		return (int)(((h >>> 32) * nb) >>> 32);
+	}
+
+	/**
+	 * MurmurHash64A of len bytes of key starting at off.
+	 */
+	public static long hash(byte[] key, int off, int len, long seed) {
+		final long m = 0xc6a4a7935bd1e995L;
+		final int r = 47;
+		long h = seed ^ (len * m);
+
+		int end = off + (len & ~7);
+		for (int i = off; i < end; i += 8) {
+			long k = (key[i] & 0xffL)
+				| (key[i + 1] & 0xffL) << 8
+				| (key[i + 2] & 0xffL) << 16
+				| (key[i + 3] & 0xffL) << 24
+				| (key[i + 4] & 0xffL) << 32
+				| (key[i + 5] & 0xffL) << 40
+				| (key[i + 6] & 0xffL) << 48
+				| (key[i + 7] & 0xffL) << 56;
+			k *= m;
+			k ^= k >>> r;
+			k *= m;
+			h ^= k;
+			h *= m;
+		}
+
+		int tail = len & 7;
+		if (tail != 0) {
+			for (int i = tail - 1; i >= 0; i--)
+				h ^= (key[end + i] & 0xffL) << (i << 3);
+			h *= m;
+		}
+
+		h ^= h >>> r;
+		h *= m;
+		h ^= h >>> r;
+		return h;
+	}
+}
@@ -0,0 +1,302 @@
+package com.mnasser.io.cdb;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Writes the bucketed CDB layout read by {@link BucketCdb}.
+ * <p>
+ * Records are streamed to the file as they are added, as in
+ * {@link CdbMake}.  On {@link #finish()} each of the 256 hash tables is
+ * built in parallel: buckets are filled by linear probing, starting at
+ * {@link #MAX_LOAD} and lowering the table's load factor until no key
+ * sits more than {@link #MAX_PROBE} buckets from where its lookups start
+ * (or {@link #MIN_LOAD} is reached).  Sparse tables cost a little space;
+ * long probes cost a cache miss per bucket on every lookup of the key.
+ * <p>
+ * Not thread safe.
+ * 
+ * @author mnasser
+ */
+public class BucketCdbMake {
+
+	/** Load factor tables start out at. */
+	public static final double MAX_LOAD = 0.9;
+
+	/** Load factor tables are never made sparser than. */
+	public static final double MIN_LOAD = 0.5;
+
+	/** Most buckets a lookup should visit. */
+	public static final int MAX_PROBE = 4;
+
+	/** How much the load factor drops each time a table is rebuilt. */
+	private static final double LOAD_STEP = 0.05;
+
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	/** Hash seed written into every file. */
+	private static final long SEED = 0x5bd1e9955bd1e995L;
+
+	private FileChannel fc_ = null;
+	private ByteBuffer buf_ = null;
+	private long pos_ = 0;
+	private long[][] hashes_ = null;
+	private long[][] positions_ = null;
+	private int[] counts_ = null;
+	private final ExecutorService pool_;
+
+	/**
+	 * Creates a writer that builds its tables on a pool of its own.
+	 */
+	public BucketCdbMake() {
+		this(null);
+	}
+
+	/**
+	 * @param pool Threads to build tables on; null for a pool of our own.
+	 * 		Not shut down by us.
+	 */
+	public BucketCdbMake(ExecutorService pool) {
+		pool_ = pool;
+	}
+
+	/**
+	 * Begins writing a bucketed CDB to filepath.
+	 */
+	public void start(String filepath) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(filepath, "rw");
+		raf.setLength(0);
+		fc_ = raf.getChannel();
+		buf_ = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		buf_.order(ByteOrder.LITTLE_ENDIAN);
+		hashes_ = new long[BucketCdb.TABLES][];
+		positions_ = new long[BucketCdb.TABLES][];
+		counts_ = new int[BucketCdb.TABLES];
+		pos_ = BucketCdb.HEADER_SIZE;
+		fc_.position(pos_);
+	}
+
+	public void add(byte[] key, byte[] data) throws IOException {
+		add(key, 0, key.length, data, 0, data.length);
+	}
+
+	/**
+	 * Adds a record; see {@link CdbMake#add(byte[], int, int, byte[], int, int)}.
+	 */
+	public void add(byte[] key, int koff, int klen,
+			byte[] data, int doff, int dlen) throws IOException {
+		long reclen = 8L + klen + dlen;
+		if (pos_ + reclen > BucketCdb.POS_MASK)
+			throw new IOException("Bucketed CDB would exceed " + BucketCdb.POS_MASK + " bytes");
+
+		long h = BucketCdb.hash(key, koff, klen, SEED);
+		int t = BucketCdb.table(h);
+		int n = counts_[t];
+		if (hashes_[t] == null) {
+			hashes_[t] = new long[16];
+			positions_[t] = new long[16];
+		} else if (n == hashes_[t].length) {
+			hashes_[t] = Arrays.copyOf(hashes_[t], n * 2);
+			positions_[t] = Arrays.copyOf(positions_[t], n * 2);
+		}
+		hashes_[t][n] = h;
+		positions_[t][n] = pos_;
+		counts_[t] = n + 1;
+
+		if (buf_.remaining() < 8)
+			flush();
+		buf_.putInt(klen);
+		buf_.putInt(dlen);
+		put(key, koff, klen);
+		put(data, doff, dlen);
+		pos_ += reclen;
+	}
+
+	/**
+	 * Builds and writes the tables and the header, then closes the file.
+	 */
+	public void finish() throws IOException {
+		try {
+			writeTables();
+		} finally {
+			fc_.close();
+			fc_ = null;
+			buf_ = null;
+			hashes_ = null;
+			positions_ = null;
+		}
+	}
+
+	/** A built table: its buckets and the longest probe into them. */
+	private static final class Table {
+		long[] entries;
+		int buckets;
+		int maxProbe;
+	}
+
+	private void writeTables() throws IOException {
+		flush();
+
+		/* Build every table; each is independent. */
+		ExecutorService pool = pool_;
+		if (pool == null)
+			pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		Table[] tables = new Table[BucketCdb.TABLES];
+		try {
+			List<Future<Table>> builds = new ArrayList<Future<Table>>(BucketCdb.TABLES);
+			for (int i = 0; i < BucketCdb.TABLES; i++) {
+				final int t = i;
+				builds.add(pool.submit(new Callable<Table>() {
+					public Table call() throws IOException {
+						return buildTable(hashes_[t], positions_[t], counts_[t]);
+					}
+				}));
+			}
+			for (int i = 0; i < BucketCdb.TABLES; i++)
+				tables[i] = await(builds.get(i));
+		} finally {
+			if (pool_ == null)
+				pool.shutdown();
+		}
+
+		/* Lay the tables out behind the records, each cache line
+		 * aligned, and write them. */
+		ByteBuffer header = ByteBuffer.allocate(BucketCdb.HEADER_SIZE);
+		header.order(ByteOrder.LITTLE_ENDIAN);
+		long index = (pos_ + BucketCdb.BUCKET_SIZE - 1) & ~(long)(BucketCdb.BUCKET_SIZE - 1);
+		long entries = 0;
+		long tpos = index;
+		header.position(BucketCdb.TABLES_POS);
+		for (int t = 0; t < BucketCdb.TABLES; t++) {
+			Table table = tables[t];
+			header.putLong(tpos).putInt(table.buckets).putInt(table.maxProbe);
+			writeEntries(table.entries, tpos);
+			tpos += (long)table.buckets * BucketCdb.BUCKET_SIZE;
+			entries += counts_[t];
+		}
+		header.position(0);
+		header.putInt(BucketCdb.MAGIC).putInt(BucketCdb.VERSION)
+			.putLong(SEED).putLong(entries).putLong(index)
+			.putInt(BucketCdb.TABLES).putInt(BucketCdb.BUCKET_SIZE);
+		header.rewind();
+		writeFully(header, 0);
+	}
+
+	/**
+	 * Places count keys into buckets, lowering the load factor until the
+	 * longest probe is short enough.
+	 */
+	static Table buildTable(long[] hashes, long[] positions, int count) throws IOException {
+		Table table = new Table();
+		if (count == 0) {
+			table.entries = new long[0];
+			return table;
+		}
+		for (int step = 0; ; step++) {
+			double load = MAX_LOAD - step * LOAD_STEP;
+			long nb = (long)Math.ceil(count / (load * BucketCdb.BUCKET_ENTRIES));
+			if (nb * BucketCdb.BUCKET_ENTRIES > Integer.MAX_VALUE)
+				throw new IOException("Too many records in one table: " + count);
+			table.buckets = (int)nb;
+			table.entries = new long[table.buckets * BucketCdb.BUCKET_ENTRIES];
+			table.maxProbe = place(table.entries, table.buckets, hashes, positions, count);
+			if (table.maxProbe <= MAX_PROBE || load - LOAD_STEP < MIN_LOAD - 1e-9)
+				return table;
+		}
+	}
+
+	/**
+	 * Linear probing, a bucket at a time, in the order the records were
+	 * added so duplicate keys are found in that order.
+	 *
+	 * @return the most buckets any key's lookup has to visit.
+	 */
+	private static int place(long[] entries, int nb, long[] hashes, long[] positions, int count) {
+		int maxProbe = 0;
+		int[] fill = new int[nb];
+		for (int i = 0; i < count; i++) {
+			long h = hashes[i];
+			int b = BucketCdb.home(h, nb);
+			int probe = 1;
+			while (fill[b] == BucketCdb.BUCKET_ENTRIES) {
+				if (++b == nb)
+					b = 0;
+				probe++;
+			}
+			entries[b * BucketCdb.BUCKET_ENTRIES + fill[b]++] =
+				((long)BucketCdb.fingerprint(h) << 48) | positions[i];
+			maxProbe = Math.max(maxProbe, probe);
+		}
+		return maxProbe;
+	}
+
+	private void writeEntries(long[] entries, long tpos) throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(Math.min(BUFFER_SIZE, Math.max(8, entries.length * 8)));
+		b.order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < entries.length; i++) {
+			b.putLong(entries[i]);
+			if (!b.hasRemaining() || i == entries.length - 1) {
+				b.flip();
+				tpos += writeFully(b, tpos);
+				b.clear();
+			}
+		}
+	}
+
+	private void put(byte[] b, int off, int len) throws IOException {
+		if (len > buf_.capacity()) {
+			flush();
+			ByteBuffer w = ByteBuffer.wrap(b, off, len);
+			while (w.hasRemaining())
+				fc_.write(w);
+			return;
+		}
+		while (len > 0) {
+			if (!buf_.hasRemaining())
+				flush();
+			int n = Math.min(len, buf_.remaining());
+			buf_.put(b, off, n);
+			off += n;
+			len -= n;
+		}
+	}
+
+	private void flush() throws IOException {
+		buf_.flip();
+		while (buf_.hasRemaining())
+			fc_.write(buf_);
+		buf_.clear();
+	}
+
+	private int writeFully(ByteBuffer b, long pos) throws IOException {
+		int n = b.remaining();
+		while (b.hasRemaining())
+			pos += fc_.write(b, pos);
+		return n;
+	}
+
+	private static <T> T await(Future<T> f) throws IOException {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted building hash tables");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
+}
@@ -48,8 +48,9 @@ package com.mnasser.io.cdb;
 import java.io.*;
 import java.nio.*;
 import java.nio.channels.FileChannel;
-import java.nio.channels.FileChannel.MapMode;
 import java.util.*;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Cdb implements a Java interface to D.&nbsp;J.&nbsp;Bernstein's CDB
@@ -60,32 +61,75 @@ import java.util.*;
  * @version		2.0
  */
 public class Cdb {
-	/** The mmap() buffer for the CDB file. */
-	private MappedByteBuffer mmfile_ = null;
+	/** The mmap() buffer(s) for the CDB file. */
+	private final CdbBuffer mmfile_;
+
+	/** Readers inside mmfile_; it is unmapped once they have all left
+	 * after close(). */
+	private final ReaderCount readers_;
+
+	/** The layout of the CDB file. */
+	private final CdbFormat format_;
 
 	/** The slot pointers, cached here for efficiency as we do not have
 	 * mmap() to do it for us.  These entries are paired as (pos, len) 
 	 * tuples. 
 	 * MNasser - We do now but let's keep this since the code relies on it.*/
-	private int[] slotTable_ = null;
+	private long[] slotTable_ = null;
+
+	/** Filter of the keys present, if the file came with one. */
+	private final CdbFilter filter_;
 
+	/** Decodes values, if the file's are compressed. */
+	private final CdbCodec codec_;
 
-	/** The number of hash slots searched under this key. */
-	private int loop_ = 0;
+	/** First data record, past the codec's and build id's records. */
+	private final long dataStart_;
 
-	/** The hash value for the current key. */
-	private int khash_ = 0;
 
 
-	/** The number of hash slots in the hash table for the current key. */
-	private int hslots_ = 0;
+	/** Probe cursor backing the legacy findstart()/findnext() calls.
+	 * One per thread so those calls no longer share state. */
+	private final ThreadLocal<Cursor> cursor_ = new ThreadLocal<Cursor>() {
+		@Override
+		protected Cursor initialValue() {
+			return new Cursor();
+		}
+	};
+
+	/** Scratch cursor for one-shot lookups such as find(), so that a
+	 * miss does not even allocate a cursor. */
+	private final ThreadLocal<Cursor> scratch_ = new ThreadLocal<Cursor>() {
+		@Override
+		protected Cursor initialValue() {
+			return new Cursor();
+		}
+	};
+
+	/**
+	 * Probe state for one key search.  Used to live in Cdb itself which
+	 * forced every lookup to be synchronized; keeping it here lets any
+	 * number of threads search the same mapping at once.
+	 */
+	static final class Cursor {
+		/** The number of hash slots searched under this key. */
+		int loop = 0;
 
-	/** The position of the hash table for the current key */
-	private int hpos_ = 0;
+		/** The hash value for the current key. */
+		int khash = 0;
 
+		/** The number of hash slots in the hash table for the current key. */
+		int hslots = 0;
 
-	/** The position of the current key in the slot. */
-	private int kpos_ = 0;
+		/** The position of the hash table for the current key */
+		long hpos = 0;
+
+		/** The position of the current key in the slot. */
+		long kpos = 0;
+
+		/** The length of the data found by the last successful probe. */
+		int dlen = 0;
+	}
 
 
 	private final String filepath;
@@ -100,46 +144,152 @@ public class Cdb {
 	 *  opened.
 	 */
 	public Cdb(String filepath) throws IOException {
+		this(filepath, CdbFormat.CDB);
+	}
+
+	/**
+	 * Creates an instance of the Cdb class and loads the given CDB
+	 * file, written in the given layout.
+	 * <p>
+	 * Files of any size are mapped; those over 2GB are mapped in several
+	 * segments.
+	 *
+	 * @param filepath The path to the CDB file to open.
+	 * @param format The layout the file was written in.
+	 * @exception java.io.IOException if the CDB file could not be
+	 *  opened.
+	 */
+	public Cdb(String filepath, CdbFormat format) throws IOException {
 		/* Open the CDB file. */
 		this.filepath = filepath;
+		this.format_ = format;
 		FileChannel fc = new RandomAccessFile(filepath, "r").getChannel();
-		this.filesize = fc.size();
-		mmfile_ = fc.map(MapMode.READ_ONLY, 0, filesize  );
-		fc.close();
-
+		try {
+			this.filesize = fc.size();
+			mmfile_ = new CdbBuffer(fc, filesize);
+		} finally {
+			fc.close();
+		}
+		readers_ = new ReaderCount(new Runnable() {
+			public void run() {
+				mmfile_.unmap();
+				if (filter_ != null)
+					filter_.unmap();
+			}
+		});
 
 		/* Read and parse the slot table.  We do not throw an exception
 		 * if this fails; the file might empty, which is not an error. */
-		try {
-			/* Read the table. */
-			byte[] table = new byte[2048];
-			mmfile_.get(table);
-
+		if (filesize >= format.getHeaderSize()) {
 			/* Create and parse the table. */
-			slotTable_ = new int[256 * 2];
+			slotTable_ = new long[256 * 2];
 
-			int offset = 0;
+			int half = format.getSlotSize() / 2;
 			for (int i = 0; i < 256; i++) {
-				int pos = table[offset++] & 0xff
-					| ((table[offset++] & 0xff) <<  8)
-					| ((table[offset++] & 0xff) << 16)
-					| ((table[offset++] & 0xff) << 24);
-
-				int len = table[offset++] & 0xff
-					| ((table[offset++] & 0xff) <<  8)
-					| ((table[offset++] & 0xff) << 16)
-					| ((table[offset++] & 0xff) << 24);
-
-				slotTable_[i << 1] = pos;
-				slotTable_[(i << 1) + 1] = len;
+				slotTable_[i << 1] = readPos(i * format.getSlotSize());
+				slotTable_[(i << 1) + 1] = readPos(i * format.getSlotSize() + half);
+				if (slotTable_[(i << 1) + 1] > Integer.MAX_VALUE)
+					throw new IOException("Hash table " + i + " of " + filepath
+						+ " is too large: " + slotTable_[(i << 1) + 1] + " slots");
+			}
+
+			/* A compressed file describes its codec in its first record. */
+			long eod = Math.min(slotTable_[0], filesize);
+			long pos = format.getHeaderSize();
+			CdbCodec codec = null;
+			if (eod >= pos + 8) {
+				try {
+					codec = CdbCodec.read(mmfile_, pos);
+				} catch (IllegalArgumentException e) {
+					throw new IOException(filepath + ": " + e.getMessage());
+				}
 			}
-		} catch (BufferUnderflowException ignored) {
-			slotTable_ = null;
+			codec_ = codec;
+			if (codec != null)
+				pos += 8 + mmfile_.getInt(pos) + mmfile_.getInt(pos + 4);
+
+			/* A filtered file has its build id next. */
+			long buildId = CdbFilter.buildId(mmfile_, pos, eod);
+			if (buildId != 0)
+				pos += 8 + CdbFilter.BUILD_KEY.length + 8;
+			dataStart_ = pos;
+			filter_ = CdbFilter.open(filepath + CdbFilter.SUFFIX,
+					mmfile_, format.getHeaderSize(), buildId);
+		} else {
+			filter_ = null;
+			codec_ = null;
+			dataStart_ = format.getHeaderSize();
 		}
 	}
 
+	/**
+	 * The codec values are compressed with, or null if they are stored
+	 * as is.  Lookups decode values transparently either way.
+	 */
+	public CdbCodec getCodec() {
+		return codec_;
+	}
+
+	/**
+	 * Copies out the value stored in the dlen bytes at dpos, decoding it
+	 * if the file is compressed.
+	 */
+	private byte[] data(long dpos, int dlen) {
+		try {
+			if (codec_ != null)
+				return codec_.decode(mmfile_, dpos, dlen);
+			byte[] d = new byte[dlen];
+			mmfile_.get(dpos, d, 0, dlen);
+			return d;
+		} catch (IndexOutOfBoundsException e) {
+			throw corrupt(e);
+		} catch (IllegalArgumentException e) {
+			throw corrupt(e);
+		} catch (NegativeArraySizeException e) {
+			throw corrupt(e);
+		}
+	}
+
+	/**
+	 * Read-only copy of the value stored at dpos.  Not a view: nothing
+	 * would count its reader, so it could outlive the mapping.
+	 */
+	private ByteBuffer dataBuffer(long dpos, int dlen) {
+		return ByteBuffer.wrap(data(dpos, dlen)).asReadOnlyBuffer();
+	}
+
+	/**
+	 * A read that ran off the mapping: the file is truncated, or its
+	 * tables or records are corrupt.
+	 */
+	private IllegalStateException corrupt(RuntimeException e) {
+		return new IllegalStateException(filepath + " is truncated or corrupt", e);
+	}
+
+	/**
+	 * Reads a position (or count) as wide as the file's layout says.
+	 */
+	private long readPos(long pos) {
+		return format_.isWide() ? mmfile_.getLong(pos) : mmfile_.getUnsignedInt(pos);
+	}
+
+	/** The layout of this CDB file. */
+	public CdbFormat getFormat() {
+		return format_;
+	}
+
+	/**
+	 * The filter lookups are checked against before probing, or null if
+	 * the file came without one (or with one from another build).
+	 */
+	public CdbFilter getFilter() {
+		return filter_;
+	}
+
 	@Override
 	public String toString() {
+		if (filter_ != null)
+			return "CDB|"+filesize +"|"+getName() +"|fpp="+filter_.getFalsePositiveRate();
 		return "CDB|"+filesize +"|"+getName();
 	}
 	public String getName(){
@@ -151,11 +301,127 @@ public class Cdb {
 	
 	/**
 	 * Closes the CDB database.
+	 * <p>
+	 * The file is unmapped right away if no lookup is running, otherwise
+	 * as soon as the last running lookup (or open scanner, stream or
+	 * {@link #retain()}) finishes.  Lookups started after close() throw
+	 * IllegalStateException.  Safe to call more than once.
 	 */
 	public final void close() {
-		/* MNasser - Unused mmap() files get GC'ed. */
-		mmfile_ = null;
-		System.gc();	/*GC is stupid with mmap. So force the issue */
+		readers_.close();
+	}
+
+	/**
+	 * @return true once close() has been called.
+	 */
+	public final boolean isClosed() {
+		return readers_.isClosed();
+	}
+
+	/**
+	 * Keeps the mapping alive until a matching {@link #release()}, even
+	 * if the Cdb is closed meanwhile.  Needed to read records handed out
+	 * by {@link #spliterator()}, or views taken from them, across a
+	 * possible close().
+	 *
+	 * @exception IllegalStateException if the Cdb is already closed.
+	 */
+	public final void retain() {
+		if (!readers_.enter())
+			throw new IllegalStateException(this + " is closed");
+	}
+
+	/**
+	 * Lets go of a {@link #retain()}.
+	 */
+	public final void release() {
+		readers_.leave();
+	}
+
+	/**
+	 * Faults in the hash tables; {@link #warm(WarmupPolicy)} with
+	 * {@link WarmupPolicy#HASH_TABLES}.
+	 */
+	public final void warm() {
+		warm(WarmupPolicy.HASH_TABLES);
+	}
+
+	/**
+	 * Reads in as much of the file as policy says, so the first lookups
+	 * after opening do not each stall on a page fault.  SEQUENTIAL goes
+	 * at {@link WarmupPolicy#DEFAULT_RATE}.
+	 */
+	public final void warm(WarmupPolicy policy) {
+		warm(policy, WarmupPolicy.DEFAULT_RATE);
+	}
+
+	/**
+	 * As {@link #warm(WarmupPolicy)}, SEQUENTIAL going at no more than
+	 * bytesPerSecond.  Blocks until done; stops early if the thread is
+	 * interrupted.
+	 */
+	public final void warm(WarmupPolicy policy, long bytesPerSecond) {
+		if (policy == WarmupPolicy.NONE)
+			return;
+		retain();
+		try {
+			if (filter_ != null)
+				filter_.warm();
+			switch (policy) {
+			case HASH_TABLES:
+				if (slotTable_ != null)
+					mmfile_.touch(slotTable_[0], mmfile_.size(), 0);
+				break;
+			case FULL:
+				mmfile_.load();
+				break;
+			case SEQUENTIAL:
+				mmfile_.touch(0, mmfile_.size(), bytesPerSecond);
+				break;
+			default:
+				break;
+			}
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * Reports how much of the file is in the page cache, looking at it in
+	 * regions of regionSize bytes.  Costs one temporary mapping per
+	 * region; reads nothing in.
+	 *
+	 * @param regionSize Granularity, e.g. 1MB; rounded up to whole pages.
+	 * @exception java.io.IOException if the file can not be reopened.
+	 */
+	public final CdbResidency residency(int regionSize) throws IOException {
+		regionSize = Math.max(CdbBuffer.PAGE_SIZE,
+				(regionSize + CdbBuffer.PAGE_SIZE - 1) / CdbBuffer.PAGE_SIZE * CdbBuffer.PAGE_SIZE);
+		long tables = (slotTable_ == null) ? filesize : slotTable_[0];
+		int regions = 0, resident = 0, tableRegions = 0, residentTables = 0;
+
+		FileChannel fc = new RandomAccessFile(filepath, "r").getChannel();
+		try {
+			for (long pos = 0; pos < filesize; pos += regionSize) {
+				long len = Math.min(regionSize, filesize - pos);
+				MappedByteBuffer window = fc.map(FileChannel.MapMode.READ_ONLY, pos, len);
+				boolean loaded = window.isLoaded();
+				CdbBuffer.unmap(window);
+
+				regions++;
+				if (loaded)
+					resident++;
+				if (pos + len > tables) {
+					tableRegions++;
+					if (loaded)
+						residentTables++;
+				}
+			}
+		} finally {
+			fc.close();
+		}
+		return new CdbResidency(getName(), filesize, regionSize, regions, resident,
+				tableRegions, residentTables);
 	}
 
 
@@ -166,184 +432,572 @@ public class Cdb {
 	 * @return The hash value of <code>key</code>.
 	 */
 	static final int hash(byte[] key) {
-		/* Initialize the hash value. */
-		long h = 5381;
-
-		/* Add each byte to the hash value. */
-		for (int i = 0; i < key.length; i++ ) {
-//			h = ((h << 5) + h) ^ key[i];
-			long l = h << 5;
-			h += (l & 0x00000000ffffffffL);
-			h = (h & 0x00000000ffffffffL);
+		return hash(key, 0, key.length);
+	}
 
-			int k = key[i];
-			k = (k + 0x100) & 0xff;
+	/**
+	 * Computes and returns the hash value for len bytes of key starting
+	 * at off.
+	 *
+	 * @param key Array holding the key to compute the hash value for.
+	 * @param off Offset of the key in the array.
+	 * @param len Length of the key.
+	 * @return The hash value of the key.
+	 */
+	static final int hash(byte[] key, int off, int len) {
+		/* Initialize the hash value. */
+		int h = 5381;
 
-			h = h ^ k;
+		/* Add each byte to the hash value.  Plain int arithmetic
+		 * wraps at 32 bits exactly as the reference implementation's
+		 * unsigned 32-bit math does. */
+		for (int i = off, end = off + len; i < end; i++ ) {
+			h = ((h << 5) + h) ^ (key[i] & 0xff);
 		}
 
 		/* Return the hash value. */
-		return (int)(h & 0x00000000ffffffffL);
+		return h;
 	}
 
 
 	/**
 	 * Prepares the class to search for the given key.
+	 * <p>
+	 * The search state is kept per thread, so concurrent callers of
+	 * findstart()/findnext() do not disturb each other.
 	 *
 	 * @param key The key to search for.
 	 */
 	public final void findstart(byte[] key) {
-		loop_ = 0;
+		cursor_.get().loop = 0;
 	}
 
 	/**
 	 * Finds the first record stored under the given key.
+	 * Safe to call from any number of threads at once.
 	 *
 	 * @param key The key to search for.
 	 * @return The record store under the given key, or
 	 *  <code>null</code> if no record with that key could be found.
 	 */
-	public final synchronized byte[] find(byte[] key) {
-		findstart(key);
-		return findnext(key);
+	public final byte[] find(byte[] key) {
+		retain();
+		try {
+			Cursor c = scratch_.get();
+			c.loop = 0;
+			return findnext(c, key);
+		} finally {
+			release();
+		}
 	}
 	
 	/**
 	 * Returns all records stored under the given key.
+	 * Safe to call from any number of threads at once.
 	 * 
 	 * @param key ArrayList of byte[] values.
 	 * @return
 	 * @author mnasser
 	 */
-	public final synchronized List<byte[]> findAll(byte[] key) {
-		findstart(key);
+	public final List<byte[]> findAll(byte[] key) {
+		Cursor c = new Cursor();
 		List<byte[]> values= new ArrayList<byte[]>();
 		byte[] b;
-		while( (b = findnext(key)) != null){
-			values.add(b);
+		retain();
+		try {
+			while( (b = findnext(c, key)) != null){
+				values.add(b);
+			}
+		} finally {
+			release();
 		}
 		return values;
 	}
 
 
 	/**
-	 * Reads the next 4 bytes of the buffer as an int.
-	 * Note: Progresses the file pointer.
-	 * 
-	 * @param m the mapped byte buffer 
-	 * @return next 4 bytes in buffer as an int.
+	 * Finds the first record stored under the given key.
+	 * <p>
+	 * The returned buffer is read-only, positioned at 0 with the record's
+	 * length as its limit.  It holds a copy, so it stays good after
+	 * close(); to read records in place use {@link #scan()} or
+	 * {@link #stream()}, whose records can be read until they are closed.
+	 *
+	 * @param key The key to search for.
+	 * @return A read-only buffer of the record stored under the given key,
+	 *  or <code>null</code> if no record with that key could be found.
+	 */
+	public final ByteBuffer findBuffer(byte[] key) {
+		retain();
+		try {
+			Cursor c = scratch_.get();
+			c.loop = 0;
+			long dpos = seek(c, key);
+			if (dpos < 0)
+				return null;
+			return dataBuffer(dpos, c.dlen);
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * Returns read-only buffers of all records stored under the given key.
+	 * See {@link #findBuffer(byte[])}.
+	 *
+	 * @param key The key to search for.
+	 * @return buffers of all records under key; empty if there are none.
+	 */
+	public final List<ByteBuffer> findAllBuffers(byte[] key) {
+		Cursor c = new Cursor();
+		List<ByteBuffer> values = new ArrayList<ByteBuffer>();
+		long dpos;
+		retain();
+		try {
+			while( (dpos = seek(c, key)) >= 0 ){
+				values.add(dataBuffer(dpos, c.dlen));
+			}
+		} finally {
+			release();
+		}
+		return values;
+	}
+
+	/**
+	 * Finds the first record stored under the given key and copies it
+	 * into the caller's buffer, allocating nothing.
+	 * <p>
+	 * The record is only copied if it fits in <code>buf</code> from
+	 * <code>off</code> onwards.  A return value larger than
+	 * <code>buf.length - off</code> means nothing was copied and the
+	 * caller should retry with a buffer of at least that size.
+	 *
+	 * @param key The key to search for.
+	 * @param buf Where to copy the record to.
+	 * @param off Offset into buf to start copying at.
+	 * @return The length of the record, or -1 if no record with that key
+	 *  could be found.
 	 */
-	private int getIntFromMMap(MappedByteBuffer m) {
-		return 	( m.get() & 0xFF ) 
-				| ( (m.get() & 0xFF) << 8 )
-				| ( (m.get() & 0xFF) << 16 )
-				| ( (m.get() & 0xFF) << 24 ) ;
+	public final int find(byte[] key, byte[] buf, int off) {
+		retain();
+		try {
+			Cursor c = scratch_.get();
+			c.loop = 0;
+			long dpos = seek(c, key);
+			if (dpos < 0)
+				return -1;
+			if (codec_ != null) {
+				int len = codec_.decodedLength(mmfile_, dpos, c.dlen);
+				if (len <= buf.length - off)
+					codec_.decode(mmfile_, dpos, c.dlen, buf, off);
+				return len;
+			}
+			if (c.dlen <= buf.length - off)
+				mmfile_.get(dpos, buf, off, c.dlen);
+			return c.dlen;
+		} catch (IndexOutOfBoundsException e) {
+			throw corrupt(e);
+		} catch (IllegalArgumentException e) {
+			throw corrupt(e);
+		} finally {
+			release();
+		}
 	}
 
+
 	/**
 	 * Finds the next record stored under the given key.
+	 * <p>
+	 * Uses the calling thread's cursor, started by findstart().
 	 *
 	 * @param key The key to search for.
 	 * @return The next record store under the given key, or
 	 *  <code>null</code> if no record with that key could be found.
 	 */
-	public final synchronized byte[] findnext(byte[] key) {
-		/* There are no keys if we could not read the slot table. */
-		if (slotTable_ == null)
+	public final byte[] findnext(byte[] key) {
+		retain();
+		try {
+			return findnext(cursor_.get(), key);
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * Finds the next record stored under the given key, keeping the
+	 * search state in the given cursor.
+	 *
+	 * @param c The probe state for this search.
+	 * @param key The key to search for.
+	 * @return The next record store under the given key, or
+	 *  <code>null</code> if no record with that key could be found.
+	 */
+	private byte[] findnext(Cursor c, byte[] key) {
+		long dpos = seek(c, key);
+		if (dpos < 0)
 			return null;
 
+		return data(dpos, c.dlen);
+	}
+
+	/**
+	 * Probes for the next record stored under the given key.  This is
+	 * the heart of every lookup; it copies nothing, leaving it up to the
+	 * caller whether the data is copied or viewed in place.
+	 *
+	 * @param c The probe state for this search.  On success its
+	 *  <code>dlen</code> holds the length of the record's data.
+	 * @param key The key to search for.
+	 * @return The position of the next record's data in the mapping, or
+	 *  -1 if no more records with that key could be found.
+	 */
+	private long seek(Cursor c, byte[] key) {
 		/* Locate the hash entry if we have not yet done so. */
-		if (loop_ == 0) {
-			/* Get the hash value for the key. */
-			int u = hash(key);
-
-			/* Unpack the information for this record. */
-			int slot = u & 255;
-			hslots_ = slotTable_[(slot << 1) + 1];
-			if (hslots_ == 0)
-				return null;
-			hpos_ = slotTable_[slot << 1];
+		if (c.loop == 0 && !start(c, key))
+			return -1;
 
-			/* Store the hash value. */
-			khash_ = u;
+		/* Search all of the hash slots for this key. */
+		try {
+			long mpos;
+			while ((mpos = nextCandidate(c)) >= 0) {
+				long dpos = match(c, mpos, key);
+				if (dpos >= 0)
+					return dpos;
+			}
+		} catch (IndexOutOfBoundsException e) {
+			throw corrupt(e);
+		} catch (BufferUnderflowException e) {
+			throw corrupt(e);
+		}
+
+		/* No more data values for this key. */
+		return -1;
+	}
 
-			/* Locate the slot containing this key. */
-			u >>>= 8;
-			u %= hslots_;
-			u <<= 3;
-			kpos_ = hpos_ + u;
+	/**
+	 * Points the cursor at the first hash slot to search for key.
+	 *
+	 * @return false if there can be no record for key.
+	 */
+	private boolean start(Cursor c, byte[] key) {
+		/* There are no keys if we could not read the slot table. */
+		if (slotTable_ == null)
+			return false;
+
+		/* Most absent keys stop here, before touching the tables. */
+		if (filter_ != null && !filter_.mightContain(key))
+			return false;
+
+		/* Get the hash value for the key. */
+		int u = hash(key);
+
+		/* Unpack the information for this record. */
+		int slot = u & 255;
+		c.hslots = (int)slotTable_[(slot << 1) + 1];
+		if (c.hslots == 0)
+			return false;
+		c.hpos = slotTable_[slot << 1];
+
+		/* Store the hash value. */
+		c.khash = u;
+
+		/* Locate the slot containing this key. */
+		u >>>= 8;
+		u %= c.hslots;
+		c.kpos = c.hpos + (long)u * format_.getSlotSize();
+		return true;
+	}
+
+	/**
+	 * Walks the cursor's hash table to the next slot whose hash matches
+	 * the key's, leaving the cursor just past it.
+	 *
+	 * @return The position of that slot's record, or -1 once the table
+	 *  holds no more candidates.
+	 */
+	private long nextCandidate(Cursor c) {
+		final CdbBuffer mm = mmfile_;
+		final int slotSize = format_.getSlotSize();
+
+		while (c.loop < c.hslots) {
+			/* Read the entry for this key from the hash slot. */
+			int mh = mm.getInt(c.kpos);
+			long mpos = readPos(c.kpos + (slotSize >> 1));
+			
+			if (mpos == 0)
+				return -1;
+
+			/* Advance the loop count and key position.  Wrap the
+			 * key position around to the beginning of the hash slot
+			 * if we are at the end of the table. */
+			c.loop += 1;
+
+			c.kpos += slotSize;
+			if (c.kpos == (c.hpos + (long)c.hslots * slotSize))
+				c.kpos = c.hpos;
+
+			/* Ignore this entry if the hash values do not match. */
+			if (mh == c.khash)
+				return mpos;
 		}
+		return -1;
+	}
 
-		/* Search all of the hash slots for this key. */
+	/**
+	 * Checks whether the record at mpos is stored under key.
+	 *
+	 * @return The position of the record's data, with its length left in
+	 *  the cursor's <code>dlen</code>, or -1 if the keys differ.
+	 */
+	private long match(Cursor c, long mpos, byte[] key) {
+		final CdbBuffer mm = mmfile_;
+
+		/* Get the length of the key and data in this hash slot
+		 * entry. */
+		int mklen = mm.getInt(mpos);
+		if (mklen != key.length)
+			return -1;
+
+		/* Compare the key stored in this entry to the key we
+		 * were given, in place. */
+		if (!mm.equals(mpos + 8, key))
+			return -1;
+
+		/* The keys match, return where the data is. */
+		c.dlen = mm.getInt(mpos + 4);
+		return mpos + 8 + mklen;
+	}
+
+
+	/**
+	 * Finds the first record stored under each of the given keys.
+	 * <p>
+	 * Cheaper than calling {@link #find(byte[])} once per key when there
+	 * are many keys: all keys are hashed up front, then the hash tables
+	 * are probed in file order, then the matching records are read in
+	 * file order.  Pages are touched in ascending order, once each, which
+	 * is kind to cold maps.
+	 *
+	 * @param keys The keys to search for.
+	 * @return The record stored under each key, in the same order as
+	 *  <code>keys</code>; <code>null</code> where no record was found.
+	 */
+	public final byte[][] findMany(byte[][] keys) {
+		final int n = keys.length;
+		byte[][] results = new byte[n][];
+		Cursor[] cs = new Cursor[n];
+		long[] pos = new long[n];
+
+		retain();
 		try {
-			while (loop_ < hslots_) {
-				/* Read the entry for this key from the hash slot. */
-				mmfile_.position(kpos_);
-				
-				int mh = getIntFromMMap(mmfile_);
-				int mpos = getIntFromMMap(mmfile_);
-				
-				if (mpos == 0)
-					return null;
-
-				/* Advance the loop count and key position.  Wrap the
-				 * key position around to the beginning of the hash slot
-				 * if we are at the end of the table. */
-				loop_ += 1;
-
-				kpos_ += 8;
-				if (kpos_ == (hpos_ + (hslots_ << 3)))
-					kpos_ = hpos_;
-
-				/* Ignore this entry if the hash values do not match. */
-				if (mh != khash_)
-					continue;
+			findMany(keys, results, cs, pos);
+		} finally {
+			release();
+		}
+		return results;
+	}
 
-				/* Get the length of the key and data in this hash slot
-				 * entry. */
-				mmfile_.position(mpos);
-				
+	private void findMany(byte[][] keys, byte[][] results, Cursor[] cs, long[] pos) {
+		final int n = keys.length;
 
-				int mklen = getIntFromMMap(mmfile_);
-				if (mklen != key.length)
-					continue;
+		/* Hash every key and work out which slot its search starts at. */
+		int probes = 0;
+		for (int i = 0; i < n; i++) {
+			Cursor c = new Cursor();
+			if (!start(c, keys[i]))
+				continue;
+			cs[i] = c;
+			pos[i] = c.kpos;
+			probes++;
+		}
 
-				int mdlen = getIntFromMMap(mmfile_);
-
-				/* Read the key stored in this entry and compare it to
-				 * the key we were given. */
-				boolean match = true;
-				byte[] k = new byte[mklen];
-				mmfile_.get(k);
-				
-				for (int i = 0; i < k.length; i++) {
-					if (k[i] != key[i]) {
-						match = false;
-						break;
-					}
+		try {
+			/* Walk the hash tables in file order, noting the first
+			 * candidate record for each key. */
+			int[] order = sortByPosition(pos, cs, probes);
+			int candidates = 0;
+			for (int k = 0; k < probes; k++) {
+				int i = order[k];
+				long mpos = nextCandidate(cs[i]);
+				if (mpos < 0) {
+					cs[i] = null;
+					continue;
 				}
+				pos[i] = mpos;
+				candidates++;
+			}
 
-				/* No match; check the next slot. */
-				if (!match)
+			/* Read the candidate records in file order.  A different key
+			 * behind a matching hash is rare; that key just carries on
+			 * with an ordinary search. */
+			order = sortByPosition(pos, cs, candidates);
+			for (int k = 0; k < candidates; k++) {
+				int i = order[k];
+				Cursor c = cs[i];
+				long dpos = match(c, pos[i], keys[i]);
+				if (dpos < 0)
+					dpos = seek(c, keys[i]);
+				if (dpos < 0)
 					continue;
+				results[i] = data(dpos, c.dlen);
+			}
+		} catch (IndexOutOfBoundsException e) {
+			throw corrupt(e);
+		} catch (BufferUnderflowException e) {
+			throw corrupt(e);
+		}
+	}
 
-				/* The keys match, return the data. */
-				byte[] d = new byte[mdlen];
-				mmfile_.get(d);
-				return d;
+	/**
+	 * The largest <code>pos[i]</code> of the live cursors
+	 * (<code>cs[i] != null</code>).
+	 */
+	private static long maxPosition(long[] pos, Cursor[] cs) {
+		long max = 0;
+		for (int i = 0; i < cs.length; i++) {
+			if (cs[i] != null && pos[i] > max)
+				max = pos[i];
+		}
+		return max;
+	}
+
+	/**
+	 * Returns the indexes i of the <code>count</code> live cursors
+	 * (<code>cs[i] != null</code>) ordered by <code>pos[i]</code>.
+	 */
+	private static int[] sortByPosition(final long[] pos, Cursor[] cs, int count) {
+		int[] order = new int[count];
+		if (count == 0)
+			return order;
+
+		/* Pack (position, index) into one long and sort primitives,
+		 * unless the positions are too big to leave room for the index. */
+		int bits = 32 - Integer.numberOfLeadingZeros(cs.length);
+		if (maxPosition(pos, cs) >= (1L << (63 - bits))) {
+			Integer[] boxed = new Integer[count];
+			int k = 0;
+			for (int i = 0; i < cs.length; i++) {
+				if (cs[i] != null)
+					boxed[k++] = i;
 			}
-		} catch (BufferUnderflowException ignored) {
-			return null;
+			Arrays.sort(boxed, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					return pos[a] < pos[b] ? -1 : (pos[a] == pos[b] ? 0 : 1);
+				}
+			});
+			for (k = 0; k < count; k++)
+				order[k] = boxed[k];
+			return order;
 		}
 
-		/* No more data values for this key. */
-		return null;
+		long[] packed = new long[count];
+		int k = 0;
+		for (int i = 0; i < cs.length; i++) {
+			if (cs[i] != null)
+				packed[k++] = (pos[i] << bits) | i;
+		}
+		Arrays.sort(packed);
+		long mask = (1L << bits) - 1;
+		for (k = 0; k < count; k++)
+			order[k] = (int)(packed[k] & mask);
+		return order;
+	}
+
+
+	/**
+	 * Returns a scanner over every record in this CDB, in file order,
+	 * read straight off the mapping.
+	 *
+	 * @return a scanner positioned before the first record.
+	 */
+	public final CdbScanner scan() {
+		return newScanner(false);
+	}
+
+	private CdbScanner newScanner(boolean owner) {
+		/* Records run from the end of the slot table to the first hash
+		 * table, which is where the first slot table entry points. */
+		long start = dataStart_;
+		long eod = (slotTable_ == null) ? start : Math.min(slotTable_[0], filesize);
+		retain();
+		return new CdbScanner(this, mmfile_, codec_, start, eod, owner);
+	}
+
+	/**
+	 * Opens the given CDB file and returns a scanner over its records.
+	 * Closing the scanner closes the file.
+	 *
+	 * @param filepath The CDB file to read.
+	 * @exception java.io.IOException if the file could not be opened.
+	 */
+	public static CdbScanner scan(String filepath) throws IOException {
+		return scan(filepath, CdbFormat.CDB);
+	}
+
+	/**
+	 * Opens the given CDB file, written in the given layout, and returns a
+	 * scanner over its records.  Closing the scanner closes the file.
+	 *
+	 * @param filepath The CDB file to read.
+	 * @param format The layout the file was written in.
+	 * @exception java.io.IOException if the file could not be opened.
+	 */
+	public static CdbScanner scan(String filepath, CdbFormat format) throws IOException {
+		return new Cdb(filepath, format).newScanner(true);
+	}
+
+
+	/**
+	 * Returns a spliterator over every record in this CDB.  It splits
+	 * along the 256 hash tables (and then along a table's slots), so
+	 * parallel scans keep every core busy.  Records come out in hash
+	 * order, each as its own {@link CdbRecord}.  Wrap its use in
+	 * {@link #retain()}/{@link #release()} if the Cdb may be closed
+	 * meanwhile; {@link #stream()} does so for you.
+	 */
+	public final Spliterator<CdbRecord> spliterator() {
+		return new CdbSpliterator(mmfile_, format_, codec_, slotTable_, dataStart_);
+	}
+
+	/**
+	 * Returns a stream of every record in this CDB.  Call
+	 * <code>parallel()</code> on it to spread the scan across cores; see
+	 * {@link #spliterator()}.  The stream keeps the mapping alive until it
+	 * is closed.
+	 */
+	public final Stream<CdbRecord> stream() {
+		retain();
+		return StreamSupport.stream(spliterator(), false).onClose(new Runnable() {
+			public void run() {
+				release();
+			}
+		});
+	}
+
+	/**
+	 * Opens the given CDB file and returns a stream of its records.
+	 * Closing the stream closes the file, so use it in a
+	 * try-with-resources block.  Records, and views taken from them with
+	 * {@link CdbRecord#key()} or {@link CdbRecord#data()}, must not be read
+	 * once the stream is closed.
+	 *
+	 * @param filepath The CDB file to read.
+	 * @param format The layout the file was written in.
+	 * @exception java.io.IOException if the file could not be opened.
+	 */
+	public static Stream<CdbRecord> stream(String filepath, CdbFormat format) throws IOException {
+		Cdb cdb = new Cdb(filepath, format);
+		return cdb.stream().onClose(cdb::close);
 	}
 
 
 	/**
 	 * Returns an Enumeration containing a CdbElement for each entry in
 	 * the constant database.
+	 * <p>
+	 * Reads the mmap()'d file through {@link #scan(String)}; the file is
+	 * closed as soon as the last element has been returned.  Prefer
+	 * {@link #scan(String)} when the key and data need not be copied.
 	 *
 	 * @param filepath The CDB file to read.
 	 * @return An Enumeration containing a CdbElement for each entry in
@@ -354,83 +1008,25 @@ public class Cdb {
 	public static Enumeration<CdbElement> elements(final String filepath)
 		throws IOException
 	{
-		/* Open the data file. */
-		final InputStream in
-			= new BufferedInputStream(
-				new FileInputStream(
-					filepath));
-
-		/* Read the end-of-data value. */
-		final int eod = (in.read() & 0xff)
-				| ((in.read() & 0xff) <<  8)
-				| ((in.read() & 0xff) << 16)
-				| ((in.read() & 0xff) << 24);
-
-		/* Skip the rest of the hashtable. */
-		in.skip(2048 - 4);
+		final CdbScanner scanner = scan(filepath);
 
 		/* Return the Enumeration. */
 		return new Enumeration<CdbElement>() {
-			/* Current data pointer. */
-			int pos = 2048;
-
-			/* Finalizer. */
-			protected void finalize() {
-				try { in.close(); } catch (Exception ignored) {}
-			}
-
-
 			/* Returns <code>true</code> if there are more elements in
-			 * the constant database (pos < eod); <code>false</code>
-			 * otherwise. */
+			 * the constant database; closes it once there are not. */
 			public boolean hasMoreElements() {
-				return pos < eod;
+				if (scanner.hasNext())
+					return true;
+				scanner.close();
+				return false;
 			}
 
 			/* Returns the next data element in the CDB file. */
-			public synchronized CdbElement nextElement() {
-				try {
-					/* Read the key and value lengths. */
-					int klen = readLeInt(); pos += 4;
-					int dlen = readLeInt(); pos += 4;
-
-					/* Read the key. */
-					byte[] key = new byte[klen];
-					for (int off = 0; off < klen; /* below */) {
-						int count = in.read(key, off, klen - off);
-						if (count == -1)
-							throw new IllegalArgumentException(
-								"invalid cdb format");
-						off += count;
-					}
-					pos += klen;
-
-					/* Read the data. */
-					byte[] data = new byte[dlen];
-					for (int off = 0; off < dlen; /* below */) {
-						int count = in.read(data, off, dlen - off);
-						if (count == -1)
-							throw new IllegalArgumentException(
-								"invalid cdb format");
-						off += count;
-					}
-					pos += dlen;
-
-					/* Return a CdbElement with the key and data. */
-					return new CdbElement(key, data);
-				} catch (IOException ioException) {
-					throw new IllegalArgumentException(
-						"invalid cdb format");
-				}
-			}
-
-
-			/* Reads a little-endian integer from <code>in</code>. */
-			private int readLeInt() throws IOException {
-				return (in.read() & 0xff)
-					| ((in.read() & 0xff) <<  8)
-					| ((in.read() & 0xff) << 16)
-					| ((in.read() & 0xff) << 24);
+			public CdbElement nextElement() {
+				CdbElement e = scanner.next().toElement();
+				if (!scanner.hasNext())
+					scanner.close();
+				return e;
 			}
 		};
 	}
@@ -0,0 +1,290 @@
+package com.mnasser.io.cdb;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * A read-only, little-endian view of a whole file made of one or more
+ * mmap()'d segments.
+ * <p>
+ * A single MappedByteBuffer can not be larger than 2GB, so bigger files
+ * are mapped as consecutive 1GB segments and addressed with long
+ * positions.  Reads that straddle two segments are stitched together a
+ * byte at a time; everything else goes straight to one segment.
+ * <p>
+ * Only absolute reads are used so a CdbBuffer can be shared by any number
+ * of threads.
+ * 
+ * @author mnasser
+ */
+final class CdbBuffer {
+
+	/** log2 of the segment size. */
+	static final int SEGMENT_SHIFT = 30;
+
+	private final MappedByteBuffer[] segs_;
+	private final int shift_;
+	private final long mask_;
+	private final long size_;
+
+	/**
+	 * Maps the first <code>size</code> bytes of the channel.  The channel
+	 * may be closed once this returns.
+	 */
+	CdbBuffer(FileChannel fc, long size) throws IOException {
+		this(fc, size, SEGMENT_SHIFT);
+	}
+
+	/**
+	 * Maps the first <code>size</code> bytes of the channel in segments of
+	 * <code>1 &lt;&lt; shift</code> bytes.
+	 */
+	CdbBuffer(FileChannel fc, long size, int shift) throws IOException {
+		size_ = size;
+		shift_ = shift;
+		mask_ = (1L << shift) - 1;
+
+		int n = (int)((size + mask_) >>> shift);
+		segs_ = new MappedByteBuffer[Math.max(n, 1)];
+		for (int i = 0; i < segs_.length; i++) {
+			long start = (long)i << shift;
+			long len = Math.min(size - start, 1L << shift);
+			segs_[i] = fc.map(MapMode.READ_ONLY, start, Math.max(len, 0));
+			segs_[i].order(ByteOrder.LITTLE_ENDIAN);
+		}
+	}
+
+	/**
+	 * Unmaps every segment right away instead of leaving it to the
+	 * garbage collector.  Any later read of this buffer will crash the
+	 * JVM, so callers must make sure nobody is reading; see
+	 * {@link ReaderCount}.  That includes whoever holds views from
+	 * {@link #slice(long, int)}.
+	 *
+	 * @return false if this JVM offers no way to unmap, leaving it to
+	 *  the garbage collector.
+	 */
+	boolean unmap() {
+		boolean ok = true;
+		for (MappedByteBuffer s : segs_)
+			ok &= unmap(s);
+		return ok;
+	}
+
+	/**
+	 * Unmaps one buffer right away, e.g. a temporary window mapped just to
+	 * look at.  Same caveats as {@link #unmap()}.
+	 */
+	static boolean unmap(MappedByteBuffer b) {
+		if (UNMAPPER == null)
+			return false;
+		try {
+			UNMAPPER.unmap(b);
+			return true;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Reads in every page of every segment; see MappedByteBuffer.load().
+	 */
+	void load() {
+		for (MappedByteBuffer s : segs_)
+			s.load();
+	}
+
+	/**
+	 * Touches one byte of every page in [from, to), in order, taking at
+	 * least as long as reading at bytesPerSecond would.
+	 *
+	 * @param bytesPerSecond Rate limit; 0 or less for none.
+	 * @return false if interrupted before the end.
+	 */
+	boolean touch(long from, long to, long bytesPerSecond) {
+		final long start = System.nanoTime();
+		final long step = 1L << 20;
+		byte sink = 0;
+		for (long chunk = from; chunk < to; chunk += step) {
+			long end = Math.min(to, chunk + step);
+			for (long pos = chunk; pos < end; pos += PAGE_SIZE)
+				sink ^= get(pos);
+			if (bytesPerSecond > 0) {
+				long due = (long)((end - from) * 1e9 / bytesPerSecond);
+				long ahead = due - (System.nanoTime() - start);
+				if (ahead > 0) {
+					try {
+						Thread.sleep(ahead / 1000000, (int)(ahead % 1000000));
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return false;
+					}
+				}
+			}
+		}
+		touchSink = sink;
+		return true;
+	}
+
+	/** Page size assumed when touching pages. */
+	static final int PAGE_SIZE = 4096;
+
+	/** Keeps touch() reads from being optimized away. */
+	private static volatile byte touchSink;
+
+	/** Size of the mapped file. */
+	long size() {
+		return size_;
+	}
+
+	/** The mapped segments, in file order. */
+	MappedByteBuffer[] segments() {
+		return segs_;
+	}
+
+	byte get(long pos) {
+		return segs_[(int)(pos >>> shift_)].get((int)(pos & mask_));
+	}
+
+	int getInt(long pos) {
+		MappedByteBuffer s = segs_[(int)(pos >>> shift_)];
+		int off = (int)(pos & mask_);
+		if (off + 4 <= s.limit())
+			return s.getInt(off);
+		return (get(pos) & 0xff)
+			| ((get(pos + 1) & 0xff) << 8)
+			| ((get(pos + 2) & 0xff) << 16)
+			| ((get(pos + 3) & 0xff) << 24);
+	}
+
+	long getLong(long pos) {
+		MappedByteBuffer s = segs_[(int)(pos >>> shift_)];
+		int off = (int)(pos & mask_);
+		if (off + 8 <= s.limit())
+			return s.getLong(off);
+		return (getInt(pos) & 0xffffffffL) | ((long)getInt(pos + 4) << 32);
+	}
+
+	/**
+	 * Reads an unsigned 32 bit int.
+	 */
+	long getUnsignedInt(long pos) {
+		return getInt(pos) & 0xffffffffL;
+	}
+
+	/**
+	 * Compares len(key) bytes at pos against key without copying them out
+	 * of the mapping.
+	 */
+	boolean equals(long pos, byte[] key) {
+		MappedByteBuffer s = segs_[(int)(pos >>> shift_)];
+		int off = (int)(pos & mask_);
+		if (off + key.length <= s.limit()) {
+			for (int i = 0; i < key.length; i++) {
+				if (s.get(off + i) != key[i])
+					return false;
+			}
+			return true;
+		}
+		for (int i = 0; i < key.length; i++) {
+			if (get(pos + i) != key[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Copies len bytes at pos into dst.
+	 */
+	void get(long pos, byte[] dst, int off, int len) {
+		checkRange(pos, len);
+		while (len > 0) {
+			MappedByteBuffer s = segs_[(int)(pos >>> shift_)];
+			int soff = (int)(pos & mask_);
+			int n = Math.min(len, s.limit() - soff);
+			ByteBuffer d = s.duplicate();
+			d.position(soff);
+			d.get(dst, off, n);
+			pos += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/** Fails unless [pos, pos+len) lies within the file. */
+	private void checkRange(long pos, int len) {
+		if (pos < 0 || len < 0 || pos + len > size_)
+			throw new IndexOutOfBoundsException("[" + pos + ", " + pos + "+" + len
+				+ ") is outside the " + size_ + " mapped bytes");
+	}
+
+	/**
+	 * Returns a read-only view of len bytes at pos, positioned at 0 with
+	 * len as its limit.  Nothing is copied unless the bytes straddle two
+	 * segments, in which case they are copied onto the heap.  The view
+	 * reads the mapping itself, so it may only be read by a reader of it;
+	 * see {@link #unmap()}.
+	 */
+	ByteBuffer slice(long pos, int len) {
+		checkRange(pos, len);
+		MappedByteBuffer s = segs_[(int)(pos >>> shift_)];
+		int off = (int)(pos & mask_);
+		if (off + len <= s.limit()) {
+			ByteBuffer d = s.duplicate();
+			d.position(off);
+			d.limit(off + len);
+			return d.slice().asReadOnlyBuffer();
+		}
+		byte[] b = new byte[len];
+		get(pos, b, 0, len);
+		return ByteBuffer.wrap(b).asReadOnlyBuffer();
+	}
+
+
+	/**
+	 * Releases a MappedByteBuffer's mapping.  There is no public API for
+	 * it: Java 9+ has Unsafe.invokeCleaner(), Java 8 the buffer's own
+	 * cleaner.
+	 */
+	private interface Unmapper {
+		void unmap(MappedByteBuffer b) throws Exception;
+	}
+
+	private static final Unmapper UNMAPPER = findUnmapper();
+
+	private static Unmapper findUnmapper() {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			Field f = unsafeClass.getDeclaredField("theUnsafe");
+			f.setAccessible(true);
+			final Object unsafe = f.get(null);
+			return new Unmapper() {
+				public void unmap(MappedByteBuffer b) throws Exception {
+					invokeCleaner.invoke(unsafe, b);
+				}
+			};
+		} catch (Exception java8) {
+			/* Fall through to the Java 8 way. */
+		}
+		try {
+			final Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+			final Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+			return new Unmapper() {
+				public void unmap(MappedByteBuffer b) throws Exception {
+					Object c = cleaner.invoke(b);
+					if (c != null)
+						clean.invoke(c);
+				}
+			};
+		} catch (Exception e) {
+			return null;
+		}
+	}
+}
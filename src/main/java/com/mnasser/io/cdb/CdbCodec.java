@@ -0,0 +1,324 @@
+package com.mnasser.io.cdb;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-value compression for CDB files: each value is deflated on its own
+ * against a preset dictionary shared by the whole file, so a lookup only
+ * ever inflates the one value it asked for, while the dictionary still
+ * lets short, similar values compress well.
+ * <p>
+ * A compressed CDB is an ordinary CDB whose first record, stored under
+ * {@link #META_KEY}, describes the codec:
+ * <pre>
+ * 	int magic "CDBZ", int version, int codec (1 = deflate),
+ * 	int level, int min size, int dictionary length, dictionary
+ * </pre>
+ * and every value begins with a tag byte: {@link #RAW} followed by the
+ * value itself, or {@link #DEFLATED} followed by the value's int length
+ * and its raw deflate stream.  Values too short to gain anything are
+ * kept raw.  {@link Cdb} spots the metadata record on open and decodes
+ * values transparently; other CDB tools still read the file, but see the
+ * encoded values.
+ * <p>
+ * Thread safe; the Deflater and Inflater are kept per thread.
+ * 
+ * @author mnasser
+ */
+public final class CdbCodec {
+
+	/** Key of the metadata record; reserved in compressed CDBs. */
+	public static final byte[] META_KEY = "\0cdb.codec".getBytes();
+
+	/** Value tags. */
+	public static final byte RAW = 0;
+	public static final byte DEFLATED = 1;
+
+	/** Largest useful dictionary; deflate looks back no further. */
+	public static final int MAX_DICTIONARY = 32 * 1024;
+
+	static final int MAGIC = 0x5a424443; // "CDBZ"
+	static final int VERSION = 1;
+	static final int CODEC_DEFLATE = 1;
+
+	private final byte[] dictionary_;
+	private final int level_;
+	private final int minSize_;
+
+	private final ThreadLocal<Deflater> deflater_ = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(level_, true);
+		}
+	};
+
+	private final ThreadLocal<Inflater> inflater_ = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater(true);
+		}
+	};
+
+	/** Per thread: staging for compressed input, and encoder output. */
+	private final ThreadLocal<byte[][]> scratch_ = new ThreadLocal<byte[][]>() {
+		@Override
+		protected byte[][] initialValue() {
+			return new byte[][] { new byte[1024], new byte[1024] };
+		}
+	};
+
+	/**
+	 * @param dictionary Preset dictionary, at most
+	 * 		{@link #MAX_DICTIONARY} bytes; see {@link #train(List, int)}.
+	 * 		Empty for none.
+	 * @param level Deflate level, 1 (fast) to 9 (small).
+	 * @param minSize Values shorter than this are stored raw.
+	 */
+	public CdbCodec(byte[] dictionary, int level, int minSize) {
+		if (dictionary.length > MAX_DICTIONARY)
+			dictionary = Arrays.copyOfRange(dictionary,
+					dictionary.length - MAX_DICTIONARY, dictionary.length);
+		dictionary_ = dictionary;
+		level_ = level;
+		minSize_ = minSize;
+	}
+
+	public byte[] getDictionary()  { return dictionary_; }
+	public int getLevel()          { return level_;      }
+	public int getMinSize()        { return minSize_;    }
+
+	/** The metadata record's data. */
+	byte[] toMetadata() {
+		ByteBuffer b = ByteBuffer.allocate(24 + dictionary_.length);
+		b.order(ByteOrder.LITTLE_ENDIAN);
+		b.putInt(MAGIC).putInt(VERSION).putInt(CODEC_DEFLATE)
+			.putInt(level_).putInt(minSize_).putInt(dictionary_.length);
+		b.put(dictionary_);
+		return b.array();
+	}
+
+	/**
+	 * Reads the codec from the record at pos if it is a metadata record.
+	 *
+	 * @return the codec, or null if the record is an ordinary one.
+	 * @exception IllegalArgumentException if the metadata names a codec
+	 *  or version we do not know.
+	 */
+	static CdbCodec read(CdbBuffer mm, long pos) {
+		int klen = mm.getInt(pos);
+		int dlen = mm.getInt(pos + 4);
+		if (klen != META_KEY.length || dlen < 24 || !mm.equals(pos + 8, META_KEY))
+			return null;
+		long d = pos + 8 + klen;
+		if (mm.getInt(d) != MAGIC)
+			return null;
+		if (mm.getInt(d + 4) != VERSION || mm.getInt(d + 8) != CODEC_DEFLATE)
+			throw new IllegalArgumentException("unsupported cdb codec: version "
+				+ mm.getInt(d + 4) + ", codec " + mm.getInt(d + 8));
+		byte[] dict = new byte[mm.getInt(d + 20)];
+		mm.get(d + 24, dict, 0, dict.length);
+		return new CdbCodec(dict, mm.getInt(d + 12), mm.getInt(d + 16));
+	}
+
+	/**
+	 * Encodes len bytes of data from off.
+	 *
+	 * @return the value to store.
+	 */
+	public byte[] encode(byte[] data, int off, int len) {
+		if (len >= minSize_) {
+			byte[][] s = scratch_.get();
+			if (s[1].length < len + 5)
+				s[1] = new byte[len + 5];
+			byte[] out = s[1];
+
+			Deflater d = deflater_.get();
+			d.reset();
+			if (dictionary_.length > 0)
+				d.setDictionary(dictionary_);
+			d.setInput(data, off, len);
+			d.finish();
+			/* Only worth it if it comes out smaller than raw. */
+			int n = 5;
+			while (!d.finished() && n < len + 1)
+				n += d.deflate(out, n, Math.min(out.length, len + 1) - n);
+			if (d.finished() && n < len + 1) {
+				out[0] = DEFLATED;
+				out[1] = (byte)len;
+				out[2] = (byte)(len >>> 8);
+				out[3] = (byte)(len >>> 16);
+				out[4] = (byte)(len >>> 24);
+				return Arrays.copyOf(out, n);
+			}
+		}
+		byte[] raw = new byte[len + 1];
+		raw[0] = RAW;
+		System.arraycopy(data, off, raw, 1, len);
+		return raw;
+	}
+
+	/**
+	 * Length of the value stored in the len bytes at pos, once decoded.
+	 */
+	int decodedLength(CdbBuffer mm, long pos, int len) {
+		if (len == 0)
+			return 0;
+		if (mm.get(pos) == DEFLATED)
+			return mm.getInt(pos + 1);
+		return len - 1;
+	}
+
+	/**
+	 * Decodes the value stored in the len bytes at pos.
+	 */
+	byte[] decode(CdbBuffer mm, long pos, int len) {
+		byte[] out = new byte[decodedLength(mm, pos, len)];
+		decode(mm, pos, len, out, 0);
+		return out;
+	}
+
+	/**
+	 * Decodes the value stored in the len bytes at pos into dst at off;
+	 * the caller makes sure it fits.
+	 *
+	 * @return the decoded length.
+	 */
+	int decode(CdbBuffer mm, long pos, int len, byte[] dst, int off) {
+		if (len == 0)
+			return 0;
+		if (mm.get(pos) != DEFLATED) {
+			mm.get(pos + 1, dst, off, len - 1);
+			return len - 1;
+		}
+		int rawLen = mm.getInt(pos + 1);
+		int clen = len - 5;
+		byte[][] s = scratch_.get();
+		if (s[0].length < clen + 1)
+			s[0] = new byte[Math.max(clen + 1, s[0].length * 2)];
+		byte[] in = s[0];
+		mm.get(pos + 5, in, 0, clen);
+		in[clen] = 0; // raw inflate may want one byte past the stream
+
+		Inflater inf = inflater_.get();
+		inf.reset();
+		/* Raw streams carry no dictionary id; it must be set up front. */
+		if (dictionary_.length > 0)
+			inf.setDictionary(dictionary_);
+		inf.setInput(in, 0, clen + 1);
+		try {
+			int n = 0;
+			while (n < rawLen) {
+				int r = inf.inflate(dst, off + n, rawLen - n);
+				if (r == 0 && (inf.finished() || inf.needsInput()))
+					break;
+				n += r;
+			}
+			if (n != rawLen)
+				throw new IllegalArgumentException("invalid cdb format; truncated value");
+			return n;
+		} catch (DataFormatException e) {
+			throw new IllegalArgumentException("invalid cdb format; " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Builds a preset dictionary from sample values: the byte strings that
+	 * recur across the most samples, most common last (deflate reaches
+	 * the end of the dictionary most cheaply).
+	 *
+	 * @param samples Representative values, e.g. every 100th record.
+	 * @param size Dictionary size wanted; at most {@link #MAX_DICTIONARY}.
+	 */
+	public static byte[] train(List<byte[]> samples, int size) {
+		final int k = 8;        // length of the substrings counted
+		final int segment = 32; // length of the pieces picked
+		size = Math.min(size, MAX_DICTIONARY);
+
+		/* How many samples each k byte substring turns up in. */
+		Map<Long, int[]> counts = new HashMap<Long, int[]>();
+		for (byte[] s : samples) {
+			Map<Long, Boolean> seen = new HashMap<Long, Boolean>();
+			for (int i = 0; i + k <= s.length; i++) {
+				Long g = gram(s, i, k);
+				if (seen.put(g, Boolean.TRUE) != null)
+					continue;
+				int[] c = counts.get(g);
+				if (c == null)
+					counts.put(g, new int[] { 1 });
+				else
+					c[0]++;
+			}
+		}
+
+		/* Score every segment by the substrings in it, best first. */
+		final List<long[]> segs = new ArrayList<long[]>(); // {score, sample, offset}
+		for (int si = 0; si < samples.size(); si++) {
+			byte[] s = samples.get(si);
+			for (int i = 0; i + segment <= s.length; i += segment / 2)
+				segs.add(new long[] { score(s, i, segment, k, counts), si, i });
+		}
+		Collections.sort(segs, new Comparator<long[]>() {
+			public int compare(long[] a, long[] b) {
+				return (a[0] < b[0]) ? 1 : (a[0] > b[0]) ? -1 : 0;
+			}
+		});
+
+		/* Pick greedily, dropping what the picked pieces already cover. */
+		List<byte[]> picked = new ArrayList<byte[]>();
+		int total = 0;
+		for (long[] seg : segs) {
+			if (total + segment > size)
+				break;
+			byte[] s = samples.get((int)seg[1]);
+			int at = (int)seg[2];
+			if (score(s, at, segment, k, counts) < seg[0] / 2 || seg[0] <= segment)
+				continue;
+			for (int i = at; i + k <= at + segment; i++)
+				counts.remove(gram(s, i, k));
+			picked.add(Arrays.copyOfRange(s, at, at + segment));
+			total += segment;
+		}
+
+		byte[] dict = new byte[total];
+		int pos = total;
+		for (byte[] p : picked) {
+			pos -= p.length;
+			System.arraycopy(p, 0, dict, pos, p.length);
+		}
+		return dict;
+	}
+
+	private static long score(byte[] s, int off, int len, int k, Map<Long, int[]> counts) {
+		long score = 0;
+		for (int i = off; i + k <= off + len; i++) {
+			int[] c = counts.get(gram(s, i, k));
+			if (c != null)
+				score += c[0];
+		}
+		return score;
+	}
+
+	private static Long gram(byte[] s, int off, int k) {
+		long g = 0;
+		for (int i = 0; i < k; i++)
+			g = (g << 8) | (s[off + i] & 0xff);
+		return Long.valueOf(g);
+	}
+
+	@Override
+	public String toString() {
+		return "CdbCodec [deflate, level=" + level_ + ", dictionary=" + dictionary_.length
+			+ ", minSize=" + minSize_ + "]";
+	}
+}
@@ -0,0 +1,273 @@
+package com.mnasser.io.cdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An approximate membership filter kept next to a CDB file, so that most
+ * lookups of absent keys are answered without touching the CDB at all.
+ * <p>
+ * The filter is a blocked Bloom filter: every key sets (and is checked
+ * against) bits in just one 64 byte block, so a check reads one cache
+ * line.  It is written by {@link CdbMake} to
+ * <code>&lt;cdb file&gt;.bloom</code>:
+ * <pre>
+ * 	int magic, int version, int hashes, int blocks,
+ * 	long entries, double fpp, long cdb size, long cdb slot table crc,
+ * 	long build id, blocks * 8 longs of bits
+ * </pre>
+ * all little-endian.  The build id is random, and also stored in the CDB
+ * as a record under {@link #BUILD_KEY}, right after the codec's if any.
+ * It, the CDB's size and a checksum of its slot table tie the filter to
+ * the one build it was made for.  A filter that does not match the CDB
+ * is refused (and logged) rather than trusted, as a stale one would hide
+ * keys the CDB holds.  Checking reads only the CDB's first page or so.
+ * <p>
+ * Read through an mmap(), like the CDB itself.  Thread safe.
+ * 
+ * @author mnasser
+ */
+public final class CdbFilter {
+
+	public static Logger _log = LoggerFactory.getLogger(CdbFilter.class);
+
+	/** Suffix of the filter file, after the CDB's own name. */
+	public static final String SUFFIX = ".bloom";
+
+	/** False positive rate HDist builds use. */
+	public static final double DEFAULT_FPP = 0.01;
+
+	static final int MAGIC = 0x46424443; // "CDBF"
+	static final int VERSION = 3;
+	static final int HEADER_SIZE = 56;
+
+	/** Key of the CDB record holding the build id; 8 bytes of value. */
+	public static final byte[] BUILD_KEY = "\0cdb.build".getBytes();
+
+	/** Bits per block, and longs per block. */
+	private static final int BLOCK_BITS = 512;
+	private static final int BLOCK_LONGS = BLOCK_BITS / 64;
+
+	private final CdbBuffer bits_;
+	private final int hashes_;
+	private final int blocks_;
+	private final long entries_;
+	private final double fpp_;
+
+	private CdbFilter(CdbBuffer bits, int hashes, int blocks, long entries, double fpp) {
+		bits_ = bits;
+		hashes_ = hashes;
+		blocks_ = blocks;
+		entries_ = entries;
+		fpp_ = fpp;
+	}
+
+	/**
+	 * Maps the filter at path if there is one and it was built for the
+	 * CDB given.
+	 *
+	 * @param cdb The mapped CDB file.
+	 * @param headerSize Size of its slot table.
+	 * @param buildId The CDB's {@link #buildId(CdbBuffer, long, long)
+	 * 		build id}; 0 if it has none.
+	 * @return the filter, or null.
+	 */
+	static CdbFilter open(String path, CdbBuffer cdb, int headerSize, long buildId) throws IOException {
+		File f = new File(path);
+		if (!f.isFile() || f.length() < HEADER_SIZE)
+			return null;
+		FileChannel fc = new RandomAccessFile(f, "r").getChannel();
+		CdbBuffer b;
+		try {
+			b = new CdbBuffer(fc, fc.size());
+		} finally {
+			fc.close();
+		}
+		int blocks = b.getInt(12);
+		if (b.getInt(0) != MAGIC || b.getInt(4) != VERSION
+				|| blocks <= 0 || b.size() != HEADER_SIZE + (long)blocks * BLOCK_BITS / 8) {
+			b.unmap();
+			_log.warn(path + " is not a version " + VERSION + " filter; ignored");
+			return null;
+		}
+		if (buildId == 0 || b.getLong(48) != buildId || b.getLong(32) != cdb.size()
+				|| b.getLong(40) != checksum(cdb, headerSize)) {
+			b.unmap();
+			_log.warn(path + " was built for another version of its CDB; ignored");
+			return null;
+		}
+		return new CdbFilter(b, b.getInt(8), blocks, b.getLong(16),
+				Double.longBitsToDouble(b.getLong(24)));
+	}
+
+	/**
+	 * Writes a filter holding the keys with the given
+	 * {@link #hash(byte[], int, int) hashes}.
+	 *
+	 * @param hashes Key hashes; the first <code>count</code> are used.
+	 * @param fpp Wanted false positive rate.
+	 * @param cdbSize Size of the CDB file it goes with.
+	 * @param cdbCrc {@link #checksum(byte[], int, int) Checksum} of that
+	 * 		CDB's slot table.
+	 * @param buildId Build id stored in that CDB.
+	 */
+	static void write(String path, long[] hashes, int count, double fpp,
+			long cdbSize, long cdbCrc, long buildId) throws IOException {
+		if (!(fpp > 0 && fpp < 1))
+			throw new IllegalArgumentException("fpp must be in (0, 1): " + fpp);
+
+		/* Classic sizing, ln(1/p) / ln(2)^2 bits and k hashes per key, plus
+		 * a fifth more bits to make up for keys crowding some blocks. */
+		double bitsPerKey = -Math.log(fpp) / (Math.log(2) * Math.log(2));
+		int k = (int)Math.max(1, Math.min(16, Math.round(bitsPerKey * Math.log(2))));
+		long blocks = Math.max(1, (long)Math.ceil(Math.max(count, 1) * bitsPerKey * 1.2 / BLOCK_BITS));
+		if (blocks > Integer.MAX_VALUE / BLOCK_LONGS)
+			throw new IOException("Filter for " + count + " keys is too large");
+
+		long[] bits = new long[(int)blocks * BLOCK_LONGS];
+		for (int i = 0; i < count; i++) {
+			long h = hashes[i];
+			int base = block(h, (int)blocks) * BLOCK_LONGS;
+			int h1 = (int)h, h2 = step(h);
+			for (int j = 0; j < k; j++, h1 += h2)
+				bits[base + ((h1 >>> 6) & (BLOCK_LONGS - 1))] |= 1L << h1;
+		}
+
+		ByteBuffer b = ByteBuffer.allocate(HEADER_SIZE + bits.length * 8);
+		b.order(ByteOrder.LITTLE_ENDIAN);
+		b.putInt(MAGIC).putInt(VERSION).putInt(k).putInt((int)blocks);
+		b.putLong(count).putDouble(fpp).putLong(cdbSize).putLong(cdbCrc).putLong(buildId);
+		b.asLongBuffer().put(bits);
+		b.rewind();
+
+		RandomAccessFile raf = new RandomAccessFile(path, "rw");
+		try {
+			raf.setLength(0);
+			FileChannel fc = raf.getChannel();
+			while (b.hasRemaining())
+				fc.write(b);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return false if key is certainly not in the CDB.
+	 */
+	public boolean mightContain(byte[] key) {
+		long h = hash(key, 0, key.length);
+		long base = HEADER_SIZE + (long)block(h, blocks_) * (BLOCK_BITS / 8);
+		int h1 = (int)h, h2 = step(h);
+		for (int j = 0; j < hashes_; j++, h1 += h2) {
+			long word = bits_.getLong(base + (((h1 >>> 6) & (BLOCK_LONGS - 1)) << 3));
+			if ((word & (1L << h1)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/** Distance between the bits a key hash sets in its block; odd, and
+	 * independent of the block's choice. */
+	private static int step(long h) {
+		return (int)((h * 0x9e3779b97f4a7c15L) >>> 32) | 1;
+	}
+
+	/** The block a key hash sets its bits in. */
+	private static int block(long h, int blocks) {
+		/* High bits, spread over [0, blocks) without a division. */
+		return (int)(((h >>> 32) * blocks) >>> 32);
+	}
+
+	/**
+	 * 64 bit hash of len bytes of key starting at off: FNV-1a, then
+	 * MurmurHash3's finalizer so every output bit depends on every input
+	 * bit.
+	 */
+	static long hash(byte[] key, int off, int len) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = off; i < off + len; i++) {
+			h ^= key[i] & 0xff;
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/** Checksum of a CDB's slot table, its first headerSize bytes. */
+	static long checksum(CdbBuffer cdb, int headerSize) {
+		byte[] table = new byte[(int)Math.min(headerSize, cdb.size())];
+		cdb.get(0, table, 0, table.length);
+		return checksum(table, 0, table.length);
+	}
+
+	static long checksum(byte[] table, int off, int len) {
+		CRC32 crc = new CRC32();
+		crc.update(table, off, len);
+		return crc.getValue();
+	}
+
+	/** A new build id: random, and never 0. */
+	static long newBuildId() {
+		long id;
+		do {
+			id = ThreadLocalRandom.current().nextLong();
+		} while (id == 0);
+		return id;
+	}
+
+	/**
+	 * The build id held by the CDB record at pos, or 0 if the record,
+	 * which must end by end, is not a build record.
+	 */
+	static long buildId(CdbBuffer cdb, long pos, long end) {
+		if (pos + 8 + BUILD_KEY.length + 8 > end
+				|| cdb.getInt(pos) != BUILD_KEY.length || cdb.getInt(pos + 4) != 8
+				|| !cdb.equals(pos + 8, BUILD_KEY))
+			return 0;
+		return cdb.getLong(pos + 8 + BUILD_KEY.length);
+	}
+
+	/** The false positive rate the filter was built for. */
+	public double getFalsePositiveRate() {
+		return fpp_;
+	}
+
+	/** Number of keys the filter was built from. */
+	public long getEntries() {
+		return entries_;
+	}
+
+	/** Size of the filter file. */
+	public long getSize() {
+		return bits_.size();
+	}
+
+	/** Reads the filter in; it is small, and every lookup reads it. */
+	void warm() {
+		bits_.touch(0, bits_.size(), 0);
+	}
+
+	/** Unmaps the filter; see {@link CdbBuffer#unmap()}. */
+	void unmap() {
+		bits_.unmap();
+	}
+
+	@Override
+	public String toString() {
+		return "CdbFilter [entries=" + entries_ + ", fpp=" + fpp_ + ", hashes=" + hashes_
+			+ ", bytes=" + getSize() + "]";
+	}
+}
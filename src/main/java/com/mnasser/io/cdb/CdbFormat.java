@@ -0,0 +1,51 @@
+package com.mnasser.io.cdb;
+
+/**
+ * The on-disk layouts {@link Cdb} can read and {@link CdbMake} can write.
+ * <p>
+ * Both share the same records (4 byte key length, 4 byte data length,
+ * key, data) and the same 256 open-addressed hash tables; they differ
+ * only in how wide positions are.  Nothing in the file says which layout
+ * it is, so readers must be told.
+ * 
+ * @author mnasser
+ */
+public enum CdbFormat {
+
+	/**
+	 * D.&nbsp;J.&nbsp;Bernstein's original layout.  32 bit positions, so
+	 * files are limited to 4GB.  Readable by every other CDB tool.
+	 */
+	CDB(2048, 8, 0xffffffffL),
+
+	/**
+	 * 64 bit variant for single maps larger than 4GB.  The slot table is
+	 * 256 (8 byte position, 8 byte slot count) pairs and each hash table
+	 * slot is an 8 byte hash (the usual 32 bit hash, zero extended)
+	 * followed by an 8 byte record position.
+	 */
+	CDB64(4096, 16, Long.MAX_VALUE);
+
+
+	private final int headerSize;
+	private final int slotSize;
+	private final long maxFileSize;
+
+	CdbFormat(int headerSize, int slotSize, long maxFileSize) {
+		this.headerSize = headerSize;
+		this.slotSize = slotSize;
+		this.maxFileSize = maxFileSize;
+	}
+
+	/** Size of the slot table at the head of the file; records follow it. */
+	public int getHeaderSize()  { return headerSize;  }
+
+	/** Size of one (hash, position) slot in a hash table. */
+	public int getSlotSize()    { return slotSize;    }
+
+	/** Largest file this layout can address. */
+	public long getMaxFileSize(){ return maxFileSize; }
+
+	/** true if positions are 64 bits wide. */
+	boolean isWide()            { return slotSize == 16; }
+}
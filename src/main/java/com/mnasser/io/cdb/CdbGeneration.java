@@ -0,0 +1,104 @@
+package com.mnasser.io.cdb;
+
+import java.io.IOException;
+
+/**
+ * One generation of a sharded map: the full set of HDist shard files
+ * built together, opened together and retired together.
+ * <p>
+ * Lookups enter the generation for as long as they use its shards (see
+ * {@link CdbMapHandle#acquire()}), so every shard a lookup touches comes
+ * from the same build.  Once the generation is retired and the last
+ * lookup has left, all its shards are closed.
+ * 
+ * @author mnasser
+ */
+public class CdbGeneration {
+
+	private final long id;
+	private final ShardedCdb map;
+	private final ReaderCount readers;
+
+	/**
+	 * @param id Generation number; later generations have larger ones.
+	 * @param map Open shards.  Now owned by this generation.
+	 */
+	public CdbGeneration(long id, final ShardedCdb map) {
+		this.id = id;
+		this.map = map;
+		this.readers = new ReaderCount(new Runnable() {
+			public void run() {
+				map.close();
+			}
+		});
+	}
+
+	/**
+	 * Opens the output of HDistHelper.makeCdb; see
+	 * {@link ShardedCdb#open(String)}.
+	 *
+	 * @param id Generation number to give it.
+	 * @param prefix Path prefix of the shards.
+	 */
+	public static CdbGeneration open(long id, String prefix) throws IOException {
+		return new CdbGeneration(id, ShardedCdb.open(prefix));
+	}
+
+	public long getId()          { return id;  }
+	public ShardedCdb getMap()   { return map; }
+
+	/**
+	 * Finds the first record stored under key.  The caller must have
+	 * entered this generation.
+	 */
+	public byte[] find(byte[] key) {
+		return map.find(key);
+	}
+
+	/**
+	 * Pre-faults every shard's hash tables so the first lookups against
+	 * this generation do not pay for it.
+	 */
+	public void warm() {
+		map.warm();
+	}
+
+	/**
+	 * Warms every shard as policy says; see
+	 * {@link Cdb#warm(WarmupPolicy, long)}.
+	 */
+	public void warm(WarmupPolicy policy, long bytesPerSecond) {
+		map.warm(policy, bytesPerSecond);
+	}
+
+	/**
+	 * Enters the generation.
+	 *
+	 * @return false if it has been retired; pick up the current one.
+	 */
+	boolean enter() {
+		return readers.enter();
+	}
+
+	/** Leaves the generation; pairs with a successful enter(). */
+	public void leave() {
+		readers.leave();
+	}
+
+	/**
+	 * Retires the generation.  Its shards are closed once the last lookup
+	 * inside has left.
+	 */
+	public void retire() {
+		readers.close();
+	}
+
+	public boolean isRetired() {
+		return readers.isClosed();
+	}
+
+	@Override
+	public String toString() {
+		return "CdbGeneration [id=" + id + ", map=" + map + "]";
+	}
+}
@@ -0,0 +1,591 @@
+package com.mnasser.io.cdb;
+
+/**
+ * Copyright (c) 2013, Mohamed Nasser <moe.nasser@gmail.com>
+ * All rights reserved.
+ *
+ * Pure Java writer for D.&nbsp;J.&nbsp;Bernstein's CDB format; the
+ * counterpart to {@link Cdb}.  Loosely follows M.A.Miller's CdbMake but
+ * writes through a FileChannel and builds the hash tables in parallel.
+ *
+ * Redistribution and use are permitted as per Miller's copyright in Cdb.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * CdbMake builds a constant database that {@link Cdb} (or any other CDB
+ * reader) can open.
+ * <p>
+ * Records are streamed straight to the file as they are added; only the
+ * (hash, position) pair of each record is kept in memory.  On
+ * {@link #finish()} the 256 hash tables are built and written in
+ * parallel, then the slot table is written at the head of the file.
+ * <p>
+ * Records within a hash table are placed exactly as cdbmake places them,
+ * so the same input produces the same bytes.
+ * <p>
+ * Not thread safe.
+ *
+ * @author		mnasser
+ */
+public class CdbMake {
+
+	/** Size of the buffer records are staged in before being written. */
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	/** The channel the CDB file is written through. */
+	private FileChannel fc_ = null;
+
+	/** Staging buffer for records. */
+	private ByteBuffer buf_ = null;
+
+	/** File position the next record will be written at. */
+	private long pos_ = 0;
+
+	/** Per hash table: hash values of the records that landed in it. */
+	private int[][] hashes_ = null;
+
+	/** Per hash table: file positions of the records that landed in it. */
+	private long[][] positions_ = null;
+
+	/** Per hash table: number of records that landed in it. */
+	private int[] counts_ = null;
+
+	/** Threads used to build the hash tables; null for our own pool. */
+	private ExecutorService pool_ = null;
+
+	/** The layout being written. */
+	private final CdbFormat format_;
+
+	/** False positive rate of the filter written alongside; 0 for none. */
+	private double filterFpp_ = 0;
+
+	/** Filter hashes of the keys added so far, if a filter is wanted. */
+	private long[] filterHashes_ = null;
+
+	/** Number of keys in filterHashes_. */
+	private int filterCount_ = 0;
+
+	/** Build id tying the filter to this CDB; see {@link CdbFilter}. */
+	private long buildId_ = 0;
+
+	/** Checksum of the slot table written, for the filter. */
+	private long slotCrc_ = 0;
+
+	/** The CDB file being written. */
+	private String filepath_ = null;
+
+	/** Compresses values, if wanted. */
+	private CdbCodec codec_ = null;
+
+
+	/**
+	 * Creates a CdbMake that builds its hash tables on a pool of its own
+	 * sized to the number of processors.
+	 */
+	public CdbMake() {
+		this(CdbFormat.CDB, null);
+	}
+
+	/**
+	 * Creates a CdbMake that builds its hash tables on the given pool.
+	 * Handy when many CDBs are being built at once.
+	 *
+	 * @param pool Threads to build hash tables on.  Not shut down by us.
+	 */
+	public CdbMake(ExecutorService pool) {
+		this(CdbFormat.CDB, pool);
+	}
+
+	/**
+	 * Creates a CdbMake that writes the given layout, building its hash
+	 * tables on the given pool.
+	 *
+	 * @param format The layout to write.
+	 * @param pool Threads to build hash tables on; null for a pool of
+	 *  our own.  Not shut down by us.
+	 */
+	public CdbMake(CdbFormat format, ExecutorService pool) {
+		format_ = format;
+		pool_ = pool;
+	}
+
+
+	/**
+	 * Also writes a {@link CdbFilter} next to the CDB file, for
+	 * {@link Cdb} to answer most lookups of absent keys from.  Must be
+	 * called before {@link #start(String)}.  The filter costs 8 bytes of
+	 * memory per record while building, and the CDB one more record, the
+	 * build id the filter is checked against.
+	 *
+	 * @param fpp Wanted false positive rate, e.g. 0.01; 0 for no filter.
+	 */
+	public void setFilter(double fpp) {
+		if (fpp != 0 && !(fpp > 0 && fpp < 1))
+			throw new IllegalArgumentException("fpp must be in (0, 1): " + fpp);
+		filterFpp_ = fpp;
+	}
+
+	/**
+	 * Compresses every value with codec.  The codec is stored in the file
+	 * as its first record, under {@link CdbCodec#META_KEY}.  Must be
+	 * called before {@link #start(String)}.
+	 *
+	 * @param codec The codec; null for none.
+	 */
+	public void setCompression(CdbCodec codec) {
+		codec_ = codec;
+	}
+
+	/**
+	 * Begins the constant database creation process.
+	 *
+	 * @param filepath The path to the CDB file to create.
+	 * @exception java.io.IOException if an error occurs creating the
+	 *  constant database.
+	 */
+	public void start(String filepath) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(filepath, "rw");
+		raf.setLength(0);
+		fc_ = raf.getChannel();
+
+		buf_ = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		buf_.order(ByteOrder.LITTLE_ENDIAN);
+
+		hashes_ = new int[256][];
+		positions_ = new long[256][];
+		counts_ = new int[256];
+		filepath_ = filepath;
+		filterHashes_ = null;
+
+		/* Records start right after the slot table, which is
+		 * written last. */
+		pos_ = format_.getHeaderSize();
+		fc_.position(pos_);
+
+		if (codec_ != null) {
+			byte[] meta = codec_.toMetadata();
+			addRecord(CdbCodec.META_KEY, 0, CdbCodec.META_KEY.length, meta, 0, meta.length);
+		}
+		if (filterFpp_ > 0) {
+			buildId_ = CdbFilter.newBuildId();
+			byte[] id = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(buildId_).array();
+			addRecord(CdbFilter.BUILD_KEY, 0, CdbFilter.BUILD_KEY.length, id, 0, id.length);
+
+			/* Only the keys added from here on go in the filter. */
+			filterHashes_ = new long[1024];
+			filterCount_ = 0;
+		}
+	}
+
+	/**
+	 * Adds a key to the constant database.
+	 *
+	 * @param key The key to add to the database.
+	 * @param data The data associated with this key.
+	 * @exception java.io.IOException If an error occurs adding the key
+	 *  to the database.
+	 */
+	public void add(byte[] key, byte[] data) throws IOException {
+		add(key, 0, key.length, data, 0, data.length);
+	}
+
+	/**
+	 * Adds a key to the constant database.
+	 *
+	 * @param key Array holding the key to add to the database.
+	 * @param koff Offset of the key in <code>key</code>.
+	 * @param klen Length of the key.
+	 * @param data Array holding the data associated with this key.
+	 * @param doff Offset of the data in <code>data</code>.
+	 * @param dlen Length of the data.
+	 * @exception java.io.IOException If an error occurs adding the key
+	 *  to the database.
+	 */
+	public void add(byte[] key, int koff, int klen,
+			byte[] data, int doff, int dlen) throws IOException {
+		if (codec_ != null) {
+			byte[] value = codec_.encode(data, doff, dlen);
+			addRecord(key, koff, klen, value, 0, value.length);
+		} else {
+			addRecord(key, koff, klen, data, doff, dlen);
+		}
+	}
+
+	/**
+	 * Adds a record exactly as given.
+	 */
+	private void addRecord(byte[] key, int koff, int klen,
+			byte[] data, int doff, int dlen) throws IOException {
+		long reclen = 8L + klen + dlen;
+		if (pos_ + reclen > format_.getMaxFileSize())
+			throw new IOException(format_ + " file would exceed "
+				+ format_.getMaxFileSize() + " bytes");
+
+		/* Remember where this record went. */
+		int h = Cdb.hash(key, koff, klen);
+		addPosition(h, pos_);
+		if (filterHashes_ != null) {
+			if (filterCount_ == filterHashes_.length)
+				filterHashes_ = Arrays.copyOf(filterHashes_, filterCount_ * 2);
+			filterHashes_[filterCount_++] = CdbFilter.hash(key, koff, klen);
+		}
+
+		/* Stage the record, writing through if it is too big. */
+		if (buf_.remaining() < 8)
+			flush();
+		buf_.putInt(klen);
+		buf_.putInt(dlen);
+		put(key, koff, klen);
+		put(data, doff, dlen);
+
+		pos_ += reclen;
+	}
+
+	/**
+	 * Finalizes the constant database: builds and writes the hash tables
+	 * and the slot table, then closes the file.  Writes the filter, if
+	 * one was asked for; otherwise removes any stale one.
+	 *
+	 * @exception java.io.IOException If an error occurs finalizing the
+	 *  database.
+	 */
+	public void finish() throws IOException {
+		long size;
+		try {
+			writeTables();
+			size = fc_.size();
+		} finally {
+			fc_.close();
+			fc_ = null;
+			buf_ = null;
+			hashes_ = null;
+			positions_ = null;
+		}
+
+		String filter = filepath_ + CdbFilter.SUFFIX;
+		try {
+			if (filterHashes_ != null)
+				CdbFilter.write(filter, filterHashes_, filterCount_, filterFpp_,
+						size, slotCrc_, buildId_);
+			else
+				new File(filter).delete();
+		} finally {
+			filterHashes_ = null;
+		}
+	}
+
+
+	/**
+	 * Writes out the staged records, the hash tables and the slot table.
+	 */
+	private void writeTables() throws IOException {
+		flush();
+
+		/* Lay out the hash tables one after another, twice as many
+		 * slots as records, right behind the records. */
+		final long[] tablePos = new long[256];
+		long tpos = pos_;
+		for (int i = 0; i < 256; i++) {
+			tablePos[i] = tpos;
+			tpos += (long)counts_[i] * 2 * format_.getSlotSize();
+		}
+		if (tpos > format_.getMaxFileSize())
+			throw new IOException(format_ + " file would exceed "
+				+ format_.getMaxFileSize() + " bytes");
+
+		/* Build and write every table.  Tables are independent and the
+		 * channel supports positional writes from many threads. */
+		ExecutorService pool = pool_;
+		if (pool == null)
+			pool = Executors.newFixedThreadPool(
+				Runtime.getRuntime().availableProcessors());
+		try {
+			List<Future<Void>> tasks = new ArrayList<Future<Void>>(256);
+			for (int i = 0; i < 256; i++) {
+				if (counts_[i] == 0)
+					continue;
+				final int table = i;
+				tasks.add(pool.submit(new Callable<Void>() {
+					public Void call() throws IOException {
+						writeTable(table, tablePos[table]);
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> f : tasks)
+				await(f);
+		} finally {
+			if (pool_ == null)
+				pool.shutdown();
+		}
+
+		/* Write the slot table. */
+		ByteBuffer header = ByteBuffer.allocate(format_.getHeaderSize());
+		header.order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < 256; i++) {
+			putPos(header, tablePos[i]);
+			putPos(header, counts_[i] * 2L);
+		}
+		header.flip();
+		slotCrc_ = CdbFilter.checksum(header.array(), 0, header.limit());
+		writeFully(header, 0);
+	}
+
+	/**
+	 * Builds hash table <code>table</code> and writes it at position
+	 * <code>tpos</code>.
+	 */
+	private void writeTable(int table, long tpos) throws IOException {
+		int count = counts_[table];
+		int[] hashes = hashes_[table];
+		long[] positions = positions_[table];
+
+		/* Place each record at its hash's slot, probing linearly, in
+		 * the order the records were added -- just as cdbmake does. */
+		if (count > Integer.MAX_VALUE / 2)
+			throw new IOException("Too many records in hash table " + table);
+		int slots = count * 2;
+		int[] slotHash = new int[slots];
+		long[] slotPos = new long[slots];
+		for (int i = 0; i < count; i++) {
+			int h = hashes[i];
+			int where = (h >>> 8) % slots;
+			while (slotPos[where] != 0) {
+				if (++where == slots)
+					where = 0;
+			}
+			slotHash[where] = h;
+			slotPos[where] = positions[i];
+		}
+
+		/* Write the table out a chunk at a time; big tables would
+		 * not fit in a single buffer. */
+		int chunk = Math.min(slots, BUFFER_SIZE / format_.getSlotSize());
+		ByteBuffer b = ByteBuffer.allocate(chunk * format_.getSlotSize());
+		b.order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < slots; i++) {
+			putPos(b, slotHash[i] & 0xffffffffL);
+			putPos(b, slotPos[i]);
+			if (!b.hasRemaining() || i == slots - 1) {
+				b.flip();
+				tpos += writeFully(b, tpos);
+				b.clear();
+			}
+		}
+	}
+
+	/**
+	 * Writes a position (or count) as wide as the layout says.
+	 */
+	private void putPos(ByteBuffer b, long pos) {
+		if (format_.isWide())
+			b.putLong(pos);
+		else
+			b.putInt((int)pos);
+	}
+
+	/**
+	 * Records the hash and position of a newly added record.
+	 */
+	private void addPosition(int h, long pos) {
+		int table = h & 255;
+		int n = counts_[table];
+		if (hashes_[table] == null) {
+			hashes_[table] = new int[16];
+			positions_[table] = new long[16];
+		} else if (n == hashes_[table].length) {
+			hashes_[table] = Arrays.copyOf(hashes_[table], n * 2);
+			positions_[table] = Arrays.copyOf(positions_[table], n * 2);
+		}
+		hashes_[table][n] = h;
+		positions_[table][n] = pos;
+		counts_[table] = n + 1;
+	}
+
+	/**
+	 * Stages len bytes of b, writing through the channel whenever the
+	 * staging buffer fills.
+	 */
+	private void put(byte[] b, int off, int len) throws IOException {
+		if (len > buf_.capacity()) {
+			flush();
+			ByteBuffer w = ByteBuffer.wrap(b, off, len);
+			while (w.hasRemaining())
+				fc_.write(w);
+			return;
+		}
+		while (len > 0) {
+			if (!buf_.hasRemaining())
+				flush();
+			int n = Math.min(len, buf_.remaining());
+			buf_.put(b, off, n);
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Writes out whatever is staged.
+	 */
+	private void flush() throws IOException {
+		buf_.flip();
+		while (buf_.hasRemaining())
+			fc_.write(buf_);
+		buf_.clear();
+	}
+
+	/**
+	 * Writes all of b at the given position of the file.
+	 */
+	private int writeFully(ByteBuffer b, long pos) throws IOException {
+		int n = b.remaining();
+		while (b.hasRemaining())
+			pos += fc_.write(b, pos);
+		return n;
+	}
+
+	/**
+	 * Waits on a table build, unwrapping its failure.
+	 */
+	private static void await(Future<Void> f) throws IOException {
+		try {
+			f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted building hash tables");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+
+	/**
+	 * Builds a CDB file from a stream in cdbmake's input format:
+	 * <pre>
+	 * 	+klen,dlen:key-&gt;data\n
+	 * </pre>
+	 * one record per line, ending with an empty line (or end of stream).
+	 *
+	 * @param in The stream to read records from.  Not closed.
+	 * @param filepath The CDB file to create.
+	 * @exception java.io.IOException if the input is malformed or the
+	 *  CDB file could not be written.
+	 */
+	public static void make(InputStream in, String filepath) throws IOException {
+		make(in, filepath, null);
+	}
+
+	/**
+	 * Builds a CDB file from a stream in cdbmake's input format, building
+	 * the hash tables on the given pool.
+	 *
+	 * @see #make(InputStream, String)
+	 * @param pool Threads to build hash tables on; null for a pool of
+	 *  our own.
+	 */
+	public static void make(InputStream in, String filepath, ExecutorService pool)
+			throws IOException {
+		make(in, filepath, CdbFormat.CDB, pool);
+	}
+
+	/**
+	 * Builds a CDB file of the given layout from a stream in cdbmake's
+	 * input format, building the hash tables on the given pool.
+	 *
+	 * @see #make(InputStream, String)
+	 * @param format The layout to write.
+	 * @param pool Threads to build hash tables on; null for a pool of
+	 *  our own.
+	 */
+	public static void make(InputStream in, String filepath, CdbFormat format,
+			ExecutorService pool) throws IOException {
+		CdbMake cm = new CdbMake(format, pool);
+		cm.start(filepath);
+		cm.addAll(in);
+		cm.finish();
+	}
+
+	/**
+	 * Adds every record of a stream in cdbmake's input format.
+	 *
+	 * @see #make(InputStream, String)
+	 * @param in The stream to read records from.  Not closed.
+	 * @exception java.io.IOException if the input is malformed or the
+	 *  records could not be written.
+	 */
+	public void addAll(InputStream in) throws IOException {
+		InputStream bin = (in instanceof BufferedInputStream)
+			? in : new BufferedInputStream(in, 1 << 16);
+
+		byte[] key = new byte[256];
+		byte[] data = new byte[256];
+		int c;
+		while ((c = bin.read()) == '+') {
+			int klen = readLen(bin, ',');
+			int dlen = readLen(bin, ':');
+
+			if (klen > key.length)
+				key = new byte[Math.max(klen, key.length * 2)];
+			if (dlen > data.length)
+				data = new byte[Math.max(dlen, data.length * 2)];
+
+			readFully(bin, key, klen);
+			if (bin.read() != '-' || bin.read() != '>')
+				throw new IOException("invalid cdbmake format; expected '->'");
+			readFully(bin, data, dlen);
+			if (bin.read() != '\n')
+				throw new IOException("invalid cdbmake format; expected newline");
+
+			add(key, 0, klen, data, 0, dlen);
+		}
+		if (c != '\n' && c != -1)
+			throw new IOException("invalid cdbmake format; expected '+'");
+	}
+
+	/**
+	 * Builds a CDB file from a file in cdbmake's input format.
+	 *
+	 * @see #make(InputStream, String)
+	 */
+	public static void make(String dataFilepath, String cdbFilepath) throws IOException {
+		InputStream in = new FileInputStream(dataFilepath);
+		try {
+			make(in, cdbFilepath);
+		} finally {
+			in.close();
+		}
+	}
+
+	/* Reads a decimal length terminated by <code>end</code>. */
+	private static int readLen(InputStream in, char end) throws IOException {
+		long len = 0;
+		int c;
+		int digits = 0;
+		while ((c = in.read()) != end) {
+			if (c < '0' || c > '9' || ++digits > 10)
+				throw new IOException("invalid cdbmake format; bad length");
+			len = len * 10 + (c - '0');
+		}
+		if (digits == 0 || len > Integer.MAX_VALUE)
+			throw new IOException("invalid cdbmake format; bad length");
+		return (int)len;
+	}
+
+	/* Reads exactly len bytes into b. */
+	private static void readFully(InputStream in, byte[] b, int len) throws IOException {
+		for (int off = 0; off < len; /* below */) {
+			int count = in.read(b, off, len - off);
+			if (count == -1)
+				throw new EOFException("invalid cdbmake format; truncated record");
+			off += count;
+		}
+	}
+}
@@ -0,0 +1,216 @@
+package com.mnasser.io.cdb;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A live, swappable handle on a sharded map.
+ * <p>
+ * Readers always see one complete {@link CdbGeneration}.  A rebuilt map is
+ * opened and warmed in the background by {@link #reload(String)}, then
+ * swapped in with one atomic write: lookups already running finish
+ * against the old generation, new ones start on the new.  The old
+ * generation is retired at the swap and its files unmapped once its last
+ * lookup has drained.  No lookup ever fails or waits because of a
+ * reload.
+ * <pre>
+ *  CdbGeneration g = handle.acquire();
+ *  try {
+ *  	... any number of lookups against g ...
+ *  } finally {
+ *  	g.leave();
+ *  }
+ * </pre>
+ * Thread safe.
+ * 
+ * @author mnasser
+ */
+public class CdbMapHandle {
+
+	public static Logger _log = LoggerFactory.getLogger(CdbMapHandle.class);
+
+	private final String name;
+	private final AtomicReference<CdbGeneration> current = new AtomicReference<CdbGeneration>();
+	private final AtomicLong nextId = new AtomicLong(1);
+	private final ExecutorService loader;
+	private volatile WarmupPolicy warmup = WarmupPolicy.HASH_TABLES;
+	private volatile long warmupRate = WarmupPolicy.DEFAULT_RATE;
+	private boolean closed = false;
+
+	/**
+	 * Creates an empty handle.  Lookups find nothing until a generation
+	 * has been loaded.
+	 *
+	 * @param name Name for logging.
+	 */
+	public CdbMapHandle(final String name) {
+		this.name = name;
+		this.loader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "cdb-loader-" + name);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public WarmupPolicy getWarmupPolicy() {
+		return warmup;
+	}
+
+	/**
+	 * How much of each new generation {@link #reload(String)} reads in
+	 * before swapping it in; HASH_TABLES unless set.
+	 *
+	 * @param bytesPerSecond Rate for SEQUENTIAL.
+	 */
+	public void setWarmupPolicy(WarmupPolicy policy, long bytesPerSecond) {
+		this.warmup = policy;
+		this.warmupRate = bytesPerSecond;
+	}
+
+	/**
+	 * Enters and returns the current generation; null if none is loaded.
+	 * The caller must {@link CdbGeneration#leave() leave} it when done.
+	 */
+	public CdbGeneration acquire() {
+		while (true) {
+			CdbGeneration g = current.get();
+			if (g == null || g.enter())
+				return g;
+			/* Retired between the read and the enter; a newer one is
+			 * already in place. */
+		}
+	}
+
+	/**
+	 * Id of the current generation, 0 if none is loaded.  Changes on
+	 * every swap.
+	 */
+	public long getGeneration() {
+		CdbGeneration g = current.get();
+		return (g == null) ? 0 : g.getId();
+	}
+
+	/**
+	 * Finds the first record stored under key in the current generation.
+	 *
+	 * @return the record, or null if there is none (or no generation).
+	 */
+	public byte[] find(byte[] key) {
+		CdbGeneration g = acquire();
+		if (g == null)
+			return null;
+		try {
+			return g.find(key);
+		} finally {
+			g.leave();
+		}
+	}
+
+	/**
+	 * Opens and warms the shards at <code>prefix.shrd[n].cdb</code> in the
+	 * background, then swaps them in.
+	 *
+	 * @param prefix Path prefix of the new shards.
+	 * @return completes with the new generation once it serves traffic;
+	 *  fails (leaving the current generation in place, and closing the
+	 *  new shards) if the shards could not be opened or warmed, or the
+	 *  handle was closed meanwhile.
+	 */
+	public Future<CdbGeneration> reload(final String prefix) {
+		return loader.submit(new Callable<CdbGeneration>() {
+			public CdbGeneration call() throws IOException {
+				long start = System.currentTimeMillis();
+				CdbGeneration g = CdbGeneration.open(nextId.getAndIncrement(), prefix);
+				try {
+					g.warm(warmup, warmupRate);
+					if (_log.isDebugEnabled()) {
+						for (CdbResidency r : g.getMap().residency(1 << 20))
+							_log.debug(name + ": " + r);
+					}
+					swap(g);
+				} catch (IOException e) {
+					g.retire();
+					throw e;
+				} catch (RuntimeException e) {
+					g.retire();
+					throw e;
+				} catch (Error e) {
+					g.retire();
+					throw e;
+				}
+				_log.info(name + ": " + g + " from " + prefix + " warmed (" + warmup
+					+ ") and live in " + (System.currentTimeMillis() - start) / 1000.0 + " sec");
+				return g;
+			}
+		});
+	}
+
+	/**
+	 * Puts g in front of readers right away and retires the generation it
+	 * replaces.
+	 *
+	 * @exception IllegalStateException if the handle is closed; g is
+	 *  retired.
+	 */
+	public synchronized void swap(CdbGeneration g) {
+		if (closed) {
+			g.retire();
+			throw new IllegalStateException(name + " is closed");
+		}
+		CdbGeneration old = current.getAndSet(g);
+		if (old != null)
+			old.retire();
+	}
+
+	/**
+	 * Next generation number to hand out; for generations built by hand
+	 * and passed to {@link #swap(CdbGeneration)}.
+	 */
+	public long nextGenerationId() {
+		return nextId.getAndIncrement();
+	}
+
+	/**
+	 * Page cache residency of each shard of the current generation; empty
+	 * if none is loaded.
+	 *
+	 * @param regionSize Granularity; see {@link Cdb#residency(int)}.
+	 */
+	public CdbResidency[] residency(int regionSize) throws IOException {
+		CdbGeneration g = acquire();
+		if (g == null)
+			return new CdbResidency[0];
+		try {
+			return g.getMap().residency(regionSize);
+		} finally {
+			g.leave();
+		}
+	}
+
+	/**
+	 * Retires the current generation and stops the background loader.  A
+	 * generation still loading is retired instead of swapped in.
+	 */
+	public synchronized void close() {
+		closed = true;
+		loader.shutdownNow();
+		CdbGeneration old = current.getAndSet(null);
+		if (old != null)
+			old.retire();
+	}
+}
@@ -0,0 +1,103 @@
+package com.mnasser.io.cdb;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One record of a CDB file, read in place from the mapping.
+ * <p>
+ * A {@link CdbScanner} hands out the same CdbRecord for every record it
+ * visits, so a record is only good until the scanner moves on or is
+ * closed; copy out what you need to keep with {@link #getKey()}/
+ * {@link #getData()} or {@link #toElement()}.  The views returned by
+ * {@link #key()} and {@link #data()} point straight into the mapping, so
+ * like the record they may only be read while its scanner or stream is
+ * open (or, for {@link Cdb#spliterator()}, while the Cdb is retained):
+ * the mapping is unmapped once that last reader is done.  In a
+ * compressed CDB (see {@link CdbCodec}) the data
+ * is decoded on the way out, so {@link #data()} is then a copy.
+ * 
+ * @author mnasser
+ */
+public final class CdbRecord {
+
+	private final CdbBuffer buf_;
+	private final CdbCodec codec_;
+
+	/** Position of the record (its key length) in the file. */
+	private long pos_;
+	private int klen_;
+	private int dlen_;
+
+	CdbRecord(CdbBuffer buf, CdbCodec codec) {
+		buf_ = buf;
+		codec_ = codec;
+	}
+
+	/** Points this record at the record at pos. */
+	CdbRecord set(long pos, int klen, int dlen) {
+		pos_ = pos;
+		klen_ = klen;
+		dlen_ = dlen;
+		return this;
+	}
+
+	/** Position of this record in the file. */
+	public long getPosition()   { return pos_;  }
+
+	public int getKeyLength()   { return klen_; }
+	/** Length of the data, decoded. */
+	public int getDataLength() {
+		return (codec_ == null) ? dlen_ : codec_.decodedLength(buf_, pos_ + 8 + klen_, dlen_);
+	}
+
+	/** Read-only view of the key; nothing is copied. */
+	public ByteBuffer key() {
+		return buf_.slice(pos_ + 8, klen_);
+	}
+
+	/** Read-only view of the data; nothing is copied unless the CDB is
+	 * compressed. */
+	public ByteBuffer data() {
+		if (codec_ != null)
+			return ByteBuffer.wrap(getData()).asReadOnlyBuffer();
+		return buf_.slice(pos_ + 8 + klen_, dlen_);
+	}
+
+	/** Returns a copy of the key. */
+	public byte[] getKey() {
+		byte[] k = new byte[klen_];
+		buf_.get(pos_ + 8, k, 0, klen_);
+		return k;
+	}
+
+	/** Returns a copy of the data. */
+	public byte[] getData() {
+		if (codec_ != null)
+			return codec_.decode(buf_, pos_ + 8 + klen_, dlen_);
+		byte[] d = new byte[dlen_];
+		buf_.get(pos_ + 8 + klen_, d, 0, dlen_);
+		return d;
+	}
+
+	/**
+	 * Copies the data into dst at off; the caller makes sure it fits.
+	 *
+	 * @return the data length.
+	 */
+	public int getData(byte[] dst, int off) {
+		if (codec_ != null)
+			return codec_.decode(buf_, pos_ + 8 + klen_, dlen_, dst, off);
+		buf_.get(pos_ + 8 + klen_, dst, off, dlen_);
+		return dlen_;
+	}
+
+	/** true if this record's key is key; compared in place. */
+	public boolean keyEquals(byte[] key) {
+		return klen_ == key.length && buf_.equals(pos_ + 8, key);
+	}
+
+	/** Copies this record out into a CdbElement. */
+	public CdbElement toElement() {
+		return new CdbElement(getKey(), getData());
+	}
+}
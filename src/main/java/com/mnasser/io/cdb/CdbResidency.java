@@ -0,0 +1,56 @@
+package com.mnasser.io.cdb;
+
+/**
+ * How much of a CDB file is in the page cache, as seen by
+ * {@link Cdb#residency(int)}: the file is looked at in fixed size
+ * regions, each either wholly resident or not.
+ * 
+ * @author mnasser
+ */
+public final class CdbResidency {
+
+	private final String name;
+	private final long size;
+	private final int regionSize;
+	private final int regions;
+	private final int resident;
+	private final int tableRegions;
+	private final int residentTables;
+
+	CdbResidency(String name, long size, int regionSize, int regions, int resident,
+			int tableRegions, int residentTables) {
+		this.name = name;
+		this.size = size;
+		this.regionSize = regionSize;
+		this.regions = regions;
+		this.resident = resident;
+		this.tableRegions = tableRegions;
+		this.residentTables = residentTables;
+	}
+
+	public String getName()          { return name;           }
+	public long getSize()            { return size;           }
+	public int getRegionSize()       { return regionSize;     }
+	public int getRegions()          { return regions;        }
+	public int getResidentRegions()  { return resident;       }
+
+	/** Regions overlapping the hash tables. */
+	public int getTableRegions()     { return tableRegions;   }
+	public int getResidentTableRegions() { return residentTables; }
+
+	/** Fraction of the file that is resident, 0 to 1. */
+	public double getResidentFraction() {
+		return (regions == 0) ? 1.0 : (double)resident / regions;
+	}
+
+	/** Fraction of the hash tables that is resident, 0 to 1. */
+	public double getResidentTableFraction() {
+		return (tableRegions == 0) ? 1.0 : (double)residentTables / tableRegions;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: %.1f%% of %d bytes resident (hash tables %.1f%%)",
+				name, 100 * getResidentFraction(), size, 100 * getResidentTableFraction());
+	}
+}
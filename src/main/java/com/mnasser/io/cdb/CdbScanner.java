@@ -0,0 +1,87 @@
+package com.mnasser.io.cdb;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Walks every record of a CDB file in file order, straight off the
+ * mapping.
+ * <p>
+ * Nothing is read through streams and nothing is allocated per record:
+ * {@link #next()} returns the same {@link CdbRecord} each time, pointed
+ * at the next record.  Close the scanner when done: it keeps the mapping
+ * alive until then, and if it opened the file itself (see
+ * {@link Cdb#scan(String)}) that closes the Cdb too.
+ * <p>
+ * Not thread safe.
+ * 
+ * @author mnasser
+ */
+public class CdbScanner implements Iterator<CdbRecord>, Closeable {
+
+	private final Cdb cdb_;
+	private final boolean owner_;
+	private CdbBuffer buf_;
+	private final CdbRecord rec_;
+
+	/** Current data pointer. */
+	private long pos_;
+
+	/** End of the record region; the hash tables start here. */
+	private final long eod_;
+
+	CdbScanner(Cdb cdb, CdbBuffer buf, CdbCodec codec, long start, long eod, boolean owner) {
+		cdb_ = cdb;
+		owner_ = owner;
+		buf_ = buf;
+		rec_ = new CdbRecord(buf, codec);
+		pos_ = start;
+		eod_ = eod;
+	}
+
+	/**
+	 * Returns <code>true</code> if there are more records.
+	 */
+	public boolean hasNext() {
+		return buf_ != null && pos_ < eod_;
+	}
+
+	/**
+	 * Moves to the next record.
+	 *
+	 * @return this scanner's record, now pointing at the next record.
+	 * @exception IllegalArgumentException if the file is corrupt.
+	 */
+	public CdbRecord next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+
+		int klen = buf_.getInt(pos_);
+		int dlen = buf_.getInt(pos_ + 4);
+		long end = pos_ + 8 + (klen & 0xffffffffL) + (dlen & 0xffffffffL);
+		if (klen < 0 || dlen < 0 || end > eod_)
+			throw new IllegalArgumentException("invalid cdb format");
+
+		rec_.set(pos_, klen, dlen);
+		pos_ = end;
+		return rec_;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException("CDB files are read only");
+	}
+
+	/**
+	 * Ends the scan, letting go of the mapping.  Closes the Cdb if the
+	 * scanner opened it.
+	 */
+	public void close() {
+		if (buf_ == null)
+			return;
+		buf_ = null;
+		if (owner_)
+			cdb_.close();
+		cdb_.release();
+	}
+}
@@ -0,0 +1,123 @@
+package com.mnasser.io.cdb;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Splits a scan of a CDB across its 256 hash tables.
+ * <p>
+ * Every record has exactly one hash table slot pointing at it, so walking
+ * the slots of all tables visits each record exactly once.  Tables are
+ * independent, which makes them natural split points: a spliterator over
+ * several tables splits them in half; one over a single table splits its
+ * slots in half.  Records come out in hash order, not file order.
+ * <p>
+ * Unlike {@link CdbScanner}, every record handed out is its own
+ * {@link CdbRecord}, so they may be kept and passed between threads.
+ * 
+ * @author mnasser
+ */
+final class CdbSpliterator implements Spliterator<CdbRecord> {
+
+	/** Don't bother splitting a table with fewer slots than this. */
+	private static final long MIN_SPLIT_SLOTS = 1024;
+
+	private final CdbBuffer buf_;
+	private final CdbFormat format_;
+	private final CdbCodec codec_;
+	private final long[] slotTable_;
+
+	/** Records before this one are the file's own, not data. */
+	private final long dataStart_;
+
+	/** Current table, and the one past the last table, of this split. */
+	private int table_;
+	private int endTable_;
+
+	/** Next slot of the current table, and the one past the last. */
+	private long slot_;
+	private long endSlot_;
+
+	CdbSpliterator(CdbBuffer buf, CdbFormat format, CdbCodec codec, long[] slotTable, long dataStart) {
+		this(buf, format, codec, slotTable, dataStart, 0, (slotTable == null) ? 0 : 256);
+	}
+
+	private CdbSpliterator(CdbBuffer buf, CdbFormat format, CdbCodec codec, long[] slotTable,
+			long dataStart, int table, int endTable) {
+		buf_ = buf;
+		format_ = format;
+		codec_ = codec;
+		slotTable_ = slotTable;
+		dataStart_ = dataStart;
+		table_ = table;
+		endTable_ = endTable;
+		slot_ = 0;
+		endSlot_ = (table < endTable) ? slots(table) : 0;
+	}
+
+	private long slots(int table) {
+		return slotTable_[(table << 1) + 1];
+	}
+
+	private long readPos(long pos) {
+		return format_.isWide() ? buf_.getLong(pos) : buf_.getUnsignedInt(pos);
+	}
+
+	public boolean tryAdvance(Consumer<? super CdbRecord> action) {
+		int slotSize = format_.getSlotSize();
+		while (table_ < endTable_) {
+			long hpos = slotTable_[table_ << 1];
+			while (slot_ < endSlot_) {
+				long mpos = readPos(hpos + slot_ * slotSize + (slotSize >> 1));
+				slot_++;
+				if (mpos == 0)
+					continue;
+				/* The codec's and build id's records are not data. */
+				if (mpos < dataStart_)
+					continue;
+				action.accept(new CdbRecord(buf_, codec_).set(mpos,
+					buf_.getInt(mpos), buf_.getInt(mpos + 4)));
+				return true;
+			}
+			if (++table_ < endTable_) {
+				slot_ = 0;
+				endSlot_ = slots(table_);
+			}
+		}
+		return false;
+	}
+
+	public Spliterator<CdbRecord> trySplit() {
+		/* Several tables left: hand the back half of them over and
+		 * carry on with the front half from where we are. */
+		if (endTable_ - table_ > 1) {
+			int mid = (table_ + endTable_ + 1) >>> 1;
+			CdbSpliterator back = new CdbSpliterator(buf_, format_, codec_, slotTable_, dataStart_, mid, endTable_);
+			endTable_ = mid;
+			return back;
+		}
+
+		/* One big table left: hand the back half of its slots over. */
+		if (endTable_ - table_ == 1 && endSlot_ - slot_ >= MIN_SPLIT_SLOTS) {
+			long mid = (slot_ + endSlot_) >>> 1;
+			CdbSpliterator back = new CdbSpliterator(buf_, format_, codec_, slotTable_, dataStart_, table_, endTable_);
+			back.slot_ = mid;
+			back.endSlot_ = endSlot_;
+			endSlot_ = mid;
+			return back;
+		}
+		return null;
+	}
+
+	public long estimateSize() {
+		/* Tables have twice as many slots as records. */
+		long slots = endSlot_ - slot_;
+		for (int t = table_ + 1; t < endTable_; t++)
+			slots += slots(t);
+		return slots / 2;
+	}
+
+	public int characteristics() {
+		return NONNULL | IMMUTABLE;
+	}
+}
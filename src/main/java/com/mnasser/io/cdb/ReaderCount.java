@@ -0,0 +1,102 @@
+package com.mnasser.io.cdb;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the readers inside a mapping so it can be unmapped the moment
+ * the last one leaves after a close, and never while one is inside.
+ * <p>
+ * Every lookup enters and leaves, so a single shared counter would have
+ * every core fighting over one cache line.  The count is striped instead:
+ * a thread bumps the stripe its id hashes to, then checks the closed
+ * flag.  close() sets the flag, then sums the stripes.  Either the reader
+ * sees the flag (and backs out) or close() sees the reader; both can not
+ * miss each other.
+ * 
+ * @author mnasser
+ */
+final class ReaderCount {
+
+	/** Stripes are this many longs apart; 128 bytes keeps them off each
+	 * other's cache lines (and adjacent-line prefetch). */
+	private static final int PAD = 16;
+
+	private final AtomicLongArray counts_;
+	private final int mask_;
+	private volatile boolean closed_ = false;
+	private final AtomicBoolean released_ = new AtomicBoolean(false);
+	private final Runnable onRelease_;
+
+	/**
+	 * @param onRelease Run once, by whichever thread finds the count at
+	 *  zero after close.
+	 */
+	ReaderCount(Runnable onRelease) {
+		int stripes = Integer.highestOneBit(
+			Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+		counts_ = new AtomicLongArray(stripes * PAD);
+		mask_ = stripes - 1;
+		onRelease_ = onRelease;
+	}
+
+	private int stripe() {
+		return ((int)Thread.currentThread().getId() & mask_) * PAD;
+	}
+
+	/**
+	 * Enters the mapping.
+	 *
+	 * @return false if it has been closed; the caller must not touch it.
+	 */
+	boolean enter() {
+		int i = stripe();
+		counts_.incrementAndGet(i);
+		if (!closed_)
+			return true;
+		leave(i);
+		return false;
+	}
+
+	/**
+	 * Leaves the mapping; must pair with a successful {@link #enter()}.
+	 */
+	void leave() {
+		leave(stripe());
+	}
+
+	/* A reader may enter on one thread and leave on another (a scanner
+	 * handed between threads), so stripes can go negative; only the sum
+	 * matters. */
+	private void leave(int i) {
+		counts_.decrementAndGet(i);
+		if (closed_)
+			releaseIfIdle();
+	}
+
+	/**
+	 * Marks the mapping closed.  It is released now if no reader is
+	 * inside, otherwise by the last one out.
+	 */
+	void close() {
+		closed_ = true;
+		releaseIfIdle();
+	}
+
+	boolean isClosed() {
+		return closed_;
+	}
+
+	/** Number of readers inside right now. */
+	long readers() {
+		long n = 0;
+		for (int i = 0; i < counts_.length(); i += PAD)
+			n += counts_.get(i);
+		return n;
+	}
+
+	private void releaseIfIdle() {
+		if (readers() == 0 && released_.compareAndSet(false, true))
+			onRelease_.run();
+	}
+}
@@ -0,0 +1,348 @@
+package com.mnasser.io.cdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import com.mnasser.io.ByteBuilder;
+
+/**
+ * Reads a map split by HDist into <code>prefix.shrd[n].cdb</code> files,
+ * routing every key to its shard with exactly HDist's function:
+ * <pre>
+ * 	mod = ByteBuilder.hashCode(key) % shard_count;
+ * 	if (mod < 0) mod = mod + shard_count;
+ * </pre>
+ * Callers that already hold the key's hash (see {@link #hash(byte[])})
+ * can pass it in instead of having it computed again.
+ * <p>
+ * Thread safe, like {@link Cdb}.
+ * 
+ * @author mnasser
+ */
+public class ShardedCdb {
+
+	/** Shard file suffix written by HDist. */
+	public static final String SHARD_SUFFIX = ".shrd";
+
+	private final Cdb[] shards_;
+	private final ExecutorService pool_;
+
+	/**
+	 * @param shards Open shards, in HDist shard order.  Now owned by this
+	 * 		map.
+	 * @param pool Runs the per-shard parts of {@link #findMany(byte[][])};
+	 * 		null for the common fork-join pool.
+	 */
+	public ShardedCdb(Cdb[] shards, ExecutorService pool) {
+		if (shards.length == 0)
+			throw new IllegalArgumentException("No shards");
+		this.shards_ = shards;
+		this.pool_ = (pool == null) ? ForkJoinPool.commonPool() : pool;
+	}
+
+	public ShardedCdb(Cdb[] shards) {
+		this(shards, null);
+	}
+
+	/**
+	 * Opens every <code>prefix.shrd[n].cdb</code> file there is, all at
+	 * once.  The shard count is taken from the highest n found, so a
+	 * missing shard in the middle is caught; a missing last shard is not,
+	 * and callers that know the count HDist split into should pass it to
+	 * {@link #open(String, int, ExecutorService)}.
+	 *
+	 * @param prefix Path prefix of the shards.
+	 * @throws IOException if there are no shards, one is missing, or one
+	 *  could not be opened.
+	 */
+	public static ShardedCdb open(String prefix) throws IOException {
+		return open(prefix, null);
+	}
+
+	/**
+	 * As {@link #open(String)}, fanning batched lookups out on pool.
+	 */
+	public static ShardedCdb open(String prefix, ExecutorService pool) throws IOException {
+		int n = highestShard(prefix) + 1;
+		if (n == 0)
+			throw new IOException("No shards found at " + prefix + SHARD_SUFFIX + "*.cdb");
+		return open(prefix, n, pool);
+	}
+
+	/**
+	 * Opens <code>prefix.shrd[n].cdb</code> for n = 0 to shardCount - 1,
+	 * all at once.
+	 *
+	 * @param shardCount Number of shards HDist split the map into.
+	 * @throws IOException if a shard is missing or could not be opened.
+	 */
+	public static ShardedCdb open(String prefix, int shardCount, ExecutorService pool) throws IOException {
+		if (shardCount <= 0)
+			throw new IllegalArgumentException("shardCount must be positive: " + shardCount);
+		for (int i = 0; i < shardCount; i++) {
+			if (!new File(shardPath(prefix, i)).isFile())
+				throw new IOException("Shard " + i + " of " + shardCount + " is missing: " + shardPath(prefix, i));
+		}
+		return new ShardedCdb(openShards(prefix, shardCount), pool);
+	}
+
+	/** The highest n of the <code>prefix.shrd[n].cdb</code> files, or -1. */
+	private static int highestShard(String prefix) {
+		File f = new File(prefix + SHARD_SUFFIX + "0.cdb").getAbsoluteFile();
+		String[] names = f.getParentFile().list();
+		if (names == null)
+			return -1;
+		String head = f.getName().substring(0, f.getName().length() - "0.cdb".length());
+		int max = -1;
+		for (String name : names) {
+			if (!name.startsWith(head) || !name.endsWith(".cdb"))
+				continue;
+			String n = name.substring(head.length(), name.length() - ".cdb".length());
+			if (n.isEmpty() || n.length() > 9 || (n.length() > 1 && n.charAt(0) == '0'))
+				continue;
+			boolean digits = true;
+			for (int i = 0; i < n.length(); i++)
+				digits &= n.charAt(i) >= '0' && n.charAt(i) <= '9';
+			if (digits)
+				max = Math.max(max, Integer.parseInt(n));
+		}
+		return max;
+	}
+
+	/** Path of shard n. */
+	public static String shardPath(String prefix, int n) {
+		return prefix + SHARD_SUFFIX + n + ".cdb";
+	}
+
+	private static Cdb[] openShards(final String prefix, int n) throws IOException {
+		ExecutorService opener = Executors.newFixedThreadPool(
+				Math.min(n, Runtime.getRuntime().availableProcessors()));
+		List<Future<Cdb>> opens = new ArrayList<Future<Cdb>>(n);
+		Cdb[] shards = new Cdb[n];
+		IOException failure = null;
+		try {
+			for (int i = 0; i < n; i++) {
+				final String path = shardPath(prefix, i);
+				opens.add(opener.submit(new Callable<Cdb>() {
+					public Cdb call() throws IOException {
+						return new Cdb(path);
+					}
+				}));
+			}
+			/* Wait for every open, even after a failure, so none is left
+			 * mapped behind our back. */
+			for (int i = 0; i < n; i++) {
+				try {
+					shards[i] = getUninterruptibly(opens.get(i));
+				} catch (ExecutionException e) {
+					if (failure == null)
+						failure = (e.getCause() instanceof IOException)
+							? (IOException)e.getCause()
+							: new IOException(e.getCause());
+				}
+			}
+		} finally {
+			opener.shutdown();
+		}
+		if (failure != null) {
+			for (Cdb c : shards) {
+				if (c != null)
+					c.close();
+			}
+			throw failure;
+		}
+		return shards;
+	}
+
+	private static <T> T getUninterruptibly(Future<T> f) throws ExecutionException {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return f.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	/** The hash HDist splits keys on. */
+	public static int hash(byte[] key) {
+		return ByteBuilder.hashCode(key);
+	}
+
+	/**
+	 * The shard a key with the given {@link #hash(byte[]) hash} lives in,
+	 * out of shardCount.  Never negative.
+	 */
+	public static int shardOf(int hash, int shardCount) {
+		int mod = hash % shardCount;
+		return (mod < 0) ? mod + shardCount : mod; // Python/corrected modulus
+	}
+
+	public int getShardCount() {
+		return shards_.length;
+	}
+
+	public Cdb[] getShards() {
+		return shards_;
+	}
+
+	/** The shard key lives in. */
+	public Cdb shardFor(byte[] key) {
+		return shards_[shardOf(hash(key), shards_.length)];
+	}
+
+	/**
+	 * Finds the first record stored under key.
+	 *
+	 * @return the record, or null if there is none.
+	 */
+	public byte[] find(byte[] key) {
+		return find(hash(key), key);
+	}
+
+	/**
+	 * As {@link #find(byte[])}, with the key's {@link #hash(byte[]) hash}
+	 * already known.
+	 */
+	public byte[] find(int hash, byte[] key) {
+		return shards_[shardOf(hash, shards_.length)].find(key);
+	}
+
+	/**
+	 * Finds all records stored under key.
+	 */
+	public List<byte[]> findAll(byte[] key) {
+		return shardFor(key).findAll(key);
+	}
+
+	/**
+	 * Finds the first record stored under each key, the keys of each shard
+	 * looked up at the same time with {@link Cdb#findMany(byte[][])}.
+	 *
+	 * @return the records, results[i] for keys[i] and null where there
+	 *  is none.
+	 */
+	public byte[][] findMany(byte[][] keys) {
+		int[] hashes = new int[keys.length];
+		for (int i = 0; i < keys.length; i++)
+			hashes[i] = hash(keys[i]);
+		return findMany(hashes, keys);
+	}
+
+	/**
+	 * As {@link #findMany(byte[][])}, with hashes[i] the
+	 * {@link #hash(byte[]) hash} of keys[i].
+	 */
+	public byte[][] findMany(int[] hashes, final byte[][] keys) {
+		final byte[][] results = new byte[keys.length][];
+		int n = shards_.length;
+
+		/* Bucket the key indexes by shard. */
+		int[] counts = new int[n];
+		int[] shardOf = new int[keys.length];
+		for (int i = 0; i < keys.length; i++)
+			counts[shardOf[i] = shardOf(hashes[i], n)]++;
+		int[][] groups = new int[n][];
+		for (int s = 0; s < n; s++)
+			groups[s] = new int[counts[s]];
+		int[] fill = new int[n];
+		for (int i = 0; i < keys.length; i++)
+			groups[shardOf[i]][fill[shardOf[i]]++] = i;
+
+		/* Fan out every shard but the last busy one, which runs here. */
+		int last = n - 1;
+		while (last > 0 && counts[last] == 0)
+			last--;
+		List<Future<?>> parts = new ArrayList<Future<?>>();
+		for (int s = 0; s < last; s++) {
+			if (counts[s] == 0)
+				continue;
+			final Cdb shard = shards_[s];
+			final int[] group = groups[s];
+			parts.add(pool_.submit(new Runnable() {
+				public void run() {
+					findShard(shard, group, keys, results);
+				}
+			}));
+		}
+		if (counts[last] > 0)
+			findShard(shards_[last], groups[last], keys, results);
+
+		for (Future<?> f : parts) {
+			try {
+				getUninterruptibly(f);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException)
+					throw (RuntimeException)e.getCause();
+				throw new RuntimeException(e.getCause());
+			}
+		}
+		return results;
+	}
+
+	private static void findShard(Cdb shard, int[] group, byte[][] keys, byte[][] results) {
+		byte[][] sub = new byte[group.length][];
+		for (int j = 0; j < group.length; j++)
+			sub[j] = keys[group[j]];
+		byte[][] found = shard.findMany(sub);
+		for (int j = 0; j < group.length; j++)
+			results[group[j]] = found[j];
+	}
+
+	/**
+	 * Faults in every shard's hash tables; see {@link Cdb#warm()}.
+	 */
+	public void warm() {
+		warm(WarmupPolicy.HASH_TABLES, WarmupPolicy.DEFAULT_RATE);
+	}
+
+	/**
+	 * Warms every shard in turn; see
+	 * {@link Cdb#warm(WarmupPolicy, long)}.  The rate limit holds for all
+	 * shards together.
+	 */
+	public void warm(WarmupPolicy policy, long bytesPerSecond) {
+		for (Cdb c : shards_) {
+			if (Thread.currentThread().isInterrupted())
+				return;
+			c.warm(policy, bytesPerSecond);
+		}
+	}
+
+	/**
+	 * Page cache residency of every shard; see {@link Cdb#residency(int)}.
+	 */
+	public CdbResidency[] residency(int regionSize) throws IOException {
+		CdbResidency[] r = new CdbResidency[shards_.length];
+		for (int i = 0; i < shards_.length; i++)
+			r[i] = shards_[i].residency(regionSize);
+		return r;
+	}
+
+	/**
+	 * Closes every shard.  Does not shut down the lookup pool.
+	 */
+	public void close() {
+		for (Cdb c : shards_)
+			c.close();
+	}
+
+	@Override
+	public String toString() {
+		return "ShardedCdb|" + shards_.length + "|" + shards_[0].getName();
+	}
+}
@@ -0,0 +1,29 @@
+package com.mnasser.io.cdb;
+
+/**
+ * How much of a freshly mapped CDB to read in before it takes traffic.
+ * A mapping starts out cold; without warming, the first lookups each pay
+ * for the page faults.
+ * 
+ * @author mnasser
+ */
+public enum WarmupPolicy {
+
+	/** Leave it to the lookups. */
+	NONE,
+
+	/** Touch the hash tables (and filter), which every lookup reads; the
+	 * records come in as they are asked for. */
+	HASH_TABLES,
+
+	/** MappedByteBuffer.load() the whole file, as fast as the disk
+	 * allows. */
+	FULL,
+
+	/** Touch the whole file front to back at a limited rate, so that
+	 * warming a new generation does not starve the live one of disk. */
+	SEQUENTIAL;
+
+	/** Rate SEQUENTIAL warms at unless told otherwise: 64MB/s. */
+	public static final long DEFAULT_RATE = 64L << 20;
+}
@@ -0,0 +1,42 @@
+package com.mnasser.io.cdb.cache;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Running counters of a {@link HotKeyCache}.
+ * 
+ * @author mnasser
+ */
+public final class CacheStats {
+
+	final LongAdder hits = new LongAdder();
+	final LongAdder misses = new LongAdder();
+	final LongAdder evictions = new LongAdder();
+	final LongAdder rejections = new LongAdder();
+	final LongAdder invalidations = new LongAdder();
+
+	/** Lookups answered from the cache. */
+	public long getHitCount()          { return hits.sum();          }
+	/** Lookups that had to go to the map. */
+	public long getMissCount()         { return misses.sum();        }
+	/** Entries pushed out to make room for hotter ones. */
+	public long getEvictionCount()     { return evictions.sum();     }
+	/** Loaded values not admitted because they were colder than what
+	 * they would have pushed out. */
+	public long getRejectionCount()    { return rejections.sum();    }
+	/** Times the whole cache was dropped, e.g. on a new map generation. */
+	public long getInvalidationCount() { return invalidations.sum(); }
+
+	public double getHitRate() {
+		long h = getHitCount(), total = h + getMissCount();
+		return (total == 0) ? 0.0 : (double)h / total;
+	}
+
+	@Override
+	public String toString() {
+		return "CacheStats [hits=" + getHitCount() + ", misses=" + getMissCount()
+			+ ", hitRate=" + String.format("%.4f", getHitRate())
+			+ ", evictions=" + getEvictionCount() + ", rejections=" + getRejectionCount()
+			+ ", invalidations=" + getInvalidationCount() + "]";
+	}
+}
@@ -0,0 +1,55 @@
+package com.mnasser.io.cdb.cache;
+
+import com.mnasser.io.cdb.CdbGeneration;
+import com.mnasser.io.cdb.CdbMapHandle;
+
+/**
+ * Serves lookups against a {@link CdbMapHandle} from a
+ * {@link HotKeyCache} first.  The cache follows the handle's generations:
+ * the first lookup after a reload drops everything cached from the old
+ * map.
+ * <p>
+ * Values are shared with the cache; callers must not modify them.
+ * Thread safe.
+ * 
+ * @author mnasser
+ */
+public class CachedCdb {
+
+	private final CdbMapHandle handle;
+	private final HotKeyCache cache;
+
+	public CachedCdb(CdbMapHandle handle, HotKeyCache cache) {
+		this.handle = handle;
+		this.cache = cache;
+	}
+
+	public CdbMapHandle getHandle()  { return handle; }
+	public HotKeyCache getCache()    { return cache;  }
+
+	/**
+	 * Finds the first record stored under key.
+	 *
+	 * @return the record, or null if there is none (or no generation).
+	 */
+	public byte[] find(byte[] key) {
+		CdbGeneration g = handle.acquire();
+		if (g == null)
+			return null;
+		try {
+			byte[] v = cache.get(key, g.getId());
+			if (v == HotKeyCache.NOT_CACHED) {
+				v = g.find(key);
+				cache.put(key, v, g.getId());
+			}
+			return v;
+		} finally {
+			g.leave();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "CachedCdb [" + handle.getName() + ", " + cache + "]";
+	}
+}
@@ -0,0 +1,135 @@
+package com.mnasser.io.cdb.cache;
+
+import static com.mnasser.io.cdb.client.CdbConstants.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.mnasser.io.cdb.client.MapInfo;
+import com.mnasser.io.cdb.client.MapLookup;
+
+/**
+ * A {@link MapLookup} that answers repeated queries from a
+ * {@link HotKeyCache} instead of going to the server.
+ * <p>
+ * The remote maps change only through updates, so the cache moves on to
+ * a new generation after {@link #updateMap(MapInfo, String, boolean)} or
+ * on an explicit {@link #invalidate()}.  Every lookup reads and fills the
+ * cache at the generation it started in, so a value read from the old
+ * map by a lookup racing with the update is never stored.  One cache may
+ * be shared by the lookups of several threads; each lookup is as thread
+ * safe as the one it wraps.
+ * 
+ * @author mnasser
+ */
+public class CachedMapLookup implements MapLookup {
+
+	private final MapLookup lookup;
+	private final HotKeyCache cache;
+
+	public CachedMapLookup(MapLookup lookup, HotKeyCache cache) {
+		this.lookup = lookup;
+		this.cache = cache;
+	}
+
+	public HotKeyCache getCache()	{ return cache;  }
+	public MapLookup getLookup()	{ return lookup; }
+
+	public String getHost()         { return lookup.getHost();       }
+	public int getPort()            { return lookup.getPort();       }
+	public void connect()           { lookup.connect();              }
+	public boolean isConnected()    { return lookup.isConnected();   }
+	public void close()             { lookup.close();                }
+
+	public byte[] lookup(MapInfo mi, byte[] key) throws IOException {
+		byte[] ck = cacheKey(ACT_QUERY, mi, key);
+		long g = cache.getGeneration();
+		byte[] v = cache.get(ck, g);
+		if (v == HotKeyCache.NOT_CACHED) {
+			v = lookup.lookup(mi, key);
+			cache.put(ck, v, g);
+		}
+		return v;
+	}
+
+	public byte[] lookupAll(MapInfo mi, byte[] key) throws IOException {
+		byte[] ck = cacheKey(ACT_QUERY_ALL, mi, key);
+		long g = cache.getGeneration();
+		byte[] v = cache.get(ck, g);
+		if (v == HotKeyCache.NOT_CACHED) {
+			v = lookup.lookupAll(mi, key);
+			cache.put(ck, v, g);
+		}
+		return v;
+	}
+
+	public byte[][] lookupMany(MapInfo mi, byte[][] keys) throws IOException {
+		MapInfo[] mis = new MapInfo[keys.length];
+		Arrays.fill(mis, mi);
+		return lookupMany(mis, keys);
+	}
+
+	/**
+	 * Answers what it can from the cache and sends only the rest on, as
+	 * one batch.
+	 */
+	public byte[][] lookupMany(MapInfo[] mis, byte[][] keys) throws IOException {
+		long g = cache.getGeneration();
+		byte[][] res = new byte[keys.length][];
+		byte[][] cks = new byte[keys.length][];
+		int[] missed = new int[keys.length];
+		int n = 0;
+		for (int i = 0; i < keys.length; i++) {
+			cks[i] = cacheKey(ACT_QUERY, mis[i], keys[i]);
+			res[i] = cache.get(cks[i], g);
+			if (res[i] == HotKeyCache.NOT_CACHED)
+				missed[n++] = i;
+		}
+		if (n == 0)
+			return res;
+
+		MapInfo[] mmis = new MapInfo[n];
+		byte[][] mkeys = new byte[n][];
+		for (int j = 0; j < n; j++) {
+			mmis[j] = mis[missed[j]];
+			mkeys[j] = keys[missed[j]];
+		}
+		byte[][] found = lookup.lookupMany(mmis, mkeys);
+		for (int j = 0; j < n; j++) {
+			res[missed[j]] = found[j];
+			cache.put(cks[missed[j]], found[j], g);
+		}
+		return res;
+	}
+
+	public String stat(MapInfo mi) throws IOException {
+		return lookup.stat(mi);
+	}
+
+	@Deprecated
+	public byte[] updateMap(MapInfo mi, String path, boolean full) throws IOException {
+		try {
+			return lookup.updateMap(mi, path, full);
+		} finally {
+			cache.nextGeneration();
+		}
+	}
+
+	/** Drops everything cached; see {@link HotKeyCache#nextGeneration()}. */
+	public void invalidate() {
+		cache.nextGeneration();
+	}
+
+	/**
+	 * The query prefix already names the map; the action tells single and
+	 * multi-value results apart.
+	 */
+	static byte[] cacheKey(byte action, MapInfo mi, byte[] key) {
+		byte[] prefix = mi.getQueryPrefix();
+		byte[] ck = new byte[1 + prefix.length + key.length];
+		ck[0] = action;
+		System.arraycopy(prefix, 0, ck, 1, prefix.length);
+		System.arraycopy(key, 0, ck, 1 + prefix.length, key.length);
+		return ck;
+	}
+}
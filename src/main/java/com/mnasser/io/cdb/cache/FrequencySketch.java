@@ -0,0 +1,80 @@
+package com.mnasser.io.cdb.cache;
+
+/**
+ * Approximate access counts for the admission policy of
+ * {@link HotKeyCache}: a count-min sketch of 4-bit counters, sixteen to a
+ * long, halved every time it has seen ten times as many accesses as the
+ * cache holds entries so that counts of keys that went cold decay.
+ * <p>
+ * Not thread safe; each cache segment owns one and uses it under its
+ * lock.
+ * 
+ * @author mnasser
+ */
+final class FrequencySketch {
+
+	private static final long RESET_MASK = 0x7777777777777777L;
+
+	private final long[] table;
+	private final int counterMask;
+	private final int sampleSize;
+	private int additions;
+
+	/**
+	 * @param expectedEntries About how many entries the owning segment
+	 * 		holds.
+	 */
+	FrequencySketch(int expectedEntries) {
+		int n = Math.max(64, expectedEntries);
+		int counters = Integer.highestOneBit(n - 1) << 1;
+		table = new long[Math.max(1, counters >>> 4)];
+		counterMask = table.length * 16 - 1;
+		sampleSize = 10 * n;
+	}
+
+	/** Counts one access of the key with the given hash. */
+	void increment(int hash) {
+		int h = rehash(hash);
+		int step = (h >>> 16) | 1;
+		boolean added = false;
+		for (int i = 0; i < 4; i++, h += step)
+			added |= incrementAt(h & counterMask);
+		if (added && ++additions >= sampleSize)
+			reset();
+	}
+
+	/** Estimated accesses of the key with the given hash, 0 to 15. */
+	int frequency(int hash) {
+		int h = rehash(hash);
+		int step = (h >>> 16) | 1;
+		int min = 15;
+		for (int i = 0; i < 4; i++, h += step)
+			min = Math.min(min, counterAt(h & counterMask));
+		return min;
+	}
+
+	private boolean incrementAt(int i) {
+		int shift = (i & 15) << 2;
+		long mask = 0xfL << shift;
+		long word = table[i >>> 4];
+		if ((word & mask) == mask)
+			return false;
+		table[i >>> 4] = word + (1L << shift);
+		return true;
+	}
+
+	private int counterAt(int i) {
+		return (int)(table[i >>> 4] >>> ((i & 15) << 2)) & 0xf;
+	}
+
+	private void reset() {
+		for (int i = 0; i < table.length; i++)
+			table[i] = (table[i] >>> 1) & RESET_MASK;
+		additions >>>= 1;
+	}
+
+	private static int rehash(int h) {
+		h *= 0x9e3779b9;
+		return h ^ (h >>> 15);
+	}
+}
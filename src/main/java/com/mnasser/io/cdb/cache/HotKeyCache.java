@@ -0,0 +1,323 @@
+package com.mnasser.io.cdb.cache;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of lookup results for the hot keys of a map.
+ * <p>
+ * Holds at most a fixed number of bytes of keys and values (plus
+ * {@link #ENTRY_OVERHEAD} per entry), split over segments each with its
+ * own lock.  Within a segment, least recently used entries go first, but
+ * a newly loaded value is only let in if it has been asked for more often
+ * than the entries it would push out, so a burst of one-off keys cannot
+ * flush the hot set.
+ * <p>
+ * Misses are cached too: a key the map does not hold is stored with a
+ * null value.
+ * <p>
+ * Entries are stamped with the map generation they were read from.  The
+ * first lookup of a newer generation drops everything older, and results
+ * read from an older generation are never stored.
+ * <pre>
+ *  byte[] v = cache.get(key, gen);
+ *  if (v == HotKeyCache.NOT_CACHED) {
+ *  	v = map.find(key);
+ *  	cache.put(key, v, gen);
+ *  }
+ * </pre>
+ * Thread safe.
+ * 
+ * @author mnasser
+ */
+public class HotKeyCache {
+
+	/** Returned by get() when the key is not cached.  Compare by identity. */
+	public static final byte[] NOT_CACHED = new byte[0];
+
+	/** Bytes charged for each entry on top of its key and value. */
+	public static final int ENTRY_OVERHEAD = 96;
+
+	private static final int DEFAULT_SEGMENTS = 16;
+
+	/** Guess of the average entry size, to size the sketches. */
+	private static final int TYPICAL_ENTRY = 128;
+
+	private final Segment[] segments;
+	private final int segmentMask;
+	private final long maxBytes;
+	private final CacheStats stats = new CacheStats();
+	private volatile long generation = Long.MIN_VALUE;
+
+	/**
+	 * @param maxBytes Memory budget.
+	 */
+	public HotKeyCache(long maxBytes) {
+		this(maxBytes, DEFAULT_SEGMENTS);
+	}
+
+	/**
+	 * @param maxBytes Memory budget.
+	 * @param concurrency Number of segments; rounded up to a power of two.
+	 */
+	public HotKeyCache(long maxBytes, int concurrency) {
+		if (maxBytes <= 0)
+			throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+		int n = Integer.highestOneBit(Math.max(1, concurrency) - 1) << 1;
+		n = Math.max(1, n);
+		this.maxBytes = maxBytes;
+		this.segments = new Segment[n];
+		this.segmentMask = n - 1;
+		long segmentBytes = Math.max(1, maxBytes / n);
+		for (int i = 0; i < n; i++)
+			segments[i] = new Segment(segmentBytes, stats);
+	}
+
+	public long getMaxBytes()     { return maxBytes; }
+	public CacheStats getStats()  { return stats;    }
+
+	/** Generation of the entries being served. */
+	public long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Looks key up in the cache.
+	 *
+	 * @param key The key.
+	 * @param generation Generation of the map the caller reads from.
+	 * @return the cached value, which may be null for a cached miss; or
+	 *  {@link #NOT_CACHED}.
+	 */
+	public byte[] get(byte[] key, long generation) {
+		if (!admitGeneration(generation)) {
+			stats.misses.increment();
+			return NOT_CACHED;
+		}
+		int h = hash(key);
+		return segmentFor(h).get(key, h, generation);
+	}
+
+	/** As {@link #get(byte[], long)} for a map that never changes. */
+	public byte[] get(byte[] key) {
+		return get(key, 0);
+	}
+
+	/**
+	 * Offers the value read for key.  It may not be kept.
+	 *
+	 * @param value The value, or null if the map holds no such key.
+	 * @param generation Generation of the map the value was read from.
+	 */
+	public void put(byte[] key, byte[] value, long generation) {
+		if (generation != this.generation)
+			return;
+		int h = hash(key);
+		segmentFor(h).put(key, value, h, generation);
+	}
+
+	/** As {@link #put(byte[], byte[], long)} for a map that never changes. */
+	public void put(byte[] key, byte[] value) {
+		put(key, value, 0);
+	}
+
+	/**
+	 * Moves the cache on to generation if it is newer than what it holds,
+	 * dropping all entries.
+	 *
+	 * @return false if generation is older than the cache's; the caller
+	 *  is reading a retired map and must neither read nor fill the cache.
+	 */
+	private boolean admitGeneration(long gen) {
+		long current = generation;
+		if (gen == current)
+			return true;
+		if (gen < current)
+			return false;
+		synchronized (this) {
+			if (gen > generation) {
+				if (generation != Long.MIN_VALUE) {
+					clear();
+					stats.invalidations.increment();
+				}
+				generation = gen;
+			}
+		}
+		return gen == generation;
+	}
+
+	/**
+	 * Moves the cache on to the next generation, dropping all entries.
+	 * Values read at an older generation are refused by put() from now
+	 * on, so a lookup that raced with the change cannot store what it
+	 * read from the old map.
+	 *
+	 * @return the new generation, to read and fill the cache at.
+	 */
+	public synchronized long nextGeneration() {
+		long gen = (generation == Long.MIN_VALUE) ? 1 : generation + 1;
+		generation = gen;
+		clear();
+		stats.invalidations.increment();
+		return gen;
+	}
+
+	/**
+	 * Drops every entry.
+	 */
+	public void invalidate() {
+		clear();
+		stats.invalidations.increment();
+	}
+
+	private void clear() {
+		for (Segment s : segments)
+			s.clear();
+	}
+
+	/** Number of cached entries. */
+	public int size() {
+		int n = 0;
+		for (Segment s : segments)
+			n += s.count();
+		return n;
+	}
+
+	/** Bytes charged to the cached entries. */
+	public long weight() {
+		long n = 0;
+		for (Segment s : segments)
+			n += s.weight();
+		return n;
+	}
+
+	private Segment segmentFor(int h) {
+		return segments[(h >>> 16 ^ h) & segmentMask];
+	}
+
+	private static int hash(byte[] key) {
+		return Arrays.hashCode(key);
+	}
+
+	@Override
+	public String toString() {
+		return "HotKeyCache [entries=" + size() + ", bytes=" + weight() + "/" + maxBytes
+			+ ", generation=" + generation + ", " + stats + "]";
+	}
+
+	/** A key with its hash computed once. */
+	static final class Key {
+		final byte[] bytes;
+		final int hash;
+
+		Key(byte[] bytes, int hash) {
+			this.bytes = bytes;
+			this.hash = hash;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Key && Arrays.equals(bytes, ((Key)obj).bytes);
+		}
+	}
+
+	static final class Entry {
+		final byte[] value;
+		final long generation;
+		final int weight;
+
+		Entry(byte[] value, long generation, int weight) {
+			this.value = value;
+			this.generation = generation;
+			this.weight = weight;
+		}
+	}
+
+	/**
+	 * One lock's worth of the cache: an access ordered map plus the access
+	 * counts that decide admission.
+	 */
+	static final class Segment {
+		private final LinkedHashMap<Key, Entry> map = new LinkedHashMap<Key, Entry>(64, 0.75f, true);
+		private final FrequencySketch sketch;
+		private final long maxBytes;
+		private final CacheStats stats;
+		private long bytes;
+
+		Segment(long maxBytes, CacheStats stats) {
+			this.maxBytes = maxBytes;
+			this.stats = stats;
+			this.sketch = new FrequencySketch(
+					(int)Math.min(1 << 22, Math.max(64, maxBytes / TYPICAL_ENTRY)));
+		}
+
+		synchronized byte[] get(byte[] key, int h, long generation) {
+			sketch.increment(h);
+			Entry e = map.get(new Key(key, h));
+			if (e == null || e.generation != generation) {
+				stats.misses.increment();
+				return NOT_CACHED;
+			}
+			stats.hits.increment();
+			return e.value;
+		}
+
+		synchronized void put(byte[] key, byte[] value, int h, long generation) {
+			int weight = ENTRY_OVERHEAD + key.length + (value == null ? 0 : value.length);
+			if (weight > maxBytes)
+				return;
+			Key k = new Key(key, h);
+			Entry old = map.remove(k);
+			if (old != null)
+				bytes -= old.weight;
+
+			/* Make room, but only at the expense of entries asked for
+			 * less often than this one. */
+			if (bytes + weight > maxBytes) {
+				int freq = sketch.frequency(h);
+				long freed = 0;
+				int victims = 0;
+				Iterator<Map.Entry<Key, Entry>> it = map.entrySet().iterator();
+				while (bytes - freed + weight > maxBytes && it.hasNext()) {
+					Map.Entry<Key, Entry> v = it.next();
+					if (v.getValue().generation == generation
+							&& sketch.frequency(v.getKey().hash) >= freq) {
+						stats.rejections.increment();
+						return;
+					}
+					freed += v.getValue().weight;
+					victims++;
+				}
+				it = map.entrySet().iterator();
+				for (int i = 0; i < victims; i++) {
+					it.next();
+					it.remove();
+				}
+				bytes -= freed;
+				stats.evictions.add(victims);
+			}
+			map.put(k, new Entry(value, generation, weight));
+			bytes += weight;
+		}
+
+		synchronized void clear() {
+			map.clear();
+			bytes = 0;
+		}
+
+		synchronized int count() {
+			return map.size();
+		}
+
+		synchronized long weight() {
+			return bytes;
+		}
+	}
+}
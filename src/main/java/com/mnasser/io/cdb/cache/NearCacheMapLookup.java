@@ -0,0 +1,304 @@
+package com.mnasser.io.cdb.cache;
+
+import static com.mnasser.io.cdb.client.CdbConstants.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mnasser.io.cdb.client.CdbMapLookup;
+import com.mnasser.io.cdb.client.MapInfo;
+import com.mnasser.io.cdb.client.MapLookup;
+
+/**
+ * A {@link MapLookup} that keeps what the server answered, per map, and
+ * drops a map's entries all at once when the server moves to a new
+ * generation of it.
+ * <p>
+ * Each map gets its own {@link HotKeyCache} of at most the given bytes.
+ * The server's generation of a map is learned from {@link #stat(MapInfo)}
+ * replies, asked for at most once per check interval (one second by
+ * default) by whichever lookup finds the last answer too old; and from
+ * {@link #notifyGeneration(MapInfo, long)}, for applications told of
+ * rebuilds some other way.  A value is only ever served from the
+ * generation it was read in, so after a rebuild nothing stale is served
+ * once the new generation is known: within a check interval of the swap,
+ * or at once when notified.
+ * <p>
+ * A check that fails is tried again an interval later, and lookups go on
+ * meanwhile with the generation last known.  A lookup that can't report
+ * generations at all is never asked again, and is logged: its caches
+ * only move on when notified.
+ * <pre>
+ * MapLookup l = new NearCacheMapLookup(new PipelinedMapLookup(host, port), 64 &lt;&lt; 20);
+ * </pre>
+ * Each lookup is as thread safe as the one it wraps.
+ *
+ * @author mnasser
+ */
+public class NearCacheMapLookup implements MapLookup {
+
+	public static Logger _log = LoggerFactory.getLogger(NearCacheMapLookup.class);
+
+	private final MapLookup lookup;
+	private final long maxBytesPerMap;
+	private final ConcurrentHashMap<MapInfo, MapCache> maps = new ConcurrentHashMap<MapInfo, MapCache>();
+	private volatile long checkNanos = TimeUnit.SECONDS.toNanos(1);
+
+	/**
+	 * @param maxBytesPerMap Memory budget of each map's cache.
+	 */
+	public NearCacheMapLookup(MapLookup lookup, long maxBytesPerMap) {
+		if (maxBytesPerMap <= 0)
+			throw new IllegalArgumentException("maxBytesPerMap must be positive: " + maxBytesPerMap);
+		this.lookup = lookup;
+		this.maxBytesPerMap = maxBytesPerMap;
+	}
+
+	public MapLookup getLookup()	{ return lookup; }
+
+	public String getHost()         { return lookup.getHost();       }
+	public int getPort()            { return lookup.getPort();       }
+	public void connect()           { lookup.connect();              }
+	public boolean isConnected()    { return lookup.isConnected();   }
+	public void close()             { lookup.close();                }
+
+	/**
+	 * How often to ask the server for a map's generation.  0 asks before
+	 * every lookup; a negative interval never asks, leaving it all to
+	 * {@link #notifyGeneration(MapInfo, long)}.
+	 */
+	public void setCheckInterval(long interval, TimeUnit unit) {
+		this.checkNanos = interval < 0 ? -1 : unit.toNanos(interval);
+	}
+
+	/** The cache of map, or null if nothing was looked up in it yet. */
+	public HotKeyCache getCache(MapInfo mi) {
+		MapCache m = maps.get(mi);
+		return m == null ? null : m.cache;
+	}
+
+	/** The server's generation of map as last heard, or -1. */
+	public long getGeneration(MapInfo mi) {
+		MapCache m = maps.get(mi);
+		return m == null ? -1 : m.serverGeneration;
+	}
+
+	/**
+	 * Tells the cache the server now serves generation of map.  If that is
+	 * not the generation it had, everything cached for the map is dropped.
+	 */
+	public void notifyGeneration(MapInfo mi, long generation) {
+		cacheFor(mi).moveTo(generation);
+	}
+
+	public byte[] lookup(MapInfo mi, byte[] key) throws IOException {
+		MapCache m = cacheFor(mi);
+		long epoch = m.epoch(mi);
+		byte[] ck = CachedMapLookup.cacheKey(ACT_QUERY, mi, key);
+		byte[] v = m.cache.get(ck, epoch);
+		if (v == HotKeyCache.NOT_CACHED) {
+			v = lookup.lookup(mi, key);
+			m.cache.put(ck, v, epoch);
+		}
+		return v;
+	}
+
+	public byte[] lookupAll(MapInfo mi, byte[] key) throws IOException {
+		MapCache m = cacheFor(mi);
+		long epoch = m.epoch(mi);
+		byte[] ck = CachedMapLookup.cacheKey(ACT_QUERY_ALL, mi, key);
+		byte[] v = m.cache.get(ck, epoch);
+		if (v == HotKeyCache.NOT_CACHED) {
+			v = lookup.lookupAll(mi, key);
+			m.cache.put(ck, v, epoch);
+		}
+		return v;
+	}
+
+	public byte[][] lookupMany(MapInfo mi, byte[][] keys) throws IOException {
+		MapInfo[] mis = new MapInfo[keys.length];
+		Arrays.fill(mis, mi);
+		return lookupMany(mis, keys);
+	}
+
+	/**
+	 * Answers what it can from the caches and sends only the rest on, as
+	 * one batch.
+	 */
+	public byte[][] lookupMany(MapInfo[] mis, byte[][] keys) throws IOException {
+		Map<MapInfo, MapCache> seen = new HashMap<MapInfo, MapCache>();
+		MapCache[] mcs = new MapCache[keys.length];
+		long[] epochs = new long[keys.length];
+		byte[][] res = new byte[keys.length][];
+		byte[][] cks = new byte[keys.length][];
+		int[] missed = new int[keys.length];
+		int n = 0;
+		for (int i = 0; i < keys.length; i++) {
+			MapCache m = seen.get(mis[i]);
+			if (m == null) {
+				seen.put(mis[i], m = cacheFor(mis[i]));
+				m.epoch(mis[i]);
+			}
+			mcs[i] = m;
+			epochs[i] = m.epoch;
+			cks[i] = CachedMapLookup.cacheKey(ACT_QUERY, mis[i], keys[i]);
+			res[i] = m.cache.get(cks[i], epochs[i]);
+			if (res[i] == HotKeyCache.NOT_CACHED)
+				missed[n++] = i;
+		}
+		if (n == 0)
+			return res;
+
+		MapInfo[] mmis = new MapInfo[n];
+		byte[][] mkeys = new byte[n][];
+		for (int j = 0; j < n; j++) {
+			mmis[j] = mis[missed[j]];
+			mkeys[j] = keys[missed[j]];
+		}
+		byte[][] found = lookup.lookupMany(mmis, mkeys);
+		for (int j = 0; j < n; j++) {
+			int i = missed[j];
+			res[i] = found[j];
+			mcs[i].cache.put(cks[i], found[j], epochs[i]);
+		}
+		return res;
+	}
+
+	/** Asks the server, and notes the generation it answers with. */
+	public String stat(MapInfo mi) throws IOException {
+		String s = lookup.stat(mi);
+		long g = generationOf(s);
+		if (g >= 0)
+			notifyGeneration(mi, g);
+		return s;
+	}
+
+	/**
+	 * Updates the map and moves its cache on to the generation the server
+	 * reports loading.
+	 */
+	@Deprecated
+	public byte[] updateMap(MapInfo mi, String path, boolean full) throws IOException {
+		byte[] r = null;
+		try {
+			r = lookup.updateMap(mi, path, full);
+			return r;
+		} finally {
+			long g = r == null ? -1 : generationOf(new String(r, "ISO-8859-1"));
+			if (g >= 0)
+				notifyGeneration(mi, g);
+			else
+				invalidate(mi);
+		}
+	}
+
+	/** Drops everything cached for map. */
+	public void invalidate(MapInfo mi) {
+		MapCache m = maps.get(mi);
+		if (m != null)
+			m.cache.invalidate();
+	}
+
+	/** Drops everything cached. */
+	public void invalidate() {
+		for (MapCache m : maps.values())
+			m.cache.invalidate();
+	}
+
+	private MapCache cacheFor(MapInfo mi) {
+		MapCache m = maps.get(mi);
+		if (m == null) {
+			MapCache fresh = new MapCache(new HotKeyCache(maxBytesPerMap));
+			m = maps.putIfAbsent(mi, fresh);
+			if (m == null)
+				m = fresh;
+		}
+		return m;
+	}
+
+	/**
+	 * The number after <code>generation=</code> in a stat or update reply,
+	 * or -1 if there is none.
+	 */
+	static long generationOf(String reply) {
+		return CdbMapLookup.statValue(reply, "generation");
+	}
+
+	@Override
+	public String toString() {
+		return "NearCacheMapLookup [maps=" + maps.size() + ", " + lookup + "]";
+	}
+
+	/**
+	 * One map's cache.  Server generations are only ever compared for
+	 * equality, as a restarted server numbers them from the start again;
+	 * the cache is handed a local epoch that moves on with every change.
+	 */
+	final class MapCache {
+		final HotKeyCache cache;
+		volatile long serverGeneration = -1;
+		volatile long epoch;
+		volatile long nextCheck = System.nanoTime();
+		volatile boolean polled = true;
+		/** The last check got no generation; warned about once. */
+		volatile boolean failing = false;
+		private final AtomicBoolean checking = new AtomicBoolean();
+
+		MapCache(HotKeyCache cache) {
+			this.cache = cache;
+		}
+
+		synchronized void moveTo(long generation) {
+			if (generation != serverGeneration) {
+				serverGeneration = generation;
+				epoch++;
+			}
+		}
+
+		/**
+		 * The epoch to read and fill the cache at, asking the server first
+		 * if its generation was not heard of for a check interval.  One
+		 * caller asks; the others go on with what is known.
+		 */
+		long epoch(MapInfo mi) {
+			long interval = checkNanos;
+			long now = System.nanoTime();
+			if (polled && interval >= 0 && now - nextCheck >= 0
+					&& checking.compareAndSet(false, true)) {
+				try {
+					String s = lookup.stat(mi);
+					long g = generationOf(s);
+					if (g >= 0) {
+						if (failing)
+							_log.info("Generation of " + mi + " is " + g + " again");
+						moveTo(g);
+					} else if (!failing) {
+						_log.warn("No generation of " + mi + " in \"" + s + "\"; serving what is cached");
+					}
+					failing = g < 0;
+				} catch (IOException e) {
+					/* The lookup itself may yet work; it decides. */
+					if (!failing)
+						_log.warn("Failed to ask for the generation of " + mi + "; serving what is cached", e);
+					failing = true;
+				} catch (UnsupportedOperationException e) {
+					polled = false;
+					_log.warn(lookup.getClass().getName() + " can't report generations, so the cache of " + mi
+							+ " only moves on when notified: " + e.getMessage());
+				} finally {
+					nextCheck = now + interval;
+					checking.set(false);
+				}
+			}
+			return epoch;
+		}
+	}
+}
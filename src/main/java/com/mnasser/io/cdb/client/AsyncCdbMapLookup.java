@@ -0,0 +1,503 @@
+package com.mnasser.io.cdb.client;
+
+import static com.mnasser.io.cdb.client.CdbConstants.*;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * {@link AsyncMapLookup} over one {@link AsynchronousSocketChannel}.
+ * Thread safe.
+ * <p>
+ * Requests are pipelined: they are written in the order issued, several
+ * per write when they queue up, and replies are matched to them in that
+ * order.  No thread waits on any lookup; reads and writes complete on the
+ * channel group's threads.  A lookup that times out keeps its place in
+ * line, and its late reply is dropped.
+ * <p>
+ * Lookups issued while connecting are held until the connection is up
+ * and the protocol version agreed, and lookups beyond
+ * {@link #setMaxInFlight(int) maxInFlight} are held until replies make
+ * room; a held lookup that times out is never sent.
+ * 
+ * @author mnasser
+ */
+public class AsyncCdbMapLookup implements AsyncMapLookup {
+
+	/** Coalesce queued requests into writes of up to this many bytes. */
+	private static final int WRITE_CHUNK = 64 * 1024;
+
+	private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "cdb-async-timeout");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	static {
+		timer.setRemoveOnCancelPolicy(true);
+	}
+
+	private final String host;
+	private final int port;
+	private final AsynchronousChannelGroup group;
+	private volatile AsynchronousSocketChannel ch;
+	private volatile Throwable broken = null;
+	private long timeoutMillis = 30000;
+	private int wantVersion = 1;
+	private int maxInFlight = PipelinedMapLookup.DEFAULT_MAX_IN_FLIGHT;
+	/** Version the server granted; set by the reader before later replies. */
+	private volatile int version = 1;
+	/** Connected and the version agreed; guarded by sendLock. */
+	private boolean ready = false;
+
+	/** Replies expected, oldest first.  Appended under sendLock. */
+	private final ArrayDeque<Pending> inFlight = new ArrayDeque<Pending>();
+	/** Lookups not sent yet, oldest first; guarded by sendLock. */
+	private final ArrayDeque<Pending> held = new ArrayDeque<Pending>();
+	private final ConcurrentLinkedQueue<ByteBuffer> outQ = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final Object sendLock = new Object();
+	private boolean writing = false;
+
+	/** Only touched by the read handler, one read at a time. */
+	private ByteBuffer in = ByteBuffer.allocate(16 * 1024);
+	private final ResultPolicy rp = new ResultPolicy();
+
+	public AsyncCdbMapLookup(String host, int port) {
+		this(host, port, null);
+	}
+
+	/**
+	 * @param group channel group whose threads complete I/O; null for the
+	 * JVM's default group
+	 */
+	public AsyncCdbMapLookup(String host, int port, AsynchronousChannelGroup group) {
+		this.host = host;
+		this.port = port;
+		this.group = group;
+	}
+
+	public String getHost() { return host; }
+	public int getPort()    { return port; }
+
+	/**
+	 * Protocol version to ask for on connect; 1, the default, to not
+	 * ask.  See
+	 * {@link CdbMapLookup#setProtocolVersion(int)}.
+	 */
+	public void setProtocolVersion(int v) {
+		this.wantVersion = v;
+	}
+
+	public int getProtocolVersion() {
+		return version;
+	}
+
+	/** Caps requests sent and not yet answered; later ones wait their
+	 * turn. */
+	public void setMaxInFlight(int n) {
+		if (n < 1)
+			throw new IllegalArgumentException("maxInFlight must be positive: " + n);
+		this.maxInFlight = n;
+	}
+
+	/** Timeout for lookups that don't name one; 0 for none. */
+	public void setTimeout(long millis) {
+		this.timeoutMillis = millis;
+	}
+
+	public CompletableFuture<Void> connect() {
+		final CompletableFuture<Void> f = new CompletableFuture<Void>();
+		final AsynchronousSocketChannel c;
+		try {
+			c = AsynchronousSocketChannel.open(group);
+			c.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		} catch (IOException e) {
+			f.completeExceptionally(e);
+			return f;
+		}
+		synchronized (sendLock) {
+			close();
+			ch = c;
+			broken = null;
+			version = 1;
+			ready = false;
+			in = ByteBuffer.allocate(16 * 1024);
+		}
+		c.connect(new InetSocketAddress(host, port), null, new CompletionHandler<Void, Void>() {
+			public void completed(Void v, Void a) {
+				read(c);
+				if (wantVersion <= 1) {
+					synchronized (sendLock) {
+						ready = c == ch;
+					}
+					sendHeld(c);
+					f.complete(null);
+					return;
+				}
+				/* The reader switches framing, and lets held lookups
+				 * go, as it takes this reply. */
+				Pending p = new Pending(ACT_VERSION, null, null);
+				boolean start;
+				synchronized (sendLock) {
+					if (c != ch || broken != null) {
+						f.completeExceptionally(broken != null ? broken : new IOException("Connection closed"));
+						return;
+					}
+					start = enqueue(p, CdbMapLookup.buildVersionRequest(wantVersion));
+				}
+				timeout(p, timeoutMillis);
+				if (start)
+					write(c);
+				p.whenComplete(new BiConsumer<byte[], Throwable>() {
+					public void accept(byte[] r, Throwable t) {
+						if (t != null)
+							f.completeExceptionally(t);
+						else
+							f.complete(null);
+					}
+				});
+			}
+
+			public void failed(Throwable t, Void a) {
+				fail(c, t);
+				f.completeExceptionally(t);
+			}
+		});
+		return f;
+	}
+
+	public boolean isConnected() {
+		return ch != null && ch.isOpen() && broken == null;
+	}
+
+	public void close() {
+		AsynchronousSocketChannel c = ch;
+		if (c != null)
+			fail(c, new IOException("Connection closed"));
+	}
+
+	public CompletableFuture<byte[]> lookup(MapInfo mi, byte[] key) {
+		return send(ACT_QUERY, mi.getQueryPrefix(), key, timeoutMillis);
+	}
+
+	public CompletableFuture<byte[]> lookup(MapInfo mi, byte[] key, long timeout, TimeUnit unit) {
+		return send(ACT_QUERY, mi.getQueryPrefix(), key, unit.toMillis(timeout));
+	}
+
+	public CompletableFuture<byte[]> lookupAll(MapInfo mi, byte[] key) {
+		return send(ACT_QUERY_ALL, mi.getQueryPrefix(), key, timeoutMillis);
+	}
+
+	public CompletableFuture<byte[]> lookupAll(MapInfo mi, byte[] key, long timeout, TimeUnit unit) {
+		return send(ACT_QUERY_ALL, mi.getQueryPrefix(), key, unit.toMillis(timeout));
+	}
+
+	/**
+	 * Sends the keys as batch requests of up to
+	 * {@link CdbConstants#MAX_BATCH_BYTES} each, all at once.
+	 */
+	public CompletableFuture<byte[][]> lookupMany(MapInfo[] mis, final byte[][] keys) {
+		final byte[][] res = new byte[keys.length][];
+		List<CompletableFuture<Void>> parts = new ArrayList<CompletableFuture<Void>>();
+		for (int from = 0, to; from < keys.length; from = to) {
+			to = CdbMapLookup.batchEnd(keys, from);
+			final int f = from, t = to;
+			byte[] body = CdbMapLookup.buildBatchBody(mis, keys, from, to);
+			parts.add(send(ACT_QUERY_BATCH, CdbMapLookup.NO_PREFIX, body, timeoutMillis).thenAccept(new Consumer<byte[]>() {
+				public void accept(byte[] payload) {
+					CdbMapLookup.parseBatchResult(payload, res, f, t);
+				}
+			}));
+		}
+		return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[parts.size()])).thenApply(
+				new Function<Void, byte[][]>() {
+					public byte[][] apply(Void v) {
+						return res;
+					}
+				});
+	}
+
+	public CompletableFuture<String> stat(MapInfo mi) {
+		return send(ACT_STAT, mi.getQueryPrefix(), CdbMapLookup.NO_PREFIX, timeoutMillis).thenApply(
+				new Function<byte[], String>() {
+					public String apply(byte[] r) {
+						return new String(r, StandardCharsets.ISO_8859_1);
+					}
+				});
+	}
+
+	public CompletableFuture<byte[]> updateMap(MapInfo mi, String path, boolean full) {
+		return send(ACT_UPDATE, mi.getQueryPrefix(), CdbMapLookup.buildUpdateArgs(path, full), 0);
+	}
+
+	/**
+	 * Sends a request now if it may go, else holds it.  It is encoded
+	 * when sent, at the version agreed by then.
+	 */
+	private CompletableFuture<byte[]> send(byte action, byte[] prefix, byte[] key, long timeout) {
+		Pending p = new Pending(action, prefix, key);
+
+		boolean start = false;
+		AsynchronousSocketChannel c;
+		synchronized (sendLock) {
+			c = ch;
+			if (ch == null || broken != null) {
+				p.completeExceptionally(broken != null ? broken : new IllegalStateException("Not connected"));
+				return p;
+			}
+			if (ready && held.isEmpty() && inFlight.size() < maxInFlight)
+				start = enqueue(p, CdbMapLookup.buildRequest(version, action, prefix, key));
+			else
+				held.add(p);
+		}
+		timeout(p, timeout);
+		if (start)
+			write(c);
+		return p;
+	}
+
+	/**
+	 * Queues req for writing, with p to take its reply.  Under sendLock.
+	 * @return true if the caller must start the writer
+	 */
+	private boolean enqueue(Pending p, byte[] req) {
+		inFlight.add(p);
+		outQ.add(ByteBuffer.wrap(req));
+		boolean start = !writing;
+		writing = true;
+		return start;
+	}
+
+	/** Sends the held lookups there is room for. */
+	private void sendHeld(AsynchronousSocketChannel c) {
+		boolean start = false;
+		synchronized (sendLock) {
+			if (c != ch || broken != null)
+				return;
+			Pending p;
+			while (ready && inFlight.size() < maxInFlight && (p = held.poll()) != null) {
+				if (p.isDone())
+					continue; // timed out waiting
+				start |= enqueue(p, CdbMapLookup.buildRequest(version, p.action, p.prefix, p.key));
+			}
+		}
+		if (start)
+			write(c);
+	}
+
+	private void timeout(final Pending p, long timeout) {
+		if (timeout > 0) {
+			final ScheduledFuture<?> t = timer.schedule(new Runnable() {
+				public void run() {
+					p.completeExceptionally(new TimeoutException("No reply from " + host + ":" + port));
+				}
+			}, timeout, TimeUnit.MILLISECONDS);
+			p.whenComplete(new BiConsumer<byte[], Throwable>() {
+				public void accept(byte[] v, Throwable e) {
+					t.cancel(false);
+				}
+			});
+		}
+	}
+
+	/** Writes what is queued; only one write is ever outstanding. */
+	private void write(final AsynchronousSocketChannel c) {
+		if (c != ch)
+			return;
+		ByteBuffer b = outQ.poll();
+		if (b == null) {
+			synchronized (sendLock) {
+				if (outQ.isEmpty()) {
+					writing = false;
+					return;
+				}
+			}
+			b = outQ.poll();
+		}
+		if (outQ.peek() != null) {
+			ByteBuffer chunk = ByteBuffer.allocate(Math.max(WRITE_CHUNK, b.remaining()));
+			chunk.put(b);
+			ByteBuffer next;
+			while ((next = outQ.peek()) != null && next.remaining() <= chunk.remaining())
+				chunk.put(outQ.poll());
+			chunk.flip();
+			b = chunk;
+		}
+		c.write(b, b, new CompletionHandler<Integer, ByteBuffer>() {
+			public void completed(Integer n, ByteBuffer b) {
+				if (b.hasRemaining())
+					c.write(b, b, this);
+				else
+					write(c);
+			}
+
+			public void failed(Throwable t, ByteBuffer b) {
+				fail(c, t);
+			}
+		});
+	}
+
+	private void read(final AsynchronousSocketChannel c) {
+		c.read(in, null, new CompletionHandler<Integer, Void>() {
+			public void completed(Integer n, Void a) {
+				if (n < 0) {
+					fail(c, new EOFException("Server closed connection"));
+					return;
+				}
+				in.flip();
+				try {
+					while (parse())
+						;
+				} catch (IOException e) {
+					fail(c, e);
+					return;
+				}
+				in.compact();
+				sendHeld(c);
+				if (!in.hasRemaining()) {
+					ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+					in.flip();
+					bigger.put(in);
+					in = bigger;
+				}
+				if (c == ch && broken == null)
+					c.read(in, null, this);
+			}
+
+			public void failed(Throwable t, Void a) {
+				fail(c, t);
+			}
+		});
+	}
+
+	/**
+	 * Takes one whole reply off the front of the input, if there is one.
+	 */
+	private boolean parse() throws IOException {
+		if (!in.hasRemaining())
+			return false;
+		Pending p;
+		synchronized (sendLock) {
+			p = inFlight.peek();
+		}
+		if (p == null)
+			throw new IOException("Reply with no request");
+
+		int start = in.position();
+		byte status = in.get(start);
+		/* Values are copied out of the input once, into the array handed back. */
+		byte[] res;
+		int off = 0;
+		if (version >= 2) {
+			if (in.remaining() < 4)
+				return false;
+			int len = Integer.reverseBytes(in.getInt(start));
+			if (in.remaining() < len + 4)
+				return false;
+			status = in.get(start + 4);
+			res = new byte[len - 1];
+			in.position(start + 5);
+			in.get(res);
+		} else if (status == rACK && (p.action == ACT_QUERY || p.action == ACT_QUERY_ALL || p.action == ACT_QUERY_BATCH)) {
+			if (in.remaining() < 5)
+				return false;
+			int len = Integer.reverseBytes(in.getInt(start + 1));
+			if (in.remaining() < len + 6)
+				return false;
+			res = new byte[len];
+			in.position(start + 5);
+			in.get(res);
+			in.get(); // trailing newline
+		} else {
+			int nl = start;
+			while (nl < in.limit() && in.get(nl) != '\n')
+				nl++;
+			if (nl == in.limit())
+				return false;
+			res = new byte[nl - start];
+			in.get(res);
+			in.get();
+			off = 1;
+		}
+
+		synchronized (sendLock) {
+			inFlight.poll();
+		}
+		if (p.action == ACT_VERSION) {
+			version = CdbMapLookup.parseVersionReply(res);
+			synchronized (sendLock) {
+				ready = true;
+			}
+			p.complete(res);
+			return true;
+		}
+		try {
+			int n = rp.processResult(status, res, off, res.length - off);
+			p.complete(n < 0 ? null : off == 0 ? res : Arrays.copyOfRange(res, off, res.length));
+		} catch (RuntimeException e) {
+			p.completeExceptionally(e);
+		}
+		return true;
+	}
+
+	/**
+	 * Fails everything outstanding on c; reconnect to use again.  Late
+	 * failures of a channel already replaced are ignored.
+	 */
+	private void fail(AsynchronousSocketChannel c, Throwable t) {
+		ArrayDeque<Pending> failed;
+		synchronized (sendLock) {
+			if (c != ch)
+				return;
+			if (broken == null)
+				broken = t;
+			failed = new ArrayDeque<Pending>(inFlight);
+			failed.addAll(held);
+			inFlight.clear();
+			held.clear();
+			outQ.clear();
+			writing = false;
+		}
+		try {
+			c.close();
+		} catch (IOException ignored) {
+		}
+		for (Pending p : failed)
+			p.completeExceptionally(broken);
+	}
+
+	private static final class Pending extends CompletableFuture<byte[]> {
+		final byte action;
+		/** The request, to encode once it may be sent. */
+		final byte[] prefix;
+		final byte[] key;
+
+		Pending(byte action, byte[] prefix, byte[] key) {
+			this.action = action;
+			this.prefix = prefix;
+			this.key = key;
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package com.mnasser.io.cdb.client;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking counterpart of {@link MapLookup}: lookups return at once
+ * with a future completed when the reply arrives.  A future that times
+ * out completes with a {@link java.util.concurrent.TimeoutException}.
+ */
+public interface AsyncMapLookup {
+
+	public abstract String getHost();
+
+	public abstract int getPort();
+
+	/**
+	 * Starts connecting to the host/port.  Lookups may be issued once the
+	 * returned future completes.
+	 */
+	public abstract CompletableFuture<Void> connect();
+
+	public abstract boolean isConnected();
+
+	/**
+	 * Closes the connection, failing lookups still outstanding.
+	 */
+	public abstract void close();
+
+	/**
+	 * Queries remote map for key, with the default timeout.
+	 * @return future of the value, or of null if there is none
+	 */
+	public abstract CompletableFuture<byte[]> lookup(MapInfo mi, byte[] key);
+
+	public abstract CompletableFuture<byte[]> lookup(MapInfo mi, byte[] key, long timeout, TimeUnit unit);
+
+	/**
+	 * Queries remote map for all values of key, with the default timeout.
+	 */
+	public abstract CompletableFuture<byte[]> lookupAll(MapInfo mi, byte[] key);
+
+	public abstract CompletableFuture<byte[]> lookupAll(MapInfo mi, byte[] key, long timeout, TimeUnit unit);
+
+	/**
+	 * Looks up keys[i] in mis[i] for every i, in batch requests.
+	 * @return future of the values, one per key; null where there is none
+	 */
+	public abstract CompletableFuture<byte[][]> lookupMany(MapInfo[] mis, byte[][] keys);
+
+	/**
+	 * Asks the server about a map; see {@link MapLookup#stat(MapInfo)}.
+	 */
+	public abstract CompletableFuture<String> stat(MapInfo mi);
+
+	/**
+	 * Has the server load the map from path.  Not timed out: the reply
+	 * comes once the load is done, however long that takes.
+	 * @return future of the server's reply, e.g. <code>loaded PATH generation=4</code>
+	 */
+	public abstract CompletableFuture<byte[]> updateMap(MapInfo mi, String path, boolean full);
+
+}
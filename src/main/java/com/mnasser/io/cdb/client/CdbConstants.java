@@ -20,6 +20,36 @@ public interface CdbConstants {
 	public static final byte ACT_STAT    = 's'; /*map stats*/
 	public static final byte ACT_UPDATE  = 'u'; /*rebuild/upload map*/
 	
+	/**
+	 * Many keys, from any maps, in one binary frame:
+	 * <pre>B \t INT body_length body \n
+	 * body: SHORT map_count { SHORT length MAP_NAME|MAP_TYPE }
+	 *       INT key_count   { SHORT map_index INT length key }</pre>
+	 * Answered with an ACK whose payload is INT key_count, then per key
+	 * either rACK INT length value, or rNAK.  Integers are little endian.
+	 */
+	public static final byte ACT_QUERY_BATCH = 'B';
+	
+	/**
+	 * Asks for a protocol version: <code>V \t VERSION \n</code>.  The
+	 * server answers with the version it grants as text, and switches to
+	 * it for every request after.  Servers that predate versions answer
+	 * with rEXP, which means v1.  Clients only ask when told to, as not
+	 * every server that speaks v1 answers the request.
+	 * <p>
+	 * Version 2 frames every request and reply with its length, so
+	 * nothing is scanned for and keys may hold any bytes:
+	 * <pre>request: INT length { BYTE action, SHORT length MAP_NAME|MAP_TYPE, INT length key }
+	 * reply:   INT length { BYTE status, payload }</pre>
+	 * A batch request carries its body as the key.  Replies have the
+	 * same payloads as in v1; NAKs have none and EXPs carry the message.
+	 */
+	public static final byte ACT_VERSION = 'V';
+	public static final int PROTOCOL_VERSION = 2;
+	
+	/** Clients split batches so no frame body is larger than this. */
+	public static final int MAX_BATCH_BYTES = 256 * 1024;
+	
 	/** Acknowledgment.  4 byte INT size of payload plus payload follows */
 	public static final byte rACK = "a".getBytes()[0];
 	
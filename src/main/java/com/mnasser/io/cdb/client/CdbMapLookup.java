@@ -2,20 +2,28 @@ package com.mnasser.io.cdb.client;
 
 import static com.mnasser.io.cdb.client.CdbConstants.*;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
-import com.mnasser.io.ByteArrayReader;
 import com.mnasser.io.ByteBuilder;
 
 /**
  * Client Side Lookup class which speaks to CDB Map Lookup Server and queries against it for key-values.
  * <p>
- * Not thread safe.
+ * Not thread safe; one request in flight at a time.  See
+ * {@link PipelinedMapLookup} for a client that can be shared.
  * 
  * @author mnasser
  */
@@ -26,10 +34,14 @@ public class CdbMapLookup implements MapLookup {
 	
 	private Socket s;
     private BufferedOutputStream out= null;
-	private ByteArrayReader in = null;
+	private DataInputStream in = null;
 
 	private ResultPolicy rp = new ResultPolicy();
 	
+	/** Version asked for on connect, and the one the server granted. */
+	private int wantVersion = 1;
+	private int version = 1;
+	
 	public CdbMapLookup(String host, int port){
 		this.host = host;
 		this.port = port;
@@ -37,6 +49,15 @@ public class CdbMapLookup implements MapLookup {
 
 	public String getHost(){ return host; }
 	public int getPort(){ return port; }
+	public int getProtocolVersion(){ return version; }
+	
+	/**
+	 * Protocol version to ask for on connect, e.g.
+	 * {@link CdbConstants#PROTOCOL_VERSION}.  The default, 1, speaks v1
+	 * without asking, as clients did before there were versions; only
+	 * ask servers known to answer version requests.
+	 */
+	public void setProtocolVersion(int v){ wantVersion = v; }
 
 	
 	public synchronized void connect(){
@@ -48,9 +69,16 @@ public class CdbMapLookup implements MapLookup {
 			s.connect(sa, 6001); // 6 seconds
 			
 			
-			in = new ByteArrayReader(s.getInputStream());
+			in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 8192));
 			out = new BufferedOutputStream(s.getOutputStream());
 			
+			version = 1;
+			if( wantVersion > 1 ){
+				out.write( buildVersionRequest(wantVersion) );
+				out.flush();
+				version = parseVersionReply( Arrays.copyOf(scratch, readLine()) );
+			}
+			
 		}catch(UnknownHostException e){
 			throw new RuntimeException(e);
 		}catch(IOException e){
@@ -77,6 +105,7 @@ public class CdbMapLookup implements MapLookup {
 	 * </p>
 	 * The server will expect a '\n' terminated query string (meaning non-binary keys),
 	 * but will respond with value length before value not terminated by '\n'.
+	 * In protocol v2 both are length-prefixed frames instead.
 	 * Query MUST be a properly constructed binary query string (starts with 'Q').
 	 * @param q
 	 * @param includeNL
@@ -84,32 +113,137 @@ public class CdbMapLookup implements MapLookup {
 	 * @throws IOException
 	 */
 	public byte[] queryBinary(byte[] prefix, byte[] key, byte action)  throws IOException {
-		
-		out.write(action);
-		out.write(DELIM_REQ);
-		out.write(prefix);
-		out.write(key);
-		out.write('\n');
+		writeQuery(prefix, key, action);
+		return readValue(true);
+	}
+	
+	/**
+	 * Looks up key and reads its value straight off the socket into the
+	 * caller's buffer, allocating nothing.
+	 * <p>
+	 * As with {@link com.mnasser.io.cdb.Cdb#find(byte[], byte[], int)}, a
+	 * return value larger than <code>buf.length - off</code> means nothing
+	 * was copied and the caller should retry with a buffer of at least that
+	 * size.
+	 * @return The length of the value, or -1 if the map has none.
+	 */
+	public int lookup(MapInfo mi, byte[] key, byte[] buf, int off) throws IOException {
+		writeQuery(mi.getQueryPrefix(), key, ACT_QUERY);
+		if( readHeader(true) ){
+			if( status == rACK ){
+				int n = payloadLen;
+				if( n > buf.length - off ){
+					/* buf[off..] is not the value; only its length is told. */
+					skipFully(n);
+					endPayload();
+					return n;
+				}
+				in.readFully(buf, off, n);
+				endPayload();
+				return rp.processResult(status, buf, off, n);
+			}
+			readPayload();
+		}
+		return rp.processResult(status, scratch, 0, payloadLen);
+	}
+	
+	private void writeQuery(byte[] prefix, byte[] key, byte action) throws IOException {
+		out.write( buildRequest(version, action, prefix, key) );
 		out.flush();
-		
-		binB.clear();
-		binB.append( (byte)in.read() );
-		
-		if( binB.byteAt(0) == CdbConstants.rACK ){
-			int len = byteArrayToInt(in.read(4));
-			binB.append( in.read(len) );
-			in.read();	// trailing newline from server
-		}else{
-			binB.append( in.readLine(false) ); // throw out the NL in binary mode
+	}
+	
+	private int readIntLE() throws IOException {
+		return Integer.reverseBytes(in.readInt());
+	}
+	
+	/* The reply being read: its status and payload length. */
+	private byte status;
+	private int payloadLen;
+	
+	/** Reused for replies that are not values: NAK, EXP and text. */
+	private byte[] scratch = new byte[256];
+	
+	/**
+	 * Reads a reply up to its payload.  Returns true if the payload is
+	 * still to be read, false if it was a v1 text line, now in scratch.
+	 * @param binary whether a v1 ACK carries a length-prefixed payload
+	 */
+	private boolean readHeader(boolean binary) throws IOException {
+		if( version >= 2 ){
+			int len = readIntLE();
+			status = in.readByte();
+			payloadLen = len - 1;
+			return true;
 		}
-		
-		return rp.processResult( binB.getContent() );
+		status = in.readByte();
+		if( binary && status == rACK ){
+			payloadLen = readIntLE();
+			return true;
+		}
+		payloadLen = readLine();
+		return false;
 	}
-
 	
-	private ByteBuilder binB = new ByteBuilder(); // byte buffer for binary query
-
+	/** Reads the payload into scratch. */
+	private void readPayload() throws IOException {
+		if( scratch.length < payloadLen )
+			scratch = new byte[Math.max(payloadLen, scratch.length * 2)];
+		in.readFully(scratch, 0, payloadLen);
+		endPayload();
+	}
 	
+	/** Skips n bytes of input; skipBytes may skip fewer. */
+	private void skipFully(int n) throws IOException {
+		while( n > 0 ){
+			int k = in.skipBytes(n);
+			if( k <= 0 ){
+				if( in.read() < 0 )
+					throw new EOFException("Server closed connection");
+				k = 1;
+			}
+			n -= k;
+		}
+	}
+	
+	/** v1 binary payloads are followed by a newline. */
+	private void endPayload() throws IOException {
+		if( version < 2 )
+			in.read();
+	}
+	
+	/** Reads up to a newline into scratch; returns the length without it. */
+	private int readLine() throws IOException {
+		int n = 0;
+		int c;
+		while( (c = in.read()) != '\n' ){
+			if( c < 0 )
+				throw new EOFException("Server closed connection");
+			if( n == scratch.length )
+				scratch = Arrays.copyOf(scratch, n * 2);
+			scratch[n++] = (byte)c;
+		}
+		return n;
+	}
+	
+	/**
+	 * Reads one reply.  A value is read straight into the array returned;
+	 * anything else goes through scratch.
+	 */
+	private byte[] readValue(boolean binary) throws IOException {
+		if( readHeader(binary) ){
+			if( status == rACK ){
+				byte[] v = new byte[payloadLen];
+				in.readFully(v);
+				endPayload();
+				rp.processResult(status, v, 0, v.length);
+				return v;
+			}
+			readPayload();
+		}
+		int n = rp.processResult(status, scratch, 0, payloadLen);
+		return n < 0 ? null : Arrays.copyOf(scratch, n);
+	}
+
 	
 	/**
 	 * Given array of 4 bytes will return int value they hold 
@@ -124,16 +258,15 @@ public class CdbMapLookup implements MapLookup {
 	}
 
 
-	private static ByteBuilder psb = new ByteBuilder();
-	
 	/**
-	 * Builds out the fist portion of a query request for this map
+	 * Builds out the fist portion of a query request for this map.
+	 * Thread safe: MapInfos are built from many threads.
 	 * @param mapDir
 	 * @param mapType
 	 * @return
 	 */
 	static byte[] buildQueryPrefix(String mapDir, int mapType){
-		psb.clear();
+		ByteBuilder psb = new ByteBuilder();
 		psb.append( mapDir.getBytes() )
 		.append( DELIM_MAP )
 		.append( Integer.toString(mapType).getBytes() )	   /* string representation */
@@ -155,8 +288,150 @@ public class CdbMapLookup implements MapLookup {
 		return queryBinary( mi.getQueryPrefix(), key, ACT_QUERY_ALL );
 	}
 
+	public byte[][] lookupMany(MapInfo mi, byte[][] keys) throws IOException {
+		MapInfo[] mis = new MapInfo[keys.length];
+		Arrays.fill(mis, mi);
+		return lookupMany(mis, keys);
+	}
+
+	/**
+	 * Sends the keys as batch requests, one round trip per
+	 * {@link CdbConstants#MAX_BATCH_BYTES} of keys.
+	 */
+	public byte[][] lookupMany(MapInfo[] mis, byte[][] keys) throws IOException {
+		byte[][] res = new byte[keys.length][];
+		for (int from = 0, to; from < keys.length; from = to) {
+			to = batchEnd(keys, from);
+			out.write(buildRequest(version, ACT_QUERY_BATCH, NO_PREFIX, buildBatchBody(mis, keys, from, to)));
+			out.flush();
+			/* The payload is only parsed, so it goes through scratch. */
+			if( readHeader(true) )
+				readPayload();
+			if( rp.processResult(status, scratch, 0, payloadLen) >= 0 )
+				parseBatchResult(scratch, 0, payloadLen, res, from, to);
+		}
+		return res;
+	}
+
+	/**
+	 * End of the batch that starts at keys[from]: as many keys as fit in
+	 * {@link CdbConstants#MAX_BATCH_BYTES}, but at least one.
+	 */
+	static int batchEnd(byte[][] keys, int from) {
+		int size = 0;
+		int to = from;
+		while (to < keys.length) {
+			size += 6 + keys[to].length;
+			if (size > MAX_BATCH_BYTES - 1024 && to > from)
+				break;
+			to++;
+		}
+		return to;
+	}
+
+	/**
+	 * Builds a batch request's body for keys[from, to), keys[i] looked up
+	 * in mis[i].  Format as per {@link CdbConstants#ACT_QUERY_BATCH}.
+	 */
+	static byte[] buildBatchBody(MapInfo[] mis, byte[][] keys, int from, int to) {
+		Map<MapInfo, Integer> index = new LinkedHashMap<MapInfo, Integer>();
+		int[] mapOf = new int[to - from];
+		int size = 2 + 4;
+		for (int i = from; i < to; i++) {
+			Integer m = index.get(mis[i]);
+			if (m == null) {
+				m = index.size();
+				index.put(mis[i], m);
+				size += 2 + mis[i].getQueryPrefix().length - 1;
+			}
+			mapOf[i - from] = m;
+			size += 6 + keys[i].length;
+		}
+
+		ByteBuffer b = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+		b.putShort((short)index.size());
+		for (MapInfo mi : index.keySet()) {
+			byte[] prefix = mi.getQueryPrefix(); // spec plus its DELIM_REQ
+			b.putShort((short)(prefix.length - 1)).put(prefix, 0, prefix.length - 1);
+		}
+		b.putInt(to - from);
+		for (int i = from; i < to; i++) {
+			b.putShort((short)mapOf[i - from]).putInt(keys[i].length).put(keys[i]);
+		}
+		return b.array();
+	}
+
+	static final byte[] NO_PREFIX = new byte[0];
+
+	/**
+	 * Builds a request in the framing of the given protocol version.
+	 * prefix is a {@link MapInfo#getQueryPrefix() query prefix}, or
+	 * {@link #NO_PREFIX} for batches, whose body goes in key.
+	 */
+	static byte[] buildRequest(int version, byte action, byte[] prefix, byte[] key) {
+		ByteBuffer b;
+		if (version >= 2) {
+			int specLen = Math.max(0, prefix.length - 1);
+			b = ByteBuffer.allocate(4 + 1 + 2 + specLen + 4 + key.length).order(ByteOrder.LITTLE_ENDIAN);
+			b.putInt(b.capacity() - 4).put(action).putShort((short)specLen).put(prefix, 0, specLen);
+			b.putInt(key.length).put(key);
+		} else if (action == ACT_QUERY_BATCH) {
+			b = ByteBuffer.allocate(7 + key.length).order(ByteOrder.LITTLE_ENDIAN);
+			b.put(action).put(DELIM_REQ).putInt(key.length).put(key).put((byte)'\n');
+		} else {
+			b = ByteBuffer.allocate(3 + prefix.length + key.length);
+			b.put(action).put(DELIM_REQ).put(prefix).put(key).put((byte)'\n');
+		}
+		return b.array();
+	}
+
+	/** Asks for protocol version v; always sent in v1 framing. */
+	static byte[] buildVersionRequest(int v) {
+		return (new String(new byte[]{ ACT_VERSION, DELIM_REQ }) + v + "\n").getBytes();
+	}
+
+	/**
+	 * The version a server granted, from its reply without the newline.
+	 * Servers from before versions don't know the request and answer
+	 * with an exception: that is v1.
+	 */
+	static int parseVersionReply(byte[] reply) {
+		if (reply == null || reply.length < 2 || reply[0] != rACK)
+			return 1;
+		try {
+			return Integer.parseInt(new String(reply, 1, reply.length - 1).trim());
+		} catch (NumberFormatException e) {
+			return 1;
+		}
+	}
+
+	/**
+	 * Unpacks a batch reply's payload into res[from, to).
+	 */
+	static void parseBatchResult(byte[] payload, byte[][] res, int from, int to) {
+		parseBatchResult(payload, 0, payload.length, res, from, to);
+	}
+
+	static void parseBatchResult(byte[] payload, int off, int len, byte[][] res, int from, int to) {
+		ByteBuffer b = ByteBuffer.wrap(payload, off, len).order(ByteOrder.LITTLE_ENDIAN);
+		int n = b.getInt();
+		if (n != to - from)
+			throw new RuntimeException("Batch reply has " + n + " results for " + (to - from) + " keys");
+		for (int i = from; i < to; i++) {
+			if (b.get() == rACK) {
+				res[i] = new byte[b.getInt()];
+				b.get(res[i]);
+			}
+		}
+	}
+
 
 	
+	/** An update's arguments: 'DFS_PATH\t(full|incremental)' */
+	static byte[] buildUpdateArgs(String path, boolean full){
+		return (path + "\t" + (full ? "full" : "incremental")).getBytes();
+	}
+	
 	/**
 	 * Builds a properly formed Update Request as per protocol.
 	 * Format is 'u\tMAP_NAME|MAP_TYPE\tDFS_PATH\t(full|incremental)'
@@ -166,22 +441,41 @@ public class CdbMapLookup implements MapLookup {
 	 * @return
 	 */
 	public static byte[] buildUpdateRequest(MapInfo mi, String path, boolean full){
-		ByteBuilder bb = new ByteBuilder();
-		bb.append(ACT_UPDATE).append(DELIM_REQ).append(mi.getQueryPrefix());
-		bb.append(path.getBytes())
-		  .append( DELIM_REQ )
-		  .append( (full)? "full".getBytes() : "incremental".getBytes() )
-		  .append( (byte)'\n');
-		return bb.getContent();
+		return buildRequest(1, ACT_UPDATE, mi.getQueryPrefix(), buildUpdateArgs(path, full));
+	}
+	
+	/**
+	 * The number after <code>name=</code> in a stat or update reply, or
+	 * -1 if there is none.
+	 */
+	public static long statValue(String reply, String name){
+		String field = name + "=";
+		int i = -1;
+		do{
+			i = reply.indexOf(field, i + 1);
+		}while( i > 0 && reply.charAt(i - 1) != ' ' );
+		if( i < 0 )
+			return -1;
+		i += field.length();
+		int j = i;
+		while( j < reply.length() && Character.isDigit(reply.charAt(j)) )
+			j++;
+		return j == i ? -1 : Long.parseLong(reply.substring(i, j));
+	}
+	
+	public String stat(MapInfo mi) throws IOException {
+		out.write( buildRequest(version, ACT_STAT, mi.getQueryPrefix(), NO_PREFIX) );
+		out.flush();
+		return new String(readValue(false), "ISO-8859-1");
 	}
 	
 	/* (non-Javadoc)
 	 * @see com.proclivitysystems.cdb.lookup.MapLookup#updateMap(com.proclivitysystems.cdb.lookup.MapInfo, java.lang.String, boolean)
 	 */
 	public byte[] updateMap(MapInfo mi, String path, boolean full) throws IOException {
-		out.write( buildUpdateRequest(mi, path, full));
+		out.write( buildRequest(version, ACT_UPDATE, mi.getQueryPrefix(), buildUpdateArgs(path, full)) );
 		out.flush();
-		return rp.processResult(in.readLine());
+		return readValue(false);
 	}
 
 	
@@ -0,0 +1,172 @@
+package com.mnasser.io.cdb.client;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * One lookup server of a {@link ClusterMapLookup}: its connection, and
+ * how well it has been answering lately.
+ * <p>
+ * Latency is a moving average over recent replies; servers are ranked by
+ * it, scaled by their requests in flight.  A server that fails to answer
+ * (I/O error, timeout) is marked down and left alone for a back-off that
+ * doubles with each failure in a row.
+ * 
+ * @author mnasser
+ */
+final class ClusterEndpoint {
+
+	/** Weight of the newest sample in the latency average. */
+	private static final double ALPHA = 0.2;
+	private static final long MIN_BACKOFF = 500;
+	private static final long MAX_BACKOFF = 30000;
+
+	static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "cdb-cluster-timer");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	static {
+		timer.setRemoveOnCancelPolicy(true);
+	}
+
+	/** A request to send to whichever endpoint is chosen. */
+	interface Call<T> {
+		CompletableFuture<T> send(AsyncMapLookup lookup);
+	}
+
+	final String host;
+	final int port;
+	private final AsyncCdbMapLookup lookup;
+	private final long timeoutMillis;
+	private CompletableFuture<Void> connected = null;
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private volatile double latencyMicros = 1000;
+	private volatile long downUntil = 0;
+	private long backoff = MIN_BACKOFF;
+
+	ClusterEndpoint(String host, int port, long timeoutMillis) {
+		this.host = host;
+		this.port = port;
+		this.timeoutMillis = timeoutMillis;
+		this.lookup = new AsyncCdbMapLookup(host, port);
+		lookup.setTimeout(timeoutMillis);
+	}
+
+	boolean isUp() {
+		return System.currentTimeMillis() >= downUntil;
+	}
+
+	/** Lower is better. */
+	double score() {
+		return latencyMicros * (1 + inFlight.get());
+	}
+
+	double getLatencyMicros() {
+		return latencyMicros;
+	}
+
+	/**
+	 * The connection, (re)opened if there is none, bounded by the timeout.
+	 */
+	synchronized CompletableFuture<Void> connection() {
+		if (connected != null && !connected.isCompletedExceptionally()
+				&& (!connected.isDone() || lookup.isConnected()))
+			return connected;
+
+		final CompletableFuture<Void> c = new CompletableFuture<Void>();
+		lookup.connect().whenComplete(new BiConsumer<Void, Throwable>() {
+			public void accept(Void v, Throwable t) {
+				if (t != null)
+					c.completeExceptionally(t);
+				else
+					c.complete(null);
+			}
+		});
+		timer.schedule(new Runnable() {
+			public void run() {
+				if (c.completeExceptionally(new TimeoutException("Connecting to " + ClusterEndpoint.this)))
+					lookup.close();
+			}
+		}, timeoutMillis, TimeUnit.MILLISECONDS);
+		connected = c;
+		return c;
+	}
+
+	/**
+	 * Sends call here, connecting first if need be, and keeps score of
+	 * how it went.
+	 */
+	<T> CompletableFuture<T> send(final Call<T> call) {
+		final long start = System.nanoTime();
+		inFlight.incrementAndGet();
+		CompletableFuture<T> f = connection().thenCompose(new Function<Void, CompletionStage<T>>() {
+			public CompletionStage<T> apply(Void v) {
+				return call.send(lookup);
+			}
+		});
+		f.whenComplete(new BiConsumer<T, Throwable>() {
+			public void accept(T v, Throwable t) {
+				inFlight.decrementAndGet();
+				long micros = (System.nanoTime() - start) / 1000;
+				if (t == null || !isUnreachable(t))
+					answered(micros);
+				else
+					failed(micros);
+			}
+		});
+		return f;
+	}
+
+	private void answered(long micros) {
+		latencyMicros += ALPHA * (micros - latencyMicros);
+		synchronized (this) {
+			backoff = MIN_BACKOFF;
+		}
+	}
+
+	private void failed(long micros) {
+		latencyMicros = Math.max(latencyMicros, micros);
+		synchronized (this) {
+			downUntil = System.currentTimeMillis() + backoff;
+			backoff = Math.min(MAX_BACKOFF, backoff * 2);
+		}
+	}
+
+	/**
+	 * Whether t means the server did not answer, as opposed to answering
+	 * with an error.
+	 */
+	static boolean isUnreachable(Throwable t) {
+		t = unwrap(t);
+		return t instanceof IOException || t instanceof TimeoutException || t instanceof IllegalStateException;
+	}
+
+	static Throwable unwrap(Throwable t) {
+		while ((t instanceof CompletionException || t instanceof ExecutionException) && t.getCause() != null)
+			t = t.getCause();
+		return t;
+	}
+
+	void close() {
+		lookup.close();
+	}
+
+	@Override
+	public String toString() {
+		return host + ":" + port;
+	}
+}
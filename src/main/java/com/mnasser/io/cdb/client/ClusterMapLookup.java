@@ -0,0 +1,521 @@
+package com.mnasser.io.cdb.client;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+import com.mnasser.io.cdb.BucketCdb;
+
+/**
+ * A {@link MapLookup} over a cluster of lookup servers.  Thread safe.
+ * <p>
+ * Keys are spread over partitions by consistent hashing, so adding a
+ * partition moves only its share of the keys.  Each partition is served by
+ * one or more replicas holding the same shards:
+ * <ul>
+ * <li>requests go to the replica answering fastest lately, allowing for
+ * what it already has in flight, with an occasional probe of the others
+ * so a recovered replica is noticed;</li>
+ * <li>a replica that fails to answer is skipped, the request retried on
+ * the next one, and the failed replica left alone for a while;</li>
+ * <li>a request not answered within the chosen percentile of recent
+ * latencies is hedged: sent to a second replica as well, first answer
+ * wins.  One slow server then costs the hedge delay, not its own
+ * latency.</li>
+ * </ul>
+ * <pre>
+ * ClusterMapLookup c = new ClusterMapLookup();
+ * c.addPartition("p0", "cdb1:9999", "cdb2:9999");
+ * c.addPartition("p1", "cdb3:9999", "cdb4:9999");
+ * c.connect();
+ * </pre>
+ * 
+ * @author mnasser
+ */
+public class ClusterMapLookup implements MapLookup {
+
+	/** Points per partition on the hash ring. */
+	private static final int VNODES = 128;
+	private static final long SEED = 0x9e3779b97f4a7c15L;
+	/** Share of requests sent to a random replica to re-measure it. */
+	private static final int PROBE_ONE_IN = 64;
+
+	private volatile TreeMap<Long, Partition> ring = new TreeMap<Long, Partition>();
+	private final List<Partition> partitions = new ArrayList<Partition>();
+
+	private long timeoutMillis = 5000;
+	private volatile long minHedgeMicros = 500;
+	private final LatencyTracker latency = new LatencyTracker(0.95);
+	private volatile boolean hedging = true;
+	private final LongAdder hedges = new LongAdder();
+
+	/**
+	 * Adds a partition served by the given replicas, each "host:port".
+	 * The name places the partition on the hash ring: keep it the same
+	 * across restarts or its keys move.
+	 */
+	public synchronized ClusterMapLookup addPartition(String name, String... replicas) {
+		if (replicas.length == 0)
+			throw new IllegalArgumentException("Partition " + name + " has no replicas");
+		ClusterEndpoint[] es = new ClusterEndpoint[replicas.length];
+		for (int i = 0; i < replicas.length; i++) {
+			int colon = replicas[i].lastIndexOf(':');
+			if (colon < 0)
+				throw new IllegalArgumentException("Expected host:port : " + replicas[i]);
+			es[i] = new ClusterEndpoint(replicas[i].substring(0, colon),
+					Integer.parseInt(replicas[i].substring(colon + 1)), timeoutMillis);
+		}
+		Partition p = new Partition(name, es);
+		partitions.add(p);
+
+		TreeMap<Long, Partition> r = new TreeMap<Long, Partition>(ring);
+		for (int v = 0; v < VNODES; v++) {
+			byte[] point = (name + "#" + v).getBytes(StandardCharsets.UTF_8);
+			r.put(BucketCdb.hash(point, 0, point.length, SEED), p);
+		}
+		ring = r;
+		return this;
+	}
+
+	/** Timeout for each attempt; applies to partitions added after. */
+	public void setTimeout(long millis) {
+		this.timeoutMillis = millis;
+	}
+
+	/**
+	 * Hedge requests not answered within this percentile of recent
+	 * latencies, 0.95 by default; 0 turns hedging off.
+	 */
+	public void setHedgePercentile(double p) {
+		hedging = p > 0;
+		if (hedging)
+			latency.setPercentile(p);
+	}
+
+	/** Never hedge sooner than this. */
+	public void setMinHedgeDelay(long delay, TimeUnit unit) {
+		this.minHedgeMicros = unit.toMicros(delay);
+	}
+
+	/** Current hedge delay in micros. */
+	public long getHedgeDelayMicros() {
+		return Math.max(minHedgeMicros, latency.get());
+	}
+
+	/** Number of hedged requests sent so far. */
+	public long getHedges() {
+		return hedges.sum();
+	}
+
+	/** The first replica's host; there is no single one. */
+	public String getHost() {
+		return partitions.isEmpty() ? null : partitions.get(0).replicas[0].host;
+	}
+
+	public int getPort() {
+		return partitions.isEmpty() ? -1 : partitions.get(0).replicas[0].port;
+	}
+
+	/**
+	 * Connects to every replica.  Replicas that can't be reached are only
+	 * marked down; requests will go elsewhere.
+	 */
+	public void connect() {
+		List<CompletableFuture<Void>> cs = new ArrayList<CompletableFuture<Void>>();
+		for (Partition p : snapshot())
+			for (ClusterEndpoint e : p.replicas)
+				cs.add(e.connection());
+		for (CompletableFuture<Void> c : cs) {
+			try {
+				c.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException e) {
+				// noticed again on first use
+			}
+		}
+	}
+
+	public boolean isConnected() {
+		for (Partition p : snapshot())
+			for (ClusterEndpoint e : p.replicas)
+				if (e.isUp())
+					return true;
+		return false;
+	}
+
+	public void close() {
+		for (Partition p : snapshot())
+			for (ClusterEndpoint e : p.replicas)
+				e.close();
+	}
+
+	private synchronized List<Partition> snapshot() {
+		return new ArrayList<Partition>(partitions);
+	}
+
+	Partition partitionFor(byte[] key) {
+		TreeMap<Long, Partition> r = ring;
+		if (r.isEmpty())
+			throw new IllegalStateException("No partitions");
+		Map.Entry<Long, Partition> e = r.ceilingEntry(BucketCdb.hash(key, 0, key.length, SEED));
+		return (e != null ? e : r.firstEntry()).getValue();
+	}
+
+	public byte[] lookup(final MapInfo mi, final byte[] key) throws IOException {
+		return await(execute(partitionFor(key), new ClusterEndpoint.Call<byte[]>() {
+			public CompletableFuture<byte[]> send(AsyncMapLookup l) {
+				return l.lookup(mi, key);
+			}
+		}));
+	}
+
+	public byte[] lookupAll(final MapInfo mi, final byte[] key) throws IOException {
+		return await(execute(partitionFor(key), new ClusterEndpoint.Call<byte[]>() {
+			public CompletableFuture<byte[]> send(AsyncMapLookup l) {
+				return l.lookupAll(mi, key);
+			}
+		}));
+	}
+
+	public byte[][] lookupMany(MapInfo mi, byte[][] keys) throws IOException {
+		MapInfo[] mis = new MapInfo[keys.length];
+		Arrays.fill(mis, mi);
+		return lookupMany(mis, keys);
+	}
+
+	/**
+	 * Sends each partition its keys as one batch, all partitions at once.
+	 */
+	public byte[][] lookupMany(MapInfo[] mis, byte[][] keys) throws IOException {
+		Map<Partition, List<Integer>> groups = new java.util.IdentityHashMap<Partition, List<Integer>>();
+		for (int i = 0; i < keys.length; i++) {
+			Partition p = partitionFor(keys[i]);
+			List<Integer> g = groups.get(p);
+			if (g == null)
+				groups.put(p, g = new ArrayList<Integer>());
+			g.add(i);
+		}
+
+		List<int[]> idxs = new ArrayList<int[]>();
+		List<CompletableFuture<byte[][]>> fs = new ArrayList<CompletableFuture<byte[][]>>();
+		for (Map.Entry<Partition, List<Integer>> e : groups.entrySet()) {
+			List<Integer> g = e.getValue();
+			int[] idx = new int[g.size()];
+			final MapInfo[] gm = new MapInfo[idx.length];
+			final byte[][] gk = new byte[idx.length][];
+			for (int j = 0; j < idx.length; j++) {
+				idx[j] = g.get(j);
+				gm[j] = mis[idx[j]];
+				gk[j] = keys[idx[j]];
+			}
+			idxs.add(idx);
+			fs.add(execute(e.getKey(), new ClusterEndpoint.Call<byte[][]>() {
+				public CompletableFuture<byte[][]> send(AsyncMapLookup l) {
+					return l.lookupMany(gm, gk);
+				}
+			}));
+		}
+
+		byte[][] res = new byte[keys.length][];
+		for (int i = 0; i < fs.size(); i++) {
+			byte[][] found = await(fs.get(i));
+			int[] idx = idxs.get(i);
+			for (int j = 0; j < idx.length; j++)
+				res[idx[j]] = found[j];
+		}
+		return res;
+	}
+
+	/**
+	 * Asks every replica, and checks they all serve the same generation.
+	 * Replicas that can't be reached are left out, as long as each
+	 * partition has one that answers.
+	 * @return <code>map=NAME|TYPE generation=G replicas=ANSWERED/ALL
+	 *  queries=Q misses=M</code>, the counts summed over the replicas
+	 * @throws IOException if replicas serve different generations, or a
+	 *  partition has none that answers
+	 */
+	public String stat(final MapInfo mi) throws IOException {
+		List<Partition> ps = snapshot();
+		if (ps.isEmpty())
+			throw new IllegalStateException("No partitions");
+		ClusterEndpoint.Call<String> call = new ClusterEndpoint.Call<String>() {
+			public CompletableFuture<String> send(AsyncMapLookup l) {
+				return l.stat(mi);
+			}
+		};
+		List<List<CompletableFuture<String>>> fs = new ArrayList<List<CompletableFuture<String>>>();
+		for (Partition p : ps)
+			fs.add(p.sendAll(call));
+
+		long generation = -1;
+		ClusterEndpoint first = null;
+		int answered = 0, replicas = 0;
+		long queries = 0, misses = 0;
+		for (int i = 0; i < ps.size(); i++) {
+			Partition p = ps.get(i);
+			IOException unreachable = null;
+			int before = answered;
+			for (int j = 0; j < p.replicas.length; j++) {
+				replicas++;
+				String r;
+				try {
+					r = await(fs.get(i).get(j));
+				} catch (IOException e) {
+					unreachable = e;
+					continue;
+				}
+				long g = CdbMapLookup.statValue(r, "generation");
+				if (first == null) {
+					first = p.replicas[j];
+					generation = g;
+				} else if (g != generation) {
+					throw new IOException("Replicas disagree on the generation of " + mi + ": "
+							+ first + " serves " + generation + ", " + p.replicas[j] + " serves " + g);
+				}
+				queries += Math.max(0, CdbMapLookup.statValue(r, "queries"));
+				misses += Math.max(0, CdbMapLookup.statValue(r, "misses"));
+				answered++;
+			}
+			if (answered == before)
+				throw new IOException("No replica of partition " + p.name + " answered", unreachable);
+		}
+		byte[] prefix = mi.getQueryPrefix();
+		return "map=" + new String(prefix, 0, prefix.length - 1) + " generation=" + generation
+				+ " replicas=" + answered + "/" + replicas + " queries=" + queries + " misses=" + misses;
+	}
+
+	/** Stands for the partition's name in the path given to updateMap. */
+	public static final String PARTITION = "{partition}";
+
+	/**
+	 * Has every replica load the map, and waits for all of them.  A
+	 * {@link #PARTITION} in path is replaced with each partition's name,
+	 * for partitions built apart; otherwise every partition loads the
+	 * same path.
+	 * @return <code>loaded PATH generation=G replicas=N</code>
+	 * @throws IOException if a replica failed to load, or they ended up at
+	 *  different generations
+	 */
+	@Deprecated
+	public byte[] updateMap(final MapInfo mi, String path, final boolean full) throws IOException {
+		List<Partition> ps = snapshot();
+		if (ps.isEmpty())
+			throw new IllegalStateException("No partitions");
+		List<List<CompletableFuture<byte[]>>> fs = new ArrayList<List<CompletableFuture<byte[]>>>();
+		for (Partition p : ps) {
+			final String ppath = path.replace(PARTITION, p.name);
+			fs.add(p.sendAll(new ClusterEndpoint.Call<byte[]>() {
+				public CompletableFuture<byte[]> send(AsyncMapLookup l) {
+					return l.updateMap(mi, ppath, full);
+				}
+			}));
+		}
+
+		/* Wait for every load before reporting any failure. */
+		Exception failed = null;
+		ClusterEndpoint failedAt = null;
+		long generation = -1;
+		ClusterEndpoint first = null;
+		String disagree = null;
+		int n = 0;
+		for (int i = 0; i < ps.size(); i++) {
+			Partition p = ps.get(i);
+			for (int j = 0; j < p.replicas.length; j++) {
+				byte[] r;
+				try {
+					r = await(fs.get(i).get(j));
+				} catch (IOException e) {
+					if (failed == null) {
+						failed = e;
+						failedAt = p.replicas[j];
+					}
+					continue;
+				} catch (RuntimeException e) {
+					if (failed == null) {
+						failed = e;
+						failedAt = p.replicas[j];
+					}
+					continue;
+				}
+				n++;
+				long g = CdbMapLookup.statValue(new String(r, StandardCharsets.ISO_8859_1), "generation");
+				if (first == null) {
+					first = p.replicas[j];
+					generation = g;
+				} else if (g != generation && disagree == null) {
+					disagree = first + " is at " + generation + ", " + p.replicas[j] + " at " + g;
+				}
+			}
+		}
+		if (failed != null)
+			throw new IOException("Update of " + mi + " failed on " + failedAt + ": " + failed.getMessage(), failed);
+		if (disagree != null)
+			throw new IOException("Replicas disagree on the generation of " + mi + " after the update: " + disagree);
+		return ("loaded " + path + " generation=" + generation + " replicas=" + n).getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Sends call to the partition's best replica, fails over to the next
+	 * on errors, and hedges on the next after the hedge delay.
+	 */
+	private <T> CompletableFuture<T> execute(Partition p, ClusterEndpoint.Call<T> call) {
+		final Attempt<T> a = new Attempt<T>(p.ranked(), call);
+		a.launch();
+		if (hedging && a.order.length > 1) {
+			final ScheduledFuture<?> h = ClusterEndpoint.timer.schedule(new Runnable() {
+				public void run() {
+					a.hedge();
+				}
+			}, getHedgeDelayMicros(), TimeUnit.MICROSECONDS);
+			a.result.whenComplete(new BiConsumer<T, Throwable>() {
+				public void accept(T v, Throwable t) {
+					h.cancel(false);
+				}
+			});
+		}
+		return a.result;
+	}
+
+	private <T> T await(CompletableFuture<T> f) throws IOException {
+		try {
+			return f.get();
+		} catch (ExecutionException e) {
+			Throwable t = ClusterEndpoint.unwrap(e);
+			if (t instanceof IOException)
+				throw (IOException)t;
+			if (t instanceof RuntimeException)
+				throw (RuntimeException)t;
+			throw new IOException(t);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for reply");
+		}
+	}
+
+	/**
+	 * One request's tries over a partition's replicas, best first.
+	 */
+	private final class Attempt<T> {
+		final ClusterEndpoint[] order;
+		final ClusterEndpoint.Call<T> call;
+		final CompletableFuture<T> result = new CompletableFuture<T>();
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger outstanding = new AtomicInteger();
+		final long start = System.nanoTime();
+		volatile Throwable lastError;
+
+		Attempt(ClusterEndpoint[] order, ClusterEndpoint.Call<T> call) {
+			this.order = order;
+			this.call = call;
+		}
+
+		void launch() {
+			int i = next.getAndIncrement();
+			if (i >= order.length) {
+				if (outstanding.get() == 0)
+					result.completeExceptionally(lastError != null ? lastError : new IOException("No replica answered"));
+				return;
+			}
+			outstanding.incrementAndGet();
+			order[i].send(call).whenComplete(new BiConsumer<T, Throwable>() {
+				public void accept(T v, Throwable t) {
+					outstanding.decrementAndGet();
+					if (t == null) {
+						if (result.complete(v))
+							latency.record((System.nanoTime() - start) / 1000);
+						return;
+					}
+					lastError = ClusterEndpoint.unwrap(t);
+					if (!result.isDone())
+						launch();
+				}
+			});
+		}
+
+		void hedge() {
+			if (!result.isDone() && next.get() < order.length) {
+				hedges.increment();
+				launch();
+			}
+		}
+	}
+
+	/**
+	 * A slice of the key space and the replicas serving it.
+	 */
+	static final class Partition {
+		final String name;
+		final ClusterEndpoint[] replicas;
+
+		Partition(String name, ClusterEndpoint[] replicas) {
+			this.name = name;
+			this.replicas = replicas;
+		}
+
+		/**
+		 * Replicas to try, in order: those up before those down, lowest
+		 * score first; now and then a random one first instead.
+		 */
+		ClusterEndpoint[] ranked() {
+			ClusterEndpoint[] r = replicas.clone();
+			if (r.length == 1)
+				return r;
+			final boolean[] up = new boolean[r.length];
+			final double[] score = new double[r.length];
+			Integer[] order = new Integer[r.length];
+			for (int i = 0; i < r.length; i++) {
+				up[i] = r[i].isUp();
+				score[i] = r[i].score();
+				order[i] = i;
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					if (up[a] != up[b])
+						return up[a] ? -1 : 1;
+					return Double.compare(score[a], score[b]);
+				}
+			});
+			ClusterEndpoint[] out = new ClusterEndpoint[r.length];
+			for (int i = 0; i < r.length; i++)
+				out[i] = r[order[i]];
+
+			ThreadLocalRandom rnd = ThreadLocalRandom.current();
+			if (rnd.nextInt(PROBE_ONE_IN) == 0) {
+				int j = rnd.nextInt(out.length);
+				if (out[j].isUp())
+					Collections.swap(Arrays.asList(out), 0, j);
+			}
+			return out;
+		}
+
+		/** Sends call to every replica at once. */
+		<T> List<CompletableFuture<T>> sendAll(ClusterEndpoint.Call<T> call) {
+			List<CompletableFuture<T>> fs = new ArrayList<CompletableFuture<T>>(replicas.length);
+			for (ClusterEndpoint e : replicas)
+				fs.add(e.send(call));
+			return fs;
+		}
+
+		@Override
+		public String toString() {
+			return name + Arrays.toString(replicas);
+		}
+	}
+}
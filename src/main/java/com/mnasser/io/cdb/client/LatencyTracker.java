@@ -0,0 +1,56 @@
+package com.mnasser.io.cdb.client;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A percentile of recent latencies: the last few thousand samples kept in
+ * a ring, sorted every so often to read the percentile off.
+ * 
+ * @author mnasser
+ */
+final class LatencyTracker {
+
+	private static final int SIZE = 4096;
+	private static final int RECOMPUTE_EVERY = 256;
+	/** Fewer samples than this and there is no percentile yet. */
+	private static final int MIN_SAMPLES = 64;
+
+	private final AtomicLongArray samples = new AtomicLongArray(SIZE);
+	private final AtomicLong count = new AtomicLong();
+	private volatile double percentile;
+	private volatile long value = -1;
+
+	LatencyTracker(double percentile) {
+		this.percentile = percentile;
+	}
+
+	void setPercentile(double p) {
+		this.percentile = p;
+		recompute();
+	}
+
+	void record(long micros) {
+		long i = count.getAndIncrement();
+		samples.lazySet((int)(i % SIZE), micros);
+		if (i % RECOMPUTE_EVERY == RECOMPUTE_EVERY - 1)
+			recompute();
+	}
+
+	/** The percentile in micros; -1 until there are enough samples. */
+	long get() {
+		return value;
+	}
+
+	private void recompute() {
+		int n = (int)Math.min(count.get(), SIZE);
+		if (n < MIN_SAMPLES)
+			return;
+		long[] s = new long[n];
+		for (int i = 0; i < n; i++)
+			s[i] = samples.get(i);
+		Arrays.sort(s);
+		value = s[Math.min(n - 1, (int)(percentile * n))];
+	}
+}
@@ -39,6 +39,41 @@ public interface MapLookup {
 	 */
 	public abstract byte[] lookupAll(MapInfo mi, byte[] key) throws IOException;
 
+	/**
+	 * Looks up many keys of one map in as few round trips as the
+	 * protocol allows.  By default one lookup per key.
+	 * @return values, one per key; null where the map has none
+	 * @throws IOException
+	 */
+	public default byte[][] lookupMany(MapInfo mi, byte[][] keys) throws IOException {
+		byte[][] res = new byte[keys.length][];
+		for (int i = 0; i < keys.length; i++)
+			res[i] = lookup(mi, keys[i]);
+		return res;
+	}
+
+	/**
+	 * As {@link #lookupMany(MapInfo, byte[][])}, with keys[i] looked up in
+	 * mis[i].
+	 */
+	public default byte[][] lookupMany(MapInfo[] mis, byte[][] keys) throws IOException {
+		byte[][] res = new byte[keys.length][];
+		for (int i = 0; i < keys.length; i++)
+			res[i] = lookup(mis[i], keys[i]);
+		return res;
+	}
+
+	/**
+	 * Asks the server about a map: one line of name=value pairs, e.g.
+	 * <code>map=NAME|TYPE generation=3 shards=5 fpp=0.01 queries=812 misses=9</code>
+	 * @throws IOException
+	 * @throws UnsupportedOperationException if this lookup cannot ask;
+	 *  the default
+	 */
+	public default String stat(MapInfo mi) throws IOException {
+		throw new UnsupportedOperationException(getClass().getName() + " does not report map stats");
+	}
+
 	@Deprecated
 	public abstract byte[] updateMap(MapInfo mi, String path, boolean full)
 			throws IOException;
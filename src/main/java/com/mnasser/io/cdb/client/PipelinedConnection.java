@@ -0,0 +1,212 @@
+package com.mnasser.io.cdb.client;
+
+import static com.mnasser.io.cdb.client.CdbConstants.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * One connection of a {@link PipelinedMapLookup}.  Any thread may send;
+ * requests go out in the order they are queued and a reader thread
+ * matches replies to them in that same order, so many requests can be in
+ * flight at once.
+ * 
+ * @author mnasser
+ */
+final class PipelinedConnection {
+
+	private final Socket s;
+	private final BufferedOutputStream out;
+	private final DataInputStream in;
+	private final Thread reader;
+
+	/** Requests sent and not yet answered, oldest first. */
+	private final ConcurrentLinkedQueue<Pending> inFlight = new ConcurrentLinkedQueue<Pending>();
+	/** Caps requests in flight so a stalled server can't pile up memory. */
+	private final Semaphore window;
+	private final int maxInFlight;
+	/** Only touched by the reader thread. */
+	private final ResultPolicy rp = new ResultPolicy();
+
+	private volatile IOException broken = null;
+	/** Protocol version granted by the server; fixed once connected. */
+	private final int version;
+
+	PipelinedConnection(String host, int port, int connectTimeout, int maxInFlight, int wantVersion) throws IOException {
+		s = new Socket();
+		s.connect(new InetSocketAddress(host, port), connectTimeout);
+		s.setTcpNoDelay(true);
+		out = new BufferedOutputStream(s.getOutputStream(), 8192);
+		in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 8192));
+		if (wantVersion > 1) {
+			out.write(CdbMapLookup.buildVersionRequest(wantVersion));
+			out.flush();
+			int first = in.read();
+			version = CdbMapLookup.parseVersionReply(first < 0 ? null : readLine(first));
+		} else {
+			version = 1;
+		}
+		this.maxInFlight = maxInFlight;
+		window = new Semaphore(maxInFlight);
+
+		reader = new Thread("cdb-client-" + host + ":" + port) {
+			public void run() {
+				readReplies();
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	boolean isBroken() {
+		return broken != null;
+	}
+
+	/** Requests sent and not yet answered. */
+	int load() {
+		return maxInFlight - window.availablePermits();
+	}
+
+	/**
+	 * Queues one request, flushing if flush is set.
+	 */
+	CompletableFuture<byte[]> send(byte action, byte[] prefix, byte[] key, boolean flush) throws IOException {
+		Pending p = new Pending(action);
+		try {
+			if (!window.tryAcquire()) {
+				/* Unflushed requests would never be answered. */
+				flush();
+				window.acquire();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting to send");
+		}
+		synchronized (out) {
+			if (broken != null) {
+				window.release();
+				throw broken;
+			}
+			/* Queued before it is written, so the reader always finds it. */
+			inFlight.add(p);
+			try {
+				out.write(CdbMapLookup.buildRequest(version, action, prefix, key));
+				if (flush)
+					out.flush();
+			} catch (IOException e) {
+				fail(e);
+				throw e;
+			}
+		}
+		return p;
+	}
+
+	void flush() throws IOException {
+		synchronized (out) {
+			try {
+				out.flush();
+			} catch (IOException e) {
+				fail(e);
+				throw e;
+			}
+		}
+	}
+
+	private void readReplies() {
+		try {
+			while (true) {
+				int status = in.read();
+				if (status < 0)
+					throw new EOFException("Server closed connection");
+				Pending p = inFlight.poll();
+				if (p == null)
+					throw new IOException("Reply with no request : " + (char)status);
+
+				/* Values are read straight into the array handed back. */
+				byte code;
+				byte[] res;
+				int off = 0;
+				if (version >= 2) {
+					/* What was read is the length's low byte. */
+					int len = status | in.readUnsignedByte() << 8 | in.readUnsignedByte() << 16
+							| in.readUnsignedByte() << 24;
+					code = in.readByte();
+					res = new byte[len - 1];
+					in.readFully(res);
+				} else if (status == rACK && (p.action == ACT_QUERY || p.action == ACT_QUERY_ALL || p.action == ACT_QUERY_BATCH)) {
+					code = (byte)status;
+					res = new byte[Integer.reverseBytes(in.readInt())];
+					in.readFully(res);
+					in.read(); // trailing newline
+				} else {
+					code = (byte)status;
+					res = readLine(status);
+					off = 1;
+				}
+				window.release();
+				try {
+					int n = rp.processResult(code, res, off, res.length - off);
+					p.complete(n < 0 ? null : off == 0 ? res : Arrays.copyOfRange(res, off, res.length));
+				} catch (RuntimeException e) {
+					p.completeExceptionally(e);
+				}
+			}
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	private byte[] readLine(int first) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(64);
+		bos.write(first);
+		int c;
+		while ((c = in.read()) != '\n') {
+			if (c < 0)
+				throw new EOFException("Server closed connection");
+			bos.write(c);
+		}
+		return bos.toByteArray();
+	}
+
+	/** Fails everything in flight; the connection is not used again. */
+	private void fail(IOException e) {
+		if (broken == null)
+			broken = e;
+		close();
+		/* Under the send lock, so nothing is queued behind the drain. */
+		synchronized (out) {
+			Pending p;
+			while ((p = inFlight.poll()) != null) {
+				window.release();
+				p.completeExceptionally(broken);
+			}
+		}
+	}
+
+	void close() {
+		try {
+			s.close();
+		} catch (IOException ignored) {
+		}
+		if (broken == null)
+			broken = new IOException("Connection closed");
+	}
+
+	private static final class Pending extends CompletableFuture<byte[]> {
+		final byte action;
+
+		Pending(byte action) {
+			this.action = action;
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package com.mnasser.io.cdb.client;
+
+import static com.mnasser.io.cdb.client.CdbConstants.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Thread safe lookup client.  Keeps a small pool of connections to one
+ * server and pipelines requests down them: callers don't wait for each
+ * other's round trips, and {@link #lookupMany(MapInfo, byte[][])} sends a
+ * whole batch before reading any reply.
+ * <p>
+ * Replies come back in request order on each connection, so they are
+ * matched to requests by position.  A connection that fails fails its
+ * requests in flight and is replaced on next use.
+ * 
+ * @author mnasser
+ */
+public class PipelinedMapLookup implements MapLookup {
+
+	public static final int DEFAULT_CONNECTIONS = 4;
+	public static final int DEFAULT_MAX_IN_FLIGHT = 1024;
+
+	private final String host;
+	private final int port;
+	private final PipelinedConnection[] pool;
+	private final int maxInFlight;
+	private int connectTimeout = 6001;
+	private int protocolVersion = 1;
+	private long timeoutMillis = 30000;
+	private volatile boolean closed = false;
+
+	public PipelinedMapLookup(String host, int port) {
+		this(host, port, DEFAULT_CONNECTIONS, DEFAULT_MAX_IN_FLIGHT);
+	}
+
+	/**
+	 * @param connections connections to keep open
+	 * @param maxInFlight requests allowed in flight per connection
+	 */
+	public PipelinedMapLookup(String host, int port, int connections, int maxInFlight) {
+		if (connections < 1 || maxInFlight < 1)
+			throw new IllegalArgumentException("Need at least one connection and one request in flight");
+		this.host = host;
+		this.port = port;
+		this.pool = new PipelinedConnection[connections];
+		this.maxInFlight = maxInFlight;
+	}
+
+	public String getHost() { return host; }
+	public int getPort()    { return port; }
+
+	/** How long the blocking calls wait for a reply. */
+	public void setTimeout(long millis) {
+		this.timeoutMillis = millis;
+	}
+
+	public void setConnectTimeout(int millis) {
+		this.connectTimeout = millis;
+	}
+
+	/**
+	 * Protocol version new connections ask for; 1, the default, to not
+	 * ask.  See
+	 * {@link CdbMapLookup#setProtocolVersion(int)}.
+	 */
+	public void setProtocolVersion(int v) {
+		this.protocolVersion = v;
+	}
+
+	/**
+	 * Opens every connection in the pool.
+	 */
+	public void connect() {
+		closed = false;
+		for (int i = 0; i < pool.length; i++) {
+			try {
+				connection(i);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	public boolean isConnected() {
+		if (closed)
+			return false;
+		for (int i = 0; i < pool.length; i++) {
+			PipelinedConnection c;
+			synchronized (pool) {
+				c = pool[i];
+			}
+			if (c != null && !c.isBroken())
+				return true;
+		}
+		return false;
+	}
+
+	public void close() {
+		synchronized (pool) {
+			closed = true;
+			for (int i = 0; i < pool.length; i++) {
+				if (pool[i] != null)
+					pool[i].close();
+				pool[i] = null;
+			}
+		}
+	}
+
+	/** Connection i, reconnected if it broke. */
+	private PipelinedConnection connection(int i) throws IOException {
+		synchronized (pool) {
+			if (closed)
+				throw new IOException("Lookup closed");
+			PipelinedConnection c = pool[i];
+			if (c == null || c.isBroken()) {
+				c = new PipelinedConnection(host, port, connectTimeout, maxInFlight, protocolVersion);
+				pool[i] = c;
+			}
+			return c;
+		}
+	}
+
+	/** The least loaded connection. */
+	private PipelinedConnection pick() throws IOException {
+		int best = 0;
+		int bestLoad = Integer.MAX_VALUE;
+		synchronized (pool) {
+			for (int i = 0; i < pool.length; i++) {
+				PipelinedConnection c = pool[i];
+				int load = (c == null || c.isBroken()) ? 0 : c.load();
+				if (load < bestLoad) {
+					best = i;
+					bestLoad = load;
+				}
+			}
+		}
+		return connection(best);
+	}
+
+	/**
+	 * Sends a lookup without waiting for it.  The future's value is what
+	 * {@link #lookup(MapInfo, byte[])} would return.
+	 */
+	public Future<byte[]> lookupAsync(MapInfo mi, byte[] key) throws IOException {
+		return pick().send(ACT_QUERY, mi.getQueryPrefix(), key, true);
+	}
+
+	public byte[] lookup(MapInfo mi, byte[] key) throws IOException {
+		return await(pick().send(ACT_QUERY, mi.getQueryPrefix(), key, true));
+	}
+
+	public byte[] lookupAll(MapInfo mi, byte[] key) throws IOException {
+		return await(pick().send(ACT_QUERY_ALL, mi.getQueryPrefix(), key, true));
+	}
+
+	public byte[][] lookupMany(MapInfo mi, byte[][] keys) throws IOException {
+		MapInfo[] mis = new MapInfo[keys.length];
+		Arrays.fill(mis, mi);
+		return lookupMany(mis, keys);
+	}
+
+	/**
+	 * Looks up every key in batch requests spread over the pool; all
+	 * batches are sent before any reply is read.
+	 */
+	public byte[][] lookupMany(MapInfo[] mis, byte[][] keys) throws IOException {
+		List<CompletableFuture<byte[]>> fs = new ArrayList<CompletableFuture<byte[]>>();
+		List<Integer> bounds = new ArrayList<Integer>();
+		for (int from = 0, to; from < keys.length; from = to) {
+			to = CdbMapLookup.batchEnd(keys, from);
+			fs.add(pick().send(ACT_QUERY_BATCH, CdbMapLookup.NO_PREFIX, CdbMapLookup.buildBatchBody(mis, keys, from, to), true));
+			bounds.add(from);
+		}
+		byte[][] res = new byte[keys.length][];
+		for (int i = 0; i < fs.size(); i++) {
+			int from = bounds.get(i);
+			int to = i + 1 < bounds.size() ? bounds.get(i + 1) : keys.length;
+			CdbMapLookup.parseBatchResult(await(fs.get(i)), res, from, to);
+		}
+		return res;
+	}
+
+	public String stat(MapInfo mi) throws IOException {
+		return new String(await(pick().send(ACT_STAT, mi.getQueryPrefix(), CdbMapLookup.NO_PREFIX, true)), "ISO-8859-1");
+	}
+
+	@Deprecated
+	public byte[] updateMap(MapInfo mi, String path, boolean full) throws IOException {
+		return await(pick().send(ACT_UPDATE, mi.getQueryPrefix(), CdbMapLookup.buildUpdateArgs(path, full), true));
+	}
+
+	private byte[] await(Future<byte[]> f) throws IOException {
+		try {
+			return f.get(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (ExecutionException e) {
+			Throwable t = e.getCause();
+			if (t instanceof IOException)
+				throw (IOException)t;
+			if (t instanceof RuntimeException)
+				throw (RuntimeException)t;
+			throw new RuntimeException(t);
+		} catch (TimeoutException e) {
+			throw new IOException("No reply from " + host + ":" + port + " in " + timeoutMillis + "ms");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for reply");
+		}
+	}
+}
@@ -34,6 +34,27 @@ public class ResultPolicy {
 		return processUnknown(res);
 	}
 	
+	/**
+	 * Checks a reply without copying it: status, with its payload in
+	 * buf[off, off+len).
+	 * @return len if the reply carries a value, -1 if it carries none
+	 */
+	public int processResult( byte status, byte[] buf, int off, int len ){
+		rcode = status;
+		
+		if( rcode == CdbConstants.rACK )
+			return len;
+		
+		if( rcode == CdbConstants.rNAK )
+			return -1;
+		
+		String msg = (char)status + new String(buf, off, len);
+		if( rcode == CdbConstants.rEXP )
+			throw new RuntimeException("RemoteLookup exception occured! "+ msg);
+		
+		throw new RuntimeException("RemoteLookup got UNKNOWN result occured! "+ msg);
+	}
+	
 	protected byte[] processNull   (byte[] res) {
 		throw new RuntimeException("RemoteLookup got NULL when looking for a response!"); 
 	}
@@ -17,11 +17,14 @@ import org.slf4j.LoggerFactory;
 import org.apache.commons.cli.*;
 
 import com.mnasser.io.*;
+import com.mnasser.io.cdb.ShardedCdb;
 
 public class HDist implements HDistable {
 
 	public static Logger _log = LoggerFactory.getLogger(HDist.class);
 	
+	/** @deprecated Leaves negative values negative; use {@link ShardedCdb#shardOf(int, int)}. */
+	@Deprecated
 	public static int hashMod(int mod){  return ( mod < 0 )?  mod %  CDB_SHARD_COUNT :  mod; 	}
 	
 	public static long _time(long _start){ 	return System.currentTimeMillis() - _start;	}
@@ -303,10 +306,7 @@ public class HDist implements HDistable {
 				c = bis.read();
 				k[i] = (byte)c;
 			}			
-			int mod = ByteBuilder.hashCode(k,0,ksize) % shard_count;
-			if (mod < 0) {
-				mod = mod + shard_count; // Python/corrected modulus
-			}
+			int mod = ShardedCdb.shardOf(ByteBuilder.hashCode(k,0,ksize), shard_count);
 			BufferedOutputStream shard = files[mod]; 
 			shard.write(buf.array,0,buf.count);
 			shard.write(k,0,ksize);
@@ -345,9 +345,7 @@ public class HDist implements HDistable {
 				cnt++;
 				idx = bb.indexOf((byte)delim);
 				key = bb.subSequence(0, idx);
-				mod = ByteBuilder.hashCode(key) % shard_count;
-				
-				if (mod < 0) mod = mod + shard_count; // Python/corrected modulus
+				mod = ShardedCdb.shardOf(ShardedCdb.hash(key), shard_count);
 				files[mod].write( bb.getContent() );
 				counts[mod]++;
 				
@@ -5,7 +5,17 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
@@ -167,19 +177,7 @@ public class HDistHelper implements HDistable {
 			throw ioe;
 		}
 		
-		String cmd =  
-		"export LC_ALL=C; \n" +
-		"for ff in `ls -1 "+base_name+"*shrd?`;do \n" +
-		"cat $ff ";
-		if (!cdbFormatted) {
-			cmd += "| sed 's/,/\\x01/' " +
-			"| awk -F \"\\x01\" 'BEGIN{vlen=0;klen=0}{klen=length($1);vlen=length($2);print \"+\"klen\",\"vlen\":\"$1\"->\"$2}END{print \"\"}' ";
-		}
-		 cmd += "| cdb -c $ff.cdb && rm $ff && echo $ff.cdb &\n" +
-		"done\n" +
-		"wait";
-
-		ShellUtils.shellOut(_log, cmd);
+		buildShards(base_name, cdbFormatted);
 		
 		
 		_log.info("Built CDBs.");
@@ -187,11 +185,11 @@ public class HDistHelper implements HDistable {
 		
 		String targzfn = dir.getAbsolutePath() + "/mapData."+cdbPrefix+".cdb_shards.tar";
 		
-		cmd = "for ff in `ls -1 "+base_name+"*shrd*.cdb`;do \n" +
+		String cmd = "for ff in `ls -1 "+base_name+"*shrd*.cdb "+base_name+"*shrd*.cdb.bloom 2>/dev/null`;do \n" +
 		"gzip -c $ff > $ff.gz & \n" + 
 		"done\n" +
 		"wait\n" +
-		"cd "+dir.getAbsolutePath()+" && tar -cf   "+targzfn+" *shrd*.cdb.gz --remove-files   2>/dev/null ";
+		"cd "+dir.getAbsolutePath()+" && tar -cf   "+targzfn+" *shrd*.cdb*.gz --remove-files   2>/dev/null ";
 
 		//ShellUtils.shellOut(_log, "cd "+dir.getAbsolutePath()+" && tar -czf   "+targzfn+" *.cdb   2>/dev/null ");
 		ShellUtils.shellOut(_log, cmd );
@@ -204,6 +202,109 @@ public class HDistHelper implements HDistable {
 	}
 	
 	
+	/**
+	 * Turns each HDist'ed shard <code>base_name.shrd[n]</code> into
+	 * <code>base_name.shrd[n].cdb</code> with {@link CdbMake}, all shards
+	 * at once, and removes the shard text files.
+	 * 
+	 * @param base_name Path prefix of the shards.
+	 * @param cdbFormatted true if shards hold cdbmake formatted records;
+	 * 		false if they hold 'key,value' lines.
+	 * @throws IOException if any shard failed to build.
+	 */
+	static void buildShards(String base_name, final boolean cdbFormatted) throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(CDB_SHARD_COUNT);
+		/* Hash tables get their own threads; sharing the shard pool
+		 * could leave every shard waiting on queued table builds. */
+		final ExecutorService tables = Executors.newFixedThreadPool(
+				Runtime.getRuntime().availableProcessors());
+		try {
+			List<Future<String>> builds = new ArrayList<Future<String>>();
+			for( int ii = 0 ; ii < CDB_SHARD_COUNT; ii++ ){
+				final File shard = new File(base_name + ".shrd" + ii);
+				builds.add( pool.submit(new Callable<String>() {
+					public String call() throws IOException {
+						String cdb = shard.getPath() + ".cdb";
+						buildShard(shard, cdb, cdbFormatted, tables);
+						shard.delete();
+						return cdb;
+					}
+				}));
+			}
+			for( Future<String> f : builds ){
+				try {
+					_log.info( f.get() );
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted building CDBs");
+				} catch (ExecutionException e) {
+					if( e.getCause() instanceof IOException )
+						throw (IOException) e.getCause();
+					throw new RuntimeException(e.getCause());
+				}
+			}
+		} finally {
+			pool.shutdown();
+			tables.shutdown();
+		}
+	}
+
+	/**
+	 * Builds one CDB from one shard.  Unformatted shards hold
+	 * 'key,value' lines; the key runs up to the first comma and the value
+	 * is the rest of the line.  Each CDB gets a {@link CdbFilter} next to
+	 * it.  A shard with no file gets an empty CDB, so every shard is there
+	 * to pack and to open.
+	 */
+	private static void buildShard(File shard, String cdb, boolean cdbFormatted,
+			ExecutorService tables) throws IOException {
+		CdbMake cm = new CdbMake(tables);
+		cm.setFilter(CdbFilter.DEFAULT_FPP);
+		cm.start(cdb);
+		if( !shard.exists() ){
+			cm.finish();
+			return;
+		}
+		InputStream in = new BufferedInputStream(new FileInputStream(shard), 1 << 16);
+		try {
+			if( cdbFormatted ){
+				cm.addAll(in);
+				cm.finish();
+				return;
+			}
+			
+			byte[] line = new byte[256];
+			int len = 0;
+			int c;
+			while( (c = in.read()) != -1 ){
+				if( c != '\n' ){
+					if( len == line.length )
+						line = Arrays.copyOf(line, len * 2);
+					line[len++] = (byte)c;
+					continue;
+				}
+				addLine(cm, line, len);
+				len = 0;
+			}
+			if( len > 0 )
+				addLine(cm, line, len);
+			cm.finish();
+		} finally {
+			in.close();
+		}
+	}
+	
+	/* Adds one 'key,value' line to the CDB. */
+	private static void addLine(CdbMake cm, byte[] line, int len) throws IOException {
+		int idx = 0;
+		while( idx < len && line[idx] != ',' ) idx++;
+		if( idx == len )
+			cm.add(line, 0, len, line, 0, 0);
+		else
+			cm.add(line, 0, idx, line, idx + 1, len - idx - 1);
+	}
+	
+	
 	/**
 	 * Updates existing dump file with newer key/values in delta.
 	 *  
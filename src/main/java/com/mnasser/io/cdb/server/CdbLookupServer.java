@@ -0,0 +1,230 @@
+package com.mnasser.io.cdb.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mnasser.io.cdb.CdbGeneration;
+import com.mnasser.io.cdb.client.CdbConstants;
+import com.mnasser.io.cdb.client.MapInfo;
+
+/**
+ * Serves local CDB shards over the {@link CdbConstants} protocol that
+ * {@link com.mnasser.io.cdb.client.CdbMapLookup} speaks.
+ * <p>
+ * One thread accepts connections and hands them round-robin to a fixed
+ * set of {@link Reactor}s, each a selector thread answering its
+ * connections' lookups straight from the mmap()'d shards.  Connections
+ * cost a few KB of buffers each and no thread, so tens of thousands of
+ * them are fine.
+ * <pre>
+ * CdbLookupServer s = new CdbLookupServer(9999, 4);
+ * s.serve(new MapInfo("EMAIL", FileMapType.STRING_TO_STRING_CDB), "/data/email");
+ * s.start();
+ * </pre>
+ * 
+ * @author mnasser
+ */
+public class CdbLookupServer implements CdbConstants {
+
+	public static Logger _log = LoggerFactory.getLogger(CdbLookupServer.class);
+
+	public static final int DEFAULT_PORT = 9999;
+
+	private final InetSocketAddress address;
+	private final MapRegistry registry = new MapRegistry();
+	private final Reactor[] reactors;
+	private final ExecutorService waiter;
+	private ServerSocketChannel server;
+	private Thread acceptor;
+	private volatile boolean running = false;
+
+	/**
+	 * @param port port to listen on; 0 picks a free one
+	 * @param threads number of reactor threads
+	 */
+	public CdbLookupServer(int port, int threads) throws IOException {
+		this(new InetSocketAddress(port), threads);
+	}
+
+	public CdbLookupServer(InetSocketAddress address, int threads) throws IOException {
+		if (threads < 1)
+			throw new IllegalArgumentException("Need at least one reactor thread : " + threads);
+		this.address = address;
+		this.waiter = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "cdb-server-update");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		RequestHandler handler = new RequestHandler(registry, waiter);
+		this.reactors = new Reactor[threads];
+		for (int i = 0; i < threads; i++)
+			reactors[i] = new Reactor("cdb-reactor-" + i, handler);
+	}
+
+	public MapRegistry getRegistry() {
+		return registry;
+	}
+
+	/**
+	 * Loads the shards at prefix and serves them as mi, replacing what mi
+	 * served before.  Blocks until they are loaded.
+	 */
+	public CdbGeneration serve(MapInfo mi, String prefix) throws IOException {
+		try {
+			return registry.getOrCreate(mi).getHandle().reload(prefix).get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new RuntimeException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted loading " + prefix);
+		}
+	}
+
+	/**
+	 * Binds and starts serving.
+	 */
+	public synchronized void start() throws IOException {
+		if (running)
+			return;
+		server = ServerSocketChannel.open();
+		server.socket().setReuseAddress(true);
+		server.socket().bind(address, 1024);
+		running = true;
+		for (Reactor r : reactors)
+			r.start();
+
+		acceptor = new Thread("cdb-acceptor-" + getPort()) {
+			public void run() {
+				int next = 0;
+				while (running) {
+					try {
+						SocketChannel ch = server.accept();
+						ch.configureBlocking(false);
+						ch.socket().setTcpNoDelay(true);
+						reactors[next].adopt(ch);
+						next = (next + 1) % reactors.length;
+					} catch (ClosedChannelException e) {
+						break;
+					} catch (IOException e) {
+						_log.warn("accept failed", e);
+					}
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+		_log.info("Serving " + registry.maps().size() + " maps on port " + getPort() + " with " + reactors.length + " reactors");
+	}
+
+	/** The port bound; only meaningful once started. */
+	public int getPort() {
+		return server == null ? address.getPort() : server.socket().getLocalPort();
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Stops accepting, drops every connection and unmaps every map.
+	 */
+	public synchronized void close() {
+		running = false;
+		try {
+			if (server != null)
+				server.close();
+		} catch (IOException e) {
+			_log.warn("Failed to close server socket", e);
+		}
+		/* A connection accepted just before must reach its reactor
+		 * before the reactor stops, or it is never closed. */
+		if (acceptor != null) {
+			try {
+				acceptor.join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		for (Reactor r : reactors)
+			r.shutdown();
+		for (Reactor r : reactors) {
+			try {
+				r.join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		waiter.shutdownNow();
+		registry.close();
+	}
+
+	public static Options prepOpts() {
+		Options options = new Options();
+		options.addOption("p", "port", true, "Port to listen on. Default " + DEFAULT_PORT);
+		options.addOption("t", "threads", true, "Number of reactor threads. Default: one per cpu");
+		options.addOption("m", "map", true, "Map to serve, as MAP_NAME|MAP_TYPE=SHARD_PREFIX. Repeatable.");
+		return options;
+	}
+
+	public static void main(String[] args) throws IOException {
+		CommandLine cmd = null;
+		try {
+			cmd = new PosixParser().parse(prepOpts(), args);
+		} catch (ParseException pe) {
+			fail(pe.getMessage());
+		}
+
+		int port = cmd.hasOption('p') ? Integer.parseInt(cmd.getOptionValue('p')) : DEFAULT_PORT;
+		int threads = cmd.hasOption('t') ? Integer.parseInt(cmd.getOptionValue('t'))
+				: Runtime.getRuntime().availableProcessors();
+
+		final CdbLookupServer s = new CdbLookupServer(port, threads);
+		if (cmd.hasOption('m')) {
+			for (String m : cmd.getOptionValues('m')) {
+				int eq = m.indexOf('=');
+				int bar = m.lastIndexOf(DELIM_MAP, eq);
+				if (eq < 0 || bar < 0)
+					fail("Bad map " + m + " : expected MAP_NAME|MAP_TYPE=SHARD_PREFIX");
+				MapInfo mi = new MapInfo(m.substring(0, bar), Integer.parseInt(m.substring(bar + 1, eq)));
+				_log.info("Loaded " + s.serve(mi, m.substring(eq + 1)));
+			}
+		}
+		s.start();
+
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				s.close();
+			}
+		});
+		while (s.isRunning()) {
+			try {
+				Thread.sleep(1000);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+	}
+
+	public static void fail(String msg) {
+		System.err.println(msg);
+		System.exit(1);
+	}
+}
@@ -0,0 +1,383 @@
+package com.mnasser.io.cdb.server;
+
+import static com.mnasser.io.cdb.client.CdbConstants.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * One client connection, owned by one {@link Reactor}: a growing input
+ * buffer that requests are parsed out of in place, and an output buffer
+ * replies are appended to in request order.
+ * <p>
+ * Requests are pipelined: the complete requests in the input are handled
+ * before anything is written, and all their replies go out in one write.
+ * A reply that is not ready yet ({@link #defer()}) holds back the ones
+ * behind it.  Once too much output is waiting to be written, requests
+ * already read are left unparsed and no more are read until it has
+ * drained, so a client that sends without reading costs at most about
+ * {@link #HIGH_WATER} bytes of replies.
+ * <p>
+ * Only the reactor thread may call into a Connection, except
+ * {@link Reply#complete(byte[])}.
+ * 
+ * @author mnasser
+ */
+final class Connection {
+
+	private static final byte[] NONE = new byte[0];
+
+	/** Longest request accepted. */
+	static final int MAX_REQUEST = 1 << 20;
+
+	/** Stop handling requests once this much output is waiting. */
+	static final int HIGH_WATER = 1 << 20;
+
+	/** Nor handle more while this many replies are held back. */
+	static final int MAX_PENDING = 1024;
+
+	/** Size of a fresh input buffer, which it goes back to after a large
+	 * request. */
+	static final int IN_SIZE = 1024;
+
+	/** Output buffers bigger than this are dropped once drained. */
+	private static final int KEEP_OUT = 64 * 1024;
+
+	final SocketChannel ch;
+	final Reactor reactor;
+	private final RequestHandler handler;
+	SelectionKey key;
+
+	private ByteBuffer in = ByteBuffer.allocate(IN_SIZE);
+	/** Input up to here has no newline in it. */
+	private int scanned = 0;
+	/** The input holds requests left unparsed because of the backlog. */
+	private boolean parked = false;
+	/** Output waiting to be written, in write mode; null when none. */
+	private ByteBuffer out = null;
+	/** Replies queued behind one that is not ready yet. */
+	private final ArrayDeque<Reply> pending = new ArrayDeque<Reply>();
+	/** Bytes of the replies in pending that are ready. */
+	private int pendingBytes = 0;
+	private boolean closeWhenFlushed = false;
+	private boolean closed = false;
+
+	/** Protocol version; switched by a version request. */
+	int version = 1;
+
+	/** Last map spec seen, and what it resolved to; see RequestHandler. */
+	byte[] lastSpec = null;
+	ServedMap lastMap = null;
+
+	Connection(SocketChannel ch, Reactor reactor, RequestHandler handler) {
+		this.ch = ch;
+		this.reactor = reactor;
+		this.handler = handler;
+	}
+
+	/**
+	 * Reads what has arrived and handles the complete requests in it.
+	 */
+	void onReadable() throws IOException {
+		if (parked) {
+			/* Read interest was dropped; a stale readiness. */
+			flush();
+			return;
+		}
+		int n = ch.read(in);
+		if (n < 0) {
+			close();
+			return;
+		}
+		parse();
+		flush();
+	}
+
+	/** Output written or queued but not yet written, in bytes. */
+	private int backlog() {
+		return (out == null ? 0 : out.position()) + pendingBytes;
+	}
+
+	private boolean backlogged() {
+		return backlog() >= HIGH_WATER || pending.size() >= MAX_PENDING;
+	}
+
+	/**
+	 * Handles the complete requests in the input until it runs out or
+	 * the backlog is full, and keeps what is left for later.
+	 */
+	private void parse() {
+		byte[] a = in.array();
+		int end = in.position();
+		int start = 0;
+		/* Bytes the partial request at start needs; 0 while unknown. */
+		int need = 0;
+		parked = false;
+		while (start < end && !closed) {
+			if (backlogged()) {
+				parked = true;
+				break;
+			}
+			int stop;
+			if (version >= 2) {
+				/* INT length, then the frame. */
+				if (end - start < 4) {
+					need = 4;
+					break;
+				}
+				int len = (a[start] & 0xff) | (a[start + 1] & 0xff) << 8
+						| (a[start + 2] & 0xff) << 16 | (a[start + 3] & 0xff) << 24;
+				if (len < 0 || len > MAX_REQUEST) {
+					tooLong();
+					return;
+				}
+				if (end - start < 4 + len) {
+					need = 4 + len;
+					break;
+				}
+				handler.handleFrame(this, a, start + 4, len);
+				start += 4 + len;
+				scanned = start;
+				continue;
+			}
+			if (a[start] == ACT_QUERY_BATCH) {
+				/* Length-prefixed binary frame; keys may hold newlines. */
+				if (end - start < 6) {
+					need = 6;
+					break;
+				}
+				int len = (a[start + 2] & 0xff) | (a[start + 3] & 0xff) << 8
+						| (a[start + 4] & 0xff) << 16 | (a[start + 5] & 0xff) << 24;
+				if (len < 0 || len > MAX_REQUEST) {
+					tooLong();
+					return;
+				}
+				stop = start + 6 + len;
+				if (stop >= end) {
+					need = stop + 1 - start;
+					break;
+				}
+			} else {
+				stop = Math.max(start, scanned);
+				while (stop < end && a[stop] != '\n')
+					stop++;
+				if (stop == end)
+					break;
+			}
+			handler.handle(this, a, start, stop - start);
+			start = stop + 1;
+			scanned = start;
+		}
+		if (closed)
+			return;
+
+		/* Keep what is left, if any, at the front; in a fresh buffer if
+		 * a large request made this one big and what is left is small. */
+		int left = end - start;
+		if (in.capacity() > IN_SIZE && left <= IN_SIZE / 2 && need <= IN_SIZE) {
+			ByteBuffer fresh = ByteBuffer.allocate(IN_SIZE);
+			fresh.put(a, start, left);
+			in = fresh;
+		} else if (start > 0) {
+			System.arraycopy(a, start, a, 0, left);
+			in.position(left);
+		}
+		if (parked)
+			scanned = 0;
+		else
+			scanned = in.position();
+		if (!parked && (need > in.capacity() || !in.hasRemaining())) {
+			if (in.capacity() >= MAX_REQUEST + 7) {
+				tooLong();
+				return;
+			}
+			int size = in.capacity() * 2;
+			while (size < need)
+				size *= 2;
+			ByteBuffer bigger = ByteBuffer.allocate(Math.min(size, MAX_REQUEST + 7));
+			in.flip();
+			bigger.put(in);
+			in = bigger;
+		}
+	}
+
+	private void tooLong() {
+		handler.error(this, "request too long");
+		closeWhenFlushed = true;
+		parked = false;
+	}
+
+	/**
+	 * Queues a binary reply: one whose v1 form carries the payload's
+	 * length.
+	 */
+	void sendAck(byte status, byte[] payload) {
+		queue(status, payload, true);
+	}
+
+	/**
+	 * Queues a text reply: one whose v1 form is a line.
+	 */
+	void sendLine(byte status, byte[] msg) {
+		queue(status, msg, false);
+	}
+
+	void sendNak() {
+		queue(rNAK, NONE, false);
+	}
+
+	private void queue(byte status, byte[] payload, boolean binary) {
+		int len = encodedLength(version, payload, binary);
+		ByteBuffer b = pending.isEmpty() ? reserve(len) : ByteBuffer.allocate(len);
+		encode(b, version, status, payload, binary);
+		if (!pending.isEmpty()) {
+			pending.add(new Reply(this, b.array()));
+			pendingBytes += len;
+		}
+	}
+
+	/** A reply in the framing of the given version; see {@link #encode}. */
+	static byte[] encode(int version, byte status, byte[] payload, boolean binary) {
+		ByteBuffer b = ByteBuffer.allocate(encodedLength(version, payload, binary));
+		encode(b, version, status, payload, binary);
+		return b.array();
+	}
+
+	static int encodedLength(int version, byte[] payload, boolean binary) {
+		if (version >= 2)
+			return 5 + payload.length;
+		return (binary ? 6 : 2) + payload.length;
+	}
+
+	/**
+	 * Puts a reply into b.  In v2 that is the frame's length, the status
+	 * and the payload.  In v1 it is the status, the payload's length if
+	 * binary, the payload, then a newline.
+	 */
+	static void encode(ByteBuffer b, int version, byte status, byte[] payload, boolean binary) {
+		if (version >= 2) {
+			putIntLE(b, 1 + payload.length);
+			b.put(status).put(payload);
+			return;
+		}
+		b.put(status);
+		if (binary)
+			putIntLE(b, payload.length);
+		b.put(payload).put((byte)'\n');
+	}
+
+	private static void putIntLE(ByteBuffer b, int v) {
+		b.put((byte)v).put((byte)(v >>> 8)).put((byte)(v >>> 16)).put((byte)(v >>> 24));
+	}
+
+	/**
+	 * Holds a place for a reply that will be completed later, possibly by
+	 * another thread.
+	 */
+	Reply defer() {
+		Reply r = new Reply(this, null);
+		pending.add(r);
+		return r;
+	}
+
+	/** Output buffer with room for len more bytes. */
+	private ByteBuffer reserve(int len) {
+		if (out == null) {
+			out = ByteBuffer.allocate(Math.max(1024, len));
+		} else if (out.remaining() < len) {
+			ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + len));
+			out.flip();
+			bigger.put(out);
+			out = bigger;
+		}
+		return out;
+	}
+
+	/**
+	 * Moves ready replies into the output and writes as much as the
+	 * socket takes, then goes on with requests parked behind the
+	 * backlog while it has room.
+	 */
+	void flush() throws IOException {
+		while (!closed) {
+			while (!pending.isEmpty() && pending.peek().data != null) {
+				Reply r = pending.poll();
+				pendingBytes -= r.size;
+				reserve(r.data.length).put(r.data);
+			}
+			if (out != null && out.position() > 0) {
+				out.flip();
+				ch.write(out);
+				out.compact();
+				if (out.position() == 0 && out.capacity() > KEEP_OUT)
+					out = null;
+			}
+			if (!parked || backlogged())
+				break;
+			parse();
+		}
+		if (closed)
+			return;
+		boolean waiting = out != null && out.position() > 0;
+		if (!waiting && closeWhenFlushed && pending.isEmpty()) {
+			close();
+			return;
+		}
+		int ops = 0;
+		if (waiting)
+			ops |= SelectionKey.OP_WRITE;
+		if (!closeWhenFlushed && !parked && !backlogged())
+			ops |= SelectionKey.OP_READ;
+		if (key.interestOps() != ops)
+			key.interestOps(ops);
+	}
+
+	void close() {
+		if (closed)
+			return;
+		closed = true;
+		if (key != null)
+			key.cancel();
+		try {
+			ch.close();
+		} catch (IOException ignored) {
+		}
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * A reply that was not ready when its request was handled.
+	 */
+	static final class Reply {
+		private final Connection conn;
+		volatile byte[] data;
+		/** Bytes counted in pendingBytes for this reply. */
+		final int size;
+
+		Reply(Connection conn, byte[] data) {
+			this.conn = conn;
+			this.data = data;
+			this.size = data == null ? 0 : data.length;
+		}
+
+		/** Fills in the reply and has it sent.  Any thread. */
+		void complete(byte[] data) {
+			this.data = data;
+			conn.reactor.execute(new Runnable() {
+				public void run() {
+					try {
+						conn.flush();
+					} catch (IOException e) {
+						conn.close();
+					}
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package com.mnasser.io.cdb.server;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.mnasser.io.cdb.client.MapInfo;
+
+/**
+ * The maps a {@link CdbLookupServer} serves, by the
+ * <code>MAP_NAME|MAP_TYPE</code> spec requests name them with.
+ * Thread safe.
+ * 
+ * @author mnasser
+ */
+public class MapRegistry {
+
+	private final ConcurrentMap<String, ServedMap> maps = new ConcurrentHashMap<String, ServedMap>();
+
+	/** Spec requests name a map by. */
+	static String spec(MapInfo mi) {
+		return mi.getMapName() + "|" + mi.getMapType();
+	}
+
+	/**
+	 * The served map for mi, created (empty) if need be.
+	 */
+	public ServedMap getOrCreate(MapInfo mi) {
+		String spec = spec(mi);
+		ServedMap m = maps.get(spec);
+		if (m != null)
+			return m;
+		ServedMap created = new ServedMap(mi);
+		m = maps.putIfAbsent(spec, created);
+		if (m != null) {
+			created.getHandle().close();
+			return m;
+		}
+		return created;
+	}
+
+	/** The map named by spec; null if there is none. */
+	public ServedMap get(String spec) {
+		return maps.get(spec);
+	}
+
+	/** Stops serving the map named by spec. */
+	public ServedMap remove(String spec) {
+		ServedMap m = maps.remove(spec);
+		if (m != null) {
+			m.removed = true;
+			m.getHandle().close();
+		}
+		return m;
+	}
+
+	public Collection<ServedMap> maps() {
+		return maps.values();
+	}
+
+	/** Stops serving every map. */
+	public void close() {
+		for (String spec : maps.keySet())
+			remove(spec);
+	}
+}
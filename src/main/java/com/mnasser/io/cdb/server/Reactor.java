@@ -0,0 +1,104 @@
+package com.mnasser.io.cdb.server;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One selector thread serving its share of the connections.  Lookups are
+ * handled right on this thread: they are mmap() reads, cheaper than
+ * handing them to another thread would be.
+ * 
+ * @author mnasser
+ */
+final class Reactor extends Thread {
+
+	public static Logger _log = LoggerFactory.getLogger(Reactor.class);
+
+	private final Selector selector;
+	private final RequestHandler handler;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private volatile boolean running = true;
+
+	Reactor(String name, RequestHandler handler) throws IOException {
+		super(name);
+		setDaemon(true);
+		this.selector = Selector.open();
+		this.handler = handler;
+	}
+
+	/** Runs r on this thread, soon. */
+	void execute(Runnable r) {
+		tasks.add(r);
+		selector.wakeup();
+	}
+
+	/** Takes over a newly accepted connection. */
+	void adopt(final SocketChannel ch) {
+		execute(new Runnable() {
+			public void run() {
+				Connection c = new Connection(ch, Reactor.this, handler);
+				try {
+					c.key = ch.register(selector, SelectionKey.OP_READ, c);
+				} catch (IOException e) {
+					c.close();
+				}
+			}
+		});
+	}
+
+	void shutdown() {
+		running = false;
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (running) {
+				selector.select();
+				Runnable r;
+				while ((r = tasks.poll()) != null)
+					r.run();
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey k = it.next();
+					it.remove();
+					Connection c = (Connection)k.attachment();
+					try {
+						if (k.isValid() && k.isReadable())
+							c.onReadable();
+						if (k.isValid() && k.isWritable())
+							c.flush();
+					} catch (IOException e) {
+						c.close();
+					} catch (RuntimeException e) {
+						_log.warn(getName() + ": dropping connection", e);
+						c.close();
+					}
+				}
+			}
+		} catch (IOException e) {
+			_log.error(getName() + ": selector failed", e);
+		} finally {
+			/* Connections handed over but not yet adopted get closed too. */
+			Runnable r;
+			while ((r = tasks.poll()) != null)
+				r.run();
+			for (SelectionKey k : selector.keys())
+				((Connection)k.attachment()).close();
+			try {
+				selector.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+}
@@ -0,0 +1,422 @@
+package com.mnasser.io.cdb.server;
+
+import static com.mnasser.io.cdb.client.CdbConstants.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mnasser.io.cdb.Cdb;
+import com.mnasser.io.cdb.CdbFilter;
+import com.mnasser.io.cdb.CdbGeneration;
+import com.mnasser.io.cdb.ShardedCdb;
+import com.mnasser.io.cdb.client.CdbConstants;
+import com.mnasser.io.cdb.client.MapInfo;
+
+/**
+ * Parses and answers protocol requests, newline terminated:
+ * <pre>ACTION \t MAP_NAME|MAP_TYPE \t REST \n</pre>
+ * or, once a connection has switched to protocol v2, length prefixed
+ * frames; see {@link CdbConstants#PROTOCOL_VERSION}.
+ * <p>
+ * Lookups are answered on the reactor thread.  Batches are looked up on
+ * a worker, as they wait on the shards' pool.  Updates load the new
+ * shards on the map's loader thread and reply once the swap is done.
+ * 
+ * @author mnasser
+ */
+final class RequestHandler {
+
+	public static Logger _log = LoggerFactory.getLogger(RequestHandler.class);
+
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+	private final MapRegistry registry;
+	/** Waits on reloads and batches so reactors never block. */
+	private final ExecutorService waiter;
+
+	RequestHandler(MapRegistry registry, ExecutorService waiter) {
+		this.registry = registry;
+		this.waiter = waiter;
+	}
+
+	/**
+	 * Handles the protocol v1 request in a[off, off+len), without its
+	 * newline.
+	 */
+	void handle(Connection c, byte[] a, int off, int len) {
+		if (len == 0)
+			return;
+		byte action = a[off];
+		int end = off + len;
+		int specOff = off + 2;
+		if (len < 2 || a[off + 1] != DELIM_REQ) {
+			error(c, "malformed request");
+			return;
+		}
+		if (action == ACT_QUERY_BATCH) {
+			batch(c, a, off + 6, len - 6);
+			return;
+		}
+		int specEnd = specOff;
+		while (specEnd < end && a[specEnd] != DELIM_REQ)
+			specEnd++;
+		dispatch(c, action, a, specOff, specEnd, Math.min(specEnd + 1, end), end);
+	}
+
+	/**
+	 * Handles the protocol v2 frame in a[off, off+len), without its length:
+	 * <pre>BYTE action, SHORT length, MAP_NAME|MAP_TYPE, INT length, key</pre>
+	 */
+	void handleFrame(Connection c, byte[] a, int off, int len) {
+		int end = off + len;
+		if (len < 7) {
+			error(c, "malformed frame");
+			return;
+		}
+		byte action = a[off];
+		int specOff = off + 3;
+		int specEnd = specOff + ((a[off + 1] & 0xff) | (a[off + 2] & 0xff) << 8);
+		if (specEnd + 4 > end) {
+			error(c, "malformed frame");
+			return;
+		}
+		int restOff = specEnd + 4;
+		int restEnd = restOff + ((a[specEnd] & 0xff) | (a[specEnd + 1] & 0xff) << 8
+				| (a[specEnd + 2] & 0xff) << 16 | (a[specEnd + 3] & 0xff) << 24);
+		if (restEnd < restOff || restEnd > end) {
+			error(c, "malformed frame");
+			return;
+		}
+		if (action == ACT_QUERY_BATCH)
+			batch(c, a, restOff, restEnd - restOff);
+		else
+			dispatch(c, action, a, specOff, specEnd, restOff, restEnd);
+	}
+
+	/**
+	 * Answers a request for the map named by a[specOff, specEnd), with
+	 * a[restOff, end) its key or arguments.
+	 */
+	private void dispatch(Connection c, byte action, byte[] a, int specOff, int specEnd, int restOff, int end) {
+		if (action == ACT_VERSION) {
+			version(c, a, specOff, specEnd);
+			return;
+		}
+		if (action == ACT_UPDATE) {
+			update(c, a, specOff, specEnd, restOff, end);
+			return;
+		}
+		if (action == ACT_KILL) {
+			ServedMap m = registry.remove(new String(a, specOff, specEnd - specOff, LATIN1));
+			if (m == null)
+				error(c, "unknown map " + new String(a, specOff, specEnd - specOff, LATIN1));
+			else
+				text(c, "killed " + MapRegistry.spec(m.getInfo()));
+			return;
+		}
+
+		ServedMap m = resolve(c, a, specOff, specEnd);
+		if (m == null) {
+			error(c, "unknown map " + new String(a, specOff, specEnd - specOff, LATIN1));
+			return;
+		}
+		byte[] key = Arrays.copyOfRange(a, restOff, end);
+
+		switch (action) {
+		case ACT_QUERY:
+		case ACT_QUERY_ASCII: {
+			m.queries.increment();
+			byte[] v = m.getHandle().find(key);
+			if (v == null) {
+				m.misses.increment();
+				c.sendNak();
+			} else if (action == ACT_QUERY) {
+				c.sendAck(rACK, v);
+			} else {
+				c.sendLine(rACK, v);
+			}
+			break;
+		}
+		case ACT_QUERY_ALL: {
+			m.queries.increment();
+			List<byte[]> vs = findAll(m, key);
+			if (vs == null || vs.isEmpty()) {
+				m.misses.increment();
+				c.sendNak();
+				break;
+			}
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			for (byte[] v : vs) {
+				bos.write(v.length);
+				bos.write(v.length >>> 8);
+				bos.write(v.length >>> 16);
+				bos.write(v.length >>> 24);
+				bos.write(v, 0, v.length);
+			}
+			c.sendAck(rACK, bos.toByteArray());
+			break;
+		}
+		case ACT_STAT:
+			text(c, stat(m));
+			break;
+		default:
+			error(c, "unknown action " + (char)action);
+		}
+	}
+
+	/**
+	 * <code>V \t VERSION</code>: the client asks for a protocol version.
+	 * Answered with the version granted, in the framing asked in; what
+	 * follows on the connection uses the new framing.
+	 */
+	private void version(Connection c, byte[] a, int off, int end) {
+		int v;
+		try {
+			v = Integer.parseInt(new String(a, off, end - off, LATIN1).trim());
+		} catch (NumberFormatException e) {
+			error(c, "bad version");
+			return;
+		}
+		v = Math.max(1, Math.min(v, PROTOCOL_VERSION));
+		text(c, Integer.toString(v));
+		c.version = v;
+	}
+
+	/**
+	 * The map named by a[specOff, specEnd).  Clients mostly send one map's
+	 * requests down a connection, so the last one resolved is remembered.
+	 */
+	private ServedMap resolve(Connection c, byte[] a, int specOff, int specEnd) {
+		byte[] last = c.lastSpec;
+		int n = specEnd - specOff;
+		if (last != null && last.length == n && c.lastMap != null) {
+			int i = 0;
+			while (i < n && last[i] == a[specOff + i])
+				i++;
+			if (i == n && !c.lastMap.removed)
+				return c.lastMap;
+		}
+		ServedMap m = registry.get(new String(a, specOff, n, LATIN1));
+		if (m != null) {
+			c.lastSpec = Arrays.copyOfRange(a, specOff, specEnd);
+			c.lastMap = m;
+		}
+		return m;
+	}
+
+	private static List<byte[]> findAll(ServedMap m, byte[] key) {
+		CdbGeneration g = m.getHandle().acquire();
+		if (g == null)
+			return null;
+		try {
+			return g.getMap().findAll(key);
+		} finally {
+			g.leave();
+		}
+	}
+
+	/**
+	 * Answers a batch frame's body; see {@link CdbConstants#ACT_QUERY_BATCH}.
+	 * Each map's keys are looked up together, every shard's share on its
+	 * own thread, and the reply sent once all are in.
+	 */
+	private void batch(Connection c, byte[] a, int off, int len) {
+		final ServedMap[] maps;
+		final int[] mapOf;
+		final byte[][] keys;
+		try {
+			ByteBuffer b = ByteBuffer.wrap(a, off, len).order(ByteOrder.LITTLE_ENDIAN);
+			maps = new ServedMap[b.getShort() & 0xffff];
+			for (int i = 0; i < maps.length; i++) {
+				int sl = b.getShort() & 0xffff;
+				String spec = new String(a, b.position(), sl, LATIN1);
+				b.position(b.position() + sl);
+				if ((maps[i] = registry.get(spec)) == null) {
+					error(c, "unknown map " + spec);
+					return;
+				}
+			}
+			int n = b.getInt();
+			if (n < 0 || n > len / 6) {
+				error(c, "malformed batch");
+				return;
+			}
+			mapOf = new int[n];
+			keys = new byte[n][];
+			for (int i = 0; i < n; i++) {
+				mapOf[i] = b.getShort() & 0xffff;
+				if (mapOf[i] >= maps.length) {
+					error(c, "malformed batch");
+					return;
+				}
+				keys[i] = new byte[b.getInt()];
+				b.get(keys[i]);
+			}
+		} catch (RuntimeException e) {
+			error(c, "malformed batch");
+			return;
+		}
+
+		final int version = c.version;
+		final Connection.Reply reply = c.defer();
+		waiter.execute(new Runnable() {
+			public void run() {
+				byte[] r;
+				try {
+					byte[][] values = new byte[keys.length][];
+					for (int m = 0; m < maps.length; m++)
+						findMany(maps[m], m, mapOf, keys, values);
+					r = Connection.encode(version, rACK, batchReply(values), true);
+				} catch (RuntimeException e) {
+					_log.warn("Failed batch", e);
+					r = Connection.encode(version, rEXP, ("failed batch : " + e).replace('\n', ' ').getBytes(LATIN1), false);
+				}
+				reply.complete(r);
+			}
+		});
+	}
+
+	/** <code>INT count, then per value rNAK, or rACK INT length value</code> */
+	private static byte[] batchReply(byte[][] values) {
+		int size = 4;
+		for (byte[] v : values)
+			size += v == null ? 1 : 5 + v.length;
+		ByteBuffer r = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+		r.putInt(values.length);
+		for (byte[] v : values) {
+			if (v == null) {
+				r.put(rNAK);
+			} else {
+				r.put(rACK).putInt(v.length).put(v);
+			}
+		}
+		return r.array();
+	}
+
+	/** Looks up the keys of map number m into values. */
+	private static void findMany(ServedMap map, int m, int[] mapOf, byte[][] keys, byte[][] values) {
+		int n = 0;
+		for (int i = 0; i < mapOf.length; i++)
+			if (mapOf[i] == m)
+				n++;
+		int[] idx = new int[n];
+		byte[][] ks = new byte[n][];
+		for (int i = 0, j = 0; i < mapOf.length; i++) {
+			if (mapOf[i] == m) {
+				idx[j] = i;
+				ks[j++] = keys[i];
+			}
+		}
+		map.queries.add(n);
+		CdbGeneration g = map.getHandle().acquire();
+		if (g == null) {
+			map.misses.add(n);
+			return;
+		}
+		try {
+			byte[][] found = g.getMap().findMany(ks);
+			for (int j = 0; j < n; j++) {
+				if (found[j] == null)
+					map.misses.increment();
+				values[idx[j]] = found[j];
+			}
+		} finally {
+			g.leave();
+		}
+	}
+
+	static String stat(ServedMap m) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("map=").append(MapRegistry.spec(m.getInfo()));
+		CdbGeneration g = m.getHandle().acquire();
+		try {
+			sb.append(" generation=").append(g == null ? 0 : g.getId());
+			sb.append(" shards=").append(g == null ? 0 : g.getMap().getShardCount());
+			sb.append(" fpp=").append(g == null ? "none" : fpp(g.getMap()));
+		} finally {
+			if (g != null)
+				g.leave();
+		}
+		sb.append(" queries=").append(m.getQueries());
+		sb.append(" misses=").append(m.getMisses());
+		return sb.toString();
+	}
+
+	/** The worst false positive rate of the shards' filters; "none" if no
+	 * shard has one. */
+	private static String fpp(ShardedCdb map) {
+		double fpp = -1;
+		for (Cdb shard : map.getShards()) {
+			CdbFilter f = shard.getFilter();
+			if (f != null)
+				fpp = Math.max(fpp, f.getFalsePositiveRate());
+		}
+		return fpp < 0 ? "none" : String.valueOf(fpp);
+	}
+
+	/**
+	 * <code>u \t MAP_NAME|MAP_TYPE \t PATH \t (full|incremental)</code>
+	 * <p>
+	 * PATH is the shard prefix to load.  Shards are always whole builds,
+	 * so incremental updates load the same way full ones do.
+	 */
+	private void update(Connection c, byte[] a, int specOff, int specEnd, int restOff, int end) {
+		String spec = new String(a, specOff, specEnd - specOff, LATIN1);
+		int bar = spec.lastIndexOf(DELIM_MAP);
+		int pathEnd = restOff;
+		while (pathEnd < end && a[pathEnd] != DELIM_REQ)
+			pathEnd++;
+		final String path = new String(a, restOff, pathEnd - restOff, LATIN1);
+		if (bar < 0 || path.isEmpty()) {
+			error(c, "malformed update " + spec);
+			return;
+		}
+
+		final ServedMap m;
+		try {
+			m = registry.getOrCreate(new MapInfo(spec.substring(0, bar), Integer.parseInt(spec.substring(bar + 1))));
+		} catch (RuntimeException e) {
+			error(c, e.getMessage());
+			return;
+		}
+		final Future<CdbGeneration> f = m.getHandle().reload(path);
+		final int version = c.version;
+		final Connection.Reply reply = c.defer();
+		waiter.execute(new Runnable() {
+			public void run() {
+				String msg;
+				byte status = rACK;
+				try {
+					msg = "loaded " + path + " generation=" + f.get().getId();
+				} catch (ExecutionException e) {
+					_log.warn("Failed to load " + path, e.getCause());
+					status = rEXP;
+					msg = "failed to load " + path + " : " + e.getCause();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					status = rEXP;
+					msg = "interrupted loading " + path;
+				}
+				reply.complete(Connection.encode(version, status, msg.replace('\n', ' ').getBytes(LATIN1), false));
+			}
+		});
+	}
+
+	static void text(Connection c, String msg) {
+		c.sendLine(rACK, msg.replace('\n', ' ').getBytes(LATIN1));
+	}
+
+	void error(Connection c, String msg) {
+		c.sendLine(rEXP, msg.replace('\n', ' ').getBytes(LATIN1));
+	}
+}
@@ -0,0 +1,32 @@
+package com.mnasser.io.cdb.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import com.mnasser.io.cdb.CdbMapHandle;
+import com.mnasser.io.cdb.client.MapInfo;
+
+/**
+ * A map the server answers for: its live shards plus counters for
+ * stat requests.
+ * 
+ * @author mnasser
+ */
+public class ServedMap {
+
+	private final MapInfo info;
+	private final CdbMapHandle handle;
+	final LongAdder queries = new LongAdder();
+	final LongAdder misses = new LongAdder();
+	/** Set once the registry drops this map. */
+	volatile boolean removed = false;
+
+	ServedMap(MapInfo info) {
+		this.info = info;
+		this.handle = new CdbMapHandle(info.getMapName() + "|" + info.getMapType());
+	}
+
+	public MapInfo getInfo()        { return info;   }
+	public CdbMapHandle getHandle() { return handle; }
+	public long getQueries()        { return queries.sum(); }
+	public long getMisses()         { return misses.sum();  }
+}
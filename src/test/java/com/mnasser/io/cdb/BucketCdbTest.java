@@ -0,0 +1,118 @@
+package com.mnasser.io.cdb;
+
+import static com.mnasser.io.cdb.CdbTestFiles.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BucketCdbTest {
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = newDir("bucket");
+	}
+
+	@After
+	public void tearDown() {
+		delete(dir);
+	}
+
+	/** MurmurHash64A reference values, for every tail length. */
+	@Test
+	public void testHash() {
+		assertHash(0L, -8964588313662369710L, "");
+		assertHash(510903276987443985L, -1627098790175280210L, "a");
+		assertHash(-1309841653580345521L, -4217024802518074618L, "key0");
+		assertHash(2601573339036254301L, 6579574710207977633L, "abcdefg");
+		assertHash(-5775019520204625256L, 7024297616001814202L, "abcdefgh");
+		assertHash(-168101420080507798L, -5699232432033931449L, "abcdefghijklmno");
+		byte[] k = new byte[256];
+		for (int i = 0; i < k.length; i++)
+			k[i] = (byte)i;
+		assertEquals(-5842308394851645759L, BucketCdb.hash(k, 0, k.length, 0));
+		assertEquals(-6202815432527828249L, BucketCdb.hash(k, 0, k.length, 0x9747b28cL));
+
+		byte[] padded = "xxabcdefgyy".getBytes();
+		assertEquals(2601573339036254301L, BucketCdb.hash(padded, 2, 7, 0));
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		String path = new File(dir, "b.cdbb").getPath();
+		BucketCdbMake bm = new BucketCdbMake();
+		bm.start(path);
+		for (int i = 0; i < KEYS; i++)
+			bm.add(key(i), value(i));
+		bm.add("dup".getBytes(), "one".getBytes());
+		bm.add("dup".getBytes(), "two".getBytes());
+		bm.add(new byte[0], "empty key".getBytes());
+		bm.add(BINARY_KEY, "binary".getBytes());
+		bm.finish();
+
+		BucketCdb b = new BucketCdb(path);
+		try {
+			assertEquals(KEYS + 4, b.getEntries());
+			assertTrue(b.getMaxProbe() >= 1 && b.getMaxProbe() <= BucketCdbMake.MAX_PROBE);
+			for (int i = 0; i < KEYS; i++)
+				assertArrayEquals(value(i), b.find(key(i)));
+			assertArrayEquals("empty key".getBytes(), b.find(new byte[0]));
+			assertArrayEquals("binary".getBytes(), b.find(BINARY_KEY));
+			List<byte[]> dups = b.findAll("dup".getBytes());
+			assertEquals(2, dups.size());
+			assertArrayEquals("one".getBytes(), dups.get(0));
+			assertArrayEquals("two".getBytes(), dups.get(1));
+			for (int i = 0; i < 1000; i++)
+				assertNull(b.find(("absent" + i).getBytes()));
+			assertTrue(b.findAll("absent".getBytes()).isEmpty());
+		} finally {
+			b.close();
+		}
+		try {
+			b.find(key(0));
+			fail();
+		} catch (IllegalStateException e) {
+		}
+	}
+
+	@Test
+	public void testEmpty() throws IOException {
+		String path = new File(dir, "e.cdbb").getPath();
+		BucketCdbMake bm = new BucketCdbMake();
+		bm.start(path);
+		bm.finish();
+		BucketCdb b = new BucketCdb(path);
+		try {
+			assertEquals(0, b.getEntries());
+			assertNull(b.find(key(0)));
+		} finally {
+			b.close();
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testNotABucketCdb() throws IOException {
+		String path = new File(dir, "x.cdbb").getPath();
+		RandomAccessFile raf = new RandomAccessFile(path, "rw");
+		try {
+			raf.setLength(BucketCdb.HEADER_SIZE);
+		} finally {
+			raf.close();
+		}
+		new BucketCdb(path);
+	}
+
+	private static void assertHash(long unseeded, long seeded, String key) {
+		byte[] k = key.getBytes();
+		assertEquals(key, unseeded, BucketCdb.hash(k, 0, k.length, 0));
+		assertEquals(key, seeded, BucketCdb.hash(k, 0, k.length, 0x9747b28cL));
+	}
+}
@@ -0,0 +1,60 @@
+package com.mnasser.io.cdb;
+
+import static com.mnasser.io.cdb.CdbTestFiles.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class Cdb64Test {
+
+	private File dir;
+	private String path;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = newDir("cdb64");
+		path = new File(dir, "small.cdb64").getPath();
+		InputStream in = new FileInputStream(resource("small.txt"));
+		try {
+			CdbMake.make(in, path, CdbFormat.CDB64, null);
+		} finally {
+			in.close();
+		}
+	}
+
+	@After
+	public void tearDown() {
+		delete(dir);
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		Cdb cdb = new Cdb(path, CdbFormat.CDB64);
+		try {
+			assertEquals(CdbFormat.CDB64, cdb.getFormat());
+			for (int i = 0; i < KEYS; i++)
+				assertArrayEquals(value(i), cdb.find(key(i)));
+			assertEquals(3, cdb.findAll("dup".getBytes()).size());
+			assertArrayEquals("empty key".getBytes(), cdb.find(new byte[0]));
+			assertNotNull(cdb.find(BINARY_KEY));
+			assertNull(cdb.find("nokey".getBytes()));
+		} finally {
+			cdb.close();
+		}
+	}
+
+	@Test
+	public void testSameRecordsAsCdb() throws IOException {
+		/* Only the slot table and hash tables are wider. */
+		long cdbSize = new File(resource("small.cdb")).length();
+		long records = cdbSize - 2048 - 2 * 8 * 206;
+		assertEquals(4096 + records + 2 * 16 * 206, new File(path).length());
+	}
+}
@@ -0,0 +1,83 @@
+package com.mnasser.io.cdb;
+
+import static com.mnasser.io.cdb.CdbTestFiles.*;
+import static org.junit.Assert.*;
+
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Maps small.cdb in 64 byte segments, so reads straddle segments the way
+ * they do at every 1GB boundary of a large file.
+ */
+public class CdbBufferTest {
+
+	private static final int SHIFT = 6;
+
+	private CdbBuffer mm;
+	private ByteBuffer file;
+
+	@Before
+	public void setUp() throws Exception {
+		RandomAccessFile raf = new RandomAccessFile(resource("small.cdb"), "r");
+		FileChannel fc = raf.getChannel();
+		try {
+			mm = new CdbBuffer(fc, fc.size(), SHIFT);
+			file = ByteBuffer.allocate((int)fc.size()).order(ByteOrder.LITTLE_ENDIAN);
+			fc.read(file, 0);
+		} finally {
+			raf.close();
+		}
+	}
+
+	@After
+	public void tearDown() {
+		mm.unmap();
+	}
+
+	@Test
+	public void testSegments() {
+		assertEquals(file.capacity(), mm.size());
+		assertEquals((file.capacity() + 63) >> SHIFT, mm.segments().length);
+	}
+
+	@Test
+	public void testReadsAcrossSegments() {
+		int size = file.capacity();
+		for (int pos = 0; pos + 8 <= size; pos++) {
+			assertEquals(file.get(pos), mm.get(pos));
+			assertEquals(file.getInt(pos), mm.getInt(pos));
+			assertEquals(file.getLong(pos), mm.getLong(pos));
+			assertEquals(file.getInt(pos) & 0xffffffffL, mm.getUnsignedInt(pos));
+		}
+	}
+
+	@Test
+	public void testCopiesAndSlicesAcrossSegments() {
+		for (int pos = 40; pos < 200; pos += 7) {
+			int len = 100;
+			byte[] expected = new byte[len];
+			for (int i = 0; i < len; i++)
+				expected[i] = file.get(pos + i);
+
+			byte[] copy = new byte[len + 2];
+			mm.get(pos, copy, 2, len);
+			for (int i = 0; i < len; i++)
+				assertEquals(expected[i], copy[2 + i]);
+
+			ByteBuffer slice = mm.slice(pos, len);
+			assertTrue(slice.isReadOnly());
+			assertArrayEquals(expected, CdbTest.bytes(slice));
+
+			assertTrue(mm.equals(pos, expected));
+			expected[len - 1]++;
+			assertFalse(mm.equals(pos, expected));
+		}
+	}
+}
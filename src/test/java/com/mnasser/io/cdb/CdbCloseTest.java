@@ -0,0 +1,150 @@
+package com.mnasser.io.cdb;
+
+import static com.mnasser.io.cdb.CdbTestFiles.*;
+import static org.junit.Assert.*;
+
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+public class CdbCloseTest {
+
+	@Test
+	public void testFindAfterCloseFails() throws Exception {
+		Cdb cdb = new Cdb(resource("small.cdb"));
+		cdb.close();
+		cdb.close();
+		assertTrue(cdb.isClosed());
+		try {
+			cdb.find(key(0));
+			fail();
+		} catch (IllegalStateException e) {
+		}
+		try {
+			cdb.retain();
+			fail();
+		} catch (IllegalStateException e) {
+		}
+	}
+
+	@Test
+	public void testFindWhileClosing() throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		try {
+			for (int round = 0; round < 20; round++) {
+				final Cdb cdb = new Cdb(resource("small.cdb"));
+				final CountDownLatch started = new CountDownLatch(8);
+				List<Future<Integer>> fs = new ArrayList<Future<Integer>>();
+				for (int t = 0; t < 8; t++) {
+					fs.add(pool.submit(new Callable<Integer>() {
+						public Integer call() {
+							started.countDown();
+							int found = 0;
+							for (int i = 0; ; i = (i + 1) % KEYS) {
+								byte[] v;
+								try {
+									v = cdb.find(key(i));
+								} catch (IllegalStateException e) {
+									return found;
+								}
+								assertArrayEquals(value(i), v);
+								found++;
+							}
+						}
+					}));
+				}
+				started.await();
+				cdb.close();
+				for (Future<Integer> f : fs)
+					f.get();
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/** findBuffer() copies, as nothing would count a view's reader. */
+	@Test
+	public void testBufferOutlivesClose() throws Exception {
+		Cdb cdb = new Cdb(resource("small.cdb"));
+		ByteBuffer v = cdb.findBuffer(key(7));
+		List<ByteBuffer> all = cdb.findAllBuffers("dup".getBytes());
+		cdb.close();
+		assertArrayEquals(value(7), bytes(v));
+		assertEquals(3, all.size());
+		assertArrayEquals("three".getBytes(), bytes(all.get(2)));
+	}
+
+	@Test
+	public void testRecordViewsInsideStream() throws Exception {
+		int seen = 0;
+		Stream<CdbRecord> s = Cdb.stream(resource("small.cdb"), CdbFormat.CDB);
+		try {
+			Iterator<CdbRecord> it = s.iterator();
+			while (it.hasNext()) {
+				CdbRecord r = it.next();
+				String k = new String(bytes(r.key()), "ISO-8859-1");
+				if (k.startsWith("key")) {
+					assertArrayEquals(value(Integer.parseInt(k.substring(3))), bytes(r.data()));
+					seen++;
+				}
+			}
+		} finally {
+			s.close();
+		}
+		assertEquals(KEYS, seen);
+	}
+
+	/** Views handed out do not keep the mapping from being unmapped;
+	 * their readers are counted by whoever handed them out. */
+	@Test
+	public void testViewsDoNotHoldMapping() throws Exception {
+		FileChannel fc = new RandomAccessFile(resource("small.cdb"), "r").getChannel();
+		CdbBuffer b;
+		try {
+			b = new CdbBuffer(fc, fc.size());
+		} finally {
+			fc.close();
+		}
+		assertEquals(4, b.slice(2048, 4).remaining());
+		assertTrue(b.unmap());
+	}
+
+	@Test
+	public void testUnmapWaitsForLastReader() {
+		final AtomicInteger released = new AtomicInteger();
+		ReaderCount rc = new ReaderCount(new Runnable() {
+			public void run() {
+				released.incrementAndGet();
+			}
+		});
+		assertTrue(rc.enter());
+		assertTrue(rc.enter());
+		rc.close();
+		assertFalse(rc.enter());
+		rc.leave();
+		assertEquals(0, released.get());
+		rc.leave();
+		assertEquals(1, released.get());
+		rc.close();
+		assertEquals(1, released.get());
+	}
+
+	private static byte[] bytes(ByteBuffer b) {
+		byte[] a = new byte[b.remaining()];
+		b.duplicate().get(a);
+		return a;
+	}
+}
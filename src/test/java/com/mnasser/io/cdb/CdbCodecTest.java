@@ -0,0 +1,150 @@
+package com.mnasser.io.cdb;
+
+import static com.mnasser.io.cdb.CdbTestFiles.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CdbCodecTest {
+
+	private static final int RECORDS = 2000;
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = newDir("codec");
+	}
+
+	@After
+	public void tearDown() {
+		delete(dir);
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		List<byte[]> samples = new ArrayList<byte[]>();
+		for (int i = 0; i < RECORDS; i += 20)
+			samples.add(json(i));
+		CdbCodec codec = new CdbCodec(CdbCodec.train(samples, 4096), 6, 16);
+		assertTrue(codec.getDictionary().length > 0);
+		String plain = build("plain", null);
+		String packed = build("packed", codec);
+		assertTrue(new File(packed).length() + " vs " + new File(plain).length(),
+				new File(packed).length() < new File(plain).length() * 3 / 4);
+
+		Cdb cdb = new Cdb(packed);
+		try {
+			assertNotNull(cdb.getCodec());
+			assertArrayEquals(codec.getDictionary(), cdb.getCodec().getDictionary());
+			byte[] buf = new byte[64];
+			for (int i = 0; i < RECORDS; i++) {
+				byte[] v = json(i);
+				assertArrayEquals(v, cdb.find(key(i)));
+				ByteBuffer b = cdb.findBuffer(key(i));
+				assertEquals(v.length, b.remaining());
+				int n = cdb.find(key(i), buf, 0);
+				assertEquals(v.length, n);
+				if (n > buf.length)
+					buf = new byte[n];
+			}
+			assertArrayEquals(new byte[0], cdb.find("empty".getBytes()));
+			assertArrayEquals("short".getBytes(), cdb.find("short".getBytes()));
+
+			int seen = 0;
+			CdbScanner s = cdb.scan();
+			try {
+				while (s.hasNext()) {
+					CdbRecord r = s.next();
+					assertFalse(new String(r.getKey()).startsWith("\0"));
+					assertEquals(r.getData().length, r.getDataLength());
+					assertEquals(r.getDataLength(), r.data().remaining());
+					seen++;
+				}
+			} finally {
+				s.close();
+			}
+			assertEquals(RECORDS + 2, seen);
+
+			Stream<CdbRecord> st = cdb.stream();
+			try {
+				assertEquals(RECORDS + 2, st.count());
+			} finally {
+				st.close();
+			}
+		} finally {
+			cdb.close();
+		}
+	}
+
+	@Test
+	public void testShortAndIncompressibleValuesStayRaw() {
+		CdbCodec codec = new CdbCodec(new byte[0], 6, 16);
+		byte[] small = "tiny".getBytes();
+		byte[] e = codec.encode(small, 0, small.length);
+		assertEquals(CdbCodec.RAW, e[0]);
+		assertEquals(small.length + 1, e.length);
+
+		byte[] noise = new byte[1000];
+		new Random(1).nextBytes(noise);
+		e = codec.encode(noise, 0, noise.length);
+		assertEquals(CdbCodec.RAW, e[0]);
+
+		byte[] text = new byte[1000];
+		e = codec.encode(text, 0, text.length);
+		assertEquals(CdbCodec.DEFLATED, e[0]);
+		assertTrue(e.length < 100);
+	}
+
+	@Test
+	public void testDictionaryIsCapped() {
+		CdbCodec codec = new CdbCodec(new byte[CdbCodec.MAX_DICTIONARY + 100], 6, 0);
+		assertEquals(CdbCodec.MAX_DICTIONARY, codec.getDictionary().length);
+		assertTrue(CdbCodec.train(new ArrayList<byte[]>(), 1024).length <= 1024);
+	}
+
+	@Test(expected = IOException.class)
+	public void testUnknownCodecVersionFails() throws IOException {
+		String path = build("packed", new CdbCodec(new byte[0], 6, 16));
+		RandomAccessFile raf = new RandomAccessFile(path, "rw");
+		try {
+			/* The version, in the metadata record right after the slot
+			 * table. */
+			raf.seek(2048 + 8 + CdbCodec.META_KEY.length + 4);
+			raf.write(99);
+		} finally {
+			raf.close();
+		}
+		new Cdb(path).close();
+	}
+
+	private String build(String name, CdbCodec codec) throws IOException {
+		String path = new File(dir, name + ".cdb").getPath();
+		CdbMake cm = new CdbMake();
+		cm.setCompression(codec);
+		cm.start(path);
+		for (int i = 0; i < RECORDS; i++)
+			cm.add(key(i), json(i));
+		cm.add("empty".getBytes(), new byte[0]);
+		cm.add("short".getBytes(), "short".getBytes());
+		cm.finish();
+		return path;
+	}
+
+	private static byte[] json(int i) {
+		return ("{\"id\":" + i + ",\"name\":\"customer-" + i + "\",\"status\":\"active\","
+			+ "\"country\":\"" + (i % 3 == 0 ? "US" : "DE") + "\",\"tags\":[\"retail\",\"loyalty\"]}")
+			.getBytes();
+	}
+}
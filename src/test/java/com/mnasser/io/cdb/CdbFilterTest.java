@@ -0,0 +1,175 @@
+package com.mnasser.io.cdb;
+
+import static com.mnasser.io.cdb.CdbTestFiles.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CdbFilterTest {
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = newDir("filter");
+	}
+
+	@After
+	public void tearDown() {
+		delete(dir);
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		String path = build("a", key(0), 0.01);
+		Cdb cdb = new Cdb(path);
+		try {
+			CdbFilter f = cdb.getFilter();
+			assertNotNull(f);
+			assertEquals(KEYS, f.getEntries());
+			assertEquals(0.01, f.getFalsePositiveRate(), 0);
+			for (int i = 0; i < KEYS; i++) {
+				assertTrue(f.mightContain(key(i)));
+				assertArrayEquals(value(i), cdb.find(key(i)));
+			}
+			int hits = 0;
+			for (int i = 0; i < 10000; i++) {
+				byte[] k = ("absent" + i).getBytes();
+				if (f.mightContain(k))
+					hits++;
+				assertNull(cdb.find(k));
+			}
+			assertTrue("false positives: " + hits, hits < 300);
+		} finally {
+			cdb.close();
+		}
+	}
+
+	@Test
+	public void testRebuildWithoutFilterRemovesIt() throws IOException {
+		String path = build("a", key(0), 0.01);
+		assertTrue(new File(path + CdbFilter.SUFFIX).exists());
+		build("a", key(0), 0);
+		assertFalse(new File(path + CdbFilter.SUFFIX).exists());
+	}
+
+	/**
+	 * Swaps a key for another of the same length in the same hash table,
+	 * so the two builds have the same size and slot table, and checks the
+	 * first build's filter is refused by the second: their build ids
+	 * differ.
+	 */
+	@Test
+	public void testFilterOfOtherBuildRefused() throws IOException {
+		byte[] other = sameSlot(key(0));
+		String a = build("a", key(0), 0.01);
+		String b = build("b", other, 0.01);
+		assertEquals(new File(a).length(), new File(b).length());
+		assertArrayEquals(header(a), header(b));
+		Files.copy(new File(a + CdbFilter.SUFFIX).toPath(), new File(b + CdbFilter.SUFFIX).toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+
+		Cdb cdb = new Cdb(b);
+		try {
+			assertNull(cdb.getFilter());
+			assertArrayEquals(value(0), cdb.find(other));
+		} finally {
+			cdb.close();
+		}
+	}
+
+	/** The build id record is the file's own, not data. */
+	@Test
+	public void testBuildIdHidden() throws IOException {
+		String path = build("a", key(0), 0.01);
+		Cdb cdb = new Cdb(path);
+		try {
+			assertEquals(KEYS, cdb.stream().count());
+			int n = 0;
+			CdbScanner s = cdb.scan();
+			try {
+				while (s.hasNext()) {
+					assertFalse(Arrays.equals(CdbFilter.BUILD_KEY, s.next().getKey()));
+					n++;
+				}
+			} finally {
+				s.close();
+			}
+			assertEquals(KEYS, n);
+		} finally {
+			cdb.close();
+		}
+
+		/* A filter is refused by a CDB without a build id. */
+		build("b", key(0), 0);
+		Files.copy(new File(path + CdbFilter.SUFFIX).toPath(), new File(dir, "b.cdb" + CdbFilter.SUFFIX).toPath());
+		cdb = new Cdb(new File(dir, "b.cdb").getPath());
+		try {
+			assertNull(cdb.getFilter());
+		} finally {
+			cdb.close();
+		}
+	}
+
+	@Test
+	public void testDamagedFilterRefused() throws IOException {
+		String path = build("a", key(0), 0.01);
+		RandomAccessFile raf = new RandomAccessFile(path + CdbFilter.SUFFIX, "rw");
+		try {
+			raf.seek(4);
+			raf.write(9);
+		} finally {
+			raf.close();
+		}
+		Cdb cdb = new Cdb(path);
+		try {
+			assertNull(cdb.getFilter());
+			assertArrayEquals(value(0), cdb.find(key(0)));
+		} finally {
+			cdb.close();
+		}
+	}
+
+	/** key(0) .. key(KEYS - 1) with first swapped for the given key. */
+	private String build(String name, byte[] first, double fpp) throws IOException {
+		String path = new File(dir, name + ".cdb").getPath();
+		CdbMake cm = new CdbMake();
+		cm.setFilter(fpp);
+		cm.start(path);
+		cm.add(first, value(0));
+		for (int i = 1; i < KEYS; i++)
+			cm.add(key(i), value(i));
+		cm.finish();
+		return path;
+	}
+
+	/** A key other than key, of its length and in its hash table. */
+	private static byte[] sameSlot(byte[] key) {
+		int table = Cdb.hash(key) & 255;
+		for (int i = 0; ; i++) {
+			byte[] k = Arrays.copyOf(("x" + i).getBytes(), key.length);
+			if ((Cdb.hash(k) & 255) == table && !Arrays.equals(k, key))
+				return k;
+		}
+	}
+
+	private static byte[] header(String path) throws IOException {
+		byte[] h = new byte[2048];
+		RandomAccessFile raf = new RandomAccessFile(path, "r");
+		try {
+			raf.readFully(h);
+		} finally {
+			raf.close();
+		}
+		return h;
+	}
+}
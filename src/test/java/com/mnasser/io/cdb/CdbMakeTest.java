@@ -0,0 +1,116 @@
+package com.mnasser.io.cdb;
+
+import static com.mnasser.io.cdb.CdbTestFiles.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CdbMakeTest {
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = newDir("cdbmake");
+	}
+
+	@After
+	public void tearDown() {
+		delete(dir);
+	}
+
+	@Test
+	public void testMatchesCdbmake() throws IOException {
+		String out = new File(dir, "out.cdb").getPath();
+		CdbMake.make(resource("small.txt"), out);
+		assertArrayEquals(read(resource("small.cdb")), read(out));
+		assertFalse(new File(out + CdbFilter.SUFFIX).exists());
+	}
+
+	@Test
+	public void testParallelTablesMatchCdbmake() throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			String out = new File(dir, "out.cdb").getPath();
+			CdbMake cm = new CdbMake(pool);
+			cm.start(out);
+			cm.addAll(new ByteArrayInputStream(read(resource("small.txt"))));
+			cm.finish();
+			assertArrayEquals(read(resource("small.cdb")), read(out));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testAddWithOffsets() throws IOException {
+		String out = new File(dir, "out.cdb").getPath();
+		CdbMake cm = new CdbMake();
+		cm.start(out);
+		byte[] kv = "__key1value1value1__".getBytes();
+		cm.add(kv, 2, 4, kv, 6, 12);
+		cm.finish();
+
+		Cdb cdb = new Cdb(out);
+		try {
+			assertArrayEquals(value(1), cdb.find(key(1)));
+		} finally {
+			cdb.close();
+		}
+	}
+
+	@Test
+	public void testEmptyDatabase() throws IOException {
+		String out = new File(dir, "empty.cdb").getPath();
+		CdbMake cm = new CdbMake();
+		cm.start(out);
+		cm.finish();
+
+		/* cdbmake points every empty table at the end of the records. */
+		ByteBuffer expected = ByteBuffer.allocate(2048).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < 256; i++)
+			expected.putInt(2048).putInt(0);
+		assertArrayEquals(expected.array(), read(out));
+
+		Cdb cdb = new Cdb(out);
+		try {
+			assertNull(cdb.find(key(1)));
+		} finally {
+			cdb.close();
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testMalformedInput() throws IOException {
+		CdbMake.make(new ByteArrayInputStream("+3,1:ab->c\n\n".getBytes()),
+				new File(dir, "bad.cdb").getPath());
+	}
+
+	@Test(expected = IOException.class)
+	public void testTruncatedInput() throws IOException {
+		CdbMake.make(new ByteArrayInputStream("+3,5:abc->de".getBytes()),
+				new File(dir, "bad.cdb").getPath());
+	}
+
+	static byte[] read(String path) throws IOException {
+		RandomAccessFile f = new RandomAccessFile(path, "r");
+		try {
+			byte[] b = new byte[(int)f.length()];
+			f.readFully(b);
+			return b;
+		} finally {
+			f.close();
+		}
+	}
+}
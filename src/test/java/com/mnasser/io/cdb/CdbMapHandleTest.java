@@ -0,0 +1,93 @@
+package com.mnasser.io.cdb;
+
+import static com.mnasser.io.cdb.CdbTestFiles.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CdbMapHandleTest {
+
+	private File dir;
+	private CdbMapHandle handle;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = newDir("handle");
+		handle = new CdbMapHandle("test");
+	}
+
+	@After
+	public void tearDown() {
+		handle.close();
+		delete(dir);
+	}
+
+	@Test
+	public void testReloadSwapsGenerations() throws Exception {
+		assertNull(handle.find(key(0)));
+		assertEquals(0, handle.getGeneration());
+
+		CdbGeneration g1 = handle.reload(build("a", null)).get();
+		assertArrayEquals(value(0), handle.find(key(0)));
+		assertEquals(g1.getId(), handle.getGeneration());
+
+		CdbGeneration held = handle.acquire();
+		assertSame(g1, held);
+		CdbGeneration g2 = handle.reload(build("b", "+4,3:key0->new\n\n")).get();
+		assertTrue(g2.getId() > g1.getId());
+		assertArrayEquals("new".getBytes(), handle.find(key(0)));
+		assertNull(handle.find(key(1)));
+
+		/* The old generation is retired but still serves who is inside. */
+		assertTrue(g1.isRetired());
+		assertArrayEquals(value(1), held.find(key(1)));
+		held.leave();
+		assertTrue(g1.getMap().getShards()[0].isClosed());
+		assertFalse(g2.isRetired());
+	}
+
+	@Test
+	public void testFailedReloadKeepsCurrent() throws Exception {
+		CdbGeneration g1 = handle.reload(build("a", null)).get();
+		try {
+			handle.reload(new File(dir, "missing").getPath()).get();
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+		assertEquals(g1.getId(), handle.getGeneration());
+		assertArrayEquals(value(0), handle.find(key(0)));
+	}
+
+	@Test
+	public void testSwapAfterCloseRetires() throws Exception {
+		CdbGeneration g = CdbGeneration.open(handle.nextGenerationId(), build("a", null));
+		handle.close();
+		try {
+			handle.swap(g);
+			fail();
+		} catch (IllegalStateException e) {
+		}
+		assertTrue(g.isRetired());
+		assertTrue(g.getMap().getShards()[0].isClosed());
+		assertNull(handle.find(key(0)));
+	}
+
+	/** One-shard map of small.txt, or of the given cdbmake input. */
+	private String build(String name, String records) throws IOException {
+		String prefix = new File(dir, name).getPath();
+		String path = ShardedCdb.shardPath(prefix, 0);
+		if (records == null)
+			CdbMake.make(resource("small.txt"), path);
+		else
+			CdbMake.make(new ByteArrayInputStream(records.getBytes("ISO-8859-1")), path);
+		return prefix;
+	}
+}
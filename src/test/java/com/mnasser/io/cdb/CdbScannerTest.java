@@ -0,0 +1,140 @@
+package com.mnasser.io.cdb;
+
+import static com.mnasser.io.cdb.CdbTestFiles.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.junit.Test;
+
+public class CdbScannerTest {
+
+	@Test
+	public void testScanInFileOrder() throws Exception {
+		List<CdbElement> expected = records();
+		Cdb cdb = new Cdb(resource("small.cdb"));
+		try {
+			CdbScanner s = cdb.scan();
+			try {
+				for (CdbElement e : expected) {
+					assertTrue(s.hasNext());
+					CdbRecord r = s.next();
+					assertArrayEquals(e.getKey(), r.getKey());
+					assertArrayEquals(e.getData(), r.getData());
+					assertArrayEquals(e.getKey(), CdbTest.bytes(r.key()));
+					assertArrayEquals(e.getData(), CdbTest.bytes(r.data()));
+					assertEquals(e.getKey().length, r.getKeyLength());
+					assertEquals(e.getData().length, r.getDataLength());
+					assertTrue(r.keyEquals(e.getKey()));
+				}
+				assertFalse(s.hasNext());
+			} finally {
+				s.close();
+			}
+			assertFalse(cdb.isClosed());
+		} finally {
+			cdb.close();
+		}
+	}
+
+	@Test(expected = NoSuchElementException.class)
+	public void testNextPastTheEnd() throws Exception {
+		CdbScanner s = Cdb.scan(resource("small.cdb"));
+		try {
+			while (s.hasNext())
+				s.next();
+			s.next();
+		} finally {
+			s.close();
+		}
+	}
+
+	@Test
+	public void testGetDataIntoArray() throws Exception {
+		CdbScanner s = Cdb.scan(resource("small.cdb"));
+		try {
+			byte[] buf = new byte[64];
+			CdbRecord r = s.next();
+			assertEquals(value(0).length, r.getData(buf, 5));
+			for (int i = 0; i < value(0).length; i++)
+				assertEquals(value(0)[i], buf[5 + i]);
+		} finally {
+			s.close();
+		}
+	}
+
+	@Test
+	public void testClosedScannerStops() throws Exception {
+		CdbScanner s = Cdb.scan(resource("small.cdb"));
+		s.next();
+		s.close();
+		assertFalse(s.hasNext());
+		s.close();
+	}
+
+	@Test
+	public void testElements() throws Exception {
+		List<CdbElement> expected = records();
+		Enumeration<CdbElement> en = Cdb.elements(resource("small.cdb"));
+		for (CdbElement e : expected) {
+			assertTrue(en.hasMoreElements());
+			CdbElement got = en.nextElement();
+			assertArrayEquals(e.getKey(), got.getKey());
+			assertArrayEquals(e.getData(), got.getData());
+		}
+		assertFalse(en.hasMoreElements());
+	}
+
+	@Test
+	public void testScanCdb64() throws Exception {
+		File dir = newDir("scan64");
+		try {
+			String path = new File(dir, "small.cdb64").getPath();
+			CdbMake.make(new ByteArrayInputStream(CdbMakeTest.read(resource("small.txt"))),
+					path, CdbFormat.CDB64, null);
+			List<CdbElement> expected = records();
+			CdbScanner s = Cdb.scan(path, CdbFormat.CDB64);
+			try {
+				for (CdbElement e : expected)
+					assertArrayEquals(e.getData(), s.next().getData());
+				assertFalse(s.hasNext());
+			} finally {
+				s.close();
+			}
+		} finally {
+			delete(dir);
+		}
+	}
+
+	/** The records of small.txt, in order. */
+	static List<CdbElement> records() throws Exception {
+		byte[] txt = CdbMakeTest.read(resource("small.txt"));
+		List<CdbElement> records = new ArrayList<CdbElement>();
+		int p = 0;
+		while (txt[p] == '+') {
+			int comma = indexOf(txt, ',', p);
+			int colon = indexOf(txt, ':', comma);
+			int klen = Integer.parseInt(new String(txt, p + 1, comma - p - 1));
+			int dlen = Integer.parseInt(new String(txt, comma + 1, colon - comma - 1));
+			ByteArrayOutputStream k = new ByteArrayOutputStream();
+			k.write(txt, colon + 1, klen);
+			ByteArrayOutputStream d = new ByteArrayOutputStream();
+			d.write(txt, colon + 3 + klen, dlen);
+			records.add(new CdbElement(k.toByteArray(), d.toByteArray()));
+			p = colon + 3 + klen + dlen + 1;
+		}
+		return records;
+	}
+
+	private static int indexOf(byte[] b, char c, int from) {
+		while (b[from] != c)
+			from++;
+		return from;
+	}
+}
@@ -0,0 +1,123 @@
+package com.mnasser.io.cdb;
+
+import static com.mnasser.io.cdb.CdbTestFiles.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+public class CdbSpliteratorTest {
+
+	@Test
+	public void testStreamVisitsEveryRecordOnce() throws Exception {
+		Cdb cdb = new Cdb(resource("small.cdb"));
+		try {
+			Stream<CdbRecord> s = cdb.stream();
+			try {
+				assertEquals(sorted(CdbScannerTest.records()), sorted(s));
+			} finally {
+				s.close();
+			}
+		} finally {
+			cdb.close();
+		}
+	}
+
+	@Test
+	public void testParallelStream() throws Exception {
+		File dir = newDir("parallel");
+		try {
+			/* Enough records for tables big enough to split too. */
+			String path = new File(dir, "big.cdb").getPath();
+			CdbMake cm = new CdbMake();
+			cm.start(path);
+			for (int i = 0; i < 300000; i++)
+				cm.add(key(i), value(i));
+			cm.finish();
+
+			Stream<CdbRecord> s = Cdb.stream(path, CdbFormat.CDB);
+			try {
+				Set<String> keys = s.parallel().map(new Function<CdbRecord, String>() {
+					public String apply(CdbRecord r) {
+						assertArrayEquals(value(Integer.parseInt(new String(r.getKey()).substring(3))), r.getData());
+						return new String(r.getKey());
+					}
+				}).collect(Collectors.<String>toSet());
+				assertEquals(300000, keys.size());
+			} finally {
+				s.close();
+			}
+		} finally {
+			delete(dir);
+		}
+	}
+
+	@Test
+	public void testSplitsCoverEveryRecord() throws Exception {
+		Cdb cdb = new Cdb(resource("small.cdb"));
+		try {
+			List<Spliterator<CdbRecord>> parts = new ArrayList<Spliterator<CdbRecord>>();
+			parts.add(cdb.spliterator());
+			assertEquals(KEYS + 6, parts.get(0).estimateSize());
+			for (int round = 0; round < 10; round++) {
+				List<Spliterator<CdbRecord>> next = new ArrayList<Spliterator<CdbRecord>>();
+				for (Spliterator<CdbRecord> p : parts) {
+					Spliterator<CdbRecord> back = p.trySplit();
+					if (back != null)
+						next.add(back);
+					next.add(p);
+				}
+				parts = next;
+			}
+			assertEquals(256, parts.size());
+
+			final List<String> seen = new ArrayList<String>();
+			for (Spliterator<CdbRecord> p : parts) {
+				p.forEachRemaining(new Consumer<CdbRecord>() {
+					public void accept(CdbRecord r) {
+						seen.add(line(r.getKey(), r.getData()));
+					}
+				});
+			}
+			Collections.sort(seen);
+			assertEquals(sorted(CdbScannerTest.records()), seen);
+			assertEquals(seen.size(), new HashSet<String>(seen).size());
+		} finally {
+			cdb.close();
+		}
+	}
+
+	private static List<String> sorted(List<CdbElement> es) {
+		List<String> l = new ArrayList<String>();
+		for (CdbElement e : es)
+			l.add(line(e.getKey(), e.getData()));
+		Collections.sort(l);
+		return l;
+	}
+
+	private static List<String> sorted(Stream<CdbRecord> s) {
+		final List<String> l = new ArrayList<String>();
+		s.forEach(new Consumer<CdbRecord>() {
+			public void accept(CdbRecord r) {
+				l.add(CdbSpliteratorTest.line(r.getKey(), r.getData()));
+			}
+		});
+		Collections.sort(l);
+		return l;
+	}
+
+	private static String line(byte[] key, byte[] data) {
+		return new String(key) + "->" + new String(data);
+	}
+}
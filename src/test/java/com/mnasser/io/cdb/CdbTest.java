@@ -0,0 +1,274 @@
+package com.mnasser.io.cdb;
+
+import static com.mnasser.io.cdb.CdbTestFiles.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CdbTest {
+
+	private Cdb cdb;
+
+	@Before
+	public void open() throws Exception {
+		cdb = new Cdb(resource("small.cdb"));
+	}
+
+	@After
+	public void close() {
+		cdb.close();
+	}
+
+	@Test
+	public void testFindEveryKey() {
+		for (int i = 0; i < KEYS; i++)
+			assertArrayEquals(value(i), cdb.find(key(i)));
+		assertArrayEquals("one".getBytes(), cdb.find("dup".getBytes()));
+		assertArrayEquals("empty key".getBytes(), cdb.find(new byte[0]));
+		assertArrayEquals(new byte[0], cdb.find("nodata".getBytes()));
+		byte[] reversed = new byte[256];
+		for (int i = 0; i < 256; i++)
+			reversed[i] = (byte)(255 - i);
+		assertArrayEquals(reversed, cdb.find(BINARY_KEY));
+		assertNull(cdb.find("key200".getBytes()));
+		assertNull(cdb.find("nokey".getBytes()));
+	}
+
+	@Test
+	public void testConcurrentFind() throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Integer>> fs = new ArrayList<Future<Integer>>();
+			for (int t = 0; t < 8; t++) {
+				final int offset = t;
+				fs.add(pool.submit(new Callable<Integer>() {
+					public Integer call() {
+						int found = 0;
+						for (int round = 0; round < 50; round++) {
+							for (int i = 0; i < KEYS; i++) {
+								int k = (i + offset * 25) % KEYS;
+								assertArrayEquals(value(k), cdb.find(key(k)));
+								assertNull(cdb.find(("miss" + k).getBytes()));
+								found++;
+							}
+						}
+						return found;
+					}
+				}));
+			}
+			for (Future<Integer> f : fs)
+				assertEquals(50 * KEYS, f.get().intValue());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testFindnextKeepsStatePerThread() throws Exception {
+		final byte[] dup = "dup".getBytes();
+		cdb.findstart(dup);
+		assertArrayEquals("one".getBytes(), cdb.findnext(dup));
+
+		/* Another thread's search does not move this one along. */
+		Thread other = new Thread() {
+			public void run() {
+				cdb.findstart(dup);
+				cdb.findnext(dup);
+				cdb.findnext(dup);
+			}
+		};
+		other.start();
+		other.join();
+
+		assertArrayEquals("two".getBytes(), cdb.findnext(dup));
+		assertArrayEquals("three".getBytes(), cdb.findnext(dup));
+		assertNull(cdb.findnext(dup));
+	}
+
+	@Test
+	public void testFindAll() {
+		List<byte[]> all = cdb.findAll("dup".getBytes());
+		assertEquals(3, all.size());
+		assertArrayEquals("one".getBytes(), all.get(0));
+		assertArrayEquals("two".getBytes(), all.get(1));
+		assertArrayEquals("three".getBytes(), all.get(2));
+		assertTrue(cdb.findAll("nokey".getBytes()).isEmpty());
+	}
+
+	@Test
+	public void testFindBuffer() {
+		ByteBuffer b = cdb.findBuffer(key(7));
+		assertTrue(b.isReadOnly());
+		assertEquals(0, b.position());
+		assertArrayEquals(value(7), bytes(b));
+		assertEquals(0, cdb.findBuffer("nodata".getBytes()).remaining());
+		assertNull(cdb.findBuffer("nokey".getBytes()));
+	}
+
+	@Test(expected = ReadOnlyBufferException.class)
+	public void testFindBufferIsReadOnly() {
+		cdb.findBuffer(key(7)).put(0, (byte)0);
+	}
+
+	@Test
+	public void testFindAllBuffers() {
+		List<ByteBuffer> all = cdb.findAllBuffers("dup".getBytes());
+		assertEquals(3, all.size());
+		assertArrayEquals("one".getBytes(), bytes(all.get(0)));
+		assertArrayEquals("three".getBytes(), bytes(all.get(2)));
+		assertTrue(cdb.findAllBuffers("nokey".getBytes()).isEmpty());
+	}
+
+	@Test
+	public void testFindIntoBuffer() {
+		byte[] v = value(8);
+		byte[] buf = new byte[v.length + 3];
+		assertEquals(v.length, cdb.find(key(8), buf, 3));
+		for (int i = 0; i < v.length; i++)
+			assertEquals(v[i], buf[3 + i]);
+
+		/* Too small: the length comes back and nothing is copied. */
+		byte[] small = new byte[v.length - 1];
+		assertEquals(v.length, cdb.find(key(8), small, 0));
+		assertArrayEquals(new byte[small.length], small);
+
+		assertEquals(-1, cdb.find("nokey".getBytes(), buf, 0));
+		assertEquals(0, cdb.find("nodata".getBytes(), buf, buf.length));
+	}
+
+	@Test
+	public void testHashMatchesReference() {
+		/* Values from cdb's cdb_hash(), as unsigned 32 bit ints. */
+		assertEquals(5381, Cdb.hash(new byte[0]));
+		assertEquals(177604, Cdb.hash("a".getBytes()));
+		assertEquals(2088047426, Cdb.hash("key0".getBytes()));
+		assertEquals(-432386811, Cdb.hash(BINARY_KEY));
+
+		byte[] padded = "xxdupyy".getBytes();
+		assertEquals(Cdb.hash("dup".getBytes()), Cdb.hash(padded, 2, 3));
+		assertEquals(193405028, Cdb.hash(padded, 2, 3));
+	}
+
+	@Test
+	public void testRepeatedLookupsOnOneThread() {
+		/* The per-thread scratch cursor must start over on every call. */
+		for (int round = 0; round < 3; round++) {
+			assertNull(cdb.find("nokey".getBytes()));
+			assertArrayEquals("one".getBytes(), cdb.find("dup".getBytes()));
+			assertArrayEquals(value(3), cdb.find(key(3)));
+		}
+	}
+
+	@Test
+	public void testFindMany() {
+		byte[][] keys = new byte[KEYS + 3][];
+		for (int i = 0; i < KEYS; i++)
+			keys[i] = key(KEYS - 1 - i);
+		keys[KEYS] = "nokey".getBytes();
+		keys[KEYS + 1] = "dup".getBytes();
+		keys[KEYS + 2] = key(3);
+
+		byte[][] found = cdb.findMany(keys);
+		assertEquals(keys.length, found.length);
+		for (int i = 0; i < keys.length; i++)
+			assertArrayEquals(cdb.find(keys[i]), found[i]);
+		assertNull(found[KEYS]);
+		assertArrayEquals("one".getBytes(), found[KEYS + 1]);
+		assertEquals(0, cdb.findMany(new byte[0][]).length);
+	}
+
+	@Test
+	public void testTruncatedFileFails() throws Exception {
+		File dir = newDir("truncated");
+		try {
+			String path = copy("small.cdb", dir);
+			RandomAccessFile f = new RandomAccessFile(path, "rw");
+			f.setLength(f.length() - 600);
+			f.close();
+
+			Cdb bad = new Cdb(path);
+			try {
+				int failed = 0;
+				for (int i = 0; i < KEYS; i++) {
+					try {
+						assertArrayEquals(value(i), bad.find(key(i)));
+					} catch (IllegalStateException e) {
+						assertTrue(e.getMessage(), e.getMessage().contains(path));
+						failed++;
+					}
+				}
+				assertTrue(failed > 0);
+
+				byte[][] keys = new byte[KEYS][];
+				for (int i = 0; i < KEYS; i++)
+					keys[i] = key(i);
+				try {
+					bad.findMany(keys);
+					fail("findMany read past the end of " + path);
+				} catch (IllegalStateException e) {
+					assertTrue(e.getMessage().contains(path));
+				}
+			} finally {
+				bad.close();
+			}
+		} finally {
+			delete(dir);
+		}
+	}
+
+	@Test
+	public void testCorruptRecordFails() throws Exception {
+		File dir = newDir("corrupt");
+		try {
+			String path = copy("small.cdb", dir);
+			RandomAccessFile f = new RandomAccessFile(path, "rw");
+			/* Give key5's record a data length running past the end. */
+			long pos = 2048;
+			for (int i = 0; i < 5; i++)
+				pos += 8 + key(i).length + value(i).length;
+			f.seek(pos + 4);
+			f.write(new byte[] { 0, 0, 0, 0x10 });
+			f.close();
+
+			Cdb bad = new Cdb(path);
+			try {
+				assertArrayEquals(value(4), bad.find(key(4)));
+				try {
+					bad.find(key(5));
+					fail("Read a record past the end of " + path);
+				} catch (IllegalStateException e) {
+					assertTrue(e.getMessage().contains(path));
+				}
+				try {
+					bad.findMany(new byte[][] { key(4), key(5) });
+					fail("Read a record past the end of " + path);
+				} catch (IllegalStateException e) {
+					assertTrue(e.getMessage().contains(path));
+				}
+			} finally {
+				bad.close();
+			}
+		} finally {
+			delete(dir);
+		}
+	}
+
+	static byte[] bytes(ByteBuffer b) {
+		byte[] a = new byte[b.remaining()];
+		b.duplicate().get(a);
+		return a;
+	}
+}
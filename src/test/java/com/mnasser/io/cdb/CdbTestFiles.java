@@ -0,0 +1,93 @@
+package com.mnasser.io.cdb;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+
+/**
+ * Files shared by the tests.
+ * <p>
+ * <code>cdb/small.cdb</code> is laid out byte for byte as cdbmake writes
+ * it from <code>cdb/small.txt</code>: {@link #KEYS} records
+ * <code>key[i] -&gt; value[i]</code>, then three under "dup", one under the
+ * empty key, an empty value under "nodata" and a binary key holding every
+ * byte value.
+ * 
+ * @author mnasser
+ */
+public final class CdbTestFiles {
+
+	/** Number of key[i] records in small.cdb. */
+	public static final int KEYS = 200;
+
+	/** The binary key of small.cdb: bytes 0 to 255. */
+	public static final byte[] BINARY_KEY = new byte[256];
+	static {
+		for (int i = 0; i < 256; i++)
+			BINARY_KEY[i] = (byte)i;
+	}
+
+	private CdbTestFiles() {}
+
+	public static byte[] key(int i) {
+		return ("key" + i).getBytes();
+	}
+
+	public static byte[] value(int i) {
+		StringBuilder sb = new StringBuilder();
+		for (int r = 0; r <= i % 3; r++)
+			sb.append("value").append(i);
+		return sb.toString().getBytes();
+	}
+
+	/** Path of a file under src/test/resources/cdb. */
+	public static String resource(String name) {
+		URL url = CdbTestFiles.class.getResource("/cdb/" + name);
+		if (url == null)
+			throw new IllegalStateException("Missing test resource cdb/" + name);
+		return new File(url.getPath()).getPath();
+	}
+
+	/** A new empty directory; remove it with {@link #delete(File)}. */
+	public static File newDir(String prefix) throws IOException {
+		File dir = File.createTempFile(prefix, "");
+		if (!dir.delete() || !dir.mkdir())
+			throw new IOException("Could not create " + dir);
+		return dir;
+	}
+
+	/** Deletes f and, if it is a directory, everything under it. */
+	public static void delete(File f) {
+		if (f == null)
+			return;
+		File[] children = f.listFiles();
+		if (children != null)
+			for (File c : children)
+				delete(c);
+		f.delete();
+	}
+
+	/** Copies a resource into dir, for tests that change or remove it. */
+	public static String copy(String name, File dir) throws IOException {
+		File to = new File(dir, name);
+		InputStream in = new FileInputStream(resource(name));
+		try {
+			OutputStream out = new FileOutputStream(to);
+			try {
+				byte[] b = new byte[8192];
+				int n;
+				while ((n = in.read(b)) != -1)
+					out.write(b, 0, n);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+		return to.getPath();
+	}
+}
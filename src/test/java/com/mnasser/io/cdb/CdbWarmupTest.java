@@ -0,0 +1,90 @@
+package com.mnasser.io.cdb;
+
+import static com.mnasser.io.cdb.CdbTestFiles.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CdbWarmupTest {
+
+	private static final int RECORDS = 300;
+	private static final int VALUE = 10 << 10;
+
+	private File dir;
+	private Cdb cdb;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = newDir("warmup");
+		String path = new File(dir, "w.cdb").getPath();
+		CdbMake cm = new CdbMake();
+		cm.start(path);
+		for (int i = 0; i < RECORDS; i++)
+			cm.add(key(i), new byte[VALUE]);
+		cm.finish();
+		cdb = new Cdb(path);
+	}
+
+	@After
+	public void tearDown() {
+		cdb.close();
+		delete(dir);
+	}
+
+	@Test
+	public void testResidencyAfterFullWarm() throws IOException {
+		cdb.warm(WarmupPolicy.FULL);
+		CdbResidency r = cdb.residency(1 << 16);
+		assertEquals(cdb.getName(), r.getName());
+		assertEquals(1 << 16, r.getRegionSize());
+		assertEquals((r.getSize() + (1 << 16) - 1) >> 16, r.getRegions());
+		assertEquals(r.getRegions(), r.getResidentRegions());
+		assertTrue(r.getTableRegions() >= 1 && r.getTableRegions() < r.getRegions());
+		assertEquals(1.0, r.getResidentFraction(), 0);
+		assertEquals(1.0, r.getResidentTableFraction(), 0);
+	}
+
+	@Test
+	public void testRegionSizeRoundsUpToPages() throws IOException {
+		assertEquals(CdbBuffer.PAGE_SIZE, cdb.residency(1).getRegionSize());
+		assertEquals(2 * CdbBuffer.PAGE_SIZE, cdb.residency(CdbBuffer.PAGE_SIZE + 1).getRegionSize());
+	}
+
+	@Test
+	public void testSequentialKeepsToRate() {
+		long size = new File(cdb.getPath()).length();
+		long rate = 10L << 20;
+		long start = System.nanoTime();
+		cdb.warm(WarmupPolicy.SEQUENTIAL, rate);
+		long took = System.nanoTime() - start;
+		assertTrue("took " + took + "ns", took >= (long)(size * 1e9 / rate) * 8 / 10);
+	}
+
+	@Test
+	public void testSequentialStopsWhenInterrupted() {
+		Thread.currentThread().interrupt();
+		long start = System.nanoTime();
+		cdb.warm(WarmupPolicy.SEQUENTIAL, 1 << 10);
+		assertTrue(Thread.interrupted());
+		assertTrue(System.nanoTime() - start < 1000000000L);
+	}
+
+	@Test
+	public void testEveryPolicyKeepsLookupsWorking() {
+		for (WarmupPolicy p : WarmupPolicy.values()) {
+			cdb.warm(p, 1L << 30);
+			assertEquals(VALUE, cdb.find(key(RECORDS - 1)).length);
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testWarmAfterCloseFails() {
+		cdb.close();
+		cdb.warm(WarmupPolicy.HASH_TABLES);
+	}
+}
@@ -0,0 +1,99 @@
+package com.mnasser.io.cdb;
+
+import static com.mnasser.io.cdb.CdbTestFiles.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ShardedCdbTest {
+
+	private static final int SHARDS = 3;
+
+	private File dir;
+	private String prefix;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = newDir("sharded");
+		prefix = new File(dir, "m").getPath();
+		ByteArrayOutputStream[] ins = new ByteArrayOutputStream[SHARDS];
+		for (int s = 0; s < SHARDS; s++)
+			ins[s] = new ByteArrayOutputStream();
+		for (int i = 0; i < KEYS; i++) {
+			byte[] k = key(i), v = value(i);
+			ByteArrayOutputStream in = ins[ShardedCdb.shardOf(ShardedCdb.hash(k), SHARDS)];
+			in.write(("+" + k.length + "," + v.length + ":").getBytes("ISO-8859-1"));
+			in.write(k);
+			in.write("->".getBytes("ISO-8859-1"));
+			in.write(v);
+			in.write('\n');
+		}
+		for (int s = 0; s < SHARDS; s++) {
+			ins[s].write('\n');
+			CdbMake.make(new ByteArrayInputStream(ins[s].toByteArray()), ShardedCdb.shardPath(prefix, s));
+		}
+	}
+
+	@After
+	public void tearDown() {
+		delete(dir);
+	}
+
+	@Test
+	public void testRoutesEveryKey() throws IOException {
+		ShardedCdb m = ShardedCdb.open(prefix);
+		try {
+			assertEquals(SHARDS, m.getShardCount());
+			byte[][] keys = new byte[KEYS + 1][];
+			for (int i = 0; i < KEYS; i++) {
+				assertArrayEquals(value(i), m.find(key(i)));
+				assertArrayEquals(value(i), m.shardFor(key(i)).find(key(i)));
+				keys[i] = key(i);
+			}
+			keys[KEYS] = "missing".getBytes();
+			assertNull(m.find(keys[KEYS]));
+			byte[][] found = m.findMany(keys);
+			for (int i = 0; i < KEYS; i++)
+				assertArrayEquals(value(i), found[i]);
+			assertNull(found[KEYS]);
+		} finally {
+			m.close();
+		}
+	}
+
+	@Test
+	public void testIgnoresOtherFiles() throws IOException {
+		assertTrue(new File(dir, "m.shrd.cdb").createNewFile());
+		assertTrue(new File(dir, "m.shrd09.cdb").createNewFile());
+		assertTrue(new File(dir, "mm.shrd7.cdb").createNewFile());
+		ShardedCdb m = ShardedCdb.open(prefix);
+		try {
+			assertEquals(SHARDS, m.getShardCount());
+		} finally {
+			m.close();
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testMissingMiddleShardFails() throws IOException {
+		assertTrue(new File(ShardedCdb.shardPath(prefix, 1)).delete());
+		ShardedCdb.open(prefix);
+	}
+
+	@Test(expected = IOException.class)
+	public void testMissingLastShardFailsGivenCount() throws IOException {
+		ShardedCdb.open(prefix, SHARDS + 1, null);
+	}
+
+	@Test(expected = IOException.class)
+	public void testNoShardsFails() throws IOException {
+		ShardedCdb.open(new File(dir, "none").getPath());
+	}
+}
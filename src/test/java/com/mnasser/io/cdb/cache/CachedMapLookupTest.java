@@ -0,0 +1,103 @@
+package com.mnasser.io.cdb.cache;
+
+import static com.mnasser.io.cdb.client.MemoryMapLookup.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import com.mnasser.io.cdb.client.MapInfo;
+import com.mnasser.io.cdb.client.MemoryMapLookup;
+
+public class CachedMapLookupTest {
+
+	private final MapInfo mi = new MapInfo("m");
+
+	@Test
+	public void testRepeatsComeFromCache() throws IOException {
+		MemoryMapLookup remote = new MemoryMapLookup();
+		remote.put(mi, "a", "1", "2");
+		CachedMapLookup l = new CachedMapLookup(remote, new HotKeyCache(1 << 20));
+		for (int i = 0; i < 3; i++) {
+			assertEquals("1", string(l.lookup(mi, bytes("a"))));
+			assertEquals("1\n2\n", string(l.lookupAll(mi, bytes("a"))));
+			assertNull(l.lookup(mi, bytes("none")));
+		}
+		assertEquals(3, remote.lookups.get());
+	}
+
+	@Test
+	public void testLookupManySendsOnlyMisses() throws IOException {
+		MemoryMapLookup remote = new MemoryMapLookup();
+		remote.put(mi, "a", "1");
+		remote.put(mi, "b", "2");
+		CachedMapLookup l = new CachedMapLookup(remote, new HotKeyCache(1 << 20));
+		l.lookup(mi, bytes("a"));
+		byte[][] r = l.lookupMany(mi, new byte[][] { bytes("a"), bytes("b"), bytes("c") });
+		assertEquals("1", string(r[0]));
+		assertEquals("2", string(r[1]));
+		assertNull(r[2]);
+		assertEquals(1, remote.batches.get());
+		l.lookupMany(mi, new byte[][] { bytes("a"), bytes("b"), bytes("c") });
+		assertEquals(1, remote.batches.get());
+	}
+
+	@Test
+	public void testUpdateDropsCache() throws IOException {
+		MemoryMapLookup remote = new MemoryMapLookup();
+		remote.put(mi, "a", "1");
+		CachedMapLookup l = new CachedMapLookup(remote, new HotKeyCache(1 << 20));
+		assertEquals("1", string(l.lookup(mi, bytes("a"))));
+		remote.put(mi, "a", "2");
+		assertEquals("1", string(l.lookup(mi, bytes("a"))));
+		l.updateMap(mi, "/new", true);
+		assertEquals("2", string(l.lookup(mi, bytes("a"))));
+	}
+
+	/** A lookup that read the old map while the update ran must not
+	 * leave its value in the cache. */
+	@Test
+	public void testRacingLookupDoesNotCacheStaleValue() throws Exception {
+		final CountDownLatch read = new CountDownLatch(1);
+		final CountDownLatch updated = new CountDownLatch(1);
+		final MemoryMapLookup remote = new MemoryMapLookup() {
+			@Override
+			public byte[] lookup(MapInfo m, byte[] key) throws IOException {
+				byte[] v = super.lookup(m, key);
+				if (read.getCount() > 0) {
+					read.countDown();
+					try {
+						updated.await();
+					} catch (InterruptedException e) {
+						throw new IOException(e);
+					}
+				}
+				return v;
+			}
+		};
+		remote.put(mi, "a", "old");
+		final CachedMapLookup l = new CachedMapLookup(remote, new HotKeyCache(1 << 20));
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		try {
+			Future<byte[]> racing = pool.submit(new Callable<byte[]>() {
+				public byte[] call() throws IOException {
+					return l.lookup(mi, bytes("a"));
+				}
+			});
+			read.await();
+			remote.put(mi, "a", "new");
+			l.updateMap(mi, "/new", true);
+			updated.countDown();
+			assertEquals("old", string(racing.get()));
+		} finally {
+			pool.shutdown();
+		}
+		assertEquals("new", string(l.lookup(mi, bytes("a"))));
+	}
+}
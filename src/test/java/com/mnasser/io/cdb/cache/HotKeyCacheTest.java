@@ -0,0 +1,89 @@
+package com.mnasser.io.cdb.cache;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class HotKeyCacheTest {
+
+	@Test
+	public void testGetPut() {
+		HotKeyCache c = new HotKeyCache(1 << 20);
+		assertSame(HotKeyCache.NOT_CACHED, c.get(b("a")));
+		c.put(b("a"), b("1"));
+		c.put(b("miss"), null);
+		assertArrayEquals(b("1"), c.get(b("a")));
+		assertNull(c.get(b("miss")));
+		assertEquals(2, c.size());
+		c.invalidate();
+		assertSame(HotKeyCache.NOT_CACHED, c.get(b("a")));
+	}
+
+	@Test
+	public void testNewerGenerationDropsOlder() {
+		HotKeyCache c = new HotKeyCache(1 << 20);
+		c.get(b("a"), 5);
+		c.put(b("a"), b("old"), 5);
+		assertArrayEquals(b("old"), c.get(b("a"), 5));
+
+		assertSame(HotKeyCache.NOT_CACHED, c.get(b("a"), 6));
+		assertEquals(0, c.size());
+		/* Read from the retired generation: neither served nor stored. */
+		c.put(b("a"), b("old"), 5);
+		assertSame(HotKeyCache.NOT_CACHED, c.get(b("a"), 5));
+		assertSame(HotKeyCache.NOT_CACHED, c.get(b("a"), 6));
+	}
+
+	@Test
+	public void testNextGenerationRefusesStalePuts() {
+		HotKeyCache c = new HotKeyCache(1 << 20);
+		long g = c.getGeneration();
+		assertSame(HotKeyCache.NOT_CACHED, c.get(b("a"), g));
+		c.put(b("a"), b("1"), g);
+		assertArrayEquals(b("1"), c.get(b("a"), g));
+
+		long next = c.nextGeneration();
+		assertTrue(next > g);
+		assertEquals(next, c.getGeneration());
+		assertEquals(0, c.size());
+		c.put(b("a"), b("stale"), g);
+		assertSame(HotKeyCache.NOT_CACHED, c.get(b("a"), next));
+		c.put(b("a"), b("2"), next);
+		assertArrayEquals(b("2"), c.get(b("a"), next));
+	}
+
+	@Test
+	public void testStaysWithinBudget() {
+		HotKeyCache c = new HotKeyCache(64 << 10, 4);
+		for (int i = 0; i < 10000; i++) {
+			byte[] k = b("key" + i);
+			if (c.get(k) == HotKeyCache.NOT_CACHED)
+				c.put(k, new byte[100]);
+		}
+		assertTrue(c.weight() <= c.getMaxBytes());
+		assertTrue(c.size() > 0);
+	}
+
+	@Test
+	public void testHotKeysSurviveOneOffs() {
+		HotKeyCache c = new HotKeyCache(16 << 10, 1);
+		for (int round = 0; round < 20; round++) {
+			for (int i = 0; i < 10; i++) {
+				byte[] k = b("hot" + i);
+				if (c.get(k) == HotKeyCache.NOT_CACHED)
+					c.put(k, new byte[100]);
+			}
+		}
+		for (int i = 0; i < 5000; i++) {
+			byte[] k = b("cold" + i);
+			if (c.get(k) == HotKeyCache.NOT_CACHED)
+				c.put(k, new byte[100]);
+		}
+		for (int i = 0; i < 10; i++)
+			assertNotSame(HotKeyCache.NOT_CACHED, c.get(b("hot" + i)));
+	}
+
+	static byte[] b(String s) {
+		return s.getBytes();
+	}
+}
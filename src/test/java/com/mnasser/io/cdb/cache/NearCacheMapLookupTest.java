@@ -0,0 +1,138 @@
+package com.mnasser.io.cdb.cache;
+
+import static com.mnasser.io.cdb.client.MemoryMapLookup.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.mnasser.io.cdb.client.MapInfo;
+import com.mnasser.io.cdb.client.MemoryMapLookup;
+
+public class NearCacheMapLookupTest {
+
+	private final MapInfo mi = new MapInfo("m");
+
+	@Test
+	public void testNewGenerationDropsCache() throws IOException {
+		MemoryMapLookup remote = new MemoryMapLookup();
+		remote.put(mi, "a", "1");
+		NearCacheMapLookup l = new NearCacheMapLookup(remote, 1 << 20);
+		l.setCheckInterval(0, TimeUnit.SECONDS);
+		assertEquals("1", string(l.lookup(mi, bytes("a"))));
+		assertEquals(1, l.getGeneration(mi));
+
+		/* Same generation: served from the cache. */
+		remote.put(mi, "a", "2");
+		assertEquals("1", string(l.lookup(mi, bytes("a"))));
+		assertEquals(1, remote.lookups.get());
+
+		remote.setGeneration(mi, 2);
+		assertEquals("2", string(l.lookup(mi, bytes("a"))));
+		assertEquals(2, l.getGeneration(mi));
+		assertEquals(3, remote.stats.get());
+	}
+
+	@Test
+	public void testChecksOncePerInterval() throws IOException {
+		MemoryMapLookup remote = new MemoryMapLookup();
+		remote.put(mi, "a", "1");
+		NearCacheMapLookup l = new NearCacheMapLookup(remote, 1 << 20);
+		l.setCheckInterval(1, TimeUnit.HOURS);
+		for (int i = 0; i < 100; i++)
+			l.lookup(mi, bytes("a"));
+		assertEquals(1, remote.stats.get());
+		assertEquals(1, remote.lookups.get());
+
+		/* Told of the change, it need not ask. */
+		remote.put(mi, "a", "2");
+		l.notifyGeneration(mi, 2);
+		assertEquals("2", string(l.lookup(mi, bytes("a"))));
+		assertEquals(1, remote.stats.get());
+	}
+
+	@Test
+	public void testFailedCheckKeepsServing() throws Exception {
+		FlakyStat remote = new FlakyStat();
+		remote.put(mi, "a", "1");
+		NearCacheMapLookup l = new NearCacheMapLookup(remote, 1 << 20);
+		l.setCheckInterval(50, TimeUnit.MILLISECONDS);
+		assertEquals("1", string(l.lookup(mi, bytes("a"))));
+
+		remote.failing = true;
+		Thread.sleep(60);
+		for (int i = 0; i < 10; i++)
+			assertEquals("1", string(l.lookup(mi, bytes("a"))));
+		/* Asked once, then not again until the next interval. */
+		assertEquals(2, remote.stats.get());
+		assertEquals(1, l.getGeneration(mi));
+
+		remote.failing = false;
+		remote.put(mi, "a", "2");
+		remote.setGeneration(mi, 2);
+		Thread.sleep(60);
+		assertEquals("2", string(l.lookup(mi, bytes("a"))));
+		assertEquals(3, remote.stats.get());
+	}
+
+	@Test
+	public void testNoStatStopsChecking() throws IOException {
+		NoStat remote = new NoStat();
+		remote.put(mi, "a", "1");
+		NearCacheMapLookup l = new NearCacheMapLookup(remote, 1 << 20);
+		l.setCheckInterval(0, TimeUnit.SECONDS);
+		for (int i = 0; i < 10; i++)
+			assertEquals("1", string(l.lookup(mi, bytes("a"))));
+		assertEquals(1, remote.stats.get());
+		assertEquals(1, remote.lookups.get());
+
+		remote.put(mi, "a", "2");
+		l.notifyGeneration(mi, 7);
+		assertEquals("2", string(l.lookup(mi, bytes("a"))));
+		assertEquals(1, remote.stats.get());
+	}
+
+	@Test
+	public void testLookupManyAndUpdate() throws IOException {
+		MemoryMapLookup remote = new MemoryMapLookup();
+		remote.put(mi, "a", "1");
+		remote.put(mi, "b", "2");
+		NearCacheMapLookup l = new NearCacheMapLookup(remote, 1 << 20);
+		l.setCheckInterval(1, TimeUnit.HOURS);
+		byte[][] keys = { bytes("a"), bytes("b"), bytes("c") };
+		byte[][] r = l.lookupMany(mi, keys);
+		assertEquals("1", string(r[0]));
+		assertEquals("2", string(r[1]));
+		assertNull(r[2]);
+		l.lookupMany(mi, keys);
+		assertEquals(1, remote.batches.get());
+
+		remote.put(mi, "b", "3");
+		l.updateMap(mi, "/new", true);
+		assertEquals(2, l.getGeneration(mi));
+		assertEquals("3", string(l.lookupMany(mi, keys)[1]));
+		assertEquals(2, remote.batches.get());
+	}
+
+	/** Fails stat while told to. */
+	static class FlakyStat extends MemoryMapLookup {
+		volatile boolean failing;
+
+		public String stat(MapInfo mi) throws IOException {
+			String s = super.stat(mi);
+			if (failing)
+				throw new IOException("stat failed");
+			return s;
+		}
+	}
+
+	/** Can't report stats, as MapLookups that predate them. */
+	static class NoStat extends MemoryMapLookup {
+		public String stat(MapInfo mi) throws IOException {
+			stats.incrementAndGet();
+			throw new UnsupportedOperationException("no stats");
+		}
+	}
+}
@@ -0,0 +1,207 @@
+package com.mnasser.io.cdb.client;
+
+import static com.mnasser.io.cdb.CdbTestFiles.*;
+import static com.mnasser.io.cdb.server.CdbLookupServerTest.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mnasser.io.cdb.server.CdbLookupServer;
+
+public class AsyncCdbMapLookupTest {
+
+	private File dir;
+	private CdbLookupServer server;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = newDir("async");
+		server = startServer(dir);
+	}
+
+	@After
+	public void tearDown() {
+		server.close();
+		delete(dir);
+	}
+
+	@Test
+	public void testLookupV1() throws Exception {
+		checkLookups(1);
+	}
+
+	@Test
+	public void testLookupV2() throws Exception {
+		checkLookups(2);
+	}
+
+	private void checkLookups(int version) throws Exception {
+		AsyncCdbMapLookup l = lookup(version);
+		try {
+			l.connect().get(10, TimeUnit.SECONDS);
+			assertEquals(version, l.getProtocolVersion());
+			for (int i = 0; i < KEYS; i++)
+				assertArrayEquals(value(i), get(l.lookup(SMALL, key(i))));
+			assertNull(get(l.lookup(SMALL, "missing".getBytes())));
+			assertArrayEquals(bigValue(), get(l.lookup(BIG, "big".getBytes())));
+			assertNotNull(get(l.lookupAll(SMALL, "dup".getBytes())));
+			assertNull(get(l.lookupAll(SMALL, "missing".getBytes())));
+
+			byte[][] keys = new byte[3 * KEYS][];
+			MapInfo[] mis = new MapInfo[keys.length];
+			for (int i = 0; i < keys.length; i++) {
+				keys[i] = i % 3 == 0 ? "missing".getBytes() : i % 5 == 0 ? "big".getBytes() : key(i % KEYS);
+				mis[i] = i % 5 == 0 && i % 3 != 0 ? BIG : SMALL;
+			}
+			byte[][] r = l.lookupMany(mis, keys).get(10, TimeUnit.SECONDS);
+			for (int i = 0; i < keys.length; i++) {
+				if (i % 3 == 0)
+					assertNull(r[i]);
+				else if (i % 5 == 0)
+					assertArrayEquals(bigValue(), r[i]);
+				else
+					assertArrayEquals(value(i % KEYS), r[i]);
+			}
+		} finally {
+			l.close();
+		}
+	}
+
+	@Test
+	public void testPipelined() throws Exception {
+		AsyncCdbMapLookup l = lookup(2);
+		try {
+			l.connect().get(10, TimeUnit.SECONDS);
+			List<CompletableFuture<byte[]>> fs = new ArrayList<CompletableFuture<byte[]>>();
+			for (int i = 0; i < 5000; i++)
+				fs.add(i % 7 == 0 ? l.lookup(SMALL, "missing".getBytes()) : l.lookup(SMALL, key(i % KEYS)));
+			for (int i = 0; i < fs.size(); i++) {
+				if (i % 7 == 0)
+					assertNull(get(fs.get(i)));
+				else
+					assertArrayEquals(value(i % KEYS), get(fs.get(i)));
+			}
+		} finally {
+			l.close();
+		}
+	}
+
+	/** Lookups issued before the version is agreed are held, not sent in
+	 * the old framing. */
+	@Test
+	public void testLookupsBeforeConnected() throws Exception {
+		for (int version = 1; version <= 2; version++) {
+			AsyncCdbMapLookup l = lookup(version);
+			try {
+				CompletableFuture<Void> c = l.connect();
+				List<CompletableFuture<byte[]>> fs = new ArrayList<CompletableFuture<byte[]>>();
+				for (int i = 0; i < 100; i++)
+					fs.add(l.lookup(SMALL, key(i % KEYS)));
+				c.get(10, TimeUnit.SECONDS);
+				for (int i = 0; i < fs.size(); i++)
+					assertArrayEquals(value(i % KEYS), get(fs.get(i)));
+				assertEquals(version, l.getProtocolVersion());
+			} finally {
+				l.close();
+			}
+		}
+	}
+
+	@Test
+	public void testMaxInFlight() throws Exception {
+		AsyncCdbMapLookup l = lookup(1);
+		l.setMaxInFlight(4);
+		try {
+			l.connect().get(10, TimeUnit.SECONDS);
+			List<CompletableFuture<byte[]>> fs = new ArrayList<CompletableFuture<byte[]>>();
+			for (int i = 0; i < 1000; i++)
+				fs.add(l.lookup(SMALL, key(i % KEYS)));
+			for (int i = 0; i < fs.size(); i++)
+				assertArrayEquals(value(i % KEYS), get(fs.get(i)));
+		} finally {
+			l.close();
+		}
+		try {
+			l.setMaxInFlight(0);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public void testNotConnected() throws Exception {
+		AsyncCdbMapLookup l = lookup(1);
+		try {
+			get(l.lookup(SMALL, key(0)));
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+	}
+
+	@Test
+	public void testCloseFailsOutstanding() throws Exception {
+		AsyncCdbMapLookup l = lookup(2);
+		l.setMaxInFlight(1);
+		CompletableFuture<Void> c = l.connect();
+		List<CompletableFuture<byte[]>> fs = new ArrayList<CompletableFuture<byte[]>>();
+		for (int i = 0; i < 100; i++)
+			fs.add(l.lookup(SMALL, key(i % KEYS)));
+		l.close();
+		int failed = 0;
+		for (CompletableFuture<byte[]> f : fs) {
+			try {
+				get(f);
+			} catch (ExecutionException e) {
+				failed++;
+			}
+		}
+		assertTrue(failed > 0);
+		try {
+			c.get(10, TimeUnit.SECONDS);
+		} catch (ExecutionException e) {
+		}
+		assertFalse(l.isConnected());
+	}
+
+	@Test
+	public void testServerGoneFails() throws Exception {
+		AsyncCdbMapLookup l = lookup(1);
+		try {
+			l.connect().get(10, TimeUnit.SECONDS);
+			assertArrayEquals(value(0), get(l.lookup(SMALL, key(0))));
+			server.close();
+			try {
+				for (int i = 0; i < 10; i++)
+					get(l.lookup(SMALL, key(0)));
+				fail();
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof IOException);
+			}
+			assertFalse(l.isConnected());
+		} finally {
+			l.close();
+		}
+	}
+
+	private AsyncCdbMapLookup lookup(int version) {
+		AsyncCdbMapLookup l = new AsyncCdbMapLookup("127.0.0.1", server.getPort());
+		l.setProtocolVersion(version);
+		l.setTimeout(10000);
+		return l;
+	}
+
+	private static byte[] get(CompletableFuture<byte[]> f) throws Exception {
+		return f.get(20, TimeUnit.SECONDS);
+	}
+}
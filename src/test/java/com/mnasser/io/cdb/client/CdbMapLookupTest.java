@@ -0,0 +1,222 @@
+package com.mnasser.io.cdb.client;
+
+import static com.mnasser.io.cdb.CdbTestFiles.*;
+import static com.mnasser.io.cdb.client.CdbConstants.*;
+import static com.mnasser.io.cdb.server.CdbLookupServerTest.*;
+import static org.junit.Assert.*;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mnasser.io.cdb.server.CdbLookupServer;
+
+public class CdbMapLookupTest {
+
+	private File dir;
+	private CdbLookupServer server;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = newDir("cdbmaplookup");
+		server = startServer(dir);
+	}
+
+	@After
+	public void tearDown() {
+		server.close();
+		delete(dir);
+	}
+
+	@Test
+	public void testLookupV1() throws Exception {
+		checkLookups(1);
+	}
+
+	@Test
+	public void testLookupV2() throws Exception {
+		checkLookups(2);
+	}
+
+	private void checkLookups(int version) throws Exception {
+		CdbMapLookup l = new CdbMapLookup("127.0.0.1", server.getPort());
+		l.setProtocolVersion(version);
+		l.connect();
+		try {
+			assertEquals(version, l.getProtocolVersion());
+			for (int i = 0; i < KEYS; i++)
+				assertArrayEquals(value(i), l.lookup(SMALL, key(i)));
+			assertNull(l.lookup(SMALL, "missing".getBytes()));
+			assertArrayEquals(bigValue(), l.lookup(BIG, "big".getBytes()));
+			assertNotNull(l.lookupAll(SMALL, "dup".getBytes()));
+			assertNull(l.lookupAll(SMALL, "missing".getBytes()));
+			assertTrue(l.stat(SMALL).startsWith("map=small|"));
+			if (version >= 2)
+				assertArrayEquals(new byte[] { (byte)255, (byte)254 },
+						Arrays.copyOf(l.lookup(SMALL, BINARY_KEY), 2));
+			try {
+				l.lookup(new MapInfo("nosuchmap"), key(0));
+				fail();
+			} catch (RuntimeException e) {
+			}
+			/* Still in step after the error. */
+			assertArrayEquals(value(1), l.lookup(SMALL, key(1)));
+
+			byte[][] keys = new byte[3 * KEYS][];
+			for (int i = 0; i < keys.length; i++)
+				keys[i] = i % 3 == 0 ? "missing".getBytes() : key(i % KEYS);
+			byte[][] r = l.lookupMany(SMALL, keys);
+			for (int i = 0; i < keys.length; i++) {
+				if (i % 3 == 0)
+					assertNull(r[i]);
+				else
+					assertArrayEquals(value(i % KEYS), r[i]);
+			}
+		} finally {
+			l.close();
+		}
+	}
+
+	@Test
+	public void testLookupIntoBuffer() throws Exception {
+		for (int version = 1; version <= 2; version++) {
+			CdbMapLookup l = new CdbMapLookup("127.0.0.1", server.getPort());
+			l.setProtocolVersion(version);
+			l.connect();
+			try {
+				byte[] buf = new byte[64];
+				int n = l.lookup(SMALL, key(3), buf, 5);
+				assertArrayEquals(value(3), Arrays.copyOfRange(buf, 5, 5 + n));
+				assertEquals(-1, l.lookup(SMALL, "missing".getBytes(), buf, 0));
+
+				/* Too big: the length comes back, buf is left alone, and
+				 * the whole value is skipped, though more than one read's
+				 * worth. */
+				Arrays.fill(buf, (byte)'#');
+				assertEquals(BIG_VALUE, l.lookup(BIG, "big".getBytes(), buf, 0));
+				for (byte b : buf)
+					assertEquals('#', b);
+				assertArrayEquals(value(4), l.lookup(SMALL, key(4)));
+
+				byte[] big = new byte[BIG_VALUE + 1];
+				assertEquals(BIG_VALUE, l.lookup(BIG, "big".getBytes(), big, 1));
+				assertArrayEquals(bigValue(), Arrays.copyOfRange(big, 1, big.length));
+			} finally {
+				l.close();
+			}
+		}
+	}
+
+	/** v2 is opt in: a client left alone never sends a version request. */
+	@Test
+	public void testDefaultsToV1() throws Exception {
+		CdbMapLookup l = new CdbMapLookup("127.0.0.1", server.getPort());
+		l.connect();
+		try {
+			assertEquals(1, l.getProtocolVersion());
+			assertArrayEquals(value(0), l.lookup(SMALL, key(0)));
+		} finally {
+			l.close();
+		}
+
+		PipelinedMapLookup p = new PipelinedMapLookup("127.0.0.1", server.getPort());
+		p.connect();
+		try {
+			assertArrayEquals(value(0), p.lookup(SMALL, key(0)));
+		} finally {
+			p.close();
+		}
+
+		AsyncCdbMapLookup a = new AsyncCdbMapLookup("127.0.0.1", server.getPort());
+		try {
+			a.connect().get(10, TimeUnit.SECONDS);
+			assertEquals(1, a.getProtocolVersion());
+			assertArrayEquals(value(0), a.lookup(SMALL, key(0)).get(10, TimeUnit.SECONDS));
+		} finally {
+			a.close();
+		}
+	}
+
+	/** A server from before versions answers the request with an error. */
+	@Test
+	public void testOldServer() throws Exception {
+		final ServerSocket ss = new ServerSocket(0, 8, InetAddress.getLoopbackAddress());
+		Thread t = new Thread("old-server") {
+			public void run() {
+				try {
+					Socket s = ss.accept();
+					InputStream in = new BufferedInputStream(s.getInputStream());
+					OutputStream out = s.getOutputStream();
+					int c;
+					while ((c = in.read()) >= 0) {
+						byte action = (byte)c;
+						while (c != '\n' && c >= 0)
+							c = in.read();
+						if (action == ACT_VERSION) {
+							out.write(((char)rEXP + "unknown action V\n").getBytes());
+						} else {
+							out.write(new byte[] { rACK, 1, 0, 0, 0, 'v', '\n' });
+						}
+						out.flush();
+					}
+					s.close();
+				} catch (IOException ignored) {
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+		CdbMapLookup l = new CdbMapLookup("127.0.0.1", ss.getLocalPort());
+		l.setProtocolVersion(2);
+		l.connect();
+		try {
+			assertEquals(1, l.getProtocolVersion());
+			assertArrayEquals("v".getBytes(), l.lookup(SMALL, key(0)));
+		} finally {
+			l.close();
+			ss.close();
+		}
+	}
+
+	@Test
+	public void testBuildRequest() {
+		byte[] prefix = SMALL.getQueryPrefix();
+		String spec = new String(prefix, 0, prefix.length - 1);
+
+		assertEquals("Q\t" + spec + "\tkey\n", new String(CdbMapLookup.buildRequest(1, ACT_QUERY, prefix, "key".getBytes())));
+		assertEquals("u\t" + spec + "\t/p\tfull\n", new String(CdbMapLookup.buildUpdateRequest(SMALL, "/p", true)));
+
+		ByteBuffer b = ByteBuffer.wrap(CdbMapLookup.buildRequest(2, ACT_QUERY, prefix, "key".getBytes()))
+				.order(ByteOrder.LITTLE_ENDIAN);
+		assertEquals(b.capacity() - 4, b.getInt());
+		assertEquals(ACT_QUERY, b.get());
+		assertEquals(spec.length(), b.getShort());
+		byte[] s = new byte[spec.length()];
+		b.get(s);
+		assertEquals(spec, new String(s));
+		assertEquals(3, b.getInt());
+		assertEquals('k', b.get());
+
+		b = ByteBuffer.wrap(CdbMapLookup.buildRequest(1, ACT_QUERY_BATCH, CdbMapLookup.NO_PREFIX, new byte[] { '\n', 7 }))
+				.order(ByteOrder.LITTLE_ENDIAN);
+		assertEquals(ACT_QUERY_BATCH, b.get());
+		assertEquals(DELIM_REQ, b.get());
+		assertEquals(2, b.getInt());
+		assertEquals('\n', b.get());
+		assertEquals(7, b.get());
+		assertEquals('\n', b.get());
+	}
+}
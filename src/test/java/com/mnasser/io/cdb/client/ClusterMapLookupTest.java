@@ -0,0 +1,166 @@
+package com.mnasser.io.cdb.client;
+
+import static com.mnasser.io.cdb.CdbTestFiles.*;
+import static com.mnasser.io.cdb.server.CdbLookupServerTest.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mnasser.io.cdb.server.CdbLookupServer;
+
+/**
+ * Two partitions of two replicas each, every server holding the whole
+ * small map.
+ */
+public class ClusterMapLookupTest {
+
+	private static final String[] NAMES = { "p0", "p1" };
+
+	private File dir;
+	/** servers[partition * 2 + replica] */
+	private CdbLookupServer[] servers = new CdbLookupServer[4];
+	private ClusterMapLookup cluster;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = newDir("cluster");
+		cluster = new ClusterMapLookup();
+		cluster.setTimeout(5000);
+		for (int p = 0; p < NAMES.length; p++) {
+			String[] replicas = new String[2];
+			for (int r = 0; r < 2; r++) {
+				File d = new File(dir, NAMES[p] + "/" + r);
+				d.mkdirs();
+				servers[p * 2 + r] = startServer(d);
+				replicas[r] = "127.0.0.1:" + servers[p * 2 + r].getPort();
+			}
+			cluster.addPartition(NAMES[p], replicas);
+		}
+		cluster.connect();
+	}
+
+	@After
+	public void tearDown() {
+		cluster.close();
+		for (CdbLookupServer s : servers)
+			s.close();
+		delete(dir);
+	}
+
+	@Test
+	public void testLookup() throws IOException {
+		Set<String> used = new HashSet<String>();
+		for (int i = 0; i < KEYS; i++) {
+			assertArrayEquals(value(i), cluster.lookup(SMALL, key(i)));
+			used.add(cluster.partitionFor(key(i)).name);
+		}
+		assertEquals("keys spread over both partitions", 2, used.size());
+		assertNull(cluster.lookup(SMALL, "missing".getBytes()));
+		assertNotNull(cluster.lookupAll(SMALL, "dup".getBytes()));
+		assertArrayEquals(bigValue(), cluster.lookup(BIG, "big".getBytes()));
+
+		byte[][] keys = new byte[2 * KEYS][];
+		for (int i = 0; i < keys.length; i++)
+			keys[i] = i % 4 == 0 ? "missing".getBytes() : key(i % KEYS);
+		byte[][] r = cluster.lookupMany(SMALL, keys);
+		for (int i = 0; i < keys.length; i++) {
+			if (i % 4 == 0)
+				assertNull(r[i]);
+			else
+				assertArrayEquals(value(i % KEYS), r[i]);
+		}
+	}
+
+	@Test
+	public void testFailover() throws IOException {
+		servers[0].close();
+		servers[3].close();
+		for (int round = 0; round < 3; round++)
+			for (int i = 0; i < KEYS; i++)
+				assertArrayEquals(value(i), cluster.lookup(SMALL, key(i)));
+	}
+
+	@Test
+	public void testStat() throws IOException {
+		for (int i = 0; i < KEYS; i++)
+			cluster.lookup(SMALL, key(i));
+		String s = cluster.stat(SMALL);
+		assertTrue(s, s.startsWith("map=small|"));
+		assertTrue(s, s.contains(" replicas=4/4 "));
+		/* Hedged lookups are counted twice. */
+		assertTrue(s, CdbMapLookup.statValue(s, "queries") >= KEYS);
+		long g = CdbMapLookup.statValue(s, "generation");
+		assertTrue(s, g >= 0);
+
+		/* One replica down: the other answers for its partition. */
+		servers[1].close();
+		s = cluster.stat(SMALL);
+		assertTrue(s, s.contains(" replicas=3/4 "));
+		assertEquals(g, CdbMapLookup.statValue(s, "generation"));
+
+		/* Both down: no answer for the partition. */
+		servers[0].close();
+		try {
+			cluster.stat(SMALL);
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("p0"));
+		}
+	}
+
+	@Test
+	public void testStatDisagreement() throws IOException {
+		CdbMapLookup one = new CdbMapLookup("127.0.0.1", servers[2].getPort());
+		one.connect();
+		try {
+			one.updateMap(SMALL, new File(dir, "p1/0/small").getPath(), true);
+		} finally {
+			one.close();
+		}
+		try {
+			cluster.stat(SMALL);
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("disagree"));
+		}
+	}
+
+	@Test
+	public void testUpdateMap() throws IOException {
+		long before = CdbMapLookup.statValue(cluster.stat(SMALL), "generation");
+		String path = new File(dir, ClusterMapLookup.PARTITION + "/1/small").getPath();
+		String r = new String(cluster.updateMap(SMALL, path, true));
+		assertTrue(r, r.contains(" replicas=4"));
+		long after = CdbMapLookup.statValue(r, "generation");
+		assertTrue(r, after > before);
+		assertEquals(after, CdbMapLookup.statValue(cluster.stat(SMALL), "generation"));
+		for (int i = 0; i < KEYS; i++)
+			assertArrayEquals(value(i), cluster.lookup(SMALL, key(i)));
+
+		try {
+			cluster.updateMap(SMALL, new File(dir, "nosuchmap").getPath(), true);
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("failed"));
+		}
+		/* A failed load leaves every replica where it was. */
+		assertEquals(after, CdbMapLookup.statValue(cluster.stat(SMALL), "generation"));
+	}
+
+	@Test
+	public void testStatValue() {
+		String s = "map=m|1 generation=12 shards=3 queries=5 misses=0";
+		assertEquals(12, CdbMapLookup.statValue(s, "generation"));
+		assertEquals(0, CdbMapLookup.statValue(s, "misses"));
+		assertEquals(-1, CdbMapLookup.statValue(s, "hits"));
+		assertEquals(-1, CdbMapLookup.statValue("xgeneration=4", "generation"));
+		assertEquals(4, CdbMapLookup.statValue("generation=4", "generation"));
+	}
+}
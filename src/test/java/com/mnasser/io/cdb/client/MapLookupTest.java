@@ -0,0 +1,71 @@
+package com.mnasser.io.cdb.client;
+
+import static com.mnasser.io.cdb.client.MemoryMapLookup.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * The default methods, over a lookup that only implements the required
+ * ones.
+ */
+public class MapLookupTest {
+
+	private static final MapInfo A = new MapInfo("a");
+	private static final MapInfo B = new MapInfo("b");
+
+	@Test
+	public void testLookupManyLoops() throws IOException {
+		final MemoryMapLookup m = new MemoryMapLookup();
+		m.put(A, "k1", "a1");
+		m.put(A, "k2", "a2");
+		m.put(B, "k1", "b1");
+		MapLookup l = plain(m);
+
+		byte[][] r = l.lookupMany(A, new byte[][] { bytes("k1"), bytes("missing"), bytes("k2") });
+		assertEquals(3, r.length);
+		assertEquals("a1", string(r[0]));
+		assertNull(r[1]);
+		assertEquals("a2", string(r[2]));
+
+		r = l.lookupMany(new MapInfo[] { A, B, B }, new byte[][] { bytes("k1"), bytes("k1"), bytes("k2") });
+		assertEquals("a1", string(r[0]));
+		assertEquals("b1", string(r[1]));
+		assertNull(r[2]);
+
+		assertEquals(0, l.lookupMany(A, new byte[0][]).length);
+		assertEquals(6, m.lookups.get());
+		assertEquals(0, m.batches.get());
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testStatUnsupported() throws IOException {
+		plain(new MemoryMapLookup()).stat(A);
+	}
+
+	/** Passes on only the methods MapLookup has no default for. */
+	private static MapLookup plain(final MapLookup m) {
+		return new MapLookup() {
+			public String getHost()      { return m.getHost();     }
+			public int getPort()         { return m.getPort();     }
+			public void connect()        { m.connect();            }
+			public boolean isConnected() { return m.isConnected(); }
+			public void close()          { m.close();              }
+
+			public byte[] lookup(MapInfo mi, byte[] key) throws IOException {
+				return m.lookup(mi, key);
+			}
+
+			public byte[] lookupAll(MapInfo mi, byte[] key) throws IOException {
+				return m.lookupAll(mi, key);
+			}
+
+			@Deprecated
+			public byte[] updateMap(MapInfo mi, String path, boolean full) throws IOException {
+				return m.updateMap(mi, path, full);
+			}
+		};
+	}
+}
@@ -0,0 +1,127 @@
+package com.mnasser.io.cdb.client;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link MapLookup} over maps held in memory, counting what it is
+ * asked.  lookupAll answers with the values joined by newlines.  Each map
+ * has a generation that {@link #updateMap(MapInfo, String, boolean)}
+ * moves on and {@link #stat(MapInfo)} reports.
+ */
+public class MemoryMapLookup implements MapLookup {
+
+	public final AtomicInteger lookups = new AtomicInteger();
+	public final AtomicInteger batches = new AtomicInteger();
+	public final AtomicInteger stats = new AtomicInteger();
+	public final AtomicInteger updates = new AtomicInteger();
+
+	private final ConcurrentHashMap<MapInfo, Map<String, List<byte[]>>> maps = new ConcurrentHashMap<MapInfo, Map<String, List<byte[]>>>();
+	private final Map<MapInfo, Long> generations = new ConcurrentHashMap<MapInfo, Long>();
+	private volatile boolean connected = true;
+
+	/** Replaces the values of key in map. */
+	public void put(MapInfo mi, String key, String... values) {
+		List<byte[]> vs = new ArrayList<byte[]>();
+		for (String v : values)
+			vs.add(bytes(v));
+		mapOf(mi).put(key, vs);
+	}
+
+	public void remove(MapInfo mi, String key) {
+		mapOf(mi).remove(key);
+	}
+
+	public long getGeneration(MapInfo mi) {
+		Long g = generations.get(mi);
+		return g == null ? 1 : g;
+	}
+
+	public void setGeneration(MapInfo mi, long g) {
+		generations.put(mi, g);
+	}
+
+	public String getHost()         { return "memory"; }
+	public int getPort()            { return 0;        }
+	public void connect()           { connected = true;  }
+	public boolean isConnected()    { return connected;  }
+	public void close()             { connected = false; }
+
+	public byte[] lookup(MapInfo mi, byte[] key) throws IOException {
+		lookups.incrementAndGet();
+		List<byte[]> vs = mapOf(mi).get(string(key));
+		return vs == null || vs.isEmpty() ? null : vs.get(0);
+	}
+
+	public byte[] lookupAll(MapInfo mi, byte[] key) throws IOException {
+		lookups.incrementAndGet();
+		List<byte[]> vs = mapOf(mi).get(string(key));
+		if (vs == null || vs.isEmpty())
+			return null;
+		StringBuilder sb = new StringBuilder();
+		for (byte[] v : vs)
+			sb.append(string(v)).append('\n');
+		return bytes(sb.toString());
+	}
+
+	public byte[][] lookupMany(MapInfo mi, byte[][] keys) throws IOException {
+		MapInfo[] mis = new MapInfo[keys.length];
+		Arrays.fill(mis, mi);
+		return lookupMany(mis, keys);
+	}
+
+	public byte[][] lookupMany(MapInfo[] mis, byte[][] keys) throws IOException {
+		batches.incrementAndGet();
+		byte[][] res = new byte[keys.length][];
+		for (int i = 0; i < keys.length; i++) {
+			List<byte[]> vs = mapOf(mis[i]).get(string(keys[i]));
+			res[i] = vs == null || vs.isEmpty() ? null : vs.get(0);
+		}
+		return res;
+	}
+
+	public String stat(MapInfo mi) throws IOException {
+		stats.incrementAndGet();
+		return "map=" + mi.getMapName() + "|" + mi.getMapType() + " generation=" + getGeneration(mi)
+			+ " keys=" + mapOf(mi).size();
+	}
+
+	@Deprecated
+	public byte[] updateMap(MapInfo mi, String path, boolean full) throws IOException {
+		updates.incrementAndGet();
+		long g = getGeneration(mi) + 1;
+		setGeneration(mi, g);
+		return bytes("loading " + path + " generation=" + g);
+	}
+
+	private Map<String, List<byte[]>> mapOf(MapInfo mi) {
+		Map<String, List<byte[]>> m = maps.get(mi);
+		if (m == null) {
+			maps.putIfAbsent(mi, new ConcurrentHashMap<String, List<byte[]>>());
+			m = maps.get(mi);
+		}
+		return m;
+	}
+
+	public static byte[] bytes(String s) {
+		try {
+			return s.getBytes("ISO-8859-1");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public static String string(byte[] b) {
+		try {
+			return b == null ? null : new String(b, "ISO-8859-1");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
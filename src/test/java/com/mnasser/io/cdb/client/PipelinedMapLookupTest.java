@@ -0,0 +1,154 @@
+package com.mnasser.io.cdb.client;
+
+import static com.mnasser.io.cdb.CdbTestFiles.*;
+import static com.mnasser.io.cdb.server.CdbLookupServerTest.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mnasser.io.cdb.server.CdbLookupServer;
+
+public class PipelinedMapLookupTest {
+
+	private File dir;
+	private CdbLookupServer server;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = newDir("pipelined");
+		server = startServer(dir);
+	}
+
+	@After
+	public void tearDown() {
+		server.close();
+		delete(dir);
+	}
+
+	@Test
+	public void testLookupV1() throws Exception {
+		checkLookups(1);
+	}
+
+	@Test
+	public void testLookupV2() throws Exception {
+		checkLookups(2);
+	}
+
+	private void checkLookups(int version) throws Exception {
+		PipelinedMapLookup l = lookup(version);
+		try {
+			for (int i = 0; i < KEYS; i++)
+				assertArrayEquals(value(i), l.lookup(SMALL, key(i)));
+			assertNull(l.lookup(SMALL, "missing".getBytes()));
+			assertArrayEquals(bigValue(), l.lookup(BIG, "big".getBytes()));
+			assertNotNull(l.lookupAll(SMALL, "dup".getBytes()));
+			assertNull(l.lookupAll(SMALL, "missing".getBytes()));
+			assertTrue(l.stat(SMALL).startsWith("map=small|"));
+			if (version >= 2)
+				assertArrayEquals(new byte[] { (byte)255, (byte)254 },
+						java.util.Arrays.copyOf(l.lookup(SMALL, BINARY_KEY), 2));
+
+			byte[][] keys = new byte[3 * KEYS][];
+			MapInfo[] mis = new MapInfo[keys.length];
+			for (int i = 0; i < keys.length; i++) {
+				keys[i] = i % 3 == 0 ? "missing".getBytes() : i % 5 == 0 ? "big".getBytes() : key(i % KEYS);
+				mis[i] = i % 5 == 0 && i % 3 != 0 ? BIG : SMALL;
+			}
+			byte[][] r = l.lookupMany(mis, keys);
+			for (int i = 0; i < keys.length; i++) {
+				if (i % 3 == 0)
+					assertNull(r[i]);
+				else if (i % 5 == 0)
+					assertArrayEquals(bigValue(), r[i]);
+				else
+					assertArrayEquals(value(i % KEYS), r[i]);
+			}
+		} finally {
+			l.close();
+		}
+	}
+
+	@Test
+	public void testManyThreads() throws Exception {
+		final PipelinedMapLookup l = new PipelinedMapLookup("127.0.0.1", server.getPort(), 2, 16);
+		l.setProtocolVersion(1);
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Void>> fs = new ArrayList<Future<Void>>();
+			for (int t = 0; t < 8; t++) {
+				final int seed = t;
+				fs.add(pool.submit(new Callable<Void>() {
+					public Void call() throws IOException {
+						for (int i = 0; i < 2000; i++) {
+							int k = (i * 31 + seed) % KEYS;
+							assertArrayEquals(value(k), l.lookup(SMALL, key(k)));
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> f : fs)
+				f.get();
+		} finally {
+			pool.shutdown();
+			l.close();
+		}
+	}
+
+	@Test
+	public void testAsyncBeyondWindow() throws Exception {
+		PipelinedMapLookup l = new PipelinedMapLookup("127.0.0.1", server.getPort(), 1, 8);
+		l.setProtocolVersion(2);
+		try {
+			List<Future<byte[]>> fs = new ArrayList<Future<byte[]>>();
+			for (int i = 0; i < 1000; i++)
+				fs.add(l.lookupAsync(SMALL, key(i % KEYS)));
+			for (int i = 0; i < 1000; i++)
+				assertArrayEquals(value(i % KEYS), fs.get(i).get());
+		} finally {
+			l.close();
+		}
+	}
+
+	@Test
+	public void testServerGoneFails() throws Exception {
+		PipelinedMapLookup l = lookup(1);
+		try {
+			assertArrayEquals(value(0), l.lookup(SMALL, key(0)));
+			server.close();
+			try {
+				for (int i = 0; i < 10; i++)
+					l.lookup(SMALL, key(0));
+				fail();
+			} catch (IOException e) {
+			}
+		} finally {
+			l.close();
+		}
+		try {
+			l.lookup(SMALL, key(0));
+			fail();
+		} catch (IOException e) {
+		}
+	}
+
+	private PipelinedMapLookup lookup(int version) {
+		PipelinedMapLookup l = new PipelinedMapLookup("127.0.0.1", server.getPort());
+		l.setProtocolVersion(version);
+		l.setTimeout(10000);
+		l.connect();
+		return l;
+	}
+}
@@ -0,0 +1,66 @@
+package com.mnasser.io.cdb.parse;
+
+import static com.mnasser.io.cdb.CdbTestFiles.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mnasser.io.cdb.Cdb;
+import com.mnasser.io.cdb.CdbFilter;
+import com.mnasser.io.cdb.ShardedCdb;
+
+public class HDistHelperTest {
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = newDir("hdist");
+	}
+
+	@After
+	public void tearDown() {
+		delete(dir);
+	}
+
+	@Test
+	public void testBuildShardsFillsInMissingShards() throws IOException {
+		String base = new File(dir, "m").getPath();
+		write(base + ".shrd0", "a,1\nb,2,3\n");
+		write(base + ".shrd1", "");
+
+		HDistHelper.buildShards(base, false);
+
+		for (int i = 0; i < HDistable.CDB_SHARD_COUNT; i++) {
+			String cdb = ShardedCdb.shardPath(base, i);
+			assertTrue(cdb, new File(cdb).exists());
+			assertTrue(new File(cdb + CdbFilter.SUFFIX).exists());
+			assertFalse(new File(base + ".shrd" + i).exists());
+		}
+		Cdb shard0 = new Cdb(ShardedCdb.shardPath(base, 0));
+		Cdb shard5 = new Cdb(ShardedCdb.shardPath(base, 5));
+		try {
+			assertArrayEquals("1".getBytes(), shard0.find("a".getBytes()));
+			assertArrayEquals("2,3".getBytes(), shard0.find("b".getBytes()));
+			assertNull(shard5.find("a".getBytes()));
+		} finally {
+			shard0.close();
+			shard5.close();
+		}
+	}
+
+	private static void write(String path, String content) throws IOException {
+		FileOutputStream out = new FileOutputStream(path);
+		try {
+			out.write(content.getBytes());
+		} finally {
+			out.close();
+		}
+	}
+}
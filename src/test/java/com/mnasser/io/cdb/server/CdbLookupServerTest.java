@@ -0,0 +1,356 @@
+package com.mnasser.io.cdb.server;
+
+import static com.mnasser.io.cdb.CdbTestFiles.*;
+import static com.mnasser.io.cdb.client.CdbConstants.*;
+import static org.junit.Assert.*;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mnasser.io.cdb.CdbMake;
+import com.mnasser.io.cdb.ShardedCdb;
+import com.mnasser.io.cdb.client.MapInfo;
+
+public class CdbLookupServerTest {
+
+	public static final MapInfo SMALL = new MapInfo("small");
+	public static final MapInfo BIG = new MapInfo("big");
+	public static final int BIG_VALUE = 64 << 10;
+
+	private File dir;
+	private CdbLookupServer server;
+	private Socket s;
+	private OutputStream out;
+	private DataInputStream in;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = newDir("server");
+		server = startServer(dir);
+		connect();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		s.close();
+		server.close();
+		delete(dir);
+	}
+
+	/**
+	 * A server on a free port serving small.cdb as SMALL and one key,
+	 * "big", with a 64KB value as BIG.
+	 */
+	public static CdbLookupServer startServer(File dir) throws IOException {
+		String small = new File(dir, "small").getPath();
+		CdbMake.make(resource("small.txt"), ShardedCdb.shardPath(small, 0));
+		String big = new File(dir, "big").getPath();
+		CdbMake cm = new CdbMake();
+		cm.start(ShardedCdb.shardPath(big, 0));
+		cm.add("big".getBytes(), bigValue());
+		cm.finish();
+
+		CdbLookupServer server = new CdbLookupServer(0, 2);
+		server.serve(SMALL, small);
+		server.serve(BIG, big);
+		server.start();
+		return server;
+	}
+
+	public static byte[] bigValue() {
+		byte[] v = new byte[BIG_VALUE];
+		for (int i = 0; i < v.length; i++)
+			v[i] = (byte)i;
+		return v;
+	}
+
+	private void connect() throws IOException {
+		s = new Socket("127.0.0.1", server.getPort());
+		s.setSoTimeout(20000);
+		out = s.getOutputStream();
+		in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+	}
+
+	@Test
+	public void testQuery() throws IOException {
+		for (int i = 0; i < KEYS; i++) {
+			send(line(ACT_QUERY, SMALL, key(i)));
+			assertArrayEquals(value(i), readAck());
+		}
+		send(line(ACT_QUERY, SMALL, "missing".getBytes()));
+		assertNull(readAck());
+		send(line(ACT_QUERY_ASCII, SMALL, key(3)));
+		assertEquals(new String(value(3)), readLine(rACK));
+	}
+
+	@Test
+	public void testQueryAll() throws IOException {
+		send(line(ACT_QUERY_ALL, SMALL, "dup".getBytes()));
+		DataInputStream d = new DataInputStream(new ByteArrayInputStream(readAck()));
+		for (String v : new String[] { "one", "two", "three" }) {
+			byte[] b = new byte[Integer.reverseBytes(d.readInt())];
+			d.readFully(b);
+			assertEquals(v, new String(b));
+		}
+		assertEquals(0, d.available());
+	}
+
+	@Test
+	public void testStatAndErrors() throws IOException {
+		send(line(ACT_STAT, SMALL, new byte[0]));
+		String stat = readLine(rACK);
+		assertTrue(stat, stat.startsWith("map=small|"));
+		assertTrue(stat, stat.contains(" generation=") && stat.contains(" shards=1"));
+		assertTrue(stat, stat.contains(" fpp=none "));
+		send(line(ACT_QUERY, new MapInfo("nope"), key(0)));
+		assertTrue(readLine(rEXP).startsWith("unknown map"));
+		send("garbage\n".getBytes());
+		assertEquals("malformed request", readLine(rEXP));
+	}
+
+	@Test
+	public void testStatFpp() throws IOException {
+		String prefix = new File(dir, "filtered").getPath();
+		CdbMake cm = new CdbMake();
+		cm.setFilter(0.01);
+		cm.start(ShardedCdb.shardPath(prefix, 0));
+		for (int i = 0; i < KEYS; i++)
+			cm.add(key(i), value(i));
+		cm.finish();
+		MapInfo filtered = new MapInfo("filtered");
+		server.serve(filtered, prefix);
+
+		send(line(ACT_STAT, filtered, new byte[0]));
+		String stat = readLine(rACK);
+		assertTrue(stat, stat.contains(" fpp=0.01 "));
+	}
+
+	@Test
+	public void testPipelined() throws IOException {
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		for (int i = 0; i < 2000; i++)
+			b.write(line(ACT_QUERY, SMALL, i % 7 == 0 ? "missing".getBytes() : key(i % KEYS)));
+		send(b.toByteArray());
+		for (int i = 0; i < 2000; i++)
+			assertArrayEquals(i % 7 == 0 ? null : value(i % KEYS), readAck());
+	}
+
+	@Test
+	public void testBatch() throws IOException {
+		byte[][] keys = { key(1), "missing".getBytes(), key(2), "big".getBytes() };
+		send(batchLine(keys, new MapInfo[] { SMALL, SMALL, SMALL, BIG }));
+		DataInputStream d = new DataInputStream(new ByteArrayInputStream(readAck()));
+		assertEquals(4, Integer.reverseBytes(d.readInt()));
+		assertArrayEquals(value(1), batchValue(d));
+		assertNull(batchValue(d));
+		assertArrayEquals(value(2), batchValue(d));
+		assertArrayEquals(bigValue(), batchValue(d));
+
+		/* Answered off the reactor, but still in order with what follows. */
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		b.write(batchLine(keys, new MapInfo[] { SMALL, SMALL, SMALL, BIG }));
+		b.write(line(ACT_QUERY, SMALL, key(3)));
+		send(b.toByteArray());
+		d = new DataInputStream(new ByteArrayInputStream(readAck()));
+		assertEquals(4, Integer.reverseBytes(d.readInt()));
+		assertArrayEquals(value(3), readAck());
+	}
+
+	@Test
+	public void testVersion2() throws IOException {
+		send("V\t2\n".getBytes());
+		assertEquals("2", readLine(rACK));
+		for (int i = 0; i < 10; i++) {
+			send(frame(ACT_QUERY, SMALL, key(i)));
+			assertArrayEquals(value(i), readFrameAck());
+		}
+		/* Keys may hold newlines now. */
+		send(frame(ACT_QUERY, SMALL, BINARY_KEY));
+		assertArrayEquals(binaryValue(), readFrameAck());
+		send(frame(ACT_QUERY, SMALL, "missing".getBytes()));
+		assertNull(readFrameAck());
+		send(frame(ACT_STAT, SMALL, new byte[0]));
+		byte[] f = readFrame();
+		assertEquals(rACK, f[0]);
+		assertTrue(new String(f, 1, f.length - 1).startsWith("map=small|"));
+	}
+
+	@Test
+	public void testVersionIsCapped() throws IOException {
+		send("V\t99\n".getBytes());
+		assertEquals(Integer.toString(PROTOCOL_VERSION), readLine(rACK));
+	}
+
+	@Test
+	public void testTooLongRequestClosesConnection() throws IOException {
+		byte[] key = new byte[Connection.MAX_REQUEST + 100];
+		Arrays.fill(key, (byte)'k');
+		send(line(ACT_QUERY, SMALL, key));
+		assertEquals("request too long", readLine(rEXP));
+		assertEquals(-1, in.read());
+	}
+
+	/**
+	 * A client that sends a large request and then a flood of queries for
+	 * a large value without reading: the server must stop handling them
+	 * once its backlog is full, and go on as the client reads.
+	 */
+	@Test
+	public void testBacklogStopsHandling() throws Exception {
+		byte[] longKey = new byte[600 << 10];
+		Arrays.fill(longKey, (byte)'k');
+		final int n = 20000;
+		final ByteArrayOutputStream b = new ByteArrayOutputStream();
+		b.write(line(ACT_QUERY, BIG, longKey));
+		for (int i = 0; i < n; i++)
+			b.write(line(ACT_QUERY, BIG, "big".getBytes()));
+		Thread writer = new Thread() {
+			public void run() {
+				try {
+					send(b.toByteArray());
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		writer.start();
+		ServedMap big = server.getRegistry().get(MapRegistry.spec(BIG));
+		long before;
+		do {
+			before = big.getQueries();
+			Thread.sleep(200);
+		} while (big.getQueries() != before);
+		assertTrue("handled " + before, before < 2000);
+
+		assertNull(readAck());
+		byte[] v = bigValue();
+		for (int i = 0; i < n; i++)
+			assertArrayEquals(v, readAck());
+		writer.join();
+		assertEquals(n + 1, big.getQueries());
+
+		send(line(ACT_QUERY, SMALL, key(5)));
+		assertArrayEquals(value(5), readAck());
+	}
+
+	private static byte[] binaryValue() {
+		byte[] v = new byte[256];
+		for (int i = 0; i < 256; i++)
+			v[i] = (byte)(255 - i);
+		return v;
+	}
+
+	private void send(byte[] b) throws IOException {
+		out.write(b);
+		out.flush();
+	}
+
+	static byte[] line(byte action, MapInfo mi, byte[] key) throws IOException {
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		b.write(action);
+		b.write(DELIM_REQ);
+		b.write((mi.getMapName() + "|" + mi.getMapType()).getBytes());
+		b.write(DELIM_REQ);
+		b.write(key);
+		b.write('\n');
+		return b.toByteArray();
+	}
+
+	static byte[] frame(byte action, MapInfo mi, byte[] key) {
+		byte[] spec = (mi.getMapName() + "|" + mi.getMapType()).getBytes();
+		ByteBuffer b = ByteBuffer.allocate(4 + 1 + 2 + spec.length + 4 + key.length)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		b.putInt(b.capacity() - 4).put(action).putShort((short)spec.length).put(spec)
+			.putInt(key.length).put(key);
+		return b.array();
+	}
+
+	static byte[] batchLine(byte[][] keys, MapInfo[] mis) {
+		List<MapInfo> maps = new ArrayList<MapInfo>();
+		for (MapInfo mi : mis)
+			if (!maps.contains(mi))
+				maps.add(mi);
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		ByteBuffer b = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+		b.putShort((short)maps.size());
+		for (MapInfo mi : maps) {
+			byte[] spec = (mi.getMapName() + "|" + mi.getMapType()).getBytes();
+			b.putShort((short)spec.length).put(spec);
+		}
+		b.putInt(keys.length);
+		for (int i = 0; i < keys.length; i++)
+			b.putShort((short)maps.indexOf(mis[i])).putInt(keys[i].length).put(keys[i]);
+		body.write(b.array(), 0, b.position());
+		ByteBuffer r = ByteBuffer.allocate(7 + body.size()).order(ByteOrder.LITTLE_ENDIAN);
+		r.put(ACT_QUERY_BATCH).put(DELIM_REQ).putInt(body.size()).put(body.toByteArray()).put((byte)'\n');
+		return r.array();
+	}
+
+	/** A v1 binary reply's payload, or null for a NAK. */
+	private byte[] readAck() throws IOException {
+		byte st = in.readByte();
+		if (st == rNAK) {
+			assertEquals('\n', in.readByte());
+			return null;
+		}
+		assertEquals(rACK, st);
+		byte[] v = new byte[Integer.reverseBytes(in.readInt())];
+		in.readFully(v);
+		assertEquals('\n', in.readByte());
+		return v;
+	}
+
+	/** A v1 text reply with the given status, without status and newline. */
+	private String readLine(byte status) throws IOException {
+		assertEquals((char)status, (char)in.readByte());
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = in.read()) != '\n') {
+			assertTrue(c >= 0);
+			sb.append((char)c);
+		}
+		return sb.toString();
+	}
+
+	private byte[] readFrame() throws IOException {
+		byte[] f = new byte[Integer.reverseBytes(in.readInt())];
+		in.readFully(f);
+		return f;
+	}
+
+	/** A v2 binary reply's payload, or null for a NAK. */
+	private byte[] readFrameAck() throws IOException {
+		byte[] f = readFrame();
+		if (f[0] == rNAK) {
+			assertEquals(1, f.length);
+			return null;
+		}
+		assertEquals(rACK, f[0]);
+		return Arrays.copyOfRange(f, 1, f.length);
+	}
+
+	private static byte[] batchValue(DataInputStream d) throws IOException {
+		byte st = d.readByte();
+		if (st == rNAK)
+			return null;
+		assertEquals(rACK, st);
+		byte[] v = new byte[Integer.reverseBytes(d.readInt())];
+		d.readFully(v);
+		return v;
+	}
+}